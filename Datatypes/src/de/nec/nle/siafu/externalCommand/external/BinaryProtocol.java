@@ -0,0 +1,315 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.externalCommand.external;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import de.nec.nle.siafu.exceptions.external.InvalidFlatDataException;
+import de.nec.nle.siafu.model.external.Position;
+import de.nec.nle.siafu.types.external.BooleanType;
+import de.nec.nle.siafu.types.external.EasyTime;
+import de.nec.nle.siafu.types.external.FloatNumber;
+import de.nec.nle.siafu.types.external.IntegerNumber;
+import de.nec.nle.siafu.types.external.Publishable;
+import de.nec.nle.siafu.types.external.RebuildHelper;
+import de.nec.nle.siafu.types.external.Text;
+import de.nec.nle.siafu.types.external.TextList;
+import de.nec.nle.siafu.types.external.TimePeriod;
+
+/**
+ * The constants and value encoding of Siafu's binary command protocol.
+ * <p>
+ * Every request and response is a frame: a big endian <code>int</code>
+ * with the length of the rest of the frame, followed by the request ID the
+ * client chose. Requests go on with a one byte opcode and its arguments;
+ * responses with a one byte status, and either the results or an error
+ * message. Strings are an <code>int</code> length followed by their UTF-8
+ * bytes, and values are a one byte tag followed by the data of their type.
+ * <p>
+ * Notice that the package in this class contains "external" as the last sub
+ * package, to avoid erratic behavior should you (mistakenly) add this library
+ * to a simulation or a Siafu deployment.
+ * 
+ * @see de.nec.nle.siafu.externalCommand.BinaryProtocol
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public final class BinaryProtocol {
+
+	/** Find the handle of an agent or place by name. */
+	public static final byte LOOKUP = 1;
+
+	/** Get context values of an agent or place. */
+	public static final byte GET_CONTEXT = 2;
+
+	/** Set an info field of an agent or place. */
+	public static final byte SET_CONTEXT = 3;
+
+	/** Move an agent towards a latitude and longitude. */
+	public static final byte MOVE = 4;
+
+	/** Let the agent model move an agent or not. */
+	public static final byte AUTO = 5;
+
+	/** Make an agent invisible. */
+	public static final byte HIDE = 6;
+
+	/** Make an agent visible. */
+	public static final byte UNHIDE = 7;
+
+	/** Get the simulation time, in seconds. */
+	public static final byte TIME = 8;
+
+	/** Find the agents near an agent. */
+	public static final byte FIND_NEARBY_AGENTS = 9;
+
+	/** Find the places near an agent. */
+	public static final byte FIND_NEARBY_PLACES = 10;
+
+	/** The request succeeded, and its results follow. */
+	public static final byte OK = 0;
+
+	/** The request failed, and a message follows. */
+	public static final byte ERROR = 1;
+
+	/** The handle belongs to an agent. */
+	public static final byte AGENT = 0;
+
+	/** The handle belongs to a place. */
+	public static final byte PLACE = 1;
+
+	/** A null value. */
+	public static final byte NULL_VALUE = 0;
+
+	/** A <code>Text</code>. */
+	public static final byte TEXT_VALUE = 1;
+
+	/** A <code>BooleanType</code>, as one byte. */
+	public static final byte BOOLEAN_VALUE = 2;
+
+	/** An <code>IntegerNumber</code>, as an <code>int</code>. */
+	public static final byte INTEGER_VALUE = 3;
+
+	/** A <code>FloatNumber</code>, as a <code>double</code>. */
+	public static final byte FLOAT_VALUE = 4;
+
+	/** An <code>EasyTime</code>, as an hour and a minute byte. */
+	public static final byte EASYTIME_VALUE = 5;
+
+	/** A <code>TimePeriod</code>, as its start and end times. */
+	public static final byte TIMEPERIOD_VALUE = 6;
+
+	/** A <code>TextList</code>, as its size and strings. */
+	public static final byte TEXTLIST_VALUE = 7;
+
+	/** A <code>Position</code>, as two <code>double</code> coordinates. */
+	public static final byte POSITION_VALUE = 8;
+
+	/** Any other value, as its flattened form. */
+	public static final byte FLAT_VALUE = 9;
+
+	/** The longest frame accepted, not counting its length. */
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	/** The charset strings are encoded in. */
+	private static final String UTF8 = "UTF-8";
+
+	/**
+	 * We don't want anyone instantiating a utility class
+	 */
+	private BinaryProtocol() {
+		// Do nothing; (Prevent instantiation)
+	}
+
+	/**
+	 * Write a string.
+	 * 
+	 * @param out
+	 *            where to write it
+	 * @param s
+	 *            the string
+	 * @throws IOException
+	 *             if it can't be written
+	 */
+	public static void writeString(final DataOutput out, final String s)
+			throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a string.
+	 * 
+	 * @param in
+	 *            where to read it from
+	 * @return the string
+	 * @throws IOException
+	 *             if it can't be read
+	 */
+	public static String readString(final DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Write a value. The types in this library are written in their binary
+	 * form, anything else is written flattened.
+	 * 
+	 * @param out
+	 *            where to write it
+	 * @param value
+	 *            the value, which may be null
+	 * @throws IOException
+	 *             if it can't be written
+	 */
+	public static void writeValue(final DataOutput out,
+			final Publishable value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL_VALUE);
+		} else if (value instanceof Text) {
+			out.writeByte(TEXT_VALUE);
+			writeString(out, ((Text) value).getText());
+		} else if (value instanceof BooleanType) {
+			out.writeByte(BOOLEAN_VALUE);
+			out.writeBoolean(((BooleanType) value).getValue().booleanValue());
+		} else if (value instanceof IntegerNumber) {
+			out.writeByte(INTEGER_VALUE);
+			out.writeInt(((IntegerNumber) value).getNumber());
+		} else if (value instanceof FloatNumber) {
+			out.writeByte(FLOAT_VALUE);
+			out.writeDouble(((FloatNumber) value).getNumber());
+		} else if (value instanceof EasyTime) {
+			out.writeByte(EASYTIME_VALUE);
+			writeEasyTime(out, (EasyTime) value);
+		} else if (value instanceof TimePeriod) {
+			out.writeByte(TIMEPERIOD_VALUE);
+			writeEasyTime(out, ((TimePeriod) value).getStart());
+			writeEasyTime(out, ((TimePeriod) value).getEnd());
+		} else if (value instanceof TextList) {
+			List list = ((TextList) value).getList();
+			out.writeByte(TEXTLIST_VALUE);
+			out.writeInt(list.size());
+			Iterator it = list.iterator();
+			while (it.hasNext()) {
+				writeString(out, (String) it.next());
+			}
+		} else if (value instanceof Position) {
+			out.writeByte(POSITION_VALUE);
+			out.writeDouble(((Position) value).getLatitude());
+			out.writeDouble(((Position) value).getLongitude());
+		} else {
+			out.writeByte(FLAT_VALUE);
+			writeString(out, value.flatten());
+		}
+	}
+
+	/**
+	 * Read a value.
+	 * 
+	 * @param in
+	 *            where to read it from
+	 * @return the value, which may be null
+	 * @throws IOException
+	 *             if it can't be read, or its type is unknown
+	 * @throws InvalidFlatDataException
+	 *             if it came flattened, and can't be rebuilt
+	 */
+	public static Publishable readValue(final DataInput in)
+			throws IOException, InvalidFlatDataException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL_VALUE:
+			return null;
+		case TEXT_VALUE:
+			return new Text("Text:" + readString(in));
+		case BOOLEAN_VALUE:
+			return new BooleanType(in.readBoolean());
+		case INTEGER_VALUE:
+			return new IntegerNumber(in.readInt());
+		case FLOAT_VALUE:
+			return new FloatNumber(in.readDouble());
+		case EASYTIME_VALUE:
+			return readEasyTime(in);
+		case TIMEPERIOD_VALUE:
+			EasyTime start = readEasyTime(in);
+			return new TimePeriod(start, readEasyTime(in));
+		case TEXTLIST_VALUE:
+			int size = in.readInt();
+			if (size < 0 || size > MAX_FRAME_LENGTH) {
+				throw new IOException("Invalid list size " + size);
+			}
+			List list = new ArrayList(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readString(in));
+			}
+			return new TextList(list);
+		case POSITION_VALUE:
+			double latitude = in.readDouble();
+			return new Position(latitude, in.readDouble());
+		case FLAT_VALUE:
+			return RebuildHelper.rebuild(readString(in));
+		default:
+			throw new IOException("Unknown value type " + tag);
+		}
+	}
+
+	/**
+	 * Write an <code>EasyTime</code>.
+	 * 
+	 * @param out
+	 *            where to write it
+	 * @param time
+	 *            the time
+	 * @throws IOException
+	 *             if it can't be written
+	 */
+	private static void writeEasyTime(final DataOutput out,
+			final EasyTime time) throws IOException {
+		out.writeByte(time.getHour());
+		out.writeByte(time.getMinute());
+	}
+
+	/**
+	 * Read an <code>EasyTime</code>.
+	 * 
+	 * @param in
+	 *            where to read it from
+	 * @return the time
+	 * @throws IOException
+	 *             if it can't be read
+	 */
+	private static EasyTime readEasyTime(final DataInput in)
+			throws IOException {
+		int hour = in.readByte();
+		return new EasyTime(hour, in.readByte());
+	}
+}
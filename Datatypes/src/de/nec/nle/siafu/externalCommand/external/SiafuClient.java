@@ -0,0 +1,543 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.externalCommand.external;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.nec.nle.siafu.exceptions.external.CommandFailedException;
+import de.nec.nle.siafu.exceptions.external.InvalidFlatDataException;
+import de.nec.nle.siafu.types.external.Publishable;
+
+/**
+ * A client for Siafu's binary command protocol, which is enabled with the
+ * <code>commandlistener.binary.enable</code> key of Siafu's configuration.
+ * <p>
+ * Agents and places are referred to by a numeric handle, which you get
+ * once with <code>lookup</code>. Context values arrive as the classes in
+ * <code>de.nec.nle.siafu.types.external</code>, without any flattening.
+ * <p>
+ * Every command has a blocking method, such as <code>getContext</code>.
+ * For the most frequent ones, there's also a <code>submit</code> method,
+ * which only queues the request and returns its ID, and an
+ * <code>await</code> method that waits for the response with that ID. That
+ * way, many requests can be in flight at once, and their responses
+ * collected in any order. Submitted requests are sent when awaiting a
+ * response, or with <code>flush</code>.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public class SiafuClient {
+	/** The size of the socket buffers. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** The connection to Siafu. */
+	private Socket socket;
+
+	/** The requests to Siafu. */
+	private DataOutputStream out;
+
+	/** The responses from Siafu. */
+	private DataInputStream in;
+
+	/** The ID of the next request. */
+	private int nextRequestId;
+
+	/** The responses that arrived before being awaited, by request ID. */
+	private Map responses = new HashMap();
+
+	/** The request being built. */
+	private ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+	/** The stream to build the request with. */
+	private DataOutputStream requestOut = new DataOutputStream(request);
+
+	/**
+	 * Connect to Siafu's binary command port.
+	 * 
+	 * @param host
+	 *            the host Siafu runs in
+	 * @param port
+	 *            the binary command port
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public SiafuClient(final String host, final int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(socket
+				.getOutputStream(), BUFFER_SIZE));
+		in = new DataInputStream(new BufferedInputStream(socket
+				.getInputStream(), BUFFER_SIZE));
+	}
+
+	/**
+	 * Close the connection.
+	 * 
+	 * @throws IOException
+	 *             if the connection can't be closed
+	 */
+	public synchronized void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Send the submitted requests right away.
+	 * 
+	 * @throws IOException
+	 *             if the requests can't be sent
+	 */
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Find the handle of an agent or place.
+	 * 
+	 * @param name
+	 *            the name of the agent or place
+	 * @return the handle
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if there's no agent or place with that name
+	 */
+	public synchronized int lookup(final String name) throws IOException,
+			CommandFailedException {
+		int id = start(BinaryProtocol.LOOKUP);
+		BinaryProtocol.writeString(requestOut, name);
+		end();
+		return await(id).readInt();
+	}
+
+	/**
+	 * Queue a request for context values of an agent or place.
+	 * 
+	 * @param handle
+	 *            the handle of the agent or place
+	 * @param contexts
+	 *            the names of the context values
+	 * @return the ID of the request, to await its response with
+	 *         <code>awaitContext</code>
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public synchronized int submitGetContext(final int handle,
+			final String[] contexts) throws IOException {
+		int id = start(BinaryProtocol.GET_CONTEXT);
+		requestOut.writeInt(handle);
+		requestOut.writeInt(contexts.length);
+		for (int i = 0; i < contexts.length; i++) {
+			BinaryProtocol.writeString(requestOut, contexts[i]);
+		}
+		end();
+		return id;
+	}
+
+	/**
+	 * Wait for the context values requested with
+	 * <code>submitGetContext</code>.
+	 * 
+	 * @param requestId
+	 *            the ID of the request
+	 * @return the values, in the order they were requested
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle or a context is unknown
+	 */
+	public synchronized Publishable[] awaitContext(final int requestId)
+			throws IOException, CommandFailedException {
+		DataInputStream response = await(requestId);
+		Publishable[] values = new Publishable[response.readInt()];
+		try {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = BinaryProtocol.readValue(response);
+			}
+		} catch (InvalidFlatDataException e) {
+			throw new IOException("Can't rebuild a context value: "
+					+ e.getMessage());
+		}
+		return values;
+	}
+
+	/**
+	 * Get context values of an agent or place.
+	 * 
+	 * @param handle
+	 *            the handle of the agent or place
+	 * @param contexts
+	 *            the names of the context values
+	 * @return the values, in the order they were requested
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle or a context is unknown
+	 */
+	public synchronized Publishable[] getContext(final int handle,
+			final String[] contexts) throws IOException,
+			CommandFailedException {
+		return awaitContext(submitGetContext(handle, contexts));
+	}
+
+	/**
+	 * Get a context value of an agent or place.
+	 * 
+	 * @param handle
+	 *            the handle of the agent or place
+	 * @param context
+	 *            the name of the context value
+	 * @return the value
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle or the context is unknown
+	 */
+	public synchronized Publishable getContext(final int handle,
+			final String context) throws IOException, CommandFailedException {
+		return getContext(handle, new String[] {context})[0];
+	}
+
+	/**
+	 * Queue a request to set an info field of an agent or place.
+	 * 
+	 * @param handle
+	 *            the handle of the agent or place
+	 * @param variable
+	 *            the name of the info field
+	 * @param value
+	 *            the new value
+	 * @return the ID of the request, to await its response with
+	 *         <code>await</code>
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public synchronized int submitSetContext(final int handle,
+			final String variable, final Publishable value)
+			throws IOException {
+		int id = start(BinaryProtocol.SET_CONTEXT);
+		requestOut.writeInt(handle);
+		BinaryProtocol.writeString(requestOut, variable);
+		BinaryProtocol.writeValue(requestOut, value);
+		end();
+		return id;
+	}
+
+	/**
+	 * Set an info field of an agent or place.
+	 * 
+	 * @param handle
+	 *            the handle of the agent or place
+	 * @param variable
+	 *            the name of the info field
+	 * @param value
+	 *            the new value
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle or the info field is unknown
+	 */
+	public synchronized void setContext(final int handle,
+			final String variable, final Publishable value)
+			throws IOException, CommandFailedException {
+		await(submitSetContext(handle, variable, value));
+	}
+
+	/**
+	 * Queue a request to send an agent towards a position.
+	 * 
+	 * @param handle
+	 *            the handle of the agent
+	 * @param latitude
+	 *            the latitude of the destination
+	 * @param longitude
+	 *            the longitude of the destination
+	 * @return the ID of the request, to await its response with
+	 *         <code>await</code>
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	public synchronized int submitMove(final int handle,
+			final double latitude, final double longitude)
+			throws IOException {
+		int id = start(BinaryProtocol.MOVE);
+		requestOut.writeInt(handle);
+		requestOut.writeDouble(latitude);
+		requestOut.writeDouble(longitude);
+		end();
+		return id;
+	}
+
+	/**
+	 * Send an agent towards a position.
+	 * 
+	 * @param handle
+	 *            the handle of the agent
+	 * @param latitude
+	 *            the latitude of the destination
+	 * @param longitude
+	 *            the longitude of the destination
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle is unknown, or the position unreachable
+	 */
+	public synchronized void move(final int handle, final double latitude,
+			final double longitude) throws IOException,
+			CommandFailedException {
+		await(submitMove(handle, latitude, longitude));
+	}
+
+	/**
+	 * Let the agent model move an agent, or keep it still for the external
+	 * commands to move.
+	 * 
+	 * @param handle
+	 *            the handle of the agent
+	 * @param auto
+	 *            true to let the agent model move it
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle is unknown
+	 */
+	public synchronized void setAuto(final int handle, final boolean auto)
+			throws IOException, CommandFailedException {
+		int id = start(BinaryProtocol.AUTO);
+		requestOut.writeInt(handle);
+		requestOut.writeBoolean(auto);
+		end();
+		await(id);
+	}
+
+	/**
+	 * Make an agent invisible.
+	 * 
+	 * @param handle
+	 *            the handle of the agent
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle is unknown
+	 */
+	public synchronized void hide(final int handle) throws IOException,
+			CommandFailedException {
+		int id = start(BinaryProtocol.HIDE);
+		requestOut.writeInt(handle);
+		end();
+		await(id);
+	}
+
+	/**
+	 * Make an agent visible.
+	 * 
+	 * @param handle
+	 *            the handle of the agent
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle is unknown
+	 */
+	public synchronized void unhide(final int handle) throws IOException,
+			CommandFailedException {
+		int id = start(BinaryProtocol.UNHIDE);
+		requestOut.writeInt(handle);
+		end();
+		await(id);
+	}
+
+	/**
+	 * Get the simulation time.
+	 * 
+	 * @return the time, in seconds since the epoch
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if there's no simulation running
+	 */
+	public synchronized long getTime() throws IOException,
+			CommandFailedException {
+		int id = start(BinaryProtocol.TIME);
+		end();
+		return await(id).readLong();
+	}
+
+	/**
+	 * Find the agents near an agent.
+	 * 
+	 * @param handle
+	 *            the handle of the agent
+	 * @param distance
+	 *            the distance, in simulation grid points
+	 * @return the handles of the agents nearby
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle is unknown
+	 */
+	public synchronized int[] findAgentsNear(final int handle,
+			final int distance) throws IOException, CommandFailedException {
+		return findNear(BinaryProtocol.FIND_NEARBY_AGENTS, handle, distance);
+	}
+
+	/**
+	 * Find the places near an agent.
+	 * 
+	 * @param handle
+	 *            the handle of the agent
+	 * @param distance
+	 *            the distance, in simulation grid points
+	 * @return the handles of the places nearby
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle is unknown
+	 */
+	public synchronized int[] findPlacesNear(final int handle,
+			final int distance) throws IOException, CommandFailedException {
+		return findNear(BinaryProtocol.FIND_NEARBY_PLACES, handle, distance);
+	}
+
+	/**
+	 * Find the agents or places near an agent.
+	 * 
+	 * @param opcode
+	 *            what to look for
+	 * @param handle
+	 *            the handle of the agent
+	 * @param distance
+	 *            the distance, in simulation grid points
+	 * @return the handles found
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the handle is unknown
+	 */
+	private int[] findNear(final byte opcode, final int handle,
+			final int distance) throws IOException, CommandFailedException {
+		int id = start(opcode);
+		requestOut.writeInt(handle);
+		requestOut.writeInt(distance);
+		end();
+		DataInputStream response = await(id);
+		int[] handles = new int[response.readInt()];
+		for (int i = 0; i < handles.length; i++) {
+			handles[i] = response.readInt();
+		}
+		return handles;
+	}
+
+	/**
+	 * Wait for the response to a request that returns no results, such as
+	 * the ones of <code>submitSetContext</code> and
+	 * <code>submitMove</code>.
+	 * 
+	 * @param requestId
+	 *            the ID of the request
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the request failed
+	 */
+	public synchronized void awaitOk(final int requestId) throws IOException,
+			CommandFailedException {
+		await(requestId);
+	}
+
+	/**
+	 * Start building a request.
+	 * 
+	 * @param opcode
+	 *            the command
+	 * @return the ID of the request
+	 * @throws IOException
+	 *             never, as the request is built in memory
+	 */
+	private int start(final byte opcode) throws IOException {
+		int id = nextRequestId++;
+		request.reset();
+		requestOut.writeInt(id);
+		requestOut.writeByte(opcode);
+		return id;
+	}
+
+	/**
+	 * Queue the request just built.
+	 * 
+	 * @throws IOException
+	 *             if the request can't be written
+	 */
+	private void end() throws IOException {
+		out.writeInt(request.size());
+		request.writeTo(out);
+	}
+
+	/**
+	 * Wait for the response to a request, keeping the responses to other
+	 * requests that arrive in the meantime.
+	 * 
+	 * @param requestId
+	 *            the ID of the request
+	 * @return the results of the request
+	 * @throws IOException
+	 *             if the connection fails
+	 * @throws CommandFailedException
+	 *             if the request failed
+	 */
+	private DataInputStream await(final int requestId) throws IOException,
+			CommandFailedException {
+		out.flush();
+		Integer key = new Integer(requestId);
+		byte[] frame = (byte[]) responses.remove(key);
+		while (frame == null) {
+			int length = in.readInt();
+			if (length < 5 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+				throw new IOException("Invalid frame length " + length);
+			}
+			byte[] received = new byte[length];
+			in.readFully(received);
+			int id = ((received[0] & 0xff) << 24)
+					| ((received[1] & 0xff) << 16)
+					| ((received[2] & 0xff) << 8) | (received[3] & 0xff);
+			if (id == requestId) {
+				frame = received;
+			} else {
+				responses.put(new Integer(id), received);
+			}
+		}
+
+		DataInputStream response = new DataInputStream(
+				new ByteArrayInputStream(frame, 4, frame.length - 4));
+		if (response.readByte() == BinaryProtocol.ERROR) {
+			throw new CommandFailedException(BinaryProtocol
+					.readString(response));
+		}
+		return response;
+	}
+}
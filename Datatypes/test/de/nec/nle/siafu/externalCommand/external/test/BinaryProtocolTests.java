@@ -0,0 +1,77 @@
+package de.nec.nle.siafu.externalCommand.external.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import de.nec.nle.siafu.exceptions.external.InvalidFlatDataException;
+import de.nec.nle.siafu.externalCommand.external.BinaryProtocol;
+import de.nec.nle.siafu.model.external.Place;
+import de.nec.nle.siafu.model.external.Position;
+import de.nec.nle.siafu.types.external.BooleanType;
+import de.nec.nle.siafu.types.external.EasyTime;
+import de.nec.nle.siafu.types.external.FloatNumber;
+import de.nec.nle.siafu.types.external.IntegerNumber;
+import de.nec.nle.siafu.types.external.Publishable;
+import de.nec.nle.siafu.types.external.Text;
+import de.nec.nle.siafu.types.external.TextList;
+import de.nec.nle.siafu.types.external.TimePeriod;
+
+public class BinaryProtocolTests extends TestCase {
+
+	public Publishable[] originalObjects;
+
+	protected void setUp() throws Exception {
+		originalObjects = new Publishable[] {
+				new Text("Text:Some text with spaces and ümläuts"),
+				new BooleanType(true), new IntegerNumber(-42),
+				new FloatNumber(3.25), new EasyTime(14, 15),
+				new TimePeriod(new EasyTime(9, 0), new EasyTime(17, 30)),
+				new TextList(new String[] {"one", "two", "three"}),
+				new Position(49.4, 8.6),
+				new Place("Restaurant", new Position(49.4, 8.6), "Pizzeria") };
+	}
+
+	private Publishable roundTrip(final Publishable value)
+			throws IOException, InvalidFlatDataException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryProtocol.writeValue(new DataOutputStream(bytes), value);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		Publishable read = BinaryProtocol.readValue(in);
+		if (in.available() != 0) {
+			fail("Bytes left after reading " + value);
+		}
+		return read;
+	}
+
+	public void testRoundTrip() throws IOException, InvalidFlatDataException {
+		for (int i = 0; i < originalObjects.length; i++) {
+			Publishable read = roundTrip(originalObjects[i]);
+			if (!originalObjects[i].equals(read)) {
+				fail("Can't encode and decode " + originalObjects[i]);
+			}
+		}
+	}
+
+	public void testNull() throws IOException, InvalidFlatDataException {
+		if (roundTrip(null) != null) {
+			fail("Can't encode and decode null");
+		}
+	}
+
+	public void testString() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryProtocol.writeString(new DataOutputStream(bytes), "");
+		BinaryProtocol.writeString(new DataOutputStream(bytes), "€");
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		if (!BinaryProtocol.readString(in).equals("")
+				|| !BinaryProtocol.readString(in).equals("€")) {
+			fail("Can't encode and decode strings");
+		}
+	}
+}
@@ -30,6 +30,7 @@ import de.nec.nle.siafu.control.progress.ConsoleProgress;
 import de.nec.nle.siafu.control.progress.GUIProgress;
 import de.nec.nle.siafu.control.progress.Progress;
 import de.nec.nle.siafu.exceptions.GUINotReadyException;
+import de.nec.nle.siafu.externalCommand.BinaryCommandListener;
 import de.nec.nle.siafu.externalCommand.CommandListener;
 import de.nec.nle.siafu.graphics.GUI;
 import de.nec.nle.siafu.graphics.Markers;
@@ -37,6 +38,7 @@ import de.nec.nle.siafu.graphics.markers.Marker;
 import de.nec.nle.siafu.model.SimulationData;
 import de.nec.nle.siafu.model.Trackable;
 import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.model.WorldSnapshot;
 
 /**
  * This is the main class of the simulator. Upon running its main method, a
@@ -61,11 +63,64 @@ public class Controller {
 	/** Default value for the cache size. */
 	private static final int DEFAULT_CACHE_SIZE = 100;
 
+	/**
+	 * Default value for the gradient calculation threads. Zero means one per
+	 * available processor.
+	 */
+	private static final int DEFAULT_GRADIENT_THREADS = 0;
+
+	/**
+	 * Default value for the memory taken by the gradient cache, in
+	 * megabytes. Zero means no limit other than the cache size.
+	 */
+	private static final int DEFAULT_CACHE_MAX_MEGABYTES = 0;
+
+	/**
+	 * Default value for the amount of threads that move the agents. One
+	 * means they are moved by the simulation thread.
+	 */
+	private static final int DEFAULT_MOVEMENT_THREADS = 1;
+
+	/**
+	 * Default value for the side of the routing sectors. Zero means places
+	 * route agents with their gradients.
+	 */
+	private static final int DEFAULT_ROUTING_SECTOR_SIZE = 0;
+
+	/**
+	 * Default value for keeping the agents in a columnar agent store.
+	 */
+	private static final boolean DEFAULT_COLUMNAR_AGENTS = false;
+
+	/**
+	 * Default value for the amount of printouts that can wait for the
+	 * asynchronous output writer.
+	 */
+	private static final int DEFAULT_OUTPUT_QUEUE_SIZE = 4;
+
+	/**
+	 * Default value for the amount of printouts from one delta output
+	 * keyframe to the next.
+	 */
+	private static final int DEFAULT_DELTA_KEYFRAMES = 12;
+
 	/** Default value for the UI speed. */
 	private static final int DEFAULT_UI_SPEED = 50;
 
+	/** Nanoseconds in a second. */
+	private static final double NANOS_PER_SECOND = 1e9;
+
 	/** Default value for the TCP listening port. */
 	private static final int DEFAULT_PORT = 4444;
+
+	/**
+	 * Default value for the most context pushes per second sent to each
+	 * subscribed client. Zero means no limit.
+	 */
+	private static final int DEFAULT_PUSH_RATE = 10;
+
+	/** Default value for the TCP port of the binary command protocol. */
+	private static final int DEFAULT_BINARY_PORT = 4445;
 	
 	/**
 	 * Configuration folder
@@ -117,6 +172,12 @@ public class Controller {
 	 */
 	private CommandListener commandListener;
 
+	/**
+	 * The Runnable that listens for commands in the binary protocol, if it
+	 * is enabled.
+	 */
+	private BinaryCommandListener binaryCommandListener;
+
 	/**
 	 * The Progress object that displays simulation load status.
 	 */
@@ -139,6 +200,26 @@ public class Controller {
 	 * @param simulationPath the path to the simulation data
 	 */
 	public Controller(final String configPath, final String simulationPath) {
+		this(configPath, simulationPath, 0, 0);
+	}
+
+	/**
+	 * Initialize the simulator itself, and run the simulation. If either
+	 * limit is given, the simulation runs in batch mode: there is no GUI,
+	 * regardless of the configuration, and the simulation ends as soon as
+	 * it runs for the given iterations or simulated time. Use
+	 * <code>waitForBatchEnd</code> to wait for it.
+	 * 
+	 * @param configPath the file that defines the parameters of the
+	 *            simulation
+	 * @param simulationPath the path to the simulation data
+	 * @param maxIterations the amount of iterations to run, or 0 for no limit
+	 * @param maxSimulatedSeconds the simulated time to run, in seconds, or 0
+	 *            for no limit
+	 */
+	public Controller(final String configPath, final String simulationPath,
+			final long maxIterations, final long maxSimulatedSeconds) {
+		boolean batch = maxIterations > 0 || maxSimulatedSeconds > 0;
 		String verifiedConfigPath = configPath;
 
 		if (configPath == null) {
@@ -158,8 +239,12 @@ public class Controller {
 		// Command Listener thread (for external commands)
 		if (config.getBoolean("commandlistener.enable")) {
 			int tcpPort = config.getInt("commandlistener.tcpport");
+			int maxPushRate =
+					config.getInt("commandlistener.push.maxrate",
+						DEFAULT_PUSH_RATE);
 			try {
-				commandListener = new CommandListener(this, tcpPort);
+				commandListener =
+						new CommandListener(this, tcpPort, maxPushRate);
 				// Start threads
 				new Thread(commandListener, "Command Listener thread")
 						.start();
@@ -172,9 +257,39 @@ public class Controller {
 			}
 		}
 
-		guiUsed = config.getBoolean("ui.usegui");
+		if (config.getBoolean("commandlistener.binary.enable", false)) {
+			int binaryPort =
+					config.getInt("commandlistener.binary.tcpport",
+						DEFAULT_BINARY_PORT);
+			try {
+				binaryCommandListener =
+						new BinaryCommandListener(this, binaryPort);
+				new Thread(binaryCommandListener,
+						"Binary Command Listener thread").start();
+			} catch (IOException e) {
+				System.err.println("The TCP port " + binaryPort
+						+ " is already in use. Is there another copy of "
+						+ "Siafu running? Consider changing the port "
+						+ "number in the config file.");
+				return;
+			}
+		}
+
+		guiUsed = !batch && config.getBoolean("ui.usegui");
 
-		if (guiUsed) {
+		if (batch && simulationPath != null) {
+			// Printout to the Console
+			progress = new ConsoleProgress();
+
+			// Run the simulation as fast as possible, without a GUI
+			simulation =
+					new Simulation(simulationPath, this, maxIterations,
+							maxSimulatedSeconds);
+		} else if (batch) {
+			System.err.println("Please provide a simulation at the "
+					+ "command line to run in batch mode.");
+			System.exit(1);
+		} else if (guiUsed) {
 			// Printout to the GUI
 			progress = new GUIProgress();
 
@@ -200,6 +315,42 @@ public class Controller {
 
 	}
 
+	/**
+	 * Wait until the batch simulation ends, print how fast it ran, and stop
+	 * the rest of the simulator.
+	 * 
+	 * @return the exit status, 0 if the simulation ended normally and 1 if
+	 *         it failed or couldn't start
+	 */
+	public int waitForBatchEnd() {
+		if (simulation == null) {
+			return 1;
+		}
+
+		boolean succeeded = simulation.waitUntilFinished();
+		double seconds = simulation.getElapsedNanos() / NANOS_PER_SECOND;
+		long iterations = simulation.getIterations();
+		long agentSteps = simulation.getAgentSteps();
+
+		System.out.println("Ran " + iterations + " iterations and "
+				+ agentSteps + " agent steps in "
+				+ String.format("%.3f", seconds) + "s");
+
+		if (seconds > 0) {
+			System.out.println(String.format(
+				"%.1f ticks/s, %.1f agent-steps/s", iterations / seconds,
+				agentSteps / seconds));
+		}
+
+		endSimulator();
+
+		if (!succeeded) {
+			System.err.println("The simulation ended with an error");
+			return 1;
+		}
+		return 0;
+	}
+
 	/**
 	 * Create a config file with default values. This is used when the config
 	 * file doesn't exist in the first place.
@@ -213,16 +364,45 @@ public class Controller {
 		newConfig.setRootElementName("configuration");
 		newConfig.setProperty("commandlistener.enable", true);
 		newConfig.setProperty("commandlistener.tcpport", DEFAULT_PORT);
+		newConfig.setProperty("commandlistener.push.maxrate",
+			DEFAULT_PUSH_RATE);
+		newConfig.setProperty("commandlistener.binary.enable", false);
+		newConfig.setProperty("commandlistener.binary.tcpport",
+			DEFAULT_BINARY_PORT);
 		newConfig.setProperty("ui.usegui", true);
 		newConfig.setProperty("ui.speed", DEFAULT_UI_SPEED);
 		newConfig.setProperty("ui.gradientcache.prefill", true);
 		newConfig.setProperty("ui.gradientcache.size", DEFAULT_CACHE_SIZE);
+		newConfig.setProperty("ui.gradientcache.maxmegabytes",
+			DEFAULT_CACHE_MAX_MEGABYTES);
+		newConfig.setProperty("ui.gradientcache.nearestplacefields", true);
+		newConfig.setProperty("ui.gradientcache.threads",
+			DEFAULT_GRADIENT_THREADS);
+		newConfig.setProperty("movement.threads", DEFAULT_MOVEMENT_THREADS);
+		newConfig.setProperty("routing.sectorsize",
+			DEFAULT_ROUTING_SECTOR_SIZE);
+		newConfig.setProperty("agents.columnar", DEFAULT_COLUMNAR_AGENTS);
 		newConfig.setProperty("output.type", "null");
 		newConfig.setProperty("output.csv.path", System
 				.getProperty("user.home")
 				+ File.separator + "SiafuContext.csv");
 		newConfig.setProperty("output.csv.interval", DEFAULT_CSV_INTERVAL);
 		newConfig.setProperty("output.csv.keephistory", true);
+		newConfig.setProperty("output.columnar.path", System
+				.getProperty("user.home")
+				+ File.separator + "SiafuContext.sfc");
+		newConfig.setProperty("output.columnar.interval",
+			DEFAULT_CSV_INTERVAL);
+		newConfig.setProperty("output.delta.path", System
+				.getProperty("user.home")
+				+ File.separator + "SiafuContext.sfd");
+		newConfig.setProperty("output.delta.interval", DEFAULT_CSV_INTERVAL);
+		newConfig.setProperty("output.delta.keyframes",
+			DEFAULT_DELTA_KEYFRAMES);
+		newConfig.setProperty("output.async", false);
+		newConfig.setProperty("output.async.queuesize",
+			DEFAULT_OUTPUT_QUEUE_SIZE);
+		newConfig.setProperty("output.async.backpressure", "block");
 
 		try {
 			newConfig.setFileName(DEFAULT_CONFIG_FILE);
@@ -321,6 +501,30 @@ public class Controller {
 		return simulation.isPaused();
 	}
 
+	/**
+	 * Queue a command for the simulation thread, which runs it at the end of
+	 * the current iteration. The caller doesn't wait.
+	 * 
+	 * @param command
+	 *            the command to run
+	 * @return true if the command will run, false if the simulation has
+	 *         ended and it won't
+	 */
+	public boolean enqueueCommand(final Runnable command) {
+		return simulation.enqueueCommand(command);
+	}
+
+	/**
+	 * Get the state of the agents at the end of the last iteration, if
+	 * there is one.
+	 * 
+	 * @return the snapshot, or null if none was taken
+	 * @see Simulation#getSnapshot()
+	 */
+	public WorldSnapshot getSnapshot() {
+		return simulation.getSnapshot();
+	}
+
 	/**
 	 * Get the world being simulated.
 	 * 
@@ -357,6 +561,10 @@ public class Controller {
 			commandListener.die();
 		}
 
+		if (binaryCommandListener != null) {
+			binaryCommandListener.die();
+		}
+
 		// End the simulation
 		if (simulation != null) {
 			simulation.die();
@@ -37,11 +37,16 @@ public final class Siafu {
 	 */
 	private static final String SYNTAX =
 			"Command line arguments: [--config=CONFIG_FILE] "
-					+ "[--simulation=SIMULATION_PATH] [-h]\n"
+					+ "[--simulation=SIMULATION_PATH] "
+					+ "[--iterations=N] [--duration=SECONDS] [-h]\n"
 					+ "where CONFIG_FILE is the configuration XML, "
 					+ "and SIMULATION_PATH is either\n"
 					+ "the simulation's root folder or it's "
-					+ "packed form in a jar file.";
+					+ "packed form in a jar file.\n"
+					+ "Giving a number of iterations or a simulated duration "
+					+ "runs the simulation\n"
+					+ "in batch mode, without GUI, and exits when either "
+					+ "is reached.";
 
 	/**
 	 * Prevent this utility class from being instantiated.
@@ -58,6 +63,8 @@ public final class Siafu {
 	public static void main(final String[] args) {
 		String configPath = null;
 		String simulationPath = null;
+		long iterations = 0;
+		long duration = 0;
 
 		for (int i = 0; i < args.length; i++) {
 			try {
@@ -67,6 +74,12 @@ public final class Siafu {
 				} else if (args[i].startsWith("-s=")
 						|| args[i].startsWith("--simulation")) {
 					simulationPath = args[i].split("=")[1];
+				} else if (args[i].startsWith("-i=")
+						|| args[i].startsWith("--iterations=")) {
+					iterations = Long.parseLong(args[i].split("=")[1]);
+				} else if (args[i].startsWith("-d=")
+						|| args[i].startsWith("--duration=")) {
+					duration = Long.parseLong(args[i].split("=")[1]);
 				} else if (args[i].equals("-v")
 						|| args[i].equals("--version")) {
 					System.out.println("Siafu v" + RELEASE
@@ -79,10 +92,18 @@ public final class Siafu {
 			} catch (ArrayIndexOutOfBoundsException e) {
 				System.err.println(SYNTAX);
 				System.exit(1);
+			} catch (NumberFormatException e) {
+				System.err.println(SYNTAX);
+				System.exit(1);
 			}
 
 		}
 
+		if (iterations > 0 || duration > 0) {
+			System.exit(new Controller(configPath, simulationPath,
+					iterations, duration).waitForBatchEnd());
+		}
+
 		new Controller(configPath, simulationPath);
 	}
 }
@@ -19,7 +19,17 @@
 
 package de.nec.nle.siafu.control;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.XMLConfiguration;
@@ -28,14 +38,24 @@ import de.nec.nle.siafu.behaviormodels.BaseAgentModel;
 import de.nec.nle.siafu.behaviormodels.BaseContextModel;
 import de.nec.nle.siafu.behaviormodels.BaseWorldModel;
 import de.nec.nle.siafu.exceptions.GUINotReadyException;
+import de.nec.nle.siafu.externalCommand.CommandListener;
 import de.nec.nle.siafu.graphics.markers.Marker;
 import de.nec.nle.siafu.model.Agent;
+import de.nec.nle.siafu.model.Place;
 import de.nec.nle.siafu.model.SimulationData;
 import de.nec.nle.siafu.model.Trackable;
 import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.model.WorldSnapshot;
+import de.nec.nle.siafu.output.AsyncPrinter;
+import de.nec.nle.siafu.output.CSVFrameWriter;
 import de.nec.nle.siafu.output.CSVPrinter;
+import de.nec.nle.siafu.output.ColumnarFrameWriter;
+import de.nec.nle.siafu.output.DeltaFrameWriter;
+import de.nec.nle.siafu.output.FramePrinter;
+import de.nec.nle.siafu.output.FrameWriter;
 import de.nec.nle.siafu.output.NullPrinter;
 import de.nec.nle.siafu.output.SimulatorOutputPrinter;
+import de.nec.nle.siafu.output.StreamingCSVPrinter;
 
 /**
  * The simulation class implements the <code>Runnable</code> that performs
@@ -119,7 +139,7 @@ public class Simulation implements Runnable {
 	/**
 	 * Whether the simulation is already running.
 	 */
-	private boolean simulationRunning;
+	private volatile boolean simulationRunning;
 
 	/** The configuration of the running simulation. */
 	private Configuration simulationConfig;
@@ -129,6 +149,68 @@ public class Simulation implements Runnable {
 	 */
 	private XMLConfiguration siafuConfig;
 
+	/**
+	 * The amount of threads that move the agents. One means the agents are
+	 * moved by the simulation thread itself.
+	 */
+	private int movementThreads;
+
+	/** The threads that move the agents, if there is more than one. */
+	private ExecutorService movers;
+
+	/** The agents, in the order in which they are split among the movers. */
+	private Agent[] agents;
+
+	/**
+	 * In batch mode, the amount of iterations after which the simulation
+	 * ends, or 0 for no limit.
+	 */
+	private final long maxIterations;
+
+	/**
+	 * In batch mode, the simulated time after which the simulation ends, in
+	 * milliseconds, or 0 for no limit.
+	 */
+	private final long maxSimulatedMillis;
+
+	/** The amount of iterations run so far. */
+	private long iterations;
+
+	/** The amount of times an agent was moved so far. */
+	private long agentSteps;
+
+	/** The wall clock time the simulation loop took, in nanoseconds. */
+	private long elapsedNanos;
+
+	/** Whether the simulation thread ended with an error. */
+	private volatile boolean failed;
+
+	/** Released when the simulation thread ends. */
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/**
+	 * The external commands waiting for the simulation thread to run them
+	 * at the end of the iteration. Any thread can add to it without taking
+	 * a lock.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> commands =
+			new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * The state of the agents at the end of the last iteration, or null if
+	 * nobody asked for it lately.
+	 */
+	private volatile WorldSnapshot snapshot;
+
+	/** The last snapshot taken, whose lookup tables the next one reuses. */
+	private WorldSnapshot lastSnapshot;
+
+	/** True if someone asked for a snapshot since the last one was taken. */
+	private volatile boolean snapshotWanted;
+
+	/** True once the simulation has ended and takes no more commands. */
+	private volatile boolean commandsClosed;
+
 	/**
 	 * Find out if the simulation is already running.
 	 * 
@@ -147,6 +229,26 @@ public class Simulation implements Runnable {
 	 * @param control the simulation <code>Controller</code>
 	 */
 	public Simulation(final String simulationPath, final Controller control) {
+		this(simulationPath, control, 0, 0);
+	}
+
+	/**
+	 * Build a <code>Simulation</code> object and start a thread that
+	 * governs it. If there's a limit in iterations or simulated time, the
+	 * simulation runs in batch mode: it never waits for the GUI, and ends by
+	 * itself as soon as either limit is reached.
+	 * 
+	 * @param simulationPath the path to the simulation data, which includes
+	 *            maps, sprites, behavior models, etc...
+	 * @param control the simulation <code>Controller</code>
+	 * @param maxIterations the amount of iterations to run, or 0 for no limit
+	 * @param maxSimulatedSeconds the simulated time to run, in seconds, or 0
+	 *            for no limit
+	 */
+	public Simulation(final String simulationPath, final Controller control,
+			final long maxIterations, final long maxSimulatedSeconds) {
+		this.maxIterations = maxIterations;
+		this.maxSimulatedMillis = maxSimulatedSeconds * 1000;
 		this.simData = SimulationData.getInstance(simulationPath);
 		this.siafuConfig = control.getSiafuConfig();
 		this.simulationConfig = simData.getConfigFile();
@@ -158,12 +260,86 @@ public class Simulation implements Runnable {
 		World.setCacheSize(control.getSiafuConfig().getInt(
 			"ui.gradientcache.size"));
 
-		
-		
-		
+		World.setCacheMaxBytes(control.getSiafuConfig().getLong(
+			"ui.gradientcache.maxmegabytes", 0) * 1024 * 1024);
+
+		World.setUseNearestPlaceFields(control.getSiafuConfig().getBoolean(
+			"ui.gradientcache.nearestplacefields", true));
+
+		World.setRoutingSectorSize(control.getSiafuConfig().getInt(
+			"routing.sectorsize", 0));
+
+		World.setUseColumnarAgents(control.getSiafuConfig().getBoolean(
+			"agents.columnar", false));
+
+		movementThreads = Math.max(1, control.getSiafuConfig().getInt(
+			"movement.threads", 1));
+
+		World.setGradientThreads(control.getSiafuConfig().getInt(
+			"ui.gradientcache.threads", 0));
+
 		new Thread(this, "Simulation thread").start();
 	}
 
+	/**
+	 * Queue a command for the simulation thread, which runs it at the end of
+	 * the current iteration, after the agents move. Commands run in the
+	 * order they were queued. The caller doesn't wait.
+	 * 
+	 * @param command
+	 *            the command to run
+	 * @return true if the command will run, false if the simulation has
+	 *         ended and it won't
+	 */
+	public boolean enqueueCommand(final Runnable command) {
+		commands.add(command);
+		if (commandsClosed && commands.remove(command)) {
+			// The simulation thread already ran its last commands
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the state of the agents at the end of the last iteration, to
+	 * answer queries without looking at the agents while they change.
+	 * <p>
+	 * Snapshots are only taken while someone asks for them: if none was
+	 * asked for during the last iteration, this returns null, and a
+	 * snapshot is taken at the end of the current one.
+	 * 
+	 * @return the snapshot, or null if there is none for the last iteration
+	 */
+	public WorldSnapshot getSnapshot() {
+		snapshotWanted = true;
+		return snapshot;
+	}
+
+	/**
+	 * Run the queued commands.
+	 * <p>
+	 * The replies of the commands may reach their clients as soon as they
+	 * run, so the last snapshot is dropped first: a client that sees its
+	 * command done must not be answered from a snapshot taken before it.
+	 * The next snapshot is only published once all the commands have run.
+	 */
+	private void runCommands() {
+		if (commands.isEmpty()) {
+			return;
+		}
+		snapshot = null;
+
+		Runnable command;
+		while ((command = commands.poll()) != null) {
+			try {
+				command.run();
+			} catch (RuntimeException e) {
+				System.err.println("Error running an external command:");
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Get the simulation's world.
 	 * 
@@ -176,31 +352,91 @@ public class Simulation implements Runnable {
 	/**
 	 * Sets the output type of the simulator. This is done by assigning an
 	 * implementation of <code>SimulatorOutputPrinter</code> to simPrinter
-	 * of the type provided in the parameter.
+	 * of the type provided in the parameter. If <code>output.async</code> is
+	 * set, the CSV, columnar and delta outputs are written from a thread of
+	 * their own.
 	 * 
-	 * @param type the output printer type. Currently, only "null" and "cvs"
-	 *            are supported.
+	 * @param type the output printer type. Currently, "null", "csv",
+	 *            "streamingcsv", "columnar" and "delta" are supported.
 	 * @return an instance of the SimulatorOutputPrinter of the given type
 	 * 
 	 * @see de.nec.nle.siafu.output.SimulatorOutputPrinter
 	 */
 	private SimulatorOutputPrinter createOutputPrinter(final String type) {
+		boolean async = siafuConfig.getBoolean("output.async", false);
+		int interval;
+		FrameWriter writer;
 
 		if (type.equalsIgnoreCase("csv")) {
 			System.out.println("CSV output selected");
-			return new CSVPrinter(world, siafuConfig);
+			if (!async) {
+				return new CSVPrinter(world, siafuConfig);
+			}
+			interval = siafuConfig.getInt("output.csv.interval");
+			writer = new CSVFrameWriter(world, siafuConfig);
+		} else if (type.equalsIgnoreCase("streamingcsv")) {
+			System.out.println("Streaming CSV output selected");
+			if (!async) {
+				return new StreamingCSVPrinter(world, siafuConfig);
+			}
+			interval = siafuConfig.getInt("output.csv.interval");
+			writer = new CSVFrameWriter(world, siafuConfig);
+		} else if (type.equalsIgnoreCase("columnar")) {
+			System.out.println("Columnar output selected");
+			interval = siafuConfig.getInt("output.columnar.interval",
+				siafuConfig.getInt("output.csv.interval"));
+			writer = new ColumnarFrameWriter(world, siafuConfig);
+		} else if (type.equalsIgnoreCase("delta")) {
+			System.out.println("Delta output selected");
+			interval = siafuConfig.getInt("output.delta.interval",
+				siafuConfig.getInt("output.csv.interval"));
+			writer = new DeltaFrameWriter(world, siafuConfig);
 		} else if (type.equalsIgnoreCase("null")) {
 			return new NullPrinter();
 		} else {
 			throw new RuntimeException(
 					"Unknown ouput type in the configuration");
 		}
+
+		if (async) {
+			return new AsyncPrinter(world, writer, interval, siafuConfig);
+		} else {
+			return new FramePrinter(world, writer, interval);
+		}
 	}
 
 	/**
-	 * Starts the simulation.
+	 * Starts the simulation, and records whether it ended with an error.
 	 */
 	public void run() {
+		try {
+			simulate();
+		} catch (RuntimeException e) {
+			failed = true;
+			throw e;
+		} catch (Error e) {
+			failed = true;
+			throw e;
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Find out if the simulation runs in batch mode, that is, with a limit
+	 * in iterations or simulated time.
+	 * 
+	 * @return true if the simulation runs in batch mode
+	 */
+	public boolean isBatch() {
+		return maxIterations > 0 || maxSimulatedMillis > 0;
+	}
+
+	/**
+	 * Create the world and loop over the iterations until the simulation is
+	 * ended.
+	 */
+	private void simulate() {
 		this.world = new World(this, simData);
 		this.time = world.getTime();
 		this.iterationStep = simulationConfig.getInt("iterationstep");
@@ -210,25 +446,118 @@ public class Simulation implements Runnable {
 		this.outputPrinter =
 				createOutputPrinter(siafuConfig.getString("output.type"));
 
+		if (movementThreads > 1) {
+			movers =
+					Executors.newFixedThreadPool(movementThreads,
+						new ThreadFactory() {
+							public Thread newThread(final Runnable r) {
+								Thread t = new Thread(r, "Movement thread");
+								t.setDaemon(true);
+								return t;
+							}
+						});
+		}
+
 		Controller.getProgress().reportSimulationStarted();
 		simulationRunning = true;
+		long startNanos = System.nanoTime();
+		long startMillis = time.getTimeInMillis();
+
 		while (!isEnded()) {
 			if (!isPaused()) {
 				tickTime();
 				worldModel.doIteration(world.getPlaces());
 				agentModel.doIteration(world.getPeople());
 				contextModel.doIteration(world.getOverlays());
+				iterations++;
+			}
+			agentSteps += moveAgents();
+			runCommands();
+
+			CommandListener listener = control.getCommandListener();
+			if (listener != null) {
+				listener.publishSubscriptions();
+			}
+
+			if (snapshotWanted) {
+				snapshotWanted = false;
+				lastSnapshot = WorldSnapshot.capture(world, lastSnapshot);
+				snapshot = lastSnapshot;
+			} else {
+				snapshot = null;
+			}
+
+			if (!isBatch()) {
+				control.scheduleDrawing();
 			}
-			moveAgents();
-			control.scheduleDrawing();
 			outputPrinter.notifyIterationConcluded();
+
+			if ((maxIterations > 0 && iterations >= maxIterations)
+					|| (maxSimulatedMillis > 0 && time.getTimeInMillis()
+							- startMillis >= maxSimulatedMillis)) {
+				die();
+			}
 		}
+		elapsedNanos = System.nanoTime() - startNanos;
 		simulationRunning = false;
+		commandsClosed = true;
+		// Don't leave anyone waiting for the commands queued so far
+		runCommands();
+
+		if (movers != null) {
+			movers.shutdown();
+		}
 
 		outputPrinter.cleanup();
+		Place.getGradientCache().flush();
 		Controller.getProgress().reportSimulationEnded();
 	}
 
+	/**
+	 * Wait for the simulation thread to end.
+	 * 
+	 * @return true if the simulation ended normally, false if it ended with
+	 *         an error
+	 */
+	public boolean waitUntilFinished() {
+		try {
+			finished.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !failed;
+	}
+
+	/**
+	 * Get the amount of iterations run so far.
+	 * 
+	 * @return the amount of iterations
+	 */
+	public long getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Get the amount of agent movements so far, that is, the sum over every
+	 * iteration of the agents that were allowed to move.
+	 * 
+	 * @return the amount of agent steps
+	 */
+	public long getAgentSteps() {
+		return agentSteps;
+	}
+
+	/**
+	 * Get the wall clock time the simulation loop took. This is only known
+	 * once the simulation has finished.
+	 * 
+	 * @return the time in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
 	/**
 	 * Stop looping the simulatio and, well, kill the thread.
 	 */
@@ -276,12 +605,79 @@ public class Simulation implements Runnable {
 	 * allowed to move only if the simulation is not paused or if he is being
 	 * controlled by the user.
 	 * 
+	 * @return the amount of agents that were allowed to move
 	 */
-	private void moveAgents() {
+	private int moveAgents() {
+		if (movers != null) {
+			return moveAgentsInParallel();
+		}
+
+		int moved = 0;
 		for (Agent a : world.getPeople()) {
 			if (!isPaused() || !a.isOnAuto()) {
 				a.moveTowardsDestination();
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Move the agents using the movement threads. Each thread gets a
+	 * contiguous slice of the agents. Since agents don't interact while
+	 * moving, every agent ends up where it would if they were moved one
+	 * after the other, no matter how many threads there are. Like the world
+	 * itself, the amount of agents is fixed, so the slices are only worked
+	 * out once. The agent index is brought up to date once all of them
+	 * have moved, rather than by the movers on every step.
+	 * 
+	 * @return the amount of agents that were allowed to move
+	 */
+	private int moveAgentsInParallel() {
+		if (agents == null) {
+			agents = world.getPeople().toArray(new Agent[0]);
+		}
+
+		final boolean pausedNow = isPaused();
+		int slices = Math.min(movementThreads, agents.length);
+		List<Callable<Integer>> moves =
+				new ArrayList<Callable<Integer>>(slices);
+
+		for (int s = 0; s < slices; s++) {
+			final int from = (int) ((long) agents.length * s / slices);
+			final int to = (int) ((long) agents.length * (s + 1) / slices);
+
+			moves.add(new Callable<Integer>() {
+				public Integer call() {
+					int moved = 0;
+					for (int i = from; i < to; i++) {
+						Agent a = agents[i];
+						if (!pausedNow || !a.isOnAuto()) {
+							a.moveTowardsDestination();
+							moved++;
+						}
+					}
+					return moved;
+				}
+			});
+		}
+
+		// Keep the movers from contending for the agent index
+		world.setAgentIndexDeferred(true);
+		try {
+			int moved = 0;
+			for (Future<Integer> done : movers.invokeAll(moves)) {
+				moved += done.get();
 			}
+			return moved;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while moving the agents",
+					e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Can't move the agents", e.getCause());
+		} finally {
+			world.setAgentIndexDeferred(false);
 		}
 	}
 
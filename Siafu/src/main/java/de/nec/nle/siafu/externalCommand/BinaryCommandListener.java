@@ -0,0 +1,783 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.externalCommand;
+
+import static de.nec.nle.siafu.externalCommand.BinaryProtocol.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import de.nec.nle.siafu.control.Controller;
+import de.nec.nle.siafu.exceptions.AgentNotFoundException;
+import de.nec.nle.siafu.exceptions.InfoFieldsLockedException;
+import de.nec.nle.siafu.exceptions.InvalidFlatDataException;
+import de.nec.nle.siafu.exceptions.NothingNearException;
+import de.nec.nle.siafu.exceptions.PlaceNotFoundException;
+import de.nec.nle.siafu.exceptions.PositionUnreachableException;
+import de.nec.nle.siafu.exceptions.TrackableNotFoundException;
+import de.nec.nle.siafu.exceptions.UnknownContextException;
+import de.nec.nle.siafu.model.Agent;
+import de.nec.nle.siafu.model.Overlay;
+import de.nec.nle.siafu.model.Place;
+import de.nec.nle.siafu.model.Position;
+import de.nec.nle.siafu.model.Trackable;
+import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.model.WorldSnapshot;
+import de.nec.nle.siafu.types.Publishable;
+
+/**
+ * A listener for external commands in the binary protocol described in
+ * {@link BinaryProtocol}. It offers the same commands as the
+ * {@link CommandListener}, without the text parsing and flattening, for
+ * clients that send many of them.
+ * <p>
+ * Like the text listener, a single thread serves all the connections, and
+ * the requests that touch the world are queued for the simulation thread,
+ * which runs them at the end of the iteration. Lookups are answered right
+ * away, and so are time and context queries, from the snapshot of the last
+ * iteration, while the connection has no requests waiting.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public class BinaryCommandListener implements Runnable {
+	/** The size of the buffer each connection is read into. */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * The amount of unsent response bytes beyond which we stop reading a
+	 * client's requests until it catches up.
+	 */
+	private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+	/**
+	 * The amount of requests a client may have waiting for the simulation
+	 * thread before we stop reading more.
+	 */
+	private static final int MAX_QUEUED_REQUESTS = 65536;
+
+	/** The error for requests that arrive with no simulation running. */
+	private static final String NOT_RUNNING =
+			"Siafu can't receive commands right now. "
+					+ "There's probably no simulation loaded";
+
+	/** The listening socket. */
+	private ServerSocketChannel serverChannel;
+
+	/** The selector which tells us which connections are ready. */
+	private Selector selector;
+
+	/** Siafu's controller. */
+	private Controller control;
+
+	/** The processor shared with the text protocol. */
+	private CommandProcessor cp;
+
+	/** True if the simulator has ended and the listener should die. */
+	private volatile boolean ended;
+
+	/** The world whose agents and places the handles point to. */
+	private World handleWorld;
+
+	/**
+	 * The first handle handed out for the agents and places of
+	 * handleWorld. Handles keep counting up across worlds, so that those
+	 * of an earlier world are rejected rather than taken for new ones.
+	 */
+	private int firstHandle;
+
+	/**
+	 * The agents and places handed out so far, indexed by handle minus
+	 * firstHandle.
+	 */
+	private List<Trackable> handles = new ArrayList<Trackable>();
+
+	/** The handle of each agent and place handed out so far. */
+	private Map<Trackable, Integer> handleOf =
+			new IdentityHashMap<Trackable, Integer>();
+
+	/**
+	 * The connections the simulation thread left responses for, which are
+	 * waiting to be written.
+	 */
+	private final ConcurrentLinkedQueue<Connection> ready =
+			new ConcurrentLinkedQueue<Connection>();
+
+	/**
+	 * Create a new binary command listener.
+	 * 
+	 * @param control
+	 *            siafu's controller
+	 * @param tcpPort
+	 *            the listening port
+	 * @throws IOException
+	 *             when the server socket encounters an IO error.
+	 */
+	public BinaryCommandListener(final Controller control, final int tcpPort)
+			throws IOException {
+		this.control = control;
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(tcpPort));
+		serverChannel.configureBlocking(false);
+		this.selector = Selector.open();
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		System.out.println("Listening for binary external commands.");
+		cp = new CommandProcessor(control);
+	}
+
+	/** Method to pack up and die when the simulator quits. */
+	public synchronized void die() {
+		ended = true;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error closing the listening socket", e);
+		}
+		selector.wakeup();
+		System.out.println("Binary command listener closed.");
+	}
+
+	/**
+	 * Serve the connections until the simulator ends.
+	 */
+	public void run() {
+		while (!ended) {
+			try {
+				selector.select();
+				Iterator<SelectionKey> keys =
+						selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						((Connection) key.attachment()).serve();
+					}
+				}
+				Connection c;
+				while ((c = ready.poll()) != null) {
+					c.deliver();
+				}
+			} catch (IOException e) {
+				if (!ended) {
+					e.printStackTrace();
+					control.endSimulator();
+				}
+			}
+		}
+
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				((Connection) key.attachment()).close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.err.println("Error closing the binary command selector: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Accept a new connection and start watching it for requests.
+	 * 
+	 * @throws IOException
+	 *             if the connection can't be set up
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection c = new Connection(channel);
+		c.key = channel.register(selector, SelectionKey.OP_READ, c);
+	}
+
+	/**
+	 * Get the handle of an agent or place, handing out a new one the first
+	 * time.
+	 * 
+	 * @param t
+	 *            the agent or place
+	 * @return its handle
+	 */
+	private synchronized int handle(final Trackable t) {
+		checkHandleWorld();
+		Integer h = handleOf.get(t);
+		if (h == null) {
+			h = firstHandle + handles.size();
+			handles.add(t);
+			handleOf.put(t, h);
+		}
+		return h;
+	}
+
+	/**
+	 * Get the agent or place behind a handle.
+	 * 
+	 * @param h
+	 *            the handle
+	 * @return the agent or place
+	 * @throws TrackableNotFoundException
+	 *             if the handle was never handed out, or belongs to an
+	 *             earlier world
+	 */
+	private synchronized Trackable trackable(final int h)
+			throws TrackableNotFoundException {
+		checkHandleWorld();
+		if (h < firstHandle || h - firstHandle >= handles.size()) {
+			throw new TrackableNotFoundException("Unknown handle " + h);
+		}
+		return handles.get(h - firstHandle);
+	}
+
+	/**
+	 * Forget the handles of the previous world if a new simulation has
+	 * started since they were handed out.
+	 */
+	private void checkHandleWorld() {
+		World world = control.getWorld();
+		if (world != handleWorld) {
+			firstHandle += handles.size();
+			handles.clear();
+			handleOf.clear();
+			handleWorld = world;
+		}
+	}
+
+	/**
+	 * Get the agent behind a handle.
+	 * 
+	 * @param h
+	 *            the handle
+	 * @return the agent
+	 * @throws TrackableNotFoundException
+	 *             if the handle was never handed out, or is a place's
+	 */
+	private Agent agent(final int h) throws TrackableNotFoundException {
+		Trackable t = trackable(h);
+		if (!(t instanceof Agent)) {
+			throw new TrackableNotFoundException("Handle " + h
+					+ " is not an agent");
+		}
+		return (Agent) t;
+	}
+
+	/**
+	 * Get a context value of an agent or place, without flattening it
+	 * where possible.
+	 * 
+	 * @param t
+	 *            the agent or place
+	 * @param ctx
+	 *            the name of the context
+	 * @param snapshot
+	 *            the snapshot to take the agents' values from, or null to
+	 *            look at them directly
+	 * @return the value
+	 * @throws UnknownContextException
+	 *             if the agent or place doesn't have that context
+	 */
+	private Publishable contextValue(final Trackable t, final String ctx,
+			final WorldSnapshot snapshot) throws UnknownContextException {
+		if (snapshot != null && t instanceof Agent
+				&& snapshot.contains((Agent) t)) {
+			Agent a = (Agent) t;
+			if (snapshot.hasInfo(ctx)) {
+				return snapshot.getInfo(a, ctx);
+			}
+			Overlay overlay = control.getWorld().getOverlays().get(ctx);
+			if (overlay != null) {
+				return overlay.getValue(snapshot.getPos(a));
+			}
+			if (ctx.equals("Position")) {
+				return snapshot.getPos(a);
+			}
+			return snapshot.getContext(a, ctx).rebuild();
+		}
+		if (t instanceof Agent) {
+			if (Agent.getInfoKeys().contains(ctx)) {
+				return ((Agent) t).get(ctx);
+			}
+		} else if (t instanceof Place) {
+			if (((Place) t).getInfoKeys().contains(ctx)) {
+				return ((Place) t).get(ctx);
+			}
+		}
+		World world = control.getWorld();
+		Overlay overlay = world.getOverlays().get(ctx);
+		if (overlay != null) {
+			return overlay.getValue(t.getPos());
+		}
+		if (ctx.equals("Position")) {
+			return t.getPos();
+		}
+		return t.getContext(ctx).rebuild();
+	}
+
+	/**
+	 * Find the agents or places near an agent.
+	 * 
+	 * @param a
+	 *            the agent
+	 * @param dist
+	 *            the distance in simulation grid points
+	 * @param places
+	 *            true to look for places, false for agents
+	 * @return the agents or places, or an empty list if there's none
+	 */
+	private List<Trackable> findNear(final Agent a, final int dist,
+			final boolean places) {
+		World world = control.getWorld();
+		try {
+			if (places) {
+				return world.findAllPlacesNear(a.getPos(), dist, false);
+			} else {
+				return world.findAllAgentsNear(a.getPos(), dist, false);
+			}
+		} catch (NothingNearException e) {
+			return new ArrayList<Trackable>();
+		}
+	}
+
+	/**
+	 * A connection to a client of the binary protocol.
+	 */
+	private class Connection {
+		/** The channel for the ongoing comm. */
+		private SocketChannel channel;
+
+		/** The channel's registration with the selector. */
+		private SelectionKey key;
+
+		/** The bytes read and not yet processed, in write mode. */
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		/** The response bytes waiting to be written. */
+		private FrameBuffer out = new FrameBuffer(READ_BUFFER_SIZE);
+
+		/** True once the client has closed its side of the connection. */
+		private boolean inputClosed;
+
+		/** The amount of requests waiting for the simulation thread. */
+		private int queued;
+
+		/** The responses the simulation thread left, in read mode. */
+		private final ConcurrentLinkedQueue<ByteBuffer> completed =
+				new ConcurrentLinkedQueue<ByteBuffer>();
+
+		/**
+		 * Create a connection for the channel.
+		 * 
+		 * @param channel
+		 *            the channel to the client
+		 */
+		Connection(final SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Read whatever requests arrived, process them, and write back as
+		 * much of the responses as the channel takes.
+		 */
+		private void serve() {
+			try {
+				if (key.isReadable()) {
+					read();
+				}
+				write();
+			} catch (IOException e) {
+				System.err.println("Error serving a binary command client: "
+						+ e.getMessage());
+				close();
+			}
+		}
+
+		/**
+		 * Read from the channel, and process every complete frame.
+		 * 
+		 * @throws IOException
+		 *             if the channel can't be read, or a frame is too long
+		 */
+		private void read() throws IOException {
+			if (channel.read(in) < 0) {
+				inputClosed = true;
+			}
+			in.flip();
+			while (in.remaining() >= 4) {
+				int length = in.getInt(in.position());
+				if (length < 0 || length > MAX_FRAME_LENGTH) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (in.remaining() < 4 + length) {
+					break;
+				}
+				int end = in.position() + 4 + length;
+				ByteBuffer frame = in.duplicate();
+				frame.position(in.position() + 4).limit(end);
+				in.position(end);
+				if (!ended) {
+					processFrame(frame);
+				}
+			}
+			in.compact();
+			if (in.position() >= 4) {
+				int needed = 4 + in.getInt(0);
+				if (needed > in.capacity()) {
+					ByteBuffer bigger = ByteBuffer.allocate(needed);
+					in.flip();
+					bigger.put(in);
+					in = bigger;
+				}
+			}
+		}
+
+		/**
+		 * Answer a request right away if it can be, or queue it for the
+		 * simulation thread otherwise.
+		 * 
+		 * @param frame
+		 *            the request, past its length
+		 */
+		private void processFrame(final ByteBuffer frame) {
+			WorldSnapshot snapshot = null;
+			if (frame.remaining() > 4 && control.isSimulationRunning()) {
+				byte opcode = frame.get(frame.position() + 4);
+				if (queued == 0
+						&& (opcode == TIME || opcode == GET_CONTEXT)) {
+					snapshot = control.getSnapshot();
+				}
+				if (snapshot == null && opcode != LOOKUP) {
+					enqueue(frame);
+					return;
+				}
+			}
+			respond(out, frame, snapshot);
+		}
+
+		/**
+		 * Queue a request for the simulation thread. Its response is handed
+		 * back once it has run.
+		 * 
+		 * @param frame
+		 *            the request, past its length
+		 */
+		private void enqueue(final ByteBuffer frame) {
+			final ByteBuffer request = ByteBuffer.allocate(frame.remaining());
+			request.put(frame).flip();
+			boolean accepted = control.enqueueCommand(new Runnable() {
+				public void run() {
+					FrameBuffer response =
+							new FrameBuffer(request.remaining() + 64);
+					try {
+						respond(response, request, null);
+					} finally {
+						ByteBuffer b = response.getBuffer();
+						b.flip();
+						completed.add(b);
+						ready.add(Connection.this);
+						selector.wakeup();
+					}
+				}
+			});
+			if (accepted) {
+				queued++;
+			} else {
+				respondError(out, request.getInt(0), NOT_RUNNING);
+			}
+		}
+
+		/**
+		 * Process a request and write its response.
+		 * 
+		 * @param target
+		 *            where to write the response
+		 * @param frame
+		 *            the request, past its length
+		 * @param snapshot
+		 *            the snapshot to answer queries from, or null to look at
+		 *            the world directly
+		 */
+		private void respond(final FrameBuffer target, final ByteBuffer frame,
+				final WorldSnapshot snapshot) {
+			ByteBuffer b = target.ensure(9);
+			int start = b.position();
+			int requestId = 0;
+			String error;
+			try {
+				requestId = frame.getInt();
+				b.putInt(0).putInt(requestId).put(OK);
+				if (control.isSimulationRunning()) {
+					processRequest(target, frame.get(), frame, snapshot);
+					error = null;
+				} else {
+					error = NOT_RUNNING;
+				}
+			} catch (BufferUnderflowException e) {
+				error = "Malformed request";
+			} catch (IllegalArgumentException e) {
+				error = "Malformed request: " + e.getMessage();
+			} catch (TrackableNotFoundException e) {
+				error = e.getMessage();
+			} catch (UnknownContextException e) {
+				error = e.getMessage();
+			} catch (InfoFieldsLockedException e) {
+				error = e.getMessage();
+			} catch (InvalidFlatDataException e) {
+				error = e.getMessage();
+			} catch (PositionUnreachableException e) {
+				error = "Your destination is unreachable "
+						+ "(and inside a wall, probably)";
+			}
+
+			if (error != null) {
+				target.getBuffer().position(start);
+				respondError(target, requestId, error);
+			} else {
+				b = target.getBuffer();
+				b.putInt(start, b.position() - start - 4);
+			}
+		}
+
+		/**
+		 * Write an error response.
+		 * 
+		 * @param target
+		 *            where to write the response
+		 * @param requestId
+		 *            the request the error is for
+		 * @param error
+		 *            the error message
+		 */
+		private void respondError(final FrameBuffer target,
+				final int requestId, final String error) {
+			ByteBuffer b = target.ensure(9);
+			int start = b.position();
+			b.putInt(0).putInt(requestId).put(ERROR);
+			putString(target, error);
+			b = target.getBuffer();
+			b.putInt(start, b.position() - start - 4);
+		}
+
+		/**
+		 * Carry out a request, and write its results.
+		 * 
+		 * @param target
+		 *            where to write the results
+		 * @param opcode
+		 *            what to do
+		 * @param frame
+		 *            the arguments
+		 * @param snapshot
+		 *            the snapshot to answer queries from, or null to look at
+		 *            the world directly
+		 * @throws TrackableNotFoundException
+		 *             if an agent or place is unknown
+		 * @throws UnknownContextException
+		 *             if a context is unknown
+		 */
+		private void processRequest(final FrameBuffer target, final byte opcode,
+				final ByteBuffer frame, final WorldSnapshot snapshot)
+				throws TrackableNotFoundException, UnknownContextException {
+			switch (opcode) {
+			case LOOKUP:
+				processLookup(target, getString(frame));
+				break;
+			case GET_CONTEXT:
+				Trackable t = trackable(frame.getInt());
+				int count = frame.getInt();
+				if (count < 0 || count > frame.remaining()) {
+					throw new IllegalArgumentException("Invalid count "
+							+ count);
+				}
+				String[] contexts = new String[count];
+				for (int i = 0; i < count; i++) {
+					contexts[i] = getString(frame);
+				}
+				target.ensure(4).putInt(count);
+				for (String ctx : contexts) {
+					putValue(target, contextValue(t, ctx, snapshot));
+				}
+				break;
+			case SET_CONTEXT:
+				t = trackable(frame.getInt());
+				String variable = getString(frame);
+				t.set(variable, getValue(frame));
+				break;
+			case MOVE:
+				Agent a = agent(frame.getInt());
+				double latitude = frame.getDouble();
+				Position pos = new Position(latitude, frame.getDouble());
+				cp.move(a, new Place("Unknown", pos, control.getWorld(), a
+						.getPos()));
+				break;
+			case AUTO:
+				a = agent(frame.getInt());
+				cp.auto(a, frame.get() != 0);
+				break;
+			case HIDE:
+				cp.hide(agent(frame.getInt()));
+				break;
+			case UNHIDE:
+				cp.unhide(agent(frame.getInt()));
+				break;
+			case TIME:
+				long millis;
+				if (snapshot != null) {
+					millis = snapshot.getTime();
+				} else {
+					millis = control.getWorld().getTime().getTimeInMillis();
+				}
+				target.ensure(8).putLong(millis / 1000);
+				break;
+			case FIND_NEARBY_AGENTS:
+			case FIND_NEARBY_PLACES:
+				a = agent(frame.getInt());
+				List<Trackable> near =
+						findNear(a, frame.getInt(),
+							opcode == FIND_NEARBY_PLACES);
+				ByteBuffer b = target.ensure(4 + 4 * near.size());
+				b.putInt(near.size());
+				for (Trackable n : near) {
+					b.putInt(handle(n));
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown opcode "
+						+ opcode);
+			}
+		}
+
+		/**
+		 * Find the handle of an agent or place by its name.
+		 * 
+		 * @param target
+		 *            where to write the handle
+		 * @param name
+		 *            the name
+		 * @throws TrackableNotFoundException
+		 *             if there's no agent or place with that name
+		 */
+		private void processLookup(final FrameBuffer target, final String name)
+				throws TrackableNotFoundException {
+			Trackable t;
+			byte kind;
+			try {
+				t = control.getWorld().getPersonByName(name);
+				kind = AGENT;
+			} catch (AgentNotFoundException e) {
+				try {
+					t = control.getWorld().getPlaceByName(name);
+					kind = PLACE;
+				} catch (PlaceNotFoundException e2) {
+					throw new TrackableNotFoundException("Trackable \""
+							+ name + "\" not found");
+				}
+			}
+			target.ensure(5).putInt(handle(t)).put(kind);
+		}
+
+		/**
+		 * Write the responses the simulation thread left for this client.
+		 */
+		private void deliver() {
+			ByteBuffer response;
+			while ((response = completed.poll()) != null) {
+				queued--;
+				out.ensure(response.remaining()).put(response);
+			}
+			if (!channel.isOpen()) {
+				return;
+			}
+			try {
+				write();
+			} catch (IOException e) {
+				System.err.println("Error serving a binary command client: "
+						+ e.getMessage());
+				close();
+			}
+		}
+
+		/**
+		 * Write the pending responses, and choose what to wait for next:
+		 * more requests, room to write, or both.
+		 * 
+		 * @throws IOException
+		 *             if the channel can't be written
+		 */
+		private void write() throws IOException {
+			ByteBuffer b = out.getBuffer();
+			if (b.position() > 0) {
+				b.flip();
+				channel.write(b);
+				b.compact();
+			}
+
+			if (inputClosed && queued == 0 && b.position() == 0) {
+				close();
+				return;
+			}
+			int ops = 0;
+			if (!inputClosed && b.position() < MAX_PENDING_OUTPUT
+					&& queued < MAX_QUEUED_REQUESTS) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (b.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		/**
+		 * Close the connection.
+		 */
+		private void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Error closing a binary command client: "
+						+ e.getMessage());
+			}
+		}
+	}
+}
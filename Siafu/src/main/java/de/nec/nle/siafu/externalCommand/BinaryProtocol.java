@@ -0,0 +1,341 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.externalCommand;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.nec.nle.siafu.model.Position;
+import de.nec.nle.siafu.types.BooleanType;
+import de.nec.nle.siafu.types.EasyTime;
+import de.nec.nle.siafu.types.FlatData;
+import de.nec.nle.siafu.types.FloatNumber;
+import de.nec.nle.siafu.types.IntegerNumber;
+import de.nec.nle.siafu.types.Publishable;
+import de.nec.nle.siafu.types.Text;
+import de.nec.nle.siafu.types.TextList;
+import de.nec.nle.siafu.types.TimePeriod;
+
+/**
+ * The constants and value encoding of the binary command protocol, served
+ * by the {@link BinaryCommandListener}.
+ * <p>
+ * Every request and response is a frame: a big endian <code>int</code>
+ * with the length of the rest of the frame, followed by the request ID the
+ * client chose. Requests go on with a one byte opcode and its arguments;
+ * responses with a one byte status, and either the results or an error
+ * message. Responses carry the ID of their request, so clients must not
+ * count on getting them in the order they sent the requests.
+ * <p>
+ * Agents and places are referred to by the numeric handle that
+ * <code>LOOKUP</code> returns for their name, which stops working once
+ * another simulation is started. Strings are an
+ * <code>int</code> length followed by their UTF-8 bytes, and values are a
+ * one byte tag followed by the data of their type.
+ * <p>
+ * A copy of these constants, along with a client, lives in the
+ * <code>de.nec.nle.siafu.externalCommand.external</code> package of the
+ * datatypes library.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class BinaryProtocol {
+
+	/** Find the handle of an agent or place by name. */
+	static final byte LOOKUP = 1;
+
+	/** Get context values of an agent or place. */
+	static final byte GET_CONTEXT = 2;
+
+	/** Set an info field of an agent or place. */
+	static final byte SET_CONTEXT = 3;
+
+	/** Move an agent towards a latitude and longitude. */
+	static final byte MOVE = 4;
+
+	/** Let the agent model move an agent or not. */
+	static final byte AUTO = 5;
+
+	/** Make an agent invisible. */
+	static final byte HIDE = 6;
+
+	/** Make an agent visible. */
+	static final byte UNHIDE = 7;
+
+	/** Get the simulation time, in seconds. */
+	static final byte TIME = 8;
+
+	/** Find the agents near an agent. */
+	static final byte FIND_NEARBY_AGENTS = 9;
+
+	/** Find the places near an agent. */
+	static final byte FIND_NEARBY_PLACES = 10;
+
+	/** The request succeeded, and its results follow. */
+	static final byte OK = 0;
+
+	/** The request failed, and a message follows. */
+	static final byte ERROR = 1;
+
+	/** The handle belongs to an agent. */
+	static final byte AGENT = 0;
+
+	/** The handle belongs to a place. */
+	static final byte PLACE = 1;
+
+	/** A null value. */
+	static final byte NULL_VALUE = 0;
+
+	/** A <code>Text</code>. */
+	static final byte TEXT_VALUE = 1;
+
+	/** A <code>BooleanType</code>, as one byte. */
+	static final byte BOOLEAN_VALUE = 2;
+
+	/** An <code>IntegerNumber</code>, as an <code>int</code>. */
+	static final byte INTEGER_VALUE = 3;
+
+	/** A <code>FloatNumber</code>, as a <code>double</code>. */
+	static final byte FLOAT_VALUE = 4;
+
+	/** An <code>EasyTime</code>, as an hour and a minute byte. */
+	static final byte EASYTIME_VALUE = 5;
+
+	/** A <code>TimePeriod</code>, as its start and end times. */
+	static final byte TIMEPERIOD_VALUE = 6;
+
+	/** A <code>TextList</code>, as its size and strings. */
+	static final byte TEXTLIST_VALUE = 7;
+
+	/** A <code>Position</code>, as two <code>double</code> coordinates. */
+	static final byte POSITION_VALUE = 8;
+
+	/** Any other value, as its flattened form. */
+	static final byte FLAT_VALUE = 9;
+
+	/** The longest frame accepted, not counting its length. */
+	static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	/** The charset strings are encoded in. */
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Prevent the instantiation of this utility class. */
+	private BinaryProtocol() {
+	}
+
+	/**
+	 * Read a string.
+	 * 
+	 * @param b
+	 *            the buffer to read from
+	 * @return the string
+	 */
+	static String getString(final ByteBuffer b) {
+		int length = b.getInt();
+		if (length < 0 || length > b.remaining()) {
+			throw new IllegalArgumentException("Invalid string length "
+					+ length);
+		}
+		String s = new String(b.array(), b.arrayOffset() + b.position(),
+				length, UTF8);
+		b.position(b.position() + length);
+		return s;
+	}
+
+	/**
+	 * Read a value.
+	 * 
+	 * @param b
+	 *            the buffer to read from
+	 * @return the value, which may be null
+	 */
+	static Publishable getValue(final ByteBuffer b) {
+		byte tag = b.get();
+		switch (tag) {
+		case NULL_VALUE:
+			return null;
+		case TEXT_VALUE:
+			return new Text(getString(b));
+		case BOOLEAN_VALUE:
+			return new BooleanType(b.get() != 0);
+		case INTEGER_VALUE:
+			return new IntegerNumber(b.getInt());
+		case FLOAT_VALUE:
+			return new FloatNumber(b.getDouble());
+		case EASYTIME_VALUE:
+			return getEasyTime(b);
+		case TIMEPERIOD_VALUE:
+			EasyTime start = getEasyTime(b);
+			return new TimePeriod(start, getEasyTime(b));
+		case TEXTLIST_VALUE:
+			int size = b.getInt();
+			if (size < 0 || size > b.remaining()) {
+				throw new IllegalArgumentException("Invalid list size "
+						+ size);
+			}
+			List<String> list = new ArrayList<String>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(getString(b));
+			}
+			return new TextList(list);
+		case POSITION_VALUE:
+			double latitude = b.getDouble();
+			return new Position(latitude, b.getDouble());
+		case FLAT_VALUE:
+			return new FlatData(getString(b)).rebuild();
+		default:
+			throw new IllegalArgumentException("Unknown value type " + tag);
+		}
+	}
+
+	/**
+	 * Read an <code>EasyTime</code>.
+	 * 
+	 * @param b
+	 *            the buffer to read from
+	 * @return the time
+	 */
+	private static EasyTime getEasyTime(final ByteBuffer b) {
+		int hour = b.get();
+		return new EasyTime(hour, b.get());
+	}
+
+	/**
+	 * Write a string.
+	 * 
+	 * @param b
+	 *            the buffer to write to
+	 * @param s
+	 *            the string
+	 */
+	static void putString(final FrameBuffer b, final String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		b.ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+	}
+
+	/**
+	 * Write a value.
+	 * 
+	 * @param b
+	 *            the buffer to write to
+	 * @param value
+	 *            the value, which may be null
+	 */
+	static void putValue(final FrameBuffer b, final Publishable value) {
+		final int maxScalar = 17;
+		ByteBuffer out = b.ensure(maxScalar);
+		if (value == null) {
+			out.put(NULL_VALUE);
+		} else if (value instanceof Text) {
+			out.put(TEXT_VALUE);
+			putString(b, ((Text) value).getText());
+		} else if (value instanceof BooleanType) {
+			out.put(BOOLEAN_VALUE);
+			out.put((byte) (((BooleanType) value).getValue() ? 1 : 0));
+		} else if (value instanceof IntegerNumber) {
+			out.put(INTEGER_VALUE).putInt(((IntegerNumber) value).getNumber());
+		} else if (value instanceof FloatNumber) {
+			out.put(FLOAT_VALUE).putDouble(((FloatNumber) value).getNumber());
+		} else if (value instanceof EasyTime) {
+			out.put(EASYTIME_VALUE);
+			putEasyTime(out, (EasyTime) value);
+		} else if (value instanceof TimePeriod) {
+			out.put(TIMEPERIOD_VALUE);
+			putEasyTime(out, ((TimePeriod) value).getStart());
+			putEasyTime(out, ((TimePeriod) value).getEnd());
+		} else if (value instanceof TextList) {
+			List<String> list = ((TextList) value).getList();
+			out.put(TEXTLIST_VALUE).putInt(list.size());
+			for (String s : list) {
+				putString(b, s);
+			}
+		} else if (value instanceof Position) {
+			double[] coordinates = ((Position) value).getCoordinates();
+			out.put(POSITION_VALUE).putDouble(coordinates[0]).putDouble(
+				coordinates[1]);
+		} else {
+			out.put(FLAT_VALUE);
+			putString(b, value.flatten().getData());
+		}
+	}
+
+	/**
+	 * Write an <code>EasyTime</code>.
+	 * 
+	 * @param out
+	 *            the buffer to write to
+	 * @param time
+	 *            the time
+	 */
+	private static void putEasyTime(final ByteBuffer out,
+			final EasyTime time) {
+		out.put((byte) time.getHour()).put((byte) time.getMinute());
+	}
+
+	/**
+	 * A buffer for outgoing frames which grows as needed.
+	 */
+	static final class FrameBuffer {
+		/** The buffer, in write mode. */
+		private ByteBuffer buffer;
+
+		/**
+		 * Create an empty frame buffer.
+		 * 
+		 * @param capacity
+		 *            the initial capacity
+		 */
+		FrameBuffer(final int capacity) {
+			buffer = ByteBuffer.allocate(capacity);
+		}
+
+		/**
+		 * Make room for some more bytes.
+		 * 
+		 * @param bytes
+		 *            the amount of bytes about to be written
+		 * @return the buffer to write them to
+		 */
+		ByteBuffer ensure(final int bytes) {
+			if (buffer.remaining() < bytes) {
+				ByteBuffer bigger =
+						ByteBuffer.allocate(Math.max(buffer.position()
+								+ bytes, 2 * buffer.capacity()));
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+			return buffer;
+		}
+
+		/**
+		 * Get the buffer, in write mode.
+		 * 
+		 * @return the buffer
+		 */
+		ByteBuffer getBuffer() {
+			return buffer;
+		}
+	}
+}
@@ -33,12 +33,21 @@ import static de.nec.nle.siafu.externalCommand.CommandNames.SET_PREVIOUS_IMAGE;
 import static de.nec.nle.siafu.externalCommand.CommandNames.UNHIDE;
 import static de.nec.nle.siafu.externalCommand.CommandNames.*;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.nec.nle.siafu.control.Controller;
 import de.nec.nle.siafu.exceptions.AgentNotFoundException;
@@ -59,6 +68,7 @@ import de.nec.nle.siafu.model.Agent;
 import de.nec.nle.siafu.model.Place;
 import de.nec.nle.siafu.model.Position;
 import de.nec.nle.siafu.model.Trackable;
+import de.nec.nle.siafu.model.WorldSnapshot;
 
 /**
  * <p>
@@ -78,6 +88,31 @@ import de.nec.nle.siafu.model.Trackable;
  * <p>
  * For detailed information on the commands, just run Siafu, and telnet into
  * port 4444. You'll get an interactive help.
+ * </p>
+ * 
+ * <p>
+ * All the connections are served by a single thread, using a
+ * <code>Selector</code>. Each connection has its own buffers: commands are
+ * read into one and split into lines, and the replies to all the commands
+ * that arrived together are sent back in a single write.
+ * </p>
+ * 
+ * <p>
+ * Commands that change the world are never run by this thread. They are
+ * queued for the simulation thread, which runs them at the end of the
+ * iteration, and hands their replies back. Queries are answered right away
+ * from the snapshot the simulation takes at the end of each iteration, as
+ * long as the connection has no commands waiting, so that replies always
+ * come back in the order of their commands.
+ * </p>
+ * 
+ * <p>
+ * Commands sent between a <code>begin</code> and an <code>end</code> line
+ * are held back until the <code>end</code>, and then run together between
+ * two iterations of the simulation, so that they all see the same state of
+ * the world. Their replies come back in order, in a single write, followed
+ * by a line with the amount of commands and the simulation time they ran
+ * at.
  * 
  * @author Miquel Martin
  * 
@@ -119,8 +154,45 @@ public class CommandListener implements Runnable {
 	/** Number of parts in the mark command. */
 	private static final int MARK_PARTS = 3;
 
+	/** The size of each connection's read buffer. */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * The longest command we accept. Clients sending longer lines are
+	 * disconnected.
+	 */
+	private static final int MAX_LINE_LENGTH = 1 << 20;
+
+	/**
+	 * The amount of unsent reply bytes beyond which we stop reading a
+	 * client's commands until it catches up.
+	 */
+	private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+	/** The most commands a batch may hold. */
+	private static final int MAX_BATCH_COMMANDS = 65536;
+
+	/**
+	 * The amount of commands a client may have waiting for the simulation
+	 * thread before we stop reading more.
+	 */
+	private static final int MAX_QUEUED_COMMANDS = 65536;
+
+	/** The default most context pushes per second to each client. */
+	private static final int DEFAULT_PUSH_RATE = 10;
+
+	/** The line separator used in the replies. */
+	private static final String LINE_SEPARATOR = System
+			.getProperty("line.separator");
+
+	/** The charset commands and replies are encoded in. */
+	private static final Charset CHARSET = Charset.defaultCharset();
+
 	/** The lstening socket. */
-	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
+
+	/** The selector which tells us which connections are ready. */
+	private Selector selector;
 
 	/** Siafu's controller. */
 	private Controller control;
@@ -132,7 +204,21 @@ public class CommandListener implements Runnable {
 	private CommandProcessor cp;
 
 	/** True if the simulator has ended and the command listener shoud die. */
-	private boolean ended;
+	private volatile boolean ended;
+
+	/** The most context pushes per second to each client, 0 for no limit. */
+	private final int maxPushRate;
+
+	/** The connections with a context subscription. */
+	private final List<ConnectionServer> subscribers =
+			new CopyOnWriteArrayList<ConnectionServer>();
+
+	/**
+	 * The connections the simulation thread left a push or replies for,
+	 * which are waiting to be written.
+	 */
+	private final ConcurrentLinkedQueue<ConnectionServer> ready =
+			new ConcurrentLinkedQueue<ConnectionServer>();
 
 	/**
 	 * Create a new command listener.
@@ -146,9 +232,32 @@ public class CommandListener implements Runnable {
 	 */
 	public CommandListener(final Controller control, final int tcpPort)
 			throws IOException {
+		this(control, tcpPort, DEFAULT_PUSH_RATE);
+	}
+
+	/**
+	 * Create a new command listener.
+	 * 
+	 * @param control
+	 *            siafu's controller
+	 * @param tcpPort
+	 *            the listening port, extracted from Siafu's configuration file.
+	 * @param maxPushRate
+	 *            the most context pushes per second sent to each subscribed
+	 *            client, or 0 for no limit
+	 * @throws IOException
+	 *             when the server socket encounters an IO error.
+	 */
+	public CommandListener(final Controller control, final int tcpPort,
+			final int maxPushRate) throws IOException {
 		System.out.println("Creating the command listener.");
 		this.control = control;
-		this.serverSocket = new ServerSocket(tcpPort);
+		this.maxPushRate = maxPushRate;
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(tcpPort));
+		serverChannel.configureBlocking(false);
+		this.selector = Selector.open();
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 		System.out.println("Listening for external commands.");
 		cp = new CommandProcessor(control);
 	}
@@ -157,24 +266,75 @@ public class CommandListener implements Runnable {
 	public synchronized void die() {
 		ended = true;
 		try {
-			serverSocket.close();
+			serverChannel.close();
 		} catch (IOException e) {
 			throw new RuntimeException("Error closing the listening socket", e);
 		}
+		selector.wakeup();
 		System.out.println("Command listener closed.");
 	}
 
+	/**
+	 * Push the subscribed context values that changed to their clients.
+	 * This is called by the simulation thread at the end of each iteration.
+	 * <p>
+	 * A client which hasn't yet received its previous push, or whose rate
+	 * limit doesn't allow another one yet, is skipped; its changes are
+	 * coalesced into the next push it gets.
+	 */
+	public void publishSubscriptions() {
+		if (subscribers.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		String header = "PUSH " + cp.time() + " ";
+		boolean anyPushed = false;
+		for (ConnectionServer cs : subscribers) {
+			ContextSubscription subscription = cs.subscription;
+			if (subscription == null || cs.pendingPush.get() != null
+					|| cs.outputPending || !subscription.isDue(now)) {
+				continue;
+			}
+			StringBuilder push = new StringBuilder(header);
+			if (subscription.appendChanges(push, now) > 0) {
+				push.setLength(push.length() - 1);
+				cs.pendingPush.set(push.toString());
+				ready.add(cs);
+				anyPushed = true;
+			}
+		}
+		if (anyPushed) {
+			selector.wakeup();
+		}
+	}
+
 	/**
 	 * Start listening for commands. When one is received, parse it, and pass it
 	 * to the command processor, who will react on it.
 	 */
 	public void run() {
-
 		while (!ended) {
 			try {
-				Socket socket = serverSocket.accept();
-				ConnectionServer cs = new ConnectionServer(socket);
-				new Thread(cs, "ConnectinoServer-" + socket.toString()).start();
+				selector.select();
+				Iterator<SelectionKey> keys =
+						selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						((ConnectionServer) key.attachment()).serve();
+					}
+				}
+
+				ConnectionServer cs;
+				while ((cs = ready.poll()) != null) {
+					cs.deliver();
+				}
 			} catch (IOException e) {
 				if (!ended) {
 					e.printStackTrace();
@@ -182,79 +342,421 @@ public class CommandListener implements Runnable {
 				}
 			}
 		}
+
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof ConnectionServer) {
+				((ConnectionServer) key.attachment()).close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.err.println("Error closing the command selector: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Accept a new connection and start watching it for commands.
+	 * 
+	 * @throws IOException
+	 *             if the connection can't be set up
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		ConnectionServer cs = new ConnectionServer(channel);
+		cs.key = channel.register(selector, SelectionKey.OP_READ, cs);
 	}
 
-	protected class ConnectionServer implements Runnable {
-		/** The socket for the ongoing comm. */
-		private Socket socket;
+	protected class ConnectionServer {
+		/** The channel for the ongoing comm. */
+		private SocketChannel channel;
+
+		/** The channel's registration with the selector. */
+		private SelectionKey key;
+
+		/** The bytes read from the channel. */
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		/** The bytes of the line being read. */
+		private ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		/**
+		 * True if the last line ended with a carriage return, so that a
+		 * line feed right after it doesn't start an empty line.
+		 */
+		private boolean afterCarriageReturn;
+
+		/** The replies to the commands processed since the last write. */
+		private StringBuilder replies = new StringBuilder();
+
+		/** The reply bytes waiting to be written, ready for reading. */
+		private ByteBuffer out = ByteBuffer.allocate(0);
+
+		/**
+		 * The commands of the batch being received, or null if we are not
+		 * in a batch.
+		 */
+		private List<String> batch;
+
+		/**
+		 * True if the batch being received went over MAX_BATCH_COMMANDS,
+		 * in which case the rest of it is dropped.
+		 */
+		private boolean batchTooLong;
+
+		/** True once the client has closed its side of the connection. */
+		private boolean inputClosed;
+
+		/** The context this client subscribed to, or null if none. */
+		private volatile ContextSubscription subscription;
+
+		/** The push the selector thread has yet to write, if any. */
+		private final AtomicReference<String> pendingPush =
+				new AtomicReference<String>();
+
+		/** True while there are reply bytes left to write. */
+		private volatile boolean outputPending;
 
 		/**
-		 * The PrintWriter through which we can send responses to commands back
-		 * to the client.
+		 * The connection this one runs commands for. It is the connection
+		 * itself, except for the stand-ins that collect the replies of the
+		 * commands the simulation thread runs.
 		 */
-		private PrintWriter out;
+		private final ConnectionServer owner;
+
+		/** The amount of commands waiting for the simulation thread. */
+		private int queued;
+
+		/** The replies the simulation thread left, in order. */
+		private final ConcurrentLinkedQueue<String> completed =
+				new ConcurrentLinkedQueue<String>();
 
 		/**
 		 * Build an isntance of ConnectionServer to serve the connection
-		 * received in socket
+		 * received in channel
+		 * 
+		 * @param channel
+		 *            the channel to the client who sent the original command
+		 */
+		public ConnectionServer(final SocketChannel channel) {
+			this.channel = channel;
+			this.owner = this;
+		}
+
+		/**
+		 * Build a stand-in for a connection, which runs its commands on the
+		 * simulation thread and collects their replies.
 		 * 
-		 * @param socket
-		 *            the socket to the client who sent the original command
+		 * @param owner
+		 *            the connection the commands came from
 		 */
-		public ConnectionServer(Socket socket) {
-			this.socket = socket;
+		private ConnectionServer(final ConnectionServer owner) {
+			this.channel = owner.channel;
+			this.owner = owner;
 		}
 
-		public void run() {
-			BufferedReader in = null;
-			out = null;
+		/**
+		 * Read whatever commands arrived, process them, and write back as
+		 * much of the replies as the channel takes.
+		 */
+		private void serve() {
 			try {
-				in = new BufferedReader(new InputStreamReader(
-						socket.getInputStream()));
-				out = new PrintWriter(socket.getOutputStream(), true);
-
-				String command = in.readLine();
-				while (command != null && !ended) {
-					synchronized (this) {
-						if (control.isSimulationRunning()) {
-							processCommand(command);
-						} else {
-							sendError("Siafu can't receive commands "
-									+ "right now.\nThere's probably no "
-									+ "simulation loaded");
-						}
-					}
-					command = in.readLine();
+				if (key.isReadable()) {
+					read();
 				}
+				write();
 			} catch (IOException e) {
 				System.err
 						.println("Error processing an external command client: "
 								+ e.getMessage());
-			} finally {
-				try {
-					if (in != null) {
-						in.close();
+				close();
+			}
+		}
+
+		/**
+		 * Read from the channel, and process every complete line.
+		 * 
+		 * @throws IOException
+		 *             if the channel can't be read
+		 */
+		private void read() throws IOException {
+			if (channel.read(in) < 0) {
+				inputClosed = true;
+			}
+			byte[] data = in.array();
+			int end = in.position();
+			int start = 0;
+			for (int i = 0; i < end; i++) {
+				if (data[i] != '\n' && data[i] != '\r') {
+					continue;
+				}
+				boolean afterReturn =
+						i > 0 ? data[i - 1] == '\r' : afterCarriageReturn;
+				if (data[i] == '\n' && afterReturn && i == start) {
+					// The line feed of a carriage return and line feed
+					start = i + 1;
+					continue;
+				}
+				if (line.size() == 0) {
+					processLine(new String(data, start, i - start, CHARSET));
+				} else {
+					line.write(data, start, i - start);
+					processLine(new String(line.toByteArray(), CHARSET));
+					line.reset();
+				}
+				start = i + 1;
+			}
+			line.write(data, start, end - start);
+			afterCarriageReturn = end > 0 && data[end - 1] == '\r';
+			in.clear();
+			if (line.size() > MAX_LINE_LENGTH) {
+				throw new IOException("Command too long");
+			}
+
+			if (inputClosed && line.size() > 0) {
+				processLine(new String(line.toByteArray(), CHARSET));
+				line.reset();
+			}
+		}
+
+		/**
+		 * Process a line received from the client.
+		 * 
+		 * @param command
+		 *            the line
+		 */
+		private void processLine(final String command) {
+			if (ended) {
+				return;
+			}
+
+			String trimmed = command.trim();
+			if (batch != null) {
+				if (!trimmed.equalsIgnoreCase(END)) {
+					if (batchTooLong) {
+						return;
+					} else if (batch.size() == MAX_BATCH_COMMANDS) {
+						// None of it runs, so drop it up to its end
+						batchTooLong = true;
+						batch.clear();
+					} else {
+						batch.add(command);
 					}
-					if (out != null) {
-						out.close();
+				} else if (batchTooLong) {
+					batch = null;
+					batchTooLong = false;
+					sendError("Too many commands in the batch, the most "
+							+ "is " + MAX_BATCH_COMMANDS);
+				} else {
+					runBatch();
+				}
+				return;
+			}
+			if (trimmed.equalsIgnoreCase(BEGIN)) {
+				batch = new ArrayList<String>();
+				return;
+			}
+
+			if (control.isSimulationRunning()) {
+				dispatch(command);
+			} else {
+				sendNotRunning();
+			}
+		}
+
+		/**
+		 * Answer a query from the last snapshot if possible, or queue the
+		 * command for the simulation thread otherwise.
+		 * 
+		 * @param command
+		 *            the command
+		 */
+		private void dispatch(final String command) {
+			if (queued == 0) {
+				String[] part = split(command);
+				boolean isTime = part[0].equalsIgnoreCase(TIME);
+				if (isTime || part[0].equalsIgnoreCase(GET_CONTEXT)) {
+					WorldSnapshot snapshot = control.getSnapshot();
+					if (snapshot != null) {
+						if (isTime) {
+							send(cp.time(snapshot));
+						} else {
+							processGetContext(part, snapshot);
+						}
+						return;
 					}
-					if (!socket.isClosed()) {
-						socket.close();
+				}
+			}
+			List<String> single = new ArrayList<String>(1);
+			single.add(command);
+			enqueue(single, false);
+		}
+
+		/**
+		 * Queue the commands of the batch to run together, and reply
+		 * with how many there were and when they ran.
+		 */
+		private void runBatch() {
+			List<String> commands = batch;
+			batch = null;
+
+			if (!control.isSimulationRunning()) {
+				sendNotRunning();
+				return;
+			}
+			enqueue(commands, true);
+		}
+
+		/**
+		 * Queue commands for the simulation thread. Their replies are handed
+		 * back once they've run, and written after the replies of the
+		 * commands before them.
+		 * 
+		 * @param commands
+		 *            the commands
+		 * @param isBatch
+		 *            true to follow the replies with the batch summary
+		 */
+		private void enqueue(final List<String> commands,
+				final boolean isBatch) {
+			final ConnectionServer standIn = new ConnectionServer(this);
+			boolean accepted = control.enqueueCommand(new Runnable() {
+				public void run() {
+					try {
+						for (String command : commands) {
+							standIn.processCommand(command);
+						}
+						if (isBatch) {
+							standIn.send("OK - Batch of " + commands.size()
+									+ " commands run at " + cp.time());
+						}
+					} catch (RuntimeException e) {
+						standIn.sendError("The command failed: " + e);
+						throw e;
+					} finally {
+						completed.add(standIn.replies.toString());
+						ready.add(ConnectionServer.this);
+						selector.wakeup();
 					}
-				} catch (IOException e) {
+				}
+			});
+			if (accepted) {
+				queued++;
+			} else {
+				sendNotRunning();
+			}
+		}
+
+		/**
+		 * Tell the client that there's no simulation to run its commands.
+		 */
+		private void sendNotRunning() {
+			sendError("Siafu can't receive commands right now.\nThere's "
+					+ "probably no simulation loaded");
+		}
 
+		/**
+		 * Write the pending replies, and choose what to wait for next: more
+		 * commands, room to write, or both.
+		 * 
+		 * @throws IOException
+		 *             if the channel can't be written
+		 */
+		private void write() throws IOException {
+			if (replies.length() > 0) {
+				byte[] bytes = replies.toString().getBytes(CHARSET);
+				replies.setLength(0);
+				if (out.capacity() - out.remaining() < bytes.length) {
+					ByteBuffer bigger =
+							ByteBuffer.allocate(Math.max(out.remaining()
+									+ bytes.length, 2 * out.capacity()));
+					bigger.put(out);
+					out = bigger;
+				} else {
+					out.compact();
 				}
+				out.put(bytes);
+				out.flip();
+			}
+			if (out.hasRemaining()) {
+				channel.write(out);
+			}
+
+			outputPending = out.hasRemaining();
+
+			if (inputClosed && queued == 0 && !out.hasRemaining()) {
+				close();
+				return;
+			}
+			int ops = 0;
+			if (!inputClosed && out.remaining() < MAX_PENDING_OUTPUT
+					&& queued < MAX_QUEUED_COMMANDS) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (out.hasRemaining()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		/**
+		 * Close the connection.
+		 */
+		private void close() {
+			subscribers.remove(this);
+			subscription = null;
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Error closing an external command "
+						+ "client: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Write the replies and the push the simulation thread left for this
+		 * client.
+		 */
+		private void deliver() {
+			String reply;
+			while ((reply = completed.poll()) != null) {
+				queued--;
+				replies.append(reply);
+			}
+			String push = pendingPush.getAndSet(null);
+			if (push != null && subscription != null) {
+				send(push);
+			}
+			if (!channel.isOpen()) {
+				return;
+			}
+			try {
+				write();
+			} catch (IOException e) {
+				System.err.println("Error pushing context to an external "
+						+ "command client: " + e.getMessage());
+				close();
 			}
 		}
 
 		/**
-		 * Send a generic message back to the user.
+		 * Send a generic message back to the user. It is written along with
+		 * the replies to the other commands that arrived with it.
 		 * 
 		 * @param msg
 		 *            the message to send
 		 */
 		private void send(final String msg) {
-			out.println(msg);
+			replies.append(msg).append(LINE_SEPARATOR);
 		}
 
 		/**
@@ -264,10 +766,7 @@ public class CommandListener implements Runnable {
 		 *            the command as read from the socket
 		 */
 		private void processCommand(final String rawCommand) {
-			String command = rawCommand.replaceAll("\\ +", " ");
-			command = (command.split("\n"))[0].trim();
-
-			String[] part = command.split(" ");
+			String[] part = split(rawCommand);
 
 			if (part[0].equalsIgnoreCase(MARK)) {
 				processMark(part);
@@ -295,11 +794,33 @@ public class CommandListener implements Runnable {
 				processUnhide(part);
 			} else if (part[0].equalsIgnoreCase(TIME)) {
 				processTime();
+			} else if (part[0].equalsIgnoreCase(SUBSCRIBE)) {
+				processSubscribe(part);
+			} else if (part[0].equalsIgnoreCase(UNSUBSCRIBE)) {
+				processUnsubscribe();
+			} else if (part[0].equalsIgnoreCase(BEGIN)
+					|| part[0].equalsIgnoreCase(END)) {
+				// Only valid around a batch, and never inside one
+				usage(part[0]);
 			} else {
 				usage(part[0]);
 			}
 		}
 
+		/**
+		 * Split a command into its parts.
+		 * 
+		 * @param rawCommand
+		 *            the command as read from the socket
+		 * @return the command name, followed by its arguments
+		 */
+		private String[] split(final String rawCommand) {
+			String command = rawCommand.replaceAll("\\ +", " ");
+			command = (command.split("\n"))[0].trim();
+
+			return command.split(" ");
+		}
+
 		/**
 		 * Process the command to hide an agent.
 		 * 
@@ -653,6 +1174,20 @@ public class CommandListener implements Runnable {
 		 *            the command parts.
 		 */
 		private void processGetContext(final String[] part) {
+			processGetContext(part, null);
+		}
+
+		/**
+		 * Process the command to get an agent's context, taking the agents'
+		 * values from a snapshot.
+		 * 
+		 * @param part
+		 *            the command parts.
+		 * @param snapshot
+		 *            the snapshot, or null to look at the agents directly
+		 */
+		private void processGetContext(final String[] part,
+				final WorldSnapshot snapshot) {
 			if (part.length < GET_CONTEXT_PARTS) {
 				usage(GET_CONTEXT);
 				return;
@@ -686,7 +1221,7 @@ public class CommandListener implements Runnable {
 			String reply;
 
 			try {
-				reply = cp.getContext(trackableNames, contexts);
+				reply = cp.getContext(snapshot, trackableNames, contexts);
 			} catch (UnknownContextException e) {
 				sendError(e.getMessage());
 				return;
@@ -697,6 +1232,69 @@ public class CommandListener implements Runnable {
 			send(reply);
 		}
 
+		/**
+		 * Process the command to subscribe to the context of agents and
+		 * places. The values that change are then pushed at the end of
+		 * each iteration.
+		 * 
+		 * @param part
+		 *            the command parts.
+		 */
+		private void processSubscribe(final String[] part) {
+			int separator;
+			for (separator = 1; separator < part.length; separator++) {
+				if (part[separator].equals("/")) {
+					break;
+				}
+			}
+
+			if (separator <= 1 || separator >= part.length - 1) {
+				usage(SUBSCRIBE);
+				return;
+			}
+
+			String[] trackableNames = new String[separator - 1];
+			String[] contexts = new String[part.length - 1 - separator];
+			System.arraycopy(part, 1, trackableNames, 0,
+				trackableNames.length);
+			System.arraycopy(part, separator + 1, contexts, 0,
+				contexts.length);
+
+			// Only add the values once they are all known to be right
+			ContextSubscription added = new ContextSubscription(maxPushRate);
+			try {
+				cp.subscribe(added, trackableNames, contexts);
+			} catch (UnknownContextException e) {
+				sendError(e.getMessage());
+				return;
+			} catch (TrackableNotFoundException e) {
+				sendError(e.getMessage());
+				return;
+			}
+
+			if (!owner.channel.isOpen()) {
+				return;
+			}
+			if (owner.subscription == null) {
+				owner.subscription = added;
+				subscribers.add(owner);
+			} else {
+				owner.subscription.addAll(added);
+			}
+			send("OK - Subscribed to " + owner.subscription.size()
+					+ " values");
+		}
+
+		/**
+		 * Process the command to stop the context pushes.
+		 */
+		private void processUnsubscribe() {
+			subscribers.remove(owner);
+			owner.subscription = null;
+			owner.pendingPush.set(null);
+			sendOk();
+		}
+
 		/**
 		 * Process the command to set an agent's context.
 		 * 
@@ -864,6 +1462,22 @@ public class CommandListener implements Runnable {
 						+ FIND_NEARBY_PLACES + " Agnes 10";
 			} else if (command.equalsIgnoreCase(TIME)) {
 				msg = "ERR - Usage: " + TIME;
+			} else if (command.equalsIgnoreCase(SUBSCRIBE)) {
+				msg = "ERR - Usage: " + SUBSCRIBE
+						+ " name1 name2 ... / context1 context2 ... \n"
+						+ "e.g.: " + SUBSCRIBE + " Agnes Alban / position\n"
+						+ "The values that change are then pushed as\n"
+						+ "PUSH time name1/value1 ...\nUse " + ALL
+						+ " as the name to follow every agent, and "
+						+ UNSUBSCRIBE + " to stop.";
+			} else if (command.equalsIgnoreCase(UNSUBSCRIBE)) {
+				msg = "ERR - Usage: " + UNSUBSCRIBE;
+			} else if (command.equalsIgnoreCase(BEGIN)
+					|| command.equalsIgnoreCase(END)) {
+				msg = "ERR - Usage: " + BEGIN + "\ncommand1\ncommand2\n...\n"
+						+ END + "\nThe commands are run together between "
+						+ "two iterations, and can't contain another "
+						+ BEGIN;
 			} else {
 				msg = "ERR - Unknown command " + command
 						+ ".\nType a command for help on its syntax.\n"
@@ -871,7 +1485,8 @@ public class CommandListener implements Runnable {
 						+ UNMARK + "," + MOVE + "," + AUTO + "," + IMAGE + ","
 						+ SET_PREVIOUS_IMAGE + "," + SET_CONTEXT + ","
 						+ FIND_NEARBY_AGENTS + "," + FIND_NEARBY_PLACES + ","
-						+ HIDE + " and " + UNHIDE;
+						+ HIDE + "," + UNHIDE + "," + SUBSCRIBE + ","
+						+ UNSUBSCRIBE + " and " + BEGIN + "/" + END;
 			}
 
 			send(msg);
@@ -92,6 +92,27 @@ public class CommandNames {
 	 * Get the simulation time.
 	 */
 	public static final String TIME = "time";
+
+	/**
+	 * Have the changes of context values pushed after each iteration.
+	 */
+	public static final String SUBSCRIBE = "subscribe";
+
+	/**
+	 * Stop the context pushes.
+	 */
+	public static final String UNSUBSCRIBE = "unsubscribe";
+
+	/**
+	 * Start a batch of commands, which are run together between two
+	 * iterations.
+	 */
+	public static final String BEGIN = "begin";
+
+	/**
+	 * End a batch of commands and run it.
+	 */
+	public static final String END = "end";
 	
 	/**
 	 * Represents all of the agents, in the methods that allow it.
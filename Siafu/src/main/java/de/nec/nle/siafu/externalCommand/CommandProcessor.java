@@ -35,6 +35,7 @@ import de.nec.nle.siafu.model.Place;
 import de.nec.nle.siafu.model.Position;
 import de.nec.nle.siafu.model.Trackable;
 import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.model.WorldSnapshot;
 import de.nec.nle.siafu.types.FlatData;
 
 /**
@@ -187,10 +188,97 @@ public class CommandProcessor {
 	public String getContext(final String[] trackableName,
 			final String[] context) throws UnknownContextException,
 			TrackableNotFoundException {
-		String reply = new String();
+		return getContext(null, trackableName, context);
+	}
+
+	/**
+	 * Get an agent's context, taking the agents' values from a snapshot.
+	 * Places, and agents newer than the snapshot, are looked at directly.
+	 * 
+	 * @param snapshot
+	 *            the snapshot, or null to look at the agents directly
+	 * @param trackableName
+	 *            an array with the trakables whose context we want to retrieve
+	 * @param context
+	 *            an array with the context variable names to retrieve
+	 * @return a string of the type "agent1/ctxValue1 agent1/ctxValue2
+	 *         agent2/ctxValue1..."
+	 * @throws UnknownContextException
+	 *             if the context variable is unknown
+	 * @throws TrackableNotFoundException
+	 *             if the agent or place is unknown
+	 */
+	public String getContext(final WorldSnapshot snapshot,
+			final String[] trackableName, final String[] context)
+			throws UnknownContextException, TrackableNotFoundException {
+		StringBuilder reply = new StringBuilder();
+		Collection<Trackable> trackables = findTrackables(trackableName);
+
+		for (Trackable t : trackables) {
+			boolean snapshotted =
+					snapshot != null && t instanceof Agent
+							&& snapshot.contains((Agent) t);
+			for (int j = 0; j < context.length; j++) {
+				reply.append(t.getName()).append('/');
+				if (snapshotted) {
+					reply.append(snapshot.getContext((Agent) t, context[j]));
+				} else {
+					reply.append(t.getContext(context[j]));
+				}
+				reply.append(' ');
+			}
+		}
+
+		return reply.toString();
+	}
+
+	/**
+	 * Subscribe to the context of a set of trackables, so that their
+	 * changes are pushed at the end of each iteration.
+	 * 
+	 * @param subscription
+	 *            the subscription to add the context values to
+	 * @param trackableName
+	 *            an array with the trackables whose context we want to
+	 *            follow, where <code>all</code> stands for every agent
+	 * @param context
+	 *            an array with the context variable names to follow
+	 * @throws UnknownContextException
+	 *             if the context variable is unknown
+	 * @throws TrackableNotFoundException
+	 *             if the agent or place is unknown
+	 */
+	void subscribe(final ContextSubscription subscription,
+			final String[] trackableName, final String[] context)
+			throws UnknownContextException, TrackableNotFoundException {
 		Collection<Trackable> trackables;
+		if (trackableName.length == 1
+				&& trackableName[0].equalsIgnoreCase(CommandNames.ALL)) {
+			trackables =
+					new ArrayList<Trackable>(control.getWorld().getPeople());
+		} else {
+			trackables = findTrackables(trackableName);
+		}
+
+		for (Trackable t : trackables) {
+			for (int j = 0; j < context.length; j++) {
+				subscription.add(t, context[j], control.getWorld());
+			}
+		}
+	}
 
-		trackables = new ArrayList<Trackable>();
+	/**
+	 * Find the agents or places with the given names.
+	 * 
+	 * @param trackableName
+	 *            the names of the agents or places
+	 * @return the trackables, in the order of their names
+	 * @throws TrackableNotFoundException
+	 *             if one of them is unknown
+	 */
+	private Collection<Trackable> findTrackables(final String[] trackableName)
+			throws TrackableNotFoundException {
+		Collection<Trackable> trackables = new ArrayList<Trackable>();
 
 		for (int i = 0; i < trackableName.length; i++) {
 			try {
@@ -206,14 +294,7 @@ public class CommandProcessor {
 				}
 			}
 		}
-
-		for (Trackable t : trackables) {
-			for (int j = 0; j < context.length; j++) {
-				reply += (t.getName() + "/" + t.getContext(context[j]) + " ");
-			}
-		}
-
-		return reply;
+		return trackables;
 	}
 
 	/**
@@ -259,12 +340,12 @@ public class CommandProcessor {
 	public String findAgentsNear(final Position pos, final int dist)
 			throws NothingNearException {
 		World world = control.getWorld();
-		String reply = new String();
+		StringBuilder reply = new StringBuilder();
 
 		for (Trackable a : world.findAllAgentsNear(pos, dist, false)) {
-			reply += a.getName() + " ";
+			reply.append(a.getName()).append(' ');
 		}
-		return reply;
+		return reply.toString();
 	}
 
 	/**
@@ -281,11 +362,11 @@ public class CommandProcessor {
 	public String findPlacesNear(final Position pos, final int dist)
 			throws NothingNearException {
 		World world = control.getWorld();
-		String reply = new String();
+		StringBuilder reply = new StringBuilder();
 		for (Trackable a : world.findAllPlacesNear(pos, dist, false)) {
-			reply += a.getName() + " ";
+			reply.append(a.getName()).append(' ');
 		}
-		return reply;
+		return reply.toString();
 	}
 
 	/**
@@ -335,4 +416,15 @@ public class CommandProcessor {
 		return Long
 				.toString(control.getWorld().getTime().getTimeInMillis() / 1000);
 	}
+
+	/**
+	 * Get the simulation time of a snapshot.
+	 * 
+	 * @param snapshot
+	 *            the snapshot
+	 * @return the time, in seconds since the epoch
+	 */
+	public String time(final WorldSnapshot snapshot) {
+		return Long.toString(snapshot.getTime() / 1000);
+	}
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.externalCommand;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.nec.nle.siafu.exceptions.UnknownContextException;
+import de.nec.nle.siafu.model.Agent;
+import de.nec.nle.siafu.model.InfoField;
+import de.nec.nle.siafu.model.Overlay;
+import de.nec.nle.siafu.model.Position;
+import de.nec.nle.siafu.model.Trackable;
+import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.types.Publishable;
+import de.nec.nle.siafu.types.TypeUtils;
+
+/**
+ * The context values a connection subscribed to, along with the values it
+ * was last sent. At the end of each iteration, the simulation thread asks
+ * for the values that changed since the last push.
+ * <p>
+ * Finding out whether a value changed is cheap for the common cases: agent
+ * info fields are compared before being flattened, and overlays and
+ * positions are only looked at again when the trackable moves. Anything
+ * else is compared by its flattened form.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class ContextSubscription {
+
+	/** An agent's info field. */
+	private static final int INFO = 0;
+
+	/** The value of an overlay at the trackable's position. */
+	private static final int OVERLAY = 1;
+
+	/** The trackable's position. */
+	private static final int POSITION = 2;
+
+	/** Any other context, compared by its flattened form. */
+	private static final int OTHER = 3;
+
+	/**
+	 * One subscribed context value of one trackable.
+	 */
+	private static final class Entry {
+		/** The trackable. */
+		private Trackable trackable;
+
+		/** The name of the context. */
+		private String context;
+
+		/** The text the value is prefixed with in the pushes. */
+		private String label;
+
+		/** How to tell if the value changed. */
+		private int kind;
+
+		/** The info field, for <code>INFO</code> entries. */
+		private InfoField<Publishable> field;
+
+		/** The overlay, for <code>OVERLAY</code> entries. */
+		private Overlay overlay;
+
+		/**
+		 * A copy of the info value last sent, so that a value changed in
+		 * place doesn't look like the one sent before.
+		 */
+		private Publishable lastValue;
+
+		/** The position last seen, as given by <code>getKey()</code>. */
+		private long lastPosition = -1;
+
+		/** The flattened value last sent, or null if it was never sent. */
+		private String lastData;
+	}
+
+	/** The subscribed values. */
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/** The label and context of each value, to avoid subscribing twice. */
+	private final Set<String> subscribed = new HashSet<String>();
+
+	/**
+	 * The shortest time, in ns, between two pushes, or 0 for no limit.
+	 */
+	private final long minNanosBetweenPushes;
+
+	/** When the last push was made, as given by <code>nanoTime()</code>. */
+	private long lastPushNanos;
+
+	/** True until the first push is made. */
+	private boolean neverPushed = true;
+
+	/**
+	 * Create an empty subscription.
+	 * 
+	 * @param maxPushRate
+	 *            the most pushes per second, or 0 for no limit
+	 */
+	ContextSubscription(final int maxPushRate) {
+		final long nanosPerSecond = 1000000000L;
+		this.minNanosBetweenPushes =
+				maxPushRate > 0 ? nanosPerSecond / maxPushRate : 0;
+	}
+
+	/**
+	 * Subscribe to a context value of a trackable.
+	 * 
+	 * @param trackable
+	 *            the agent or place
+	 * @param context
+	 *            the name of the context
+	 * @param world
+	 *            the world the trackable lives in
+	 * @throws UnknownContextException
+	 *             if the trackable doesn't have that context
+	 */
+	synchronized void add(final Trackable trackable, final String context,
+			final World world) throws UnknownContextException {
+		Entry e = new Entry();
+		e.trackable = trackable;
+		e.context = context;
+		e.label = trackable.getName() + "/";
+		if (trackable instanceof Agent
+				&& Agent.getInfoKeys().contains(context)) {
+			e.kind = INFO;
+			e.field = InfoField.named(context);
+			addEntry(e);
+			return;
+		}
+
+		// Fail now, rather than at the first push
+		trackable.getContext(context);
+		if (!(trackable instanceof Agent)) {
+			// A place's own info can hide an overlay of the same name
+			e.kind = OTHER;
+		} else if (world.getOverlays().containsKey(context)) {
+			e.kind = OVERLAY;
+			e.overlay = world.getOverlays().get(context);
+		} else if (context.equals("Position")) {
+			e.kind = POSITION;
+		} else {
+			e.kind = OTHER;
+		}
+		addEntry(e);
+	}
+
+	/**
+	 * Add an entry, unless its value is already subscribed to.
+	 * 
+	 * @param e
+	 *            the entry
+	 */
+	private void addEntry(final Entry e) {
+		if (subscribed.add(e.label + e.context)) {
+			entries.add(e);
+		}
+	}
+
+	/**
+	 * Add the values of another subscription to this one.
+	 * 
+	 * @param other
+	 *            the subscription whose values to add
+	 */
+	void addAll(final ContextSubscription other) {
+		List<Entry> added;
+		synchronized (other) {
+			added = new ArrayList<Entry>(other.entries);
+		}
+		synchronized (this) {
+			for (Entry e : added) {
+				addEntry(e);
+			}
+		}
+	}
+
+	/**
+	 * Get the amount of values subscribed to.
+	 * 
+	 * @return the amount of values
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Find out if enough time passed since the last push to make another.
+	 * 
+	 * @param now
+	 *            the current <code>nanoTime()</code>
+	 * @return true if a push may be made
+	 */
+	synchronized boolean isDue(final long now) {
+		return neverPushed || now - lastPushNanos >= minNanosBetweenPushes;
+	}
+
+	/**
+	 * Append the values that changed since they were last sent, and
+	 * remember them as sent.
+	 * 
+	 * @param push
+	 *            the push text to append to
+	 * @param now
+	 *            the current <code>nanoTime()</code>
+	 * @return the amount of values appended
+	 */
+	synchronized int appendChanges(final StringBuilder push, final long now) {
+		int changed = 0;
+		for (Entry e : entries) {
+			String data = changedData(e);
+			if (data != null) {
+				e.lastData = data;
+				push.append(e.label).append(data).append(' ');
+				changed++;
+			}
+		}
+		if (changed > 0) {
+			neverPushed = false;
+			lastPushNanos = now;
+		}
+		return changed;
+	}
+
+	/**
+	 * Work out an entry's flattened value, if it changed.
+	 * 
+	 * @param e
+	 *            the entry
+	 * @return the new flattened value, or null if it didn't change
+	 */
+	private static String changedData(final Entry e) {
+		String data;
+		switch (e.kind) {
+		case INFO:
+			Publishable value = ((Agent) e.trackable).get(e.field);
+			if (e.lastData != null
+					&& (value == e.lastValue || (value != null && value
+							.equals(e.lastValue)))) {
+				return null;
+			}
+			e.lastValue = TypeUtils.copyOf(value);
+			data = value == null ? "null" : value.flatten().getData();
+			break;
+		case OVERLAY:
+		case POSITION:
+			Position pos = e.trackable.getPos();
+			if (pos.getKey() == e.lastPosition) {
+				return null;
+			}
+			e.lastPosition = pos.getKey();
+			if (e.kind == OVERLAY) {
+				data = e.overlay.getValue(pos).flatten().getData();
+			} else {
+				data = pos.flatten().getData();
+			}
+			break;
+		default:
+			try {
+				data = e.trackable.getContext(e.context).getData();
+			} catch (UnknownContextException ex) {
+				return null;
+			}
+		}
+		return data.equals(e.lastData) ? null : data;
+	}
+}
@@ -19,17 +19,18 @@
 
 package de.nec.nle.siafu.model;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Random;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import de.nec.nle.siafu.exceptions.InfoFieldsLockedException;
 import de.nec.nle.siafu.exceptions.InitializationRequiredException;
 import de.nec.nle.siafu.exceptions.InfoUndefinedException;
+import de.nec.nle.siafu.exceptions.PositionOnAWallException;
 import de.nec.nle.siafu.exceptions.PositionUnreachableException;
 import de.nec.nle.siafu.exceptions.UnexistingSpriteException;
 import de.nec.nle.siafu.exceptions.UnknownContextException;
@@ -55,6 +56,9 @@ import de.nec.nle.siafu.utils.SequentialNamer;
  * <li>The value of an overlay at the agent's position
  * </ul>
  * 
+ * If the world keeps its agents in an <code>AgentStore</code>, agents are
+ * only views on their slot of the store, and their own fields stay empty.
+ * 
  * @see de.nec.nle.siafu.behaviormodels.BaseAgentModel
  * @author Miquel Martin
  * 
@@ -93,6 +97,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	/** The name of thefields in the info object of each Agent. */
 	private static final SortedSet<String> INFO_FIELDS = new TreeSet<String>();
 
+	/** The numbers of the fields in INFO_FIELDS, in the same order. */
+	private static int[] infoFieldIds = new int[0];
+
 	/** A random object used to add noise to the behaviour. */
 	private static final Random RAND = new Random();
 
@@ -140,15 +147,17 @@ public class Agent implements Trackable, Comparable<Agent> {
 	private String previousImage;
 
 	/**
-	 * This Map contains context variables that are particular to the agent, and
-	 * don't necessarily depend on the environment. Examples are:
+	 * This array contains context variables that are particular to the agent,
+	 * and don't necessarily depend on the environment. Examples are:
 	 * <ul>
 	 * <li>Agent preferences
 	 * <li>Transported data
 	 * <li>Information kept in store by the behavior model
 	 * </ul>
+	 * The values are indexed by the number of their InfoField, and fields the
+	 * agent doesn't have are null.
 	 */
-	private SortedMap<String, Publishable> info;
+	private Publishable[] info;
 
 	/**
 	 * Whether the agent is visible. Invisible agents will not be drawn on the
@@ -162,6 +171,15 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 */
 	private int zPriority;
 
+	/**
+	 * The store that holds the state of this agent, or null if the agent
+	 * keeps it in its own fields.
+	 */
+	private AgentStore store;
+
+	/** The agent's slot in the store. */
+	private int slot;
+
 	/** 
 	 * Resets the info fields that are statically frozen into the agent. This is
 	 * required when a simulation is loaded without restarting the virtual machine.
@@ -169,6 +187,7 @@ public class Agent implements Trackable, Comparable<Agent> {
 	public static void resetAgents(){
 		infoFieldsLocked=false;
 		INFO_FIELDS.clear();
+		infoFieldIds = new int[0];
 	}
 	
 	/**
@@ -242,7 +261,7 @@ public class Agent implements Trackable, Comparable<Agent> {
 			final World world, final int zPriority) {
 		basicChecks(world);
 		this.name = name;
-		this.info = new TreeMap<String, Publishable>();
+		this.info = new Publishable[InfoField.count()];
 		this.dir = 0;
 		this.image = image;
 		this.previousImage = image;
@@ -250,6 +269,58 @@ public class Agent implements Trackable, Comparable<Agent> {
 		this.destination = getDefaultPlace(start, world);
 		this.atDestination = true;
 		this.zPriority = zPriority;
+
+		if (world.getAgentStore() != null) {
+			moveToStore(world.getAgentStore());
+		}
+	}
+
+	/**
+	 * Move the state of this agent to a slot of the store, after which the
+	 * agent's own fields are no longer used.
+	 * 
+	 * @param newStore
+	 *            the store
+	 * @throws InfoFieldsLockedException
+	 *             if the agent has info fields the store doesn't
+	 */
+	void moveToStore(final AgentStore newStore) {
+		int newSlot = newStore.add();
+		WallMap walls = world.getWallMap();
+
+		AgentStore.Columns c = newStore.columns();
+		c.name[newSlot] = name;
+		c.image[newSlot] = image;
+		c.previousImage[newSlot] = previousImage;
+		c.destination[newSlot] = destination;
+		c.cell[newSlot] = walls.cellOf(pos.getRow(), pos.getCol());
+		c.dir[newSlot] = (byte) dir;
+		c.speed[newSlot] = speed;
+		c.zPriority[newSlot] = zPriority;
+		newStore.setFlag(newSlot, AgentStore.AT_DESTINATION, atDestination);
+		newStore.setFlag(newSlot, AgentStore.VISIBLE, visible);
+		newStore.setFlag(newSlot, AgentStore.ON_AUTO, onAuto);
+
+		for (int id = 0; id < info.length; id++) {
+			if (info[id] != null) {
+				int column = newStore.column(id);
+
+				if (column == -1) {
+					throw new InfoFieldsLockedException(InfoField.nameOf(id));
+				}
+				newStore.setInfo(newSlot, column, info[id]);
+			}
+		}
+
+		slot = newSlot;
+		store = newStore;
+		name = null;
+		image = null;
+		previousImage = null;
+		destination = null;
+		pos = null;
+		info = null;
+		onAuto = null;
 	}
 
 	/**
@@ -285,9 +356,26 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * @return true if it has, false otherwise
 	 */
 	public boolean isAtDestination() {
+		if (store != null) {
+			return store.getFlag(slot, AgentStore.AT_DESTINATION);
+		}
 		return atDestination;
 	}
 
+	/**
+	 * Set whether the agent has reached its destination.
+	 * 
+	 * @param reached
+	 *            true if it has
+	 */
+	private void setAtDestination(final boolean reached) {
+		if (store != null) {
+			store.setFlag(slot, AgentStore.AT_DESTINATION, reached);
+		} else {
+			atDestination = reached;
+		}
+	}
+
 	/**
 	 * Print the name of the agent as its string representation.
 	 * 
@@ -304,7 +392,11 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *            the agent's name
 	 */
 	public void setName(final String name) {
-		this.name = name;
+		if (store != null) {
+			store.columns().name[slot] = name;
+		} else {
+			this.name = name;
+		}
 	}
 
 	/**
@@ -313,6 +405,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * @return the agent's name
 	 */
 	public String getName() {
+		if (store != null) {
+			return store.columns().name[slot];
+		}
 		return name;
 	}
 
@@ -322,6 +417,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * @return the name of the agent's image
 	 */
 	public String getImage() {
+		if (store != null) {
+			return store.columns().image[slot];
+		}
 		return image;
 	}
 
@@ -331,6 +429,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * the same position.
 	 */
 	public int getZPriority() {
+		if (store != null) {
+			return store.columns().zPriority[slot];
+		}
 		return zPriority;
 	}
 
@@ -341,7 +442,11 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * the same position.
 	 */
 	public void setZPriority(final int zPriority) {
-		this.zPriority = zPriority;
+		if (store != null) {
+			store.columns().zPriority[slot] = zPriority;
+		} else {
+			this.zPriority = zPriority;
+		}
 	}
 	
 	/**
@@ -358,15 +463,26 @@ public class Agent implements Trackable, Comparable<Agent> {
 		if (!world.getAvailableSprites().contains(image)) {
 			throw new UnexistingSpriteException(image);
 		}
-		this.previousImage = this.image;
-		this.image = image;
+		if (store != null) {
+			AgentStore.Columns c = store.columns();
+			c.previousImage[slot] = c.image[slot];
+			c.image[slot] = image;
+		} else {
+			this.previousImage = this.image;
+			this.image = image;
+		}
 	}
 
 	/**
 	 * Return the agent to its previous appearance.
 	 */
 	public void setPreviousImage() {
-		this.image = this.previousImage;
+		if (store != null) {
+			AgentStore.Columns c = store.columns();
+			c.image[slot] = c.previousImage[slot];
+		} else {
+			this.image = this.previousImage;
+		}
 	}
 
 	/**
@@ -378,6 +494,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *         already at his destination.
 	 */
 	public Place getDestination() {
+		if (store != null) {
+			return store.columns().destination[slot];
+		}
 		return destination;
 	}
 
@@ -387,6 +506,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * @return the agent's speed
 	 */
 	public int getSpeed() {
+		if (store != null) {
+			return store.columns().speed[slot];
+		}
 		return speed;
 	}
 
@@ -399,7 +521,11 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *            every iteration
 	 */
 	public void setSpeed(final int speed) {
-		this.speed = speed;
+		if (store != null) {
+			store.columns().speed[slot] = speed;
+		} else {
+			this.speed = speed;
+		}
 	}
 
 	/**
@@ -409,11 +535,27 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *            the place where the agent will walk towards
 	 */
 	public void setDestination(final Place destination) {
-		if (this.destination != null && this.destination.equals(destination)) {
+		Place current = getDestination();
+
+		if (current != null && current.equals(destination)) {
 			return;
 		} else {
-			atDestination = false;
-			this.destination = destination;
+			setAtDestination(false);
+			setCurrentDestination(destination);
+		}
+	}
+
+	/**
+	 * Change the destination without touching the atDestination flag.
+	 * 
+	 * @param newDestination
+	 *            the new destination, or null
+	 */
+	private void setCurrentDestination(final Place newDestination) {
+		if (store != null) {
+			store.columns().destination[slot] = newDestination;
+		} else {
+			destination = newDestination;
 		}
 	}
 
@@ -425,6 +567,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *         1)
 	 */
 	public int getDir() {
+		if (store != null) {
+			return store.columns().dir[slot];
+		}
 		return dir;
 	}
 
@@ -438,9 +583,15 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *            correctness.
 	 */
 	public void setDir(final int newDir) {
-		dir = newDir % POSSIBLE_DIRECTIONS;
-		if (dir < 0) {
-			dir += POSSIBLE_DIRECTIONS;
+		int normalized = newDir % POSSIBLE_DIRECTIONS;
+		if (normalized < 0) {
+			normalized += POSSIBLE_DIRECTIONS;
+		}
+
+		if (store != null) {
+			store.columns().dir[slot] = (byte) normalized;
+		} else {
+			dir = normalized;
 		}
 	}
 
@@ -450,6 +601,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * @return the agent's position
 	 */
 	public Position getPos() {
+		if (store != null) {
+			return Position.fromCell(store.columns().cell[slot]);
+		}
 		return pos;
 	}
 
@@ -460,7 +614,13 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *            the agent's position
 	 */
 	public void setPos(final Position pos) {
-		this.pos = pos;
+		if (store != null) {
+			store.columns().cell[slot] =
+					world.getWallMap().cellOf(pos.getRow(), pos.getCol());
+		} else {
+			this.pos = pos;
+		}
+		world.agentMoved(this);
 	}
 
 	/**
@@ -483,13 +643,81 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * @throws InfoFieldsLockedException
 	 *             if the create agents method has already returned, and it's
 	 *             therefore not possible to add new fields
+	 * @see #set(InfoField, Publishable)
 	 */
 	public Publishable set(final String key, final Publishable value) {
-		if (infoFieldsLocked && !info.containsKey(key)) {
+		if (infoFieldsLocked && InfoField.find(key) == -1) {
+			// Don't intern a name that can't become a field anymore
 			throw new InfoFieldsLockedException(key);
 		}
-		INFO_FIELDS.add(key);
-		return info.put(key, value);
+		return set(InfoField.named(key), value);
+	}
+
+	/**
+	 * Sets the value of an info field of the agent, just like
+	 * <code>set(String, Publishable)</code> does, but without looking the
+	 * field up by its name.
+	 * 
+	 * @param <T>
+	 *            the type of the field values
+	 * @param field
+	 *            the handle on the field
+	 * @param value
+	 *            the value of the field
+	 * @return the old value of the field, or null if there was no value
+	 * @throws InfoFieldsLockedException
+	 *             if the info fields are locked and the field isn't one of
+	 *             them
+	 */
+	public <T extends Publishable> Publishable set(final InfoField<T> field,
+			final T value) {
+		int id = field.getId();
+
+		if (store != null) {
+			int column = store.column(id);
+
+			if (column == -1) {
+				throw new InfoFieldsLockedException(field.getName());
+			}
+			Publishable old = store.getInfo(slot, column);
+			store.setInfo(slot, column, InfoField.wrap(value));
+			return old == null ? null : InfoField.unwrap(old);
+		}
+
+		Publishable old = null;
+		if (id < info.length) {
+			old = info[id];
+		}
+
+		if (old == null) {
+			// A field this agent doesn't have yet
+			if (infoFieldsLocked && !INFO_FIELDS.contains(field.getName())) {
+				throw new InfoFieldsLockedException(field.getName());
+			}
+			if (INFO_FIELDS.add(field.getName())) {
+				updateInfoFieldIds();
+			}
+			if (id >= info.length) {
+				int length = Math.max(id + 1, InfoField.count());
+				info = Arrays.copyOf(info, length);
+			}
+		}
+
+		info[id] = InfoField.wrap(value);
+		return old == null ? null : InfoField.unwrap(old);
+	}
+
+	/**
+	 * Recalculate the numbers of the fields in INFO_FIELDS.
+	 */
+	private static void updateInfoFieldIds() {
+		int[] ids = new int[INFO_FIELDS.size()];
+		int i = 0;
+
+		for (String field : INFO_FIELDS) {
+			ids[i++] = InfoField.intern(field);
+		}
+		infoFieldIds = ids;
 	}
 
 	/**
@@ -505,6 +733,15 @@ public class Agent implements Trackable, Comparable<Agent> {
 		return new TreeSet<String>(INFO_FIELDS);
 	}
 
+	/**
+	 * Get the amount of keys in the info field of the agents.
+	 * 
+	 * @return the size of the set returned by <code>getInfoKeys</code>
+	 */
+	public static int getInfoKeyCount() {
+		return infoFieldIds.length;
+	}
+
 	/**
 	 * Check that this agent instance has all the fields specified in the static
 	 * INFO_FIELDS. This ensures that all agents have exactly the same fields
@@ -514,18 +751,58 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *         otherwise
 	 */
 	public boolean checkAllInfoFieldsPresent() {
-		return (info.keySet().equals(INFO_FIELDS));
+		if (store != null) {
+			return store.hasAllFields(slot);
+		}
+		// Agents can't have fields that aren't in INFO_FIELDS
+		for (int id : infoFieldIds) {
+			if (id >= info.length || info[id] == null) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
-	 * Get a collection containing all the values in the info field. Unlike
-	 * <code>getInfoKeys</code>, this collection is backed by the info field
-	 * itself, so that changes to it will affect the agent info field.
+	 * Get a collection containing all the values in the info field, in the
+	 * order of the keys returned by <code>getInfoKeys</code>. Changing the
+	 * values of the collection, where it supports it, changes the info field
+	 * of the agent.
 	 * 
 	 * @return a Collection with the info values in the agent
 	 */
 	public Collection<Publishable> getInfoValues() {
-		return info.values();
+		if (store != null) {
+			return store.infoValues(slot);
+		}
+
+		ArrayList<Publishable> values =
+				new ArrayList<Publishable>(infoFieldIds.length);
+		for (int id : infoFieldIds) {
+			if (id < info.length && info[id] != null) {
+				values.add(InfoField.unwrap(info[id]));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Copy the values in the info field into an array, in the order of the
+	 * keys returned by <code>getInfoKeys</code>, without building a
+	 * collection for them. Keys the agent doesn't have are copied as null.
+	 * 
+	 * @param target
+	 *            the array to copy the values to
+	 * @param offset
+	 *            the index in the array for the first value
+	 */
+	public void copyInfoValues(final Publishable[] target, final int offset) {
+		int[] ids = infoFieldIds;
+
+		for (int i = 0; i < ids.length; i++) {
+			Publishable kept = getKept(ids[i]);
+			target[offset + i] = kept == null ? null : InfoField.unwrap(kept);
+		}
 	}
 
 	/**
@@ -536,13 +813,74 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * @return the value of the given key
 	 * @throws InfoUndefinedException
 	 *             if the key doesn't exist in the agent's info field
+	 * @see #get(InfoField)
 	 */
 	public Publishable get(final String key) {
-		if (!info.containsKey(key)) {
+		Publishable kept = getKept(InfoField.find(key));
+
+		if (kept == null) {
 			throw new InfoUndefinedException(key);
 		}
+		return InfoField.unwrap(kept);
+	}
+
+	/**
+	 * Get the value of an info field of the agent, just like
+	 * <code>get(String)</code> does, but without looking the field up by its
+	 * name.
+	 * 
+	 * @param <T>
+	 *            the type of the field values
+	 * @param field
+	 *            the handle on the field
+	 * @return the value of the field
+	 * @throws InfoUndefinedException
+	 *             if the agent doesn't have that field
+	 * @throws ClassCastException
+	 *             if the value is not of the type of the handle
+	 */
+	public <T extends Publishable> T get(final InfoField<T> field) {
+		Publishable kept = getKept(field.getId());
+
+		if (kept == null) {
+			throw new InfoUndefinedException(field.getName());
+		}
+		return field.getType().cast(InfoField.unwrap(kept));
+	}
+
+	/**
+	 * Get what the agent keeps for an info field.
+	 * 
+	 * @param id
+	 *            the number of the field, or -1
+	 * @return the kept value, or null if the agent doesn't have the field
+	 */
+	private Publishable getKept(final int id) {
+		if (id == -1) {
+			return null;
+		} else if (store != null) {
+			int column = store.column(id);
+
+			if (column == -1) {
+				return null;
+			}
+			return store.getInfo(slot, column);
+		} else if (id < info.length) {
+			return info[id];
+		} else {
+			return null;
+		}
+	}
 
-		return info.get(key);
+	/**
+	 * Find out if the agent has the given info field.
+	 * 
+	 * @param key
+	 *            the field name
+	 * @return true if it has it
+	 */
+	private boolean hasInfo(final String key) {
+		return getKept(InfoField.find(key)) != null;
 	}
 
 	/**
@@ -553,7 +891,7 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *            a number representing the number of times to turn 45 degrees
 	 */
 	public void turn(final int turn) {
-		setDir(dir + turn);
+		setDir(getDir() + turn);
 	}
 
 	/**
@@ -566,12 +904,15 @@ public class Agent implements Trackable, Comparable<Agent> {
 		if (isAtDestination()) {
 			return;
 		} else {
-			for (int i = 0; i < speed; i++) {
-				moveTowardsPlace(destination);
+			Place target = getDestination();
+			int steps = getSpeed();
 
-				if (pos.equals(destination.getPos())) {
-					destination = null;
-					atDestination = true;
+			for (int i = 0; i < steps; i++) {
+				moveTowardsPlace(target);
+
+				if (getPos().equals(target.getPos())) {
+					setCurrentDestination(null);
+					setAtDestination(true);
 
 					break;
 				}
@@ -594,8 +935,47 @@ public class Agent implements Trackable, Comparable<Agent> {
 			return; // Place reached
 		}
 
-		pos = pos.calculateMove(moveDir);
-		this.dir = moveDir;
+		int cell = tryMove(moveDir);
+
+		if (cell == Position.BLOCKED) {
+			throw new PositionOnAWallException();
+		}
+		moveToCell(cell);
+		setDir(moveDir);
+		world.agentMoved(this);
+	}
+
+	/**
+	 * Find out where a step in a direction would take the agent.
+	 * 
+	 * @param moveDir
+	 *            the direction of the step
+	 * @return the cell where the step ends, or <code>Position.BLOCKED</code>
+	 */
+	private int tryMove(final int moveDir) {
+		if (store != null) {
+			int normalized = moveDir % POSSIBLE_DIRECTIONS;
+			if (normalized < 0) {
+				normalized += POSSIBLE_DIRECTIONS;
+			}
+			int cell = store.columns().cell[slot];
+			return world.getWallMap().tryMove(cell, normalized);
+		}
+		return pos.tryMove(moveDir);
+	}
+
+	/**
+	 * Put the agent on a cell returned by <code>tryMove</code>.
+	 * 
+	 * @param cell
+	 *            the cell
+	 */
+	private void moveToCell(final int cell) {
+		if (store != null) {
+			store.columns().cell[slot] = cell;
+		} else {
+			pos = Position.fromCell(cell);
+		}
 	}
 
 	/**
@@ -611,10 +991,10 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 */
 	public void moveTowardsPlace(final Place place) {
 		try {
-			moveInDirection(place.pointFrom(pos, dir));
+			moveInDirection(place.pointFrom(getPos(), getDir()));
 		} catch (PositionUnreachableException e) {
 			System.err.println("Agent '" + this + "' can't reach '" + place
-					+ "' at '" + pos + "'");
+					+ "' at '" + getPos() + "'");
 		}
 	}
 
@@ -646,9 +1026,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 */
 	public void wanderAround(final Place place, final int radius,
 			final int soberness) {
-		atDestination = true; // Keep the developer from forgetting this (comm
-		// by Kostas)
-		if (place.distanceFrom(pos) > radius) {
+		// Keep the developer from forgetting this (comm by Kostas)
+		setAtDestination(true);
+		if (place.distanceFrom(getPos()) > radius) {
 			moveTowardsPlace(place);
 		} else {
 			wander(soberness);
@@ -719,27 +1099,27 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *            One out of <code>soberness</code> times, it will turn.
 	 */
 	public void wander(final int soberness) {
-		atDestination = true; // Keep the developer from forgetting this (comm
-		// by Kostas)
+		// Keep the developer from forgetting this (comm by Kostas)
+		setAtDestination(true);
 		boolean stuck = true;
 		int searchDir = (RAND.nextInt(2) == 1) ? (-WANDER_TURN) : WANDER_TURN;
 		int tries = 0;
 
 		while (stuck && (tries < POSSIBLE_DIRECTIONS)) {
-			Position target = null;
+			int target = tryMove(getDir());
 
-			try {
-				target = pos.calculateMove(dir);
-				pos = target;
+			if (target != Position.BLOCKED) {
+				moveToCell(target);
 				stuck = false;
-			} catch (PositionUnreachableException e) {
+				world.agentMoved(this);
+			} else {
 				turn(searchDir);
 				tries++;
 			}
 		}
 
 		if (tries == POSSIBLE_DIRECTIONS) {
-			System.err.println("My name's " + name
+			System.err.println("My name's " + getName()
 					+ " and you've got me stuck in a "
 					+ "one pixel wide room! I have rights!");
 		}
@@ -774,20 +1154,22 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 */
 	public FlatData getContext(final String ctxName)
 			throws UnknownContextException {
-		if (info.containsKey(ctxName)) {
-			return info.get(ctxName).flatten();
+		if (hasInfo(ctxName)) {
+			return get(ctxName).flatten();
 		} else if (world.getOverlays().containsKey(ctxName)) {
-			return world.getOverlays().get(ctxName).getValue(pos).flatten();
+			return world.getOverlays().get(ctxName).getValue(getPos())
+					.flatten();
 		} else if (ctxName.equals("Time")) {
 			return new Text("" + world.getTime().getTimeInMillis()).flatten();
 		} else if (ctxName.equals("Name")) {
-			return new Text(name).flatten();
+			return new Text(getName()).flatten();
 		} else if (ctxName.equals("Position")) {
-			return pos.flatten();
+			return getPos().flatten();
 		} else if (ctxName.equals("atDestination")) {
-			return new Text(new Boolean(atDestination).toString()).flatten();
+			return new Text(new Boolean(isAtDestination()).toString())
+					.flatten();
 		} else if (ctxName.equals("Destination")) {
-			return destination.flatten();
+			return getDestination().flatten();
 		} else {
 			throw new UnknownContextException(ctxName);
 		}
@@ -798,7 +1180,11 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * the next order coming from the agent model.
 	 */
 	public synchronized void returnControl() {
-		onAuto = true;
+		if (store != null) {
+			store.setFlag(slot, AgentStore.ON_AUTO, true);
+		} else {
+			onAuto = true;
+		}
 	}
 
 	/**
@@ -807,8 +1193,12 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 */
 	public synchronized void getControl() {
 		setVisible(true);
-		atDestination=true;
-		onAuto = false;
+		setAtDestination(true);
+		if (store != null) {
+			store.setFlag(slot, AgentStore.ON_AUTO, false);
+		} else {
+			onAuto = false;
+		}
 	}
 
 	/**
@@ -822,6 +1212,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 */
 	public synchronized boolean isOnAuto() {
 		// System.out.println("Returning "+onAuto);
+		if (store != null) {
+			return store.getFlag(slot, AgentStore.ON_AUTO);
+		}
 		return onAuto;
 	}
 
@@ -831,6 +1224,9 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 * @return true if it is visible, false otherwise
 	 */
 	public boolean isVisible() {
+		if (store != null) {
+			return store.getFlag(slot, AgentStore.VISIBLE);
+		}
 		return visible;
 	}
 
@@ -843,7 +1239,11 @@ public class Agent implements Trackable, Comparable<Agent> {
 	 *            true if the agent should be visible, false otherwise
 	 */
 	public void setVisible(final boolean visible) {
-		this.visible = visible;
+		if (store != null) {
+			store.setFlag(slot, AgentStore.VISIBLE, visible);
+		} else {
+			this.visible = visible;
+		}
 	}
 
 	/**
@@ -861,9 +1261,12 @@ public class Agent implements Trackable, Comparable<Agent> {
 		// Sorted sets are traversed in ascending order. We want a high Z
 		// priority to be drawn later, so this fits
 
-		int zPrioritydiff = zPriority - a.getZPriority();
+		int zPrioritydiff = getZPriority() - a.getZPriority();
 		if (zPrioritydiff != 0) {
 			return zPrioritydiff;
+		} else if (store != null && a.store == store) {
+			// Slots are unique, and cheaper to compare than the whole state
+			return slot - a.slot;
 		} else if(this.equals(a)){
 			return 0;
 		} else {
@@ -872,8 +1275,17 @@ public class Agent implements Trackable, Comparable<Agent> {
 	}
 	
 	
+	/**
+	 * Calculate the hash code out of the agent's state. Agents in a store
+	 * are only equal to themselves, so their slot is their hash code.
+	 * 
+	 * @return the hash code
+	 */
 	@Override
 	public int hashCode() {
+		if (store != null) {
+			return slot;
+		}
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + (atDestination ? 1231 : 1237);
@@ -881,7 +1293,7 @@ public class Agent implements Trackable, Comparable<Agent> {
 				+ ((destination == null) ? 0 : destination.hashCode());
 		result = prime * result + dir;
 		result = prime * result + ((image == null) ? 0 : image.hashCode());
-		result = prime * result + ((info == null) ? 0 : info.hashCode());
+		result = prime * result + infoHashCode();
 		result = prime * result + ((name == null) ? 0 : name.hashCode());
 		result = prime * result + ((onAuto == null) ? 0 : onAuto.hashCode());
 		result = prime * result + ((pos == null) ? 0 : pos.hashCode());
@@ -893,12 +1305,23 @@ public class Agent implements Trackable, Comparable<Agent> {
 		return result;
 	}
 
+	/**
+	 * Compare the state of two agents. Agents in a store are only equal to
+	 * themselves.
+	 * 
+	 * @param obj
+	 *            the object to compare to
+	 * @return true if the agents are equal
+	 */
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
 		if (obj == null)
 			return false;
+		if (store != null
+				|| (obj instanceof Agent && ((Agent) obj).store != null))
+			return false;
 		if (getClass() != obj.getClass())
 			return false;
 		Agent other = (Agent) obj;
@@ -916,10 +1339,7 @@ public class Agent implements Trackable, Comparable<Agent> {
 				return false;
 		} else if (!image.equals(other.image))
 			return false;
-		if (info == null) {
-			if (other.info != null)
-				return false;
-		} else if (!info.equals(other.info))
+		if (!infoEquals(other))
 			return false;
 		if (name == null) {
 			if (other.name != null)
@@ -949,4 +1369,44 @@ public class Agent implements Trackable, Comparable<Agent> {
 			return false;
 		return true;
 	}
+
+	/**
+	 * Calculate a hash code out of the info fields the agent has, regardless
+	 * of the length of the info array.
+	 * 
+	 * @return the hash code
+	 */
+	private int infoHashCode() {
+		int result = 0;
+
+		for (int id = 0; id < info.length; id++) {
+			if (info[id] != null) {
+				result += id ^ info[id].hashCode();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compare the info fields of two agents, regardless of the length of
+	 * their info arrays.
+	 * 
+	 * @param other
+	 *            the other agent
+	 * @return true if they have the same fields with equal values
+	 */
+	private boolean infoEquals(final Agent other) {
+		int length = Math.max(info.length, other.info.length);
+
+		for (int id = 0; id < length; id++) {
+			Publishable mine = id < info.length ? info[id] : null;
+			Publishable theirs =
+					id < other.info.length ? other.info[id] : null;
+
+			if (mine == null ? theirs != null : !mine.equals(theirs)) {
+				return false;
+			}
+		}
+		return true;
+	}
 }
@@ -0,0 +1,393 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import de.nec.nle.siafu.types.Publishable;
+
+/**
+ * The state of all the agents, kept column by column instead of agent by
+ * agent. Each agent gets a slot, and its position, direction, flags and info
+ * fields are the entries at that slot of each column. The agents become
+ * views on their slot, which saves the info map and most of the objects of
+ * each agent, and lets loops over the agents walk through contiguous arrays.
+ * 
+ * There is one info column per info field, so the store can only be built
+ * once the info fields are locked. The columns of integers, floats and
+ * booleans keep primitives; fields whose values are of other types, or of
+ * more than one type, fall back to a column of objects.
+ * 
+ * Agents are only added from the simulation thread. Growing the store or
+ * changing the type of an info column doesn't touch the columns in use:
+ * the store publishes a new <code>Columns</code> with copies, so a reader
+ * that got hold of the old one can still index every slot it knew about.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class AgentStore {
+	/** Flag for agents that have reached their destination. */
+	static final byte AT_DESTINATION = 1;
+
+	/** Flag for visible agents. */
+	static final byte VISIBLE = 2;
+
+	/** Flag for agents that follow the agent model. */
+	static final byte ON_AUTO = 4;
+
+	/** The amount of slots the columns start with. */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The columns of the store. Columns of the same <code>Columns</code>
+	 * always have the same capacity.
+	 */
+	static final class Columns {
+		/** The agent names. */
+		final String[] name;
+
+		/** The agent images. */
+		final String[] image;
+
+		/** The images the agents had before the current one. */
+		final String[] previousImage;
+
+		/** The agent destinations. */
+		final Place[] destination;
+
+		/** The agent positions, as <code>WallMap</code> cells. */
+		final int[] cell;
+
+		/** The direction the agents face. */
+		final byte[] dir;
+
+		/** The agent speeds. */
+		final int[] speed;
+
+		/** The agent Z priorities. */
+		final int[] zPriority;
+
+		/** The AT_DESTINATION, VISIBLE and ON_AUTO flags of the agents. */
+		final byte[] flags;
+
+		/** The info fields, one column per field. */
+		final InfoColumn[] info;
+
+		/**
+		 * Create empty columns.
+		 * 
+		 * @param fieldCount
+		 *            the amount of info fields
+		 * @param capacity
+		 *            the amount of slots
+		 */
+		private Columns(final int fieldCount, final int capacity) {
+			name = new String[capacity];
+			image = new String[capacity];
+			previousImage = new String[capacity];
+			destination = new Place[capacity];
+			cell = new int[capacity];
+			dir = new byte[capacity];
+			speed = new int[capacity];
+			zPriority = new int[capacity];
+			flags = new byte[capacity];
+			info = new InfoColumn[fieldCount];
+			for (int i = 0; i < fieldCount; i++) {
+				info[i] = new InfoColumn(capacity);
+			}
+		}
+
+		/**
+		 * Copy the columns into bigger ones.
+		 * 
+		 * @param old
+		 *            the columns to copy
+		 * @param capacity
+		 *            the amount of slots of the new columns
+		 */
+		private Columns(final Columns old, final int capacity) {
+			name = Arrays.copyOf(old.name, capacity);
+			image = Arrays.copyOf(old.image, capacity);
+			previousImage = Arrays.copyOf(old.previousImage, capacity);
+			destination = Arrays.copyOf(old.destination, capacity);
+			cell = Arrays.copyOf(old.cell, capacity);
+			dir = Arrays.copyOf(old.dir, capacity);
+			speed = Arrays.copyOf(old.speed, capacity);
+			zPriority = Arrays.copyOf(old.zPriority, capacity);
+			flags = Arrays.copyOf(old.flags, capacity);
+			info = new InfoColumn[old.info.length];
+			for (int i = 0; i < info.length; i++) {
+				info[i] = old.info[i].grow(capacity);
+			}
+		}
+
+		/**
+		 * Share the columns of another <code>Columns</code>, replacing one
+		 * info column.
+		 * 
+		 * @param old
+		 *            the columns to share
+		 * @param column
+		 *            the index of the info column to replace
+		 * @param replacement
+		 *            the new info column
+		 */
+		private Columns(final Columns old, final int column,
+				final InfoColumn replacement) {
+			name = old.name;
+			image = old.image;
+			previousImage = old.previousImage;
+			destination = old.destination;
+			cell = old.cell;
+			dir = old.dir;
+			speed = old.speed;
+			zPriority = old.zPriority;
+			flags = old.flags;
+			info = old.info.clone();
+			info[column] = replacement;
+		}
+	}
+
+	/** The info fields, sorted. */
+	private final String[] fields;
+
+	/**
+	 * The column of each info field, indexed by the field's InfoField
+	 * number, or -1 for fields the agents don't have.
+	 */
+	private final int[] columnOf;
+
+	/** The amount of slots in use. */
+	private int size;
+
+	/** The current columns. */
+	private volatile Columns columns;
+
+	/**
+	 * Create an empty store for agents with the given info fields.
+	 * 
+	 * @param infoFields
+	 *            the locked info fields of the agents
+	 */
+	AgentStore(final Set<String> infoFields) {
+		fields = infoFields.toArray(new String[0]);
+		Arrays.sort(fields);
+		int[] ids = new int[fields.length];
+		int maxId = -1;
+		for (int i = 0; i < fields.length; i++) {
+			ids[i] = InfoField.intern(fields[i]);
+			maxId = Math.max(maxId, ids[i]);
+		}
+		columnOf = new int[maxId + 1];
+		Arrays.fill(columnOf, -1);
+		for (int i = 0; i < fields.length; i++) {
+			columnOf[ids[i]] = i;
+		}
+
+		columns = new Columns(fields.length, INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Get the current columns. Callers that use several of them together
+	 * should get them once, since a new slot may come with new columns.
+	 * 
+	 * @return the columns
+	 */
+	Columns columns() {
+		return columns;
+	}
+
+	/**
+	 * Get a new slot, growing the columns if they're full.
+	 * 
+	 * @return the slot
+	 */
+	synchronized int add() {
+		Columns current = columns;
+		if (size == current.cell.length) {
+			columns = new Columns(current, 2 * size);
+		}
+		return size++;
+	}
+
+	/**
+	 * Get the amount of agents in the store.
+	 * 
+	 * @return the amount of slots in use
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Get the column of an info field.
+	 * 
+	 * @param id
+	 *            the InfoField number of the field
+	 * @return the column, or -1 if there is no such field
+	 */
+	int column(final int id) {
+		if (id < 0 || id >= columnOf.length) {
+			return -1;
+		}
+		return columnOf[id];
+	}
+
+	/**
+	 * Check a flag of an agent.
+	 * 
+	 * @param slot
+	 *            the agent's slot
+	 * @param flag
+	 *            the flag
+	 * @return true if the flag is set
+	 */
+	boolean getFlag(final int slot, final byte flag) {
+		return (columns.flags[slot] & flag) != 0;
+	}
+
+	/**
+	 * Set or clear a flag of an agent.
+	 * 
+	 * @param slot
+	 *            the agent's slot
+	 * @param flag
+	 *            the flag
+	 * @param value
+	 *            true to set it, false to clear it
+	 */
+	void setFlag(final int slot, final byte flag, final boolean value) {
+		byte[] flags = columns.flags;
+		if (value) {
+			flags[slot] |= flag;
+		} else {
+			flags[slot] &= ~flag;
+		}
+	}
+
+	/**
+	 * Get what an agent keeps for an info field.
+	 * 
+	 * @param slot
+	 *            the agent's slot
+	 * @param column
+	 *            the column of the field
+	 * @return the value as kept by <code>InfoField.wrap</code>, or null if
+	 *         the agent doesn't have the field
+	 */
+	Publishable getInfo(final int slot, final int column) {
+		return columns.info[column].get(slot);
+	}
+
+	/**
+	 * Set what an agent keeps for an info field, replacing the column with
+	 * one of another type if it can't hold the value.
+	 * 
+	 * @param slot
+	 *            the agent's slot
+	 * @param column
+	 *            the column of the field
+	 * @param kept
+	 *            the value as kept by <code>InfoField.wrap</code>
+	 */
+	void setInfo(final int slot, final int column, final Publishable kept) {
+		InfoColumn current = columns.info[column];
+		if (!current.set(slot, kept)) {
+			current = widen(column, kept);
+			current.set(slot, kept);
+		}
+		while (columns.info[column] != current) {
+			// Another thread replaced the column meanwhile
+			current = columns.info[column];
+			if (!current.set(slot, kept)) {
+				current = widen(column, kept);
+				current.set(slot, kept);
+			}
+		}
+	}
+
+	/**
+	 * Replace an info column with one that can hold a value.
+	 * 
+	 * @param column
+	 *            the column of the field
+	 * @param kept
+	 *            the value
+	 * @return the column that now holds the field
+	 */
+	private synchronized InfoColumn widen(final int column,
+			final Publishable kept) {
+		Columns current = columns;
+		if (current.info[column].holds(kept)) {
+			// Another thread widened it already
+			return current.info[column];
+		}
+		InfoColumn replacement = current.info[column].widen(kept);
+		columns = new Columns(current, column, replacement);
+		return replacement;
+	}
+
+	/**
+	 * Check that an agent has a value for every info field.
+	 * 
+	 * @param slot
+	 *            the agent's slot
+	 * @return true if none of its info fields is null
+	 */
+	boolean hasAllFields(final int slot) {
+		for (InfoColumn column : columns.info) {
+			if (column.get(slot) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the info values of an agent, in the order of the sorted info
+	 * fields. The list is backed by the store.
+	 * 
+	 * @param slot
+	 *            the agent's slot
+	 * @return the values
+	 */
+	List<Publishable> infoValues(final int slot) {
+		return new AbstractList<Publishable>() {
+			public Publishable get(final int index) {
+				Publishable kept = getInfo(slot, index);
+				return kept == null ? null : InfoField.unwrap(kept);
+			}
+
+			public Publishable set(final int index, final Publishable value) {
+				Publishable old = get(index);
+				setInfo(slot, index, InfoField.wrap(value));
+				return old;
+			}
+
+			public int size() {
+				return fields.length;
+			}
+		};
+	}
+}
@@ -19,10 +19,10 @@
 
 package de.nec.nle.siafu.model;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
 
 import de.nec.nle.siafu.exceptions.PositionUnreachableException;
 
@@ -48,7 +48,8 @@ import de.nec.nle.siafu.exceptions.PositionUnreachableException;
  * 
  * The gradient is calculated by growing distances from the destination point.
  * To do so, we calulate the distance from the target point to each of the
- * adjacent pixels. You can picture this as a 3d surface, where the height is
+ * adjacent pixels, in order of increasing distance (see
+ * <code>GradientCalculator</code>). You can picture this as a 3d surface, where the height is
  * the distance to the destination point. If there were no wall,s this would be
  * the inside of an inverted cone. To walk the agent simply follows the
  * direction of biggest gradient (slope). When the distance grows from the
@@ -75,18 +76,24 @@ public class Gradient implements Serializable {
 	 */
 	public static final int UNREACHABLE = Integer.MAX_VALUE;
 
-	/** Distance between two horizontallly or vertically adjacent points. */
-	private static final int STRAIGHT_DISTANCE = 10;
-
-	/** Distance between two diagonally adjacent points. */
-	private static final int DIAGONAL_DISTANCE = 14;
-
 	/**
 	 * The distance from each row,col position in the map to the gradient
-	 * center.
+	 * center. This is null if the distances are read from <code>cells</code>
+	 * instead.
 	 */
 	private int[][] distance;
 
+	/**
+	 * The distances, row after row, when they are read from a memory mapped
+	 * gradient file rather than kept in the heap.
+	 * 
+	 * @see de.nec.nle.siafu.utils.GradientFile
+	 */
+	private transient ByteBuffer cells;
+
+	/** The size in bytes of each distance in <code>cells</code>. */
+	private transient int cellBytes;
+
 	/** The map height. */
 	private final int h;
 
@@ -139,6 +146,32 @@ public class Gradient implements Serializable {
 		calculateGradient(world, relevantPos);
 	}
 
+	/**
+	 * Creates a gradient whose distances are read from a buffer, usually
+	 * memory mapped from a gradient file, instead of being calculated. When
+	 * each distance takes 2 bytes, the value <code>0xFFFF</code> stands for
+	 * <code>UNREACHABLE</code>.
+	 * 
+	 * @param center
+	 *            the gradient's center
+	 * @param h
+	 *            the map height
+	 * @param w
+	 *            the map width
+	 * @param cells
+	 *            the distances, row after row
+	 * @param cellBytes
+	 *            the size of each distance, either 2 or 4 bytes
+	 */
+	public Gradient(final Position center, final int h, final int w,
+			final ByteBuffer cells, final int cellBytes) {
+		this.h = h;
+		this.w = w;
+		this.center = center;
+		this.cells = cells;
+		this.cellBytes = cellBytes;
+	}
+
 	/**
 	 * Returns the gradient's center position.
 	 * 
@@ -148,14 +181,57 @@ public class Gradient implements Serializable {
 		return center.toString();
 	}
 
+	/**
+	 * Get the gradient's center.
+	 * 
+	 * @return the position at distance 0
+	 */
+	public Position getCenter() {
+		return center;
+	}
+
 	/**
 	 * Returns the matrix with the distances from anywhere on the map to the
-	 * center.
+	 * center. If the distances are read from a gradient file, the matrix is
+	 * built on every call.
 	 * 
 	 * @return an int matrix with the distances in simulation grid points
 	 */
 	public int[][] getDistances() {
-		return distance;
+		if (distance != null) {
+			return distance;
+		}
+
+		int[][] copy = new int[h][w];
+		for (int i = 0; i < h; i++) {
+			for (int j = 0; j < w; j++) {
+				copy[i][j] = distanceAt(i, j);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Find out if the distances are read from a gradient file rather than
+	 * kept in the heap.
+	 * 
+	 * @return true if the gradient is memory mapped
+	 */
+	public boolean isMapped() {
+		return cells != null;
+	}
+
+	/**
+	 * Get the amount of memory taken by the distances, either in the heap or
+	 * mapped from a gradient file.
+	 * 
+	 * @return the size of the distances in bytes
+	 */
+	public long getSizeInBytes() {
+		if (distance != null) {
+			return (long) h * w * 4;
+		}
+		return (long) h * w * cellBytes;
 	}
 
 	/**
@@ -187,79 +263,7 @@ public class Gradient implements Serializable {
 	 *            the position we care about
 	 */
 	private void calculateGradient(final World world, final Position relevantPos) {
-		distance = new int[h][w];
-		boolean doneCalculating = false;
-		boolean foundRelevantPos = false;
-
-		for (int i = 0; i < h; i++) {
-			for (int j = 0; j < w; j++) {
-				distance[i][j] = UNREACHABLE;
-			}
-		}
-		// The positions we still have to calculate in this round
-		Set<Position> pending = new HashSet<Position>();
-
-		// The newly discovered positions that will be pending on the next
-		// round.
-		Set<Position> next = new HashSet<Position>();
-
-		// Make the center be at 0 distance from itself
-		distance[center.getRow()][center.getCol()] = 0;
-		pending.add(center);
-
-		while (!doneCalculating) {
-			// Calculate the distance to neighbouring points from each of the
-			// pending ones
-			for (Position pos : pending) {
-				int distanceStraight = distance[pos.getRow()][pos.getCol()]
-						+ STRAIGHT_DISTANCE;
-				int distanceDiagonal = distance[pos.getRow()][pos.getCol()]
-						+ DIAGONAL_DISTANCE;
-
-				// Add the distance, if the neighbout is verticallly or
-				// horizaontally reachable
-				for (int dir = 0; dir < POSSIBLE_DIRS; dir += 2) {
-					try {
-						Position newPos = pos.calculateMove(dir);
-						if (distanceStraight < distance[newPos.getRow()][newPos
-								.getCol()]) {
-							distance[newPos.getRow()][newPos.getCol()] = distanceStraight;
-							next.add(newPos);
-						}
-					} catch (PositionUnreachableException e) {
-						continue;
-					}
-				}
-
-				// Add the distance, if the neighbouring position is
-				// diagonally reachable
-				for (int dir = 1; dir < POSSIBLE_DIRS; dir += 2) {
-					try {
-						Position newPos = pos.calculateMove(dir);
-						if (distanceDiagonal < distance[newPos.getRow()][newPos
-								.getCol()]) {
-							distance[newPos.getRow()][newPos.getCol()] = distanceDiagonal;
-							next.add(newPos);
-						}
-					} catch (PositionUnreachableException e) {
-						continue;
-					}
-				}
-				if (relevantPos != null && pending.contains(relevantPos)) {
-					foundRelevantPos = true;
-					doneCalculating = true;
-				}
-			}
-			pending = next;
-			next = new HashSet<Position>();
-
-			if (pending.isEmpty()) {
-				doneCalculating = true;
-			}
-		}
-		if (relevantPos != null && !foundRelevantPos) {
-			throw new PositionUnreachableException();
-		}
+		distance = world.getGradientCalculator().calculate(center, relevantPos);
 	}
 
 	/**
@@ -274,11 +278,13 @@ public class Gradient implements Serializable {
 	 *            if more than one way is optimal, prefer this one. If
 	 *            preferredDir is -1, there is no preferred dir
 	 * @return the direction to follow
+	 * @throws PositionUnreachableException
+	 *             if there are walls all around pos
 	 */
 	public int pointFrom(final Position pos, final int preferredDir) {
-
-		ArrayList<Integer> optimalDirs = new ArrayList<Integer>(POSSIBLE_DIRS);
-		int min = distance[pos.getRow()][pos.getCol()];
+		// A bit per optimal direction, so that probing allocates nothing
+		int optimalDirs = 0;
+		int min = distanceAt(pos.getRow(), pos.getCol());
 		int grad;
 
 		if (min == 0) {
@@ -286,27 +292,28 @@ public class Gradient implements Serializable {
 		}
 
 		for (int dir = 0; dir < POSSIBLE_DIRS; dir++) {
-			Position aux;
-
-			try {
-				aux = pos.calculateMove(dir);
-				grad = distance[aux.getRow()][aux.getCol()];
-				if (grad == min) {
-					optimalDirs.add(dir);
-				} else if (grad < min) {
-					min = grad;
-					optimalDirs.clear();
-					optimalDirs.add(dir);
-				}
-			} catch (PositionUnreachableException e) {
+			int cell = pos.tryMove(dir);
+
+			if (cell == Position.BLOCKED) {
 				continue;
 			}
+			grad = distanceAt(Position.rowOf(cell), Position.colOf(cell));
+			if (grad == min) {
+				optimalDirs |= 1 << dir;
+			} else if (grad < min) {
+				min = grad;
+				optimalDirs = 1 << dir;
+			}
 		}
 
-		if (preferredDir != -1 && optimalDirs.contains(preferredDir)) {
+		if (optimalDirs == 0) {
+			// Walled in, there's nowhere to go
+			throw new PositionUnreachableException();
+		} else if (preferredDir != -1
+				&& (optimalDirs & (1 << preferredDir)) != 0) {
 			return preferredDir;
 		} else {
-			return optimalDirs.get(0);
+			return Integer.numberOfTrailingZeros(optimalDirs);
 		}
 
 	}
@@ -333,6 +340,51 @@ public class Gradient implements Serializable {
 	 * @return the distance in simulation gridpoints
 	 */
 	public int distanceFrom(final Position pos) {
-		return distance[pos.getRow()][pos.getCol()];
+		return distanceAt(pos.getRow(), pos.getCol());
+	}
+
+	/**
+	 * Get the distance from the given row and column to the center, whether
+	 * it is kept in the heap or in a mapped buffer.
+	 * 
+	 * @param row
+	 *            the row in the map
+	 * @param col
+	 *            the column in the map
+	 * @return the distance in simulation grid points
+	 */
+	private int distanceAt(final int row, final int col) {
+		if (distance != null) {
+			return distance[row][col];
+		}
+
+		int index = row * w + col;
+		if (cellBytes == 4) {
+			return cells.getInt(index * 4);
+		}
+
+		int d = cells.getShort(index * 2) & 0xFFFF;
+		if (d == 0xFFFF) {
+			return UNREACHABLE;
+		} else {
+			return d;
+		}
+	}
+
+	/**
+	 * Serialize the gradient, copying the distances into the heap first if
+	 * they were read from a mapped buffer.
+	 * 
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if the stream can't be written
+	 */
+	private void writeObject(final ObjectOutputStream out)
+			throws IOException {
+		if (distance == null) {
+			distance = getDistances();
+		}
+		out.defaultWriteObject();
 	}
 }
@@ -0,0 +1,497 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import de.nec.nle.siafu.exceptions.PositionUnreachableException;
+
+/**
+ * The engine that floods the map to calculate the distance matrices held by
+ * each <code>Gradient</code>, the fields telling which of several places
+ * is the nearest one, and the point to point walks of each
+ * <code>Route</code>.
+ * 
+ * The walls are copied into a flat array with a one cell wide border of
+ * walls all around the map. That way, each of the eight neighbours of a cell
+ * is at a fixed offset of its index, and no bounds checks are needed when
+ * stepping around. Since a step costs either 10 or 14, the distances are
+ * grown in increasing order using a bucket queue (Dial's variant of
+ * Dijkstra's algorithm) with one bucket per distance modulo 15. This way
+ * each cell is settled exactly once, and no Position objects or exceptions
+ * are created while flooding.
+ * 
+ * The calculator holds no state other than the walls and some per thread
+ * scratch space for routes, so the same instance can be shared by any amount
+ * of threads.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class GradientCalculator {
+	/** Distance between two horizontallly or vertically adjacent points. */
+	private static final int STRAIGHT_DISTANCE = 10;
+
+	/** Distance between two diagonally adjacent points. */
+	private static final int DIAGONAL_DISTANCE = 14;
+
+	/**
+	 * Amount of buckets in the queue. It has to be larger than the longest
+	 * step, so that a bucket never receives cells while it is being emptied.
+	 */
+	private static final int BUCKETS = DIAGONAL_DISTANCE + 1;
+
+	/** Initial capacity of each bucket, which grows as needed. */
+	private static final int INITIAL_BUCKET_SIZE = 256;
+
+	/**
+	 * The compass direction (0 is North, clockwise) of each neighbour
+	 * offset.
+	 */
+	private static final byte[] COMPASS_DIR = {0, 2, 4, 6, 1, 3, 5, 7 };
+
+	/**
+	 * The scratch arrays used by <code>findRoute</code>, one set per thread,
+	 * so that finding a route doesn't allocate map sized arrays.
+	 */
+	private final ThreadLocal<RouteScratch> routeScratch =
+			new ThreadLocal<RouteScratch>() {
+				protected RouteScratch initialValue() {
+					return new RouteScratch(walls.size());
+				}
+			};
+
+	/**
+	 * The per cell state of an A* search. Instead of clearing the arrays for
+	 * every search, each search gets a new stamp, and cells whose stamp is
+	 * not the current one count as unvisited.
+	 */
+	private static final class RouteScratch {
+		/** The search that last touched each cell. */
+		private final int[] stamp;
+
+		/** The cost from the start to each cell. */
+		private final int[] cost;
+
+		/** The neighbour offset through which each cell was reached. */
+		private final byte[] via;
+
+		/** The open cells, as a binary heap of (estimate, cell) pairs. */
+		private long[] heap = new long[INITIAL_BUCKET_SIZE];
+
+		/** The amount of cells in the heap. */
+		private int heapSize;
+
+		/** The stamp of the current search. */
+		private int current;
+
+		/**
+		 * Create the scratch arrays for a map.
+		 * 
+		 * @param cells
+		 *            the size of the padded map
+		 */
+		private RouteScratch(final int cells) {
+			stamp = new int[cells];
+			cost = new int[cells];
+			via = new byte[cells];
+		}
+
+		/**
+		 * Add a cell to the heap.
+		 * 
+		 * @param estimate
+		 *            the estimated total cost through the cell
+		 * @param cell
+		 *            the cell
+		 */
+		private void push(final int estimate, final int cell) {
+			if (heapSize == heap.length) {
+				heap = Arrays.copyOf(heap, 2 * heap.length);
+			}
+
+			long entry = ((long) estimate << 32) | cell;
+			int k = heapSize++;
+
+			while (k > 0 && heap[(k - 1) / 2] > entry) {
+				heap[k] = heap[(k - 1) / 2];
+				k = (k - 1) / 2;
+			}
+			heap[k] = entry;
+		}
+
+		/**
+		 * Remove the heap entry with the lowest estimate.
+		 * 
+		 * @return the entry, with the estimate in the high 32 bits and the
+		 *         cell in the low ones
+		 */
+		private long pop() {
+			long top = heap[0];
+			long last = heap[--heapSize];
+			int k = 0;
+
+			while (2 * k + 1 < heapSize) {
+				int child = 2 * k + 1;
+				if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+					child++;
+				}
+				if (last <= heap[child]) {
+					break;
+				}
+				heap[k] = heap[child];
+				k = child;
+			}
+			heap[k] = last;
+			return top;
+		}
+	}
+
+	/** The map height. */
+	private final int h;
+
+	/** The map width. */
+	private final int w;
+
+	/** The width of a row in the padded arrays. */
+	private final int stride;
+
+	/**
+	 * The walls of the map, plus a border of walls, indexed by
+	 * <code>(row + 1) * stride + col + 1</code>.
+	 */
+	private final WallMap walls;
+
+	/**
+	 * The index offset of the neighbours at N, E, S and W, followed by those
+	 * at NE, SE, SW and NW.
+	 */
+	private final int[] offset;
+
+	/**
+	 * Build a calculator for the given walls.
+	 * 
+	 * @param walls
+	 *            the walls of the world
+	 * @param h
+	 *            the map height
+	 * @param w
+	 *            the map width
+	 */
+	GradientCalculator(final WallMap walls, final int h, final int w) {
+		this.h = h;
+		this.w = w;
+		this.stride = w + 2;
+		this.walls = walls;
+
+		offset = new int[] { -stride, 1, stride, -1, -stride + 1,
+				stride + 1, stride - 1, -stride - 1 };
+	}
+
+	/**
+	 * Calculate the distance from any point in the map to the center. If a
+	 * relevant position is provided, the calculation stops as soon as the
+	 * distance to that position is known. Unreachable positions and walls get
+	 * a distance of <code>Gradient.UNREACHABLE</code>.
+	 * 
+	 * @param center
+	 *            the position at distance 0
+	 * @param relevantPos
+	 *            the position we care about, or null for a full map
+	 * @return the distance matrix, indexed by row and column
+	 * @throws PositionUnreachableException
+	 *             if there is a relevant position, but no way to get there
+	 */
+	int[][] calculate(final Position center, final Position relevantPos) {
+		final int[] dist = newDistances();
+		int target = -1;
+
+		if (relevantPos != null) {
+			target = index(relevantPos.getRow(), relevantPos.getCol());
+		}
+
+		boolean foundRelevantPos =
+				flood(dist, null, new int[] {index(center.getRow(),
+					center.getCol()) }, target);
+
+		if (relevantPos != null && !foundRelevantPos) {
+			throw new PositionUnreachableException();
+		}
+
+		int[][] distance = new int[h][w];
+		for (int i = 0; i < h; i++) {
+			System.arraycopy(dist, (i + 1) * stride + 1, distance[i], 0, w);
+		}
+		return distance;
+	}
+
+	/**
+	 * Calculate, for every point in the map, which of the given sources is
+	 * the nearest one, and at what distance. When several sources are at the
+	 * same distance, the one that comes first in the list wins. Unreachable
+	 * positions and walls get a distance of <code>Gradient.UNREACHABLE</code>
+	 * and a source of -1.
+	 * 
+	 * @param sources
+	 *            the positions at distance 0
+	 * @param distance
+	 *            where to write the distances, row after row, h*w long
+	 * @param nearest
+	 *            where to write the index in sources of the nearest one, row
+	 *            after row, h*w long
+	 */
+	void calculateNearest(final List<Position> sources, final int[] distance,
+			final int[] nearest) {
+		final int[] dist = newDistances();
+		final int[] owner = new int[walls.size()];
+		Arrays.fill(owner, -1);
+
+		int[] source = new int[sources.size()];
+		for (int k = 0; k < source.length; k++) {
+			Position p = sources.get(k);
+			source[k] = index(p.getRow(), p.getCol());
+			if (owner[source[k]] == -1) {
+				owner[source[k]] = k;
+			}
+		}
+
+		flood(dist, owner, source, -1);
+
+		for (int i = 0; i < h; i++) {
+			System.arraycopy(dist, (i + 1) * stride + 1, distance, i * w, w);
+			System.arraycopy(owner, (i + 1) * stride + 1, nearest, i * w, w);
+		}
+	}
+
+	/**
+	 * Find a shortest walk from one position to another using A*, with the
+	 * octile distance to the goal as the heuristic. Since it never
+	 * overestimates the remaining cost, the walk found is as short as
+	 * following a gradient would be, but only the cells around it are
+	 * explored.
+	 * 
+	 * @param from
+	 *            the position where the walk starts
+	 * @param to
+	 *            the position where the walk ends
+	 * @return the compass directions to follow, 0 being North and going
+	 *         clockwise, one per step
+	 * @throws PositionUnreachableException
+	 *             if there is no way from one position to the other
+	 */
+	byte[] findRoute(final Position from, final Position to) {
+		RouteScratch s = routeScratch.get();
+		if (++s.current == 0) { // Stamps wrapped around
+			Arrays.fill(s.stamp, 0);
+			s.current = 1;
+		}
+		s.heapSize = 0;
+
+		int start = index(from.getRow(), from.getCol());
+		int goal = index(to.getRow(), to.getCol());
+
+		if (walls.isBlocked(start) || walls.isBlocked(goal)) {
+			throw new PositionUnreachableException();
+		}
+
+		s.stamp[start] = s.current;
+		s.cost[start] = 0;
+		s.push(octile(start, goal), start);
+		boolean found = false;
+
+		while (s.heapSize > 0) {
+			long entry = s.pop();
+			int cell = (int) entry;
+
+			// Stale entry, the cell was reached at a lower cost
+			if ((int) (entry >>> 32) != s.cost[cell] + octile(cell, goal)) {
+				continue;
+			}
+
+			if (cell == goal) {
+				found = true;
+				break;
+			}
+
+			for (int n = 0; n < offset.length; n++) {
+				int next = cell + offset[n];
+				int nextCost = s.cost[cell]
+						+ ((n < offset.length / 2) ? STRAIGHT_DISTANCE
+								: DIAGONAL_DISTANCE);
+
+				if (!walls.isBlocked(next)
+						&& (s.stamp[next] != s.current
+								|| nextCost < s.cost[next])) {
+					s.stamp[next] = s.current;
+					s.cost[next] = nextCost;
+					s.via[next] = (byte) n;
+					s.push(nextCost + octile(next, goal), next);
+				}
+			}
+		}
+
+		if (!found) {
+			throw new PositionUnreachableException();
+		}
+
+		int steps = 0;
+		for (int cell = goal; cell != start; cell -= offset[s.via[cell]]) {
+			steps++;
+		}
+
+		byte[] dirs = new byte[steps];
+		for (int cell = goal; cell != start; cell -= offset[s.via[cell]]) {
+			dirs[--steps] = COMPASS_DIR[s.via[cell]];
+		}
+		return dirs;
+	}
+
+	/**
+	 * The octile distance between two cells, that is, the cost of walking
+	 * from one to the other if there were no walls.
+	 * 
+	 * @param cell
+	 *            the index of a cell in the padded arrays
+	 * @param other
+	 *            the index of the other cell
+	 * @return the cost of the walk, with straight steps costing 10 and
+	 *         diagonal ones 14
+	 */
+	private int octile(final int cell, final int other) {
+		int dRow = Math.abs(cell / stride - other / stride);
+		int dCol = Math.abs(cell % stride - other % stride);
+
+		return STRAIGHT_DISTANCE * Math.max(dRow, dCol)
+				+ (DIAGONAL_DISTANCE - STRAIGHT_DISTANCE)
+				* Math.min(dRow, dCol);
+	}
+
+	/**
+	 * Create the padded distance array, with every cell unreachable.
+	 * 
+	 * @return the distance array
+	 */
+	private int[] newDistances() {
+		int[] dist = new int[walls.size()];
+		Arrays.fill(dist, Gradient.UNREACHABLE);
+		return dist;
+	}
+
+	/**
+	 * Grow the distances from the sources in increasing order. If there is
+	 * an owner array, each reached cell also gets the owner of the cell it
+	 * was reached from, the lowest one in case of a tie. Since a cell is only
+	 * expanded once all the cells closer to the sources are, its owner is
+	 * final by then.
+	 * 
+	 * @param dist
+	 *            the padded distances, all unreachable
+	 * @param owner
+	 *            the padded owners, already set for the sources, or null
+	 * @param sources
+	 *            the indexes of the cells at distance 0
+	 * @param target
+	 *            the index of the cell at which to stop, or -1 to flood the
+	 *            whole map
+	 * @return true if the target was reached
+	 */
+	private boolean flood(final int[] dist, final int[] owner,
+			final int[] sources, final int target) {
+		int[][] bucket = new int[BUCKETS][INITIAL_BUCKET_SIZE];
+		int[] bucketSize = new int[BUCKETS];
+		int queued = 0;
+
+		for (int k = 0; k < sources.length; k++) {
+			if (dist[sources[k]] != 0) {
+				dist[sources[k]] = 0;
+				if (bucketSize[0] == bucket[0].length) {
+					bucket[0] = Arrays.copyOf(bucket[0], 2 * bucket[0].length);
+				}
+				bucket[0][bucketSize[0]++] = sources[k];
+				queued++;
+			}
+		}
+
+		for (int d = 0; queued > 0; d++) {
+			int b = d % BUCKETS;
+			int[] current = bucket[b];
+			int size = bucketSize[b];
+			bucketSize[b] = 0;
+			queued -= size;
+
+			for (int k = 0; k < size; k++) {
+				int cell = current[k];
+
+				// Stale entry, the cell was reached at a shorter distance
+				if (dist[cell] != d) {
+					continue;
+				}
+
+				if (cell == target) {
+					return true;
+				}
+
+				for (int n = 0; n < offset.length; n++) {
+					int next = cell + offset[n];
+					int nextDist = d
+							+ ((n < offset.length / 2) ? STRAIGHT_DISTANCE
+									: DIAGONAL_DISTANCE);
+
+					if (walls.isBlocked(next)) {
+						continue;
+					}
+
+					if (nextDist < dist[next]) {
+						dist[next] = nextDist;
+						if (owner != null) {
+							owner[next] = owner[cell];
+						}
+						int nb = nextDist % BUCKETS;
+						if (bucketSize[nb] == bucket[nb].length) {
+							bucket[nb] = Arrays.copyOf(bucket[nb],
+								2 * bucket[nb].length);
+						}
+						bucket[nb][bucketSize[nb]++] = next;
+						queued++;
+					} else if (owner != null && nextDist == dist[next]
+							&& owner[cell] < owner[next]) {
+						owner[next] = owner[cell];
+					}
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the index in the padded arrays of the given position.
+	 * 
+	 * @param row
+	 *            the row in the map
+	 * @param col
+	 *            the column in the map
+	 * @return the index in the padded arrays
+	 */
+	private int index(final int row, final int col) {
+		return (row + 1) * stride + col + 1;
+	}
+}
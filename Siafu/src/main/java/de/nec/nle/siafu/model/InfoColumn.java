@@ -0,0 +1,308 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.Arrays;
+
+import de.nec.nle.siafu.types.BooleanType;
+import de.nec.nle.siafu.types.FloatNumber;
+import de.nec.nle.siafu.types.IntegerNumber;
+import de.nec.nle.siafu.types.Publishable;
+
+/**
+ * The values of one info field for all the agents of an
+ * <code>AgentStore</code>. As long as every value of the field is an
+ * <code>IntegerNumber</code>, a <code>FloatNumber</code> or a
+ * <code>BooleanType</code>, the column keeps them as an array of the
+ * matching primitive, and boxes them again when they are read. The first
+ * value of another type turns it into a column of objects.
+ * 
+ * Columns never change their type or size: the store replaces them with a
+ * copy instead, so that readers holding on to the old one still find every
+ * slot they knew about.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class InfoColumn {
+	/** A column that only holds nulls so far. */
+	private static final int UNTYPED = 0;
+
+	/** A column of <code>IntegerNumber</code> values. */
+	private static final int INTEGER = 1;
+
+	/** A column of <code>FloatNumber</code> values. */
+	private static final int FLOAT = 2;
+
+	/** A column of <code>BooleanType</code> values. */
+	private static final int BOOLEAN = 3;
+
+	/** A column of any kind of value. */
+	private static final int OBJECT = 4;
+
+	/** State of a slot whose agent doesn't have the field yet. */
+	private static final byte UNSET = 0;
+
+	/** State of a slot whose value is null. */
+	private static final byte NULL = 1;
+
+	/** State of a slot with a value. */
+	private static final byte SET = 2;
+
+	/** The smallest integer whose box is shared. */
+	private static final int SHARED_MIN = -128;
+
+	/** The largest integer whose box is shared. */
+	private static final int SHARED_MAX = 1023;
+
+	/** The shared boxes for the integers from SHARED_MIN to SHARED_MAX. */
+	private static final IntegerNumber[] SHARED_INTEGERS =
+			new IntegerNumber[SHARED_MAX - SHARED_MIN + 1];
+
+	/** The shared box for true. */
+	private static final BooleanType TRUE = new BooleanType(true);
+
+	/** The shared box for false. */
+	private static final BooleanType FALSE = new BooleanType(false);
+
+	static {
+		for (int i = 0; i < SHARED_INTEGERS.length; i++) {
+			SHARED_INTEGERS[i] = new IntegerNumber(SHARED_MIN + i);
+		}
+	}
+
+	/** The kind of values in the column. */
+	private final int type;
+
+	/** The state of each slot, for the columns of primitives. */
+	private final byte[] state;
+
+	/** The values of an INTEGER column. */
+	private final int[] ints;
+
+	/** The values of a FLOAT column. */
+	private final double[] floats;
+
+	/** The values of a BOOLEAN column. */
+	private final boolean[] booleans;
+
+	/**
+	 * The values of an OBJECT column, as kept by <code>InfoField.wrap</code>,
+	 * or null for the slots whose agent doesn't have the field yet.
+	 */
+	private final Publishable[] objects;
+
+	/**
+	 * Create an empty column.
+	 * 
+	 * @param capacity
+	 *            the amount of slots
+	 */
+	InfoColumn(final int capacity) {
+		this(UNTYPED, capacity);
+	}
+
+	/**
+	 * Create an empty column of a type.
+	 * 
+	 * @param type
+	 *            the kind of values
+	 * @param capacity
+	 *            the amount of slots
+	 */
+	private InfoColumn(final int type, final int capacity) {
+		this.type = type;
+		this.state = type == OBJECT ? null : new byte[capacity];
+		this.ints = type == INTEGER ? new int[capacity] : null;
+		this.floats = type == FLOAT ? new double[capacity] : null;
+		this.booleans = type == BOOLEAN ? new boolean[capacity] : null;
+		this.objects = type == OBJECT ? new Publishable[capacity] : null;
+	}
+
+	/**
+	 * Create a column of objects.
+	 * 
+	 * @param objects
+	 *            the values
+	 */
+	private InfoColumn(final Publishable[] objects) {
+		this.type = OBJECT;
+		this.state = null;
+		this.ints = null;
+		this.floats = null;
+		this.booleans = null;
+		this.objects = objects;
+	}
+
+	/**
+	 * Get the amount of slots in the column.
+	 * 
+	 * @return the capacity
+	 */
+	int capacity() {
+		return type == OBJECT ? objects.length : state.length;
+	}
+
+	/**
+	 * Get what an agent keeps for the field.
+	 * 
+	 * @param slot
+	 *            the agent's slot
+	 * @return the value as kept by <code>InfoField.wrap</code>, or null if
+	 *         the agent doesn't have the field yet
+	 */
+	Publishable get(final int slot) {
+		if (type == OBJECT) {
+			return objects[slot];
+		} else if (state[slot] == UNSET) {
+			return null;
+		} else if (state[slot] == NULL) {
+			return InfoField.NULL_VALUE;
+		}
+
+		switch (type) {
+		case INTEGER:
+			int i = ints[slot];
+			if (i >= SHARED_MIN && i <= SHARED_MAX) {
+				return SHARED_INTEGERS[i - SHARED_MIN];
+			}
+			return new IntegerNumber(i);
+		case FLOAT:
+			return new FloatNumber(floats[slot]);
+		default:
+			return booleans[slot] ? TRUE : FALSE;
+		}
+	}
+
+	/**
+	 * Set what an agent keeps for the field, if the column can hold it.
+	 * 
+	 * @param slot
+	 *            the agent's slot
+	 * @param kept
+	 *            the value as kept by <code>InfoField.wrap</code>
+	 * @return true if it was set, false if the column needs to be replaced
+	 *         by <code>widen</code> first
+	 */
+	boolean set(final int slot, final Publishable kept) {
+		if (type == OBJECT) {
+			objects[slot] = kept;
+			return true;
+		} else if (kept == null) {
+			state[slot] = UNSET;
+			return true;
+		} else if (kept == InfoField.NULL_VALUE) {
+			state[slot] = NULL;
+			return true;
+		} else if (!holds(kept)) {
+			return false;
+		}
+
+		switch (type) {
+		case INTEGER:
+			ints[slot] = ((IntegerNumber) kept).getNumber();
+			break;
+		case FLOAT:
+			floats[slot] = ((FloatNumber) kept).getNumber();
+			break;
+		default:
+			booleans[slot] = ((BooleanType) kept).getValue().booleanValue();
+			break;
+		}
+		state[slot] = SET;
+		return true;
+	}
+
+	/**
+	 * Check if the column can hold a value.
+	 * 
+	 * @param kept
+	 *            the value as kept by <code>InfoField.wrap</code>
+	 * @return true if <code>set</code> would take it
+	 */
+	boolean holds(final Publishable kept) {
+		return type == OBJECT || kept == null || kept == InfoField.NULL_VALUE
+				|| typeOf(kept) == type;
+	}
+
+	/**
+	 * Copy the column into one that can hold the given value: one of its
+	 * type, if this column has only nulls so far, or one of objects.
+	 * 
+	 * @param kept
+	 *            the value the column couldn't hold
+	 * @return the new column
+	 */
+	InfoColumn widen(final Publishable kept) {
+		int newType = type == UNTYPED ? typeOf(kept) : OBJECT;
+		return copy(newType, capacity());
+	}
+
+	/**
+	 * Copy the column into a bigger one.
+	 * 
+	 * @param capacity
+	 *            the amount of slots of the new column
+	 * @return the new column
+	 */
+	InfoColumn grow(final int capacity) {
+		if (type == OBJECT) {
+			return new InfoColumn(Arrays.copyOf(objects, capacity));
+		}
+		return copy(type, capacity);
+	}
+
+	/**
+	 * Copy the values into a new column.
+	 * 
+	 * @param newType
+	 *            the type of the new column
+	 * @param capacity
+	 *            the amount of slots of the new column
+	 * @return the new column
+	 */
+	private InfoColumn copy(final int newType, final int capacity) {
+		InfoColumn c = new InfoColumn(newType, capacity);
+		int slots = Math.min(capacity, capacity());
+		for (int slot = 0; slot < slots; slot++) {
+			c.set(slot, get(slot));
+		}
+		return c;
+	}
+
+	/**
+	 * Get the column type that holds a value.
+	 * 
+	 * @param kept
+	 *            the value, which isn't null
+	 * @return INTEGER, FLOAT, BOOLEAN or OBJECT
+	 */
+	private static int typeOf(final Publishable kept) {
+		Class<?> c = kept.getClass();
+		if (c == IntegerNumber.class) {
+			return INTEGER;
+		} else if (c == FloatNumber.class) {
+			return FLOAT;
+		} else if (c == BooleanType.class) {
+			return BOOLEAN;
+		}
+		return OBJECT;
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.nec.nle.siafu.types.FlatData;
+import de.nec.nle.siafu.types.Publishable;
+
+/**
+ * A handle on one of the info fields of the agents. Field names are interned
+ * the first time a handle is asked for, and each of them gets a number that
+ * agents use as an index in their info array. Resolving the name once, for
+ * instance in a constant of the agent model, turns every later
+ * <code>get</code> and <code>set</code> into an array access:
+ * 
+ * <pre>
+ * static final InfoField&lt;Text&gt; TYPE =
+ * 		InfoField.named(&quot;Type&quot;, Text.class);
+ * ...
+ * Text type = agent.get(TYPE);
+ * </pre>
+ * 
+ * The numbers are kept for the lifetime of the virtual machine, so handles
+ * remain valid when a new simulation is loaded.
+ * 
+ * @param <T>
+ *            the type of the values of the field
+ * @author Miquel Martin
+ * 
+ */
+public final class InfoField<T extends Publishable> {
+	/**
+	 * What agents keep for info fields that were explicitly set to null, so
+	 * that they can be told apart from fields that were never set.
+	 */
+	static final Publishable NULL_VALUE = new Publishable() {
+		public FlatData flatten() {
+			return null;
+		}
+	};
+
+	/** The number of each interned field name. */
+	private static final ConcurrentHashMap<String, Integer> IDS =
+			new ConcurrentHashMap<String, Integer>();
+
+	/** The interned field names, by number. */
+	private static final ArrayList<String> NAMES = new ArrayList<String>();
+
+	/** The name of the field. */
+	private final String name;
+
+	/** The number of the field. */
+	private final int id;
+
+	/** The type of the field values. */
+	private final Class<T> type;
+
+	/**
+	 * Create a handle.
+	 * 
+	 * @param name
+	 *            the name of the field
+	 * @param id
+	 *            the number of the field
+	 * @param type
+	 *            the type of the field values
+	 */
+	private InfoField(final String name, final int id, final Class<T> type) {
+		this.name = name;
+		this.id = id;
+		this.type = type;
+	}
+
+	/**
+	 * Get a handle on a field whose values can be any Publishable.
+	 * 
+	 * @param name
+	 *            the name of the field
+	 * @return the handle
+	 */
+	public static InfoField<Publishable> named(final String name) {
+		return named(name, Publishable.class);
+	}
+
+	/**
+	 * Get a handle on a field whose values are of the given type.
+	 * 
+	 * @param <T>
+	 *            the type of the values
+	 * @param name
+	 *            the name of the field
+	 * @param type
+	 *            the class of the values
+	 * @return the handle
+	 */
+	public static <T extends Publishable> InfoField<T> named(
+			final String name, final Class<T> type) {
+		return new InfoField<T>(name, intern(name), type);
+	}
+
+	/**
+	 * Get the number of a field name, giving it the next one if it's new.
+	 * 
+	 * @param name
+	 *            the name of the field
+	 * @return the number
+	 */
+	static int intern(final String name) {
+		Integer id = IDS.get(name);
+
+		if (id == null) {
+			synchronized (NAMES) {
+				id = IDS.get(name);
+				if (id == null) {
+					id = NAMES.size();
+					NAMES.add(name);
+					IDS.put(name, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Get the number of a field name without interning it.
+	 * 
+	 * @param name
+	 *            the name of the field
+	 * @return the number, or -1 if no handle on that field was ever asked for
+	 */
+	static int find(final String name) {
+		Integer id = IDS.get(name);
+
+		if (id == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	/**
+	 * Get the name of a field number.
+	 * 
+	 * @param id
+	 *            the number
+	 * @return the field name
+	 */
+	static String nameOf(final int id) {
+		synchronized (NAMES) {
+			return NAMES.get(id);
+		}
+	}
+
+	/**
+	 * Get the amount of interned field names.
+	 * 
+	 * @return the amount of field numbers given so far
+	 */
+	static int count() {
+		synchronized (NAMES) {
+			return NAMES.size();
+		}
+	}
+
+	/**
+	 * Turn a value into what agents keep for it.
+	 * 
+	 * @param value
+	 *            the value, possibly null
+	 * @return the value, or <code>NULL_VALUE</code> for null
+	 */
+	static Publishable wrap(final Publishable value) {
+		if (value == null) {
+			return NULL_VALUE;
+		}
+		return value;
+	}
+
+	/**
+	 * Turn what agents keep for a field back into its value.
+	 * 
+	 * @param kept
+	 *            what the agent keeps, which can't be null
+	 * @return the value, possibly null
+	 */
+	static Publishable unwrap(final Publishable kept) {
+		if (kept == NULL_VALUE) {
+			return null;
+		}
+		return kept;
+	}
+
+	/**
+	 * Get the name of the field.
+	 * 
+	 * @return the field name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the number of the field.
+	 * 
+	 * @return the number, which agents use as an index
+	 */
+	int getId() {
+		return id;
+	}
+
+	/**
+	 * Get the type of the field values.
+	 * 
+	 * @return the class of the values
+	 */
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * Handles are equal if they refer to the same field, whatever their
+	 * type.
+	 * 
+	 * @param o
+	 *            the object to compare to
+	 * @return true if o is a handle on the same field
+	 */
+	public boolean equals(final Object o) {
+		return o instanceof InfoField && ((InfoField<?>) o).id == id;
+	}
+
+	/**
+	 * Get the hash code, which is the field number.
+	 * 
+	 * @return the hash code
+	 */
+	public int hashCode() {
+		return id;
+	}
+
+	/**
+	 * Turn the handle to a String by returning the field name.
+	 * 
+	 * @return the field name
+	 */
+	public String toString() {
+		return name;
+	}
+}
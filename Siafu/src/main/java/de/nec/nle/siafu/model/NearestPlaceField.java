@@ -0,0 +1,208 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * For every point in the map, the walking distance to the nearest of a list
+ * of places, and which one of them it is. It is calculated with a single
+ * flood that starts from all the places at once, so that finding the
+ * nearest place of a type doesn't need the gradient of each of them.
+ * 
+ * The field refers to the places by their position in the list it was
+ * calculated for, so the same list, in the same order, has to be used to
+ * read it. <code>keyFor</code> yields a key that changes whenever the
+ * positions in the list, or the map size, do. Since fields are persisted
+ * across runs, they also keep the positions they were calculated for, which
+ * <code>matches</code> checks.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public class NearestPlaceField implements Serializable {
+	/** Serializable objects get an ID. */
+	private static final long serialVersionUID = 4695270351418962641L;
+
+	/** The map height. */
+	private int h;
+
+	/** The map width. */
+	private int w;
+
+	/** The positions of the places, as row * w + col, in list order. */
+	private int[] sources;
+
+	/** The distance to the nearest place, row after row. */
+	private int[] distance;
+
+	/** The index of the nearest place in the list, row after row. */
+	private int[] nearest;
+
+	/**
+	 * Calculate the field for the given places.
+	 * 
+	 * @param places
+	 *            the places, whose order breaks the ties between places at the
+	 *            same distance
+	 * @param world
+	 *            the world the places are in
+	 */
+	public NearestPlaceField(final List<Place> places, final World world) {
+		this.h = world.getHeight();
+		this.w = world.getWidth();
+		this.distance = new int[h * w];
+		this.nearest = new int[h * w];
+		this.sources = cellsOf(places, w);
+
+		Position[] positions = new Position[places.size()];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = places.get(i).getPos();
+		}
+
+		world.getGradientCalculator().calculateNearest(
+			Arrays.asList(positions), distance, nearest);
+	}
+
+	/**
+	 * Find out if the field was calculated for the given places, in the
+	 * same order, and for a map of the given world's size.
+	 * 
+	 * @param places
+	 *            the places
+	 * @param world
+	 *            the world the places are in
+	 * @return true if the field can be used for those places
+	 */
+	public boolean matches(final List<Place> places, final World world) {
+		return h == world.getHeight() && w == world.getWidth()
+				&& Arrays.equals(sources, cellsOf(places, w));
+	}
+
+	/**
+	 * Get the positions of the places as cell numbers.
+	 * 
+	 * @param places
+	 *            the places
+	 * @param width
+	 *            the map width
+	 * @return row * width + col for each place, in list order
+	 */
+	private static int[] cellsOf(final List<Place> places, final int width) {
+		int[] cells = new int[places.size()];
+		for (int i = 0; i < cells.length; i++) {
+			Position pos = places.get(i).getPos();
+			cells[i] = pos.getRow() * width + pos.getCol();
+		}
+		return cells;
+	}
+
+	/**
+	 * Get the key under which to cache the field for the given places of a
+	 * type. It holds a SHA-1 digest of the map size and of the positions of
+	 * the places, in their order.
+	 * 
+	 * @param type
+	 *            the type of the places
+	 * @param places
+	 *            the places of that type
+	 * @param world
+	 *            the world the places are in
+	 * @return the key for the field
+	 */
+	public static String keyFor(final String type, final List<Place> places,
+			final World world) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 is not available", e);
+		}
+
+		update(digest, world.getHeight());
+		update(digest, world.getWidth());
+		for (Place p : places) {
+			update(digest, p.getPos().getRow());
+			update(digest, p.getPos().getCol());
+		}
+
+		StringBuilder key = new StringBuilder("nearest-");
+		key.append(type).append('-').append(places.size()).append('-');
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16));
+			key.append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Add an int to a digest, most significant byte first.
+	 * 
+	 * @param digest
+	 *            the digest
+	 * @param value
+	 *            the int
+	 */
+	private static void update(final MessageDigest digest, final int value) {
+		digest.update((byte) (value >>> 24));
+		digest.update((byte) (value >>> 16));
+		digest.update((byte) (value >>> 8));
+		digest.update((byte) value);
+	}
+
+	/**
+	 * Get the index in the list of the place nearest to pos.
+	 * 
+	 * @param pos
+	 *            the position to check
+	 * @return the index of the nearest place, or -1 if no place can be
+	 *         reached from pos
+	 */
+	public int nearestFrom(final Position pos) {
+		return nearest[pos.getRow() * w + pos.getCol()];
+	}
+
+	/**
+	 * Get the distance from pos to the nearest place.
+	 * 
+	 * @param pos
+	 *            the position to check
+	 * @return the distance in simulation grid points, or
+	 *         <code>Gradient.UNREACHABLE</code> if no place can be reached
+	 *         from pos
+	 */
+	public int distanceFrom(final Position pos) {
+		return distance[pos.getRow() * w + pos.getCol()];
+	}
+
+	/**
+	 * Get the amount of memory taken by the field.
+	 * 
+	 * @return the size of the field in bytes
+	 */
+	public long getSizeInBytes() {
+		return (long) distance.length * 4 + (long) nearest.length * 4
+				+ (long) sources.length * 4;
+	}
+}
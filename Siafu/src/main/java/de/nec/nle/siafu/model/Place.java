@@ -20,6 +20,8 @@
 package de.nec.nle.siafu.model;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -28,14 +30,14 @@ import de.nec.nle.siafu.control.Controller;
 import de.nec.nle.siafu.exceptions.InfoUndefinedException;
 import de.nec.nle.siafu.exceptions.InitializationRequiredException;
 import de.nec.nle.siafu.exceptions.PositionOnAWallException;
+import de.nec.nle.siafu.exceptions.PositionUnreachableException;
 import de.nec.nle.siafu.exceptions.UnknownContextException;
 import de.nec.nle.siafu.graphics.Overlayable;
 import de.nec.nle.siafu.types.FlatData;
 import de.nec.nle.siafu.types.Publishable;
 import de.nec.nle.siafu.types.Text;
 import de.nec.nle.siafu.types.TypeUtils;
-import de.nec.nle.siafu.utils.PersistentCachedMap;
-import de.nec.nle.siafu.utils.SiafuGradientCache;
+import de.nec.nle.siafu.utils.ConcurrentGradientCache;
 
 /**
  * Places define a position in the simulated world. They can have their own
@@ -55,7 +57,7 @@ import de.nec.nle.siafu.utils.SiafuGradientCache;
  */
 public class Place implements Trackable, Publishable, Overlayable {
 	/** The gradients that lead agents to each pace. */
-	private static PersistentCachedMap gradients;
+	private static ConcurrentGradientCache gradients;
 
 	/** The simulation's world. */
 	private static World world;
@@ -72,10 +74,40 @@ public class Place implements Trackable, Publishable, Overlayable {
 	/** The position of the place. */
 	private Position pos;
 
+	/**
+	 * The key of the place's gradient in the gradient cache, kept so that
+	 * following the gradient doesn't build a String on every step.
+	 */
+	private String gradientKey;
+
+	/**
+	 * The place's gradient, once it is mapped from the gradient file, so
+	 * that following it doesn't go through the gradient cache on every step.
+	 * Gradients in the heap aren't kept here, so that the cache can still
+	 * limit how much of it they take.
+	 */
+	private volatile Gradient gradient;
+
+	/** The key of the place's sector field in the gradient cache. */
+	private String sectorKey;
+
 	/**
 	 * If this is a temporary place (e.g. created by moving an agent using the
-	 * GUI), the distance gradient to the place is not stored in the
-	 * persistent cached maps, but rather kept in this non persisted variable.
+	 * GUI), the route that leads to it from the relevant position. Agents
+	 * that find themselves off the route get a new one from where they are.
+	 */
+	private volatile Route route;
+
+	/**
+	 * The position a temporary place was created for, that is, where its
+	 * route started.
+	 */
+	private Position relevantPosition;
+
+	/**
+	 * If this is a temporary place, the partial distance gradient to it. It
+	 * is not stored in the persistent cached maps, and it's only calculated
+	 * if someone asks for it, since agents follow the route instead.
 	 */
 	private Gradient temporaryGradient;
 
@@ -91,7 +123,7 @@ public class Place implements Trackable, Publishable, Overlayable {
 	private SortedMap<String, Publishable> info;
 
 	/**
-	 * Create the SiafuGradientCache that will hold the simulation places
+	 * Create the ConcurrentGradientCache that will hold the simulation places
 	 * gradients. This must be run before you instantiate any Place.
 	 * 
 	 * @param newWorld the world to which you initialize the places
@@ -100,20 +132,123 @@ public class Place implements Trackable, Publishable, Overlayable {
 		Place.world = newWorld;
 		// Allow the old value to be garbage
 		// collected before the next is created
+		if (gradients != null) {
+			gradients.close();
+		}
 		gradients = null;
 
 		gradients =
-				new SiafuGradientCache(Controller.DEFAULT_GRADIENT_PATH,
+				new ConcurrentGradientCache(Controller.DEFAULT_GRADIENT_PATH,
 						world.getWorldName(), World.getCacheSize(),
-						World.shouldPrefillCache());
+						World.shouldPrefillCache(), world.getHeight(),
+						world.getWidth());
+		gradients.setMaxCacheBytes(World.getCacheMaxBytes());
+	}
+
+	/**
+	 * Get the cache holding the place gradients, for instance to check its
+	 * hit, miss and eviction counters.
+	 * 
+	 * @return the gradient cache
+	 */
+	public static ConcurrentGradientCache getGradientCache() {
+		return gradients;
+	}
+
+	/**
+	 * Find out if the gradient towards the given position is already
+	 * calculated and stored in the gradient cache.
+	 * 
+	 * @param pos the center of the gradient
+	 * @return true if the gradient is in the cache
+	 */
+	static boolean isGradientCached(final Position pos) {
+		return gradients.containsKey(pos.toString());
+	}
+
+	/**
+	 * Store a full map gradient in the gradient cache, so that the places at
+	 * its center don't need to calculate it.
+	 * 
+	 * @param pos the center of the gradient
+	 * @param gradient the gradient towards pos
+	 */
+	static void cacheGradient(final Position pos, final Gradient gradient) {
+		gradients.put(pos, gradient);
+	}
+
+	/**
+	 * Get the field that tells which of the given places of a type is the
+	 * nearest from any point of the map. It's kept in the gradient cache, so
+	 * it's only calculated once for each set of places. A cached field that
+	 * turns out to be for other places is not used.
+	 * 
+	 * @param type the type of the places
+	 * @param places the places of that type
+	 * @return the nearest place field for those places
+	 */
+	static NearestPlaceField getNearestPlaceField(final String type,
+			final List<Place> places) {
+		NearestPlaceField field =
+				(NearestPlaceField) gradients.getOrCompute(NearestPlaceField
+						.keyFor(type, places, world),
+					new Callable<NearestPlaceField>() {
+						public NearestPlaceField call() {
+							return new NearestPlaceField(places, world);
+						}
+					});
+		if (!field.matches(places, world)) {
+			field = new NearestPlaceField(places, world);
+		}
+		return field;
+	}
+
+	/**
+	 * Get the sector field that leads to this place. It's kept in the
+	 * gradient cache, so it's only calculated once.
+	 * 
+	 * @param router the router of the world
+	 * @return the sector field
+	 */
+	private SectorField getSectorField(final SectorRouter router) {
+		if (sectorKey == null) {
+			sectorKey = router.keyFor(pos);
+		}
+		return (SectorField) gradients.getOrCompute(sectorKey,
+			new Callable<SectorField>() {
+				public SectorField call() {
+					return router.fieldTo(pos);
+				}
+			});
+	}
+
+	/**
+	 * Make sure the full map gradient towards pos is in the gradient cache.
+	 * If several threads create places at the same position, the gradient is
+	 * calculated only once. Nothing is done if places are routed to through
+	 * sectors.
+	 * 
+	 * @param pos the center of the gradient
+	 */
+	private static void ensureGradient(final Position pos) {
+		if (world.getSectorRouter() != null) {
+			// Agents are routed through sectors, calculate it if it's needed
+			return;
+		}
+		if (!gradients.containsKey(pos.toString())) {
+			gradients.getOrCompute(pos.toString(), new Callable<Gradient>() {
+				public Gradient call() {
+					return new Gradient(pos, world);
+				}
+			});
+		}
 	}
 
 	/**
 	 * Create a Place. If relevantPosition is not null, we do not calculate a
 	 * full distance gradient (i.e. the distance from anywhere in the map to
-	 * this point), but a partial one, which stops calculating the moment it
-	 * reaches relevantPosition. The place's name is created by concatenating
-	 * the type and the position.
+	 * this point), but only a route from relevantPosition to it. The place's
+	 * name is created by concatenating the type and the position.
 	 * 
 	 * @param type the type of place (e.g. office, airport, restroom)
 	 * @param pos the position of the place
@@ -178,14 +313,16 @@ public class Place implements Trackable, Publishable, Overlayable {
 		this.info = new TreeMap<String, Publishable>();
 		this.type = type;
 		this.pos = pos;
+		this.gradientKey = pos.toString();
 		this.name = name;
 
 		world.addPlaceType(type);
 
 		if (relevantPosition != null) {
-			temporaryGradient = new Gradient(pos, world, relevantPosition);
-		} else if (!gradients.containsKey(pos.toString())) {
-			gradients.put(pos, new Gradient(pos, world));
+			this.relevantPosition = relevantPosition;
+			this.route = new Route(relevantPosition, pos, world);
+		} else {
+			ensureGradient(pos);
 		}
 	}
 
@@ -228,12 +365,11 @@ public class Place implements Trackable, Publishable, Overlayable {
 		double lat = new Double(part[latField]);
 		double lon = new Double(part[lonField]);
 		this.pos = new Position(lat, lon);
+		this.gradientKey = pos.toString();
 		
 		this.info = new TreeMap<String, Publishable>(); 
 		world.addPlaceType(type); 
-		if (!gradients.containsKey(pos.toString())) { 
-		gradients.put(pos, new Gradient(pos, world));
-		}
+		ensureGradient(pos);
 	}
 
 	/**
@@ -261,6 +397,7 @@ public class Place implements Trackable, Publishable, Overlayable {
 	 */
 	public void setName(final String name) {
 		this.name = name;
+		world.placeRenamed();
 	}
 
 	/**
@@ -349,15 +486,42 @@ public class Place implements Trackable, Publishable, Overlayable {
 	 * Get the gradient to a place. The Gradient is a matrix with the distance
 	 * from each map position to a central point. An agent can move towards
 	 * that point by following the biggest descent all the way to the center.
+	 * If places are routed to through sectors, the gradient is only
+	 * calculated when it's first asked for.
 	 * 
 	 * @return the gradient for this place
 	 */
 	public Gradient getGradient() {
-		if (temporaryGradient != null) {
-			return temporaryGradient;
-		} else {
-			return (Gradient) gradients.get(pos.toString());
+		if (route != null) {
+			return getTemporaryGradient();
+		}
+
+		Gradient g = gradient;
+		if (g == null) {
+			g = (Gradient) gradients.getOrCompute(gradientKey,
+				new Callable<Gradient>() {
+					public Gradient call() {
+						return new Gradient(pos, world);
+					}
+				});
+			if (g.isMapped()) {
+				gradient = g;
+			}
+		}
+		return g;
+	}
+
+	/**
+	 * Get the partial gradient to a temporary place, calculating it the
+	 * first time.
+	 * 
+	 * @return the gradient for this temporary place
+	 */
+	private synchronized Gradient getTemporaryGradient() {
+		if (temporaryGradient == null) {
+			temporaryGradient = new Gradient(pos, world, relevantPosition);
 		}
+		return temporaryGradient;
 	}
 
 	/**
@@ -369,7 +533,7 @@ public class Place implements Trackable, Publishable, Overlayable {
 	 *         0 is North, and 7 is North-West, or -1 if we are there
 	 */
 	public int pointFrom(final Position targetPos) {
-		return getGradient().pointFrom(targetPos);
+		return pointFrom(targetPos, -1);
 	}
 
 	/**
@@ -379,6 +543,9 @@ public class Place implements Trackable, Publishable, Overlayable {
 	 * ones, it is ignored. This makes the agent walk a bit less drunken,
 	 * turning only when they really need to.
 	 * 
+	 * Temporary places follow their route instead, so the preferred direction
+	 * makes no difference for them.
+	 * 
 	 * @param targetPos the position we intend to reach
 	 * @param preferedDir the preferred direction, if more than one is
 	 *            possible and this one is one of them
@@ -386,18 +553,73 @@ public class Place implements Trackable, Publishable, Overlayable {
 	 *         0 is North, and 7 is North-West, or -1 if we are there
 	 */
 	public int pointFrom(final Position targetPos, final int preferedDir) {
+		if (route != null) {
+			return routeFrom(targetPos).pointFrom(targetPos);
+		}
+
+		SectorRouter router = world.getSectorRouter();
+		if (router != null) {
+			int dir =
+					router.pointFrom(getSectorField(router), targetPos,
+						preferedDir);
+			if (dir != SectorRouter.NO_ROUTE) {
+				return dir;
+			}
+		}
 		return getGradient().pointFrom(targetPos, preferedDir);
 	}
 
+	/**
+	 * Get a route to this temporary place that goes through the given
+	 * position, finding a new one if the current route doesn't.
+	 * 
+	 * @param targetPos the position the route has to go through
+	 * @return the route
+	 * @throws PositionUnreachableException if this place can't be reached
+	 *             from targetPos
+	 */
+	private Route routeFrom(final Position targetPos) {
+		Route current = route;
+
+		if (current.pointFrom(targetPos) == Route.OFF_ROUTE) {
+			current = new Route(targetPos, pos, world);
+			route = current;
+		}
+		return current;
+	}
+
 	/**
 	 * Return the distance from targetPos to this position. This distance is
 	 * not calibrated to the map. May be it should...
 	 * 
 	 * @param targetPos the position we want to calculate the distance to
 	 * @return the distance, considering that one pixel is "10" and the
-	 *         diagonal step is 14.
+	 *         diagonal step is 14, or <code>Gradient.UNREACHABLE</code> if
+	 *         this place can't be reached from targetPos.
 	 */
 	public int distanceFrom(final Position targetPos) {
+		Route current = route;
+		if (current != null) {
+			int distance = current.distanceFrom(targetPos);
+			if (distance != Route.OFF_ROUTE) {
+				return distance;
+			}
+			// Only a query, so the agent's route is left as it is
+			try {
+				return new Route(targetPos, pos, world).distanceFrom(targetPos);
+			} catch (PositionUnreachableException e) {
+				return Gradient.UNREACHABLE;
+			}
+		}
+
+		SectorRouter router = world.getSectorRouter();
+		if (router != null) {
+			int distance =
+					router.distanceFrom(getSectorField(router), targetPos);
+			if (distance != Gradient.UNREACHABLE) {
+				return distance;
+			}
+		}
 		return getGradient().distanceFrom(targetPos);
 	}
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lookup tables for the places of the world, by name, by position and by
+ * type. When two places share a name or a position, the first one in the
+ * list wins, just like a walk through the list would find.
+ * 
+ * The index is a snapshot of the list it was built from, and is never
+ * modified afterwards, so it can be read from any thread. The world builds
+ * a new one when places are added or renamed. The only thing added later
+ * on is the nearest place field of each type, the first time it is asked
+ * for, so that further queries don't have to look it up again.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class PlaceIndex {
+	/** The places by name. */
+	private final Map<String, Place> byName = new HashMap<String, Place>();
+
+	/** The places by position. */
+	private final Map<Position, Place> byPosition =
+			new HashMap<Position, Place>();
+
+	/** The places by type, each list in the order of the place list. */
+	private final Map<String, List<Place>> byType =
+			new HashMap<String, List<Place>>();
+
+	/** The nearest place fields asked for so far, by type. */
+	private final ConcurrentMap<String, NearestPlaceField> nearestFields =
+			new ConcurrentHashMap<String, NearestPlaceField>();
+
+	/**
+	 * Index the given places.
+	 * 
+	 * @param places
+	 *            the places of the world
+	 */
+	PlaceIndex(final List<Place> places) {
+		Map<String, List<Place>> types = new HashMap<String, List<Place>>();
+
+		for (Place p : places) {
+			if (!byName.containsKey(p.getName())) {
+				byName.put(p.getName(), p);
+			}
+
+			if (!byPosition.containsKey(p.getPos())) {
+				byPosition.put(p.getPos(), p);
+			}
+
+			List<Place> typed = types.get(p.getType());
+			if (typed == null) {
+				typed = new ArrayList<Place>();
+				types.put(p.getType(), typed);
+			}
+			typed.add(p);
+		}
+
+		for (Map.Entry<String, List<Place>> e : types.entrySet()) {
+			byType.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+		}
+	}
+
+	/**
+	 * Get the place with the given name.
+	 * 
+	 * @param name
+	 *            the place's name
+	 * @return the place, or null if there is none
+	 */
+	Place getByName(final String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * Get the place at the given position.
+	 * 
+	 * @param pos
+	 *            the position of the place
+	 * @return the place, or null if there is none
+	 */
+	Place getByPosition(final Position pos) {
+		return byPosition.get(pos);
+	}
+
+	/**
+	 * Get the places of the given type.
+	 * 
+	 * @param type
+	 *            the place type
+	 * @return an unmodifiable list with the places, which might be empty
+	 */
+	List<Place> getByType(final String type) {
+		List<Place> typed = byType.get(type);
+
+		if (typed == null) {
+			return Collections.emptyList();
+		}
+		return typed;
+	}
+
+	/**
+	 * Get the nearest place field of the places of a type. It's calculated,
+	 * or taken from the gradient cache, the first time, and kept for as long
+	 * as this index.
+	 * 
+	 * @param type
+	 *            the type, which has at least one place
+	 * @return the nearest place field
+	 */
+	NearestPlaceField getNearestPlaceField(final String type) {
+		NearestPlaceField field = nearestFields.get(type);
+
+		if (field == null) {
+			field = Place.getNearestPlaceField(type, getByType(type));
+			nearestFields.putIfAbsent(type, field);
+		}
+		return field;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The world's list of places, which counts its changes so that the indexes
+ * built from it can tell when they're out of date. Besides the structural
+ * changes the list already counts, replacing a place with
+ * <code>set</code> counts as a change too.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class PlaceList extends ArrayList<Place> {
+	/** Default serial version UID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The amount of places replaced with <code>set</code>. */
+	private int replacements;
+
+	/**
+	 * Create a list with the given places.
+	 * 
+	 * @param places
+	 *            the places
+	 */
+	PlaceList(final Collection<Place> places) {
+		super(places);
+	}
+
+	/**
+	 * Replace a place.
+	 * 
+	 * @param index
+	 *            the index of the place to replace
+	 * @param place
+	 *            the new place
+	 * @return the place that was replaced
+	 */
+	public Place set(final int index, final Place place) {
+		Place old = super.set(index, place);
+		replacements++;
+		return old;
+	}
+
+	/**
+	 * Get a number that changes whenever a place is added, removed or
+	 * replaced.
+	 * 
+	 * @return the number of changes
+	 */
+	int changes() {
+		return modCount + replacements;
+	}
+}
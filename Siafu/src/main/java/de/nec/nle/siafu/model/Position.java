@@ -51,6 +51,9 @@ public class Position implements Serializable, Comparable<Position>,
 	 */
 	private static final int NEAR_DISTANCE = 15;
 
+	/** How far the row is shifted when calculating the hashcode. */
+	private static final int HASH_ROW_SHIFT = 16;
+
 	/** Default serial version UID. */
 	private static final long serialVersionUID = 1L;
 
@@ -69,6 +72,15 @@ public class Position implements Serializable, Comparable<Position>,
 	/** The simulation's world. */
 	private static World world;
 
+	/** The walls of the simulation's world. */
+	private static WallMap walls;
+
+	/**
+	 * What <code>tryMove</code> returns if the move would end on a wall or
+	 * out of the map.
+	 */
+	public static final int BLOCKED = WallMap.BLOCKED;
+
 	/**
 	 * The amount of possible directions.
 	 */
@@ -114,6 +126,7 @@ public class Position implements Serializable, Comparable<Position>,
 			throw new RuntimeException("Null world received!");
 		}
 		world = worldObj;
+		walls = world.getWallMap();
 		width = world.getWidth();
 		height = world.getHeight();
 		coordinateTools = new CoordinateTools(height, width, topRight,
@@ -223,13 +236,24 @@ public class Position implements Serializable, Comparable<Position>,
 	}
 
 	/**
-	 * Calculate the position's hashcode, which is the toString() output's hash
-	 * code.
+	 * Get the row and column of the position packed in a long, the row in
+	 * the upper half. Two positions are equal if and only if their keys are.
 	 * 
-	 * @return the hashcode of the toString() output
+	 * @return the position's key
+	 */
+	public long getKey() {
+		return ((long) i << Integer.SIZE) | j;
+	}
+
+	/**
+	 * Calculate the position's hashcode out of its row and column, without
+	 * building any String. Positions on maps narrower than 65536 columns all
+	 * get a different hashcode.
+	 * 
+	 * @return the hashcode
 	 */
 	public int hashCode() {
-		return toString().hashCode();
+		return (i << HASH_ROW_SHIFT) ^ j;
 	}
 
 	/**
@@ -258,6 +282,56 @@ public class Position implements Serializable, Comparable<Position>,
 		return p;
 	}
 
+	/**
+	 * Find out where a step in the direction given by dir would end, without
+	 * creating any object or throwing any exception. This is meant for code
+	 * that tries several directions before moving, like the agents do.
+	 * 
+	 * @param rawDir
+	 *            the direction of the step. it will be normalized to modulo 8
+	 * @return the cell where the step ends, which <code>fromCell</code>
+	 *         turns into a Position, or <code>BLOCKED</code> if it ends on a
+	 *         wall or out of the map
+	 */
+	public int tryMove(final int rawDir) {
+		int dir = ((rawDir % DIRECTIONS) + DIRECTIONS) % DIRECTIONS;
+
+		return walls.tryMove(walls.cellOf(i, j), dir);
+	}
+
+	/**
+	 * Create the position of a cell returned by <code>tryMove</code>.
+	 * 
+	 * @param cell
+	 *            the cell, which can't be <code>BLOCKED</code>
+	 * @return the position of the cell
+	 */
+	public static Position fromCell(final int cell) {
+		return new Position(walls.rowOf(cell), walls.colOf(cell));
+	}
+
+	/**
+	 * Get the row of a cell returned by <code>tryMove</code>.
+	 * 
+	 * @param cell
+	 *            the cell
+	 * @return the row
+	 */
+	static int rowOf(final int cell) {
+		return walls.rowOf(cell);
+	}
+
+	/**
+	 * Get the column of a cell returned by <code>tryMove</code>.
+	 * 
+	 * @param cell
+	 *            the cell
+	 * @return the column
+	 */
+	static int colOf(final int cell) {
+		return walls.colOf(cell);
+	}
+
 	/**
 	 * Equals method which returns true if the positions have the same row and
 	 * column.
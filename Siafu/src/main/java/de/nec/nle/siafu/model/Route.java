@@ -0,0 +1,153 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.Arrays;
+
+/**
+ * A walk from one position to another, used by temporary places instead of a
+ * gradient. Temporary places are only ever walked to from the position they
+ * were created for, so rather than flooding the map, a single shortest walk
+ * is found with A*.
+ * 
+ * The walk is kept as its starting point and the sequence of directions to
+ * follow. To find out where to go from any position of the walk, the
+ * positions are also kept sorted, along with the step at which the walk goes
+ * through each of them. Routes are never modified, so they can be followed
+ * from any thread.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class Route {
+	/** What <code>pointFrom</code> returns for positions off the route. */
+	static final int OFF_ROUTE = -2;
+
+	/** Distance between two horizontallly or vertically adjacent points. */
+	private static final int STRAIGHT_DISTANCE = 10;
+
+	/** Distance between two diagonally adjacent points. */
+	private static final int DIAGONAL_DISTANCE = 14;
+
+	/** The row and column change of each direction, 0 being North. */
+	private static final int[][] COMPASS = new int[][] { { -1, 0 },
+			{ -1, 1 }, { 0, 1 }, { 1, 1 }, { 1, 0 }, { 1, -1 }, { 0, -1 },
+			{ -1, -1 } };
+
+	/** The map width. */
+	private final int w;
+
+	/** The position the route leads to. */
+	private final int goal;
+
+	/** The direction to follow at each step. */
+	private final byte[] dirs;
+
+	/** The positions of the route, as row * w + col, sorted. */
+	private final int[] sortedCells;
+
+	/** The step at which the route goes through each of sortedCells. */
+	private final int[] stepOf;
+
+	/**
+	 * Find a route between two positions.
+	 * 
+	 * @param from
+	 *            the position where the route starts
+	 * @param to
+	 *            the position where the route ends
+	 * @param world
+	 *            the world in which to walk
+	 * @throws PositionUnreachableException
+	 *             if there is no way from one position to the other
+	 */
+	Route(final Position from, final Position to, final World world) {
+		this.w = world.getWidth();
+		this.goal = to.getRow() * w + to.getCol();
+		this.dirs = world.getGradientCalculator().findRoute(from, to);
+
+		// Sort the cells together with their step, packed in a long
+		long[] packed = new long[dirs.length];
+		int row = from.getRow();
+		int col = from.getCol();
+
+		for (int step = 0; step < dirs.length; step++) {
+			packed[step] = ((long) (row * w + col) << 32) | step;
+			row += COMPASS[dirs[step]][0];
+			col += COMPASS[dirs[step]][1];
+		}
+		Arrays.sort(packed);
+
+		sortedCells = new int[packed.length];
+		stepOf = new int[packed.length];
+		for (int k = 0; k < packed.length; k++) {
+			sortedCells[k] = (int) (packed[k] >>> 32);
+			stepOf[k] = (int) packed[k];
+		}
+	}
+
+	/**
+	 * Get the direction to follow from a position of the route.
+	 * 
+	 * @param pos
+	 *            the position
+	 * @return the direction, from 0 (North) to 7 (North-West), -1 if pos is
+	 *         the end of the route, or <code>OFF_ROUTE</code> if the route
+	 *         doesn't go through pos
+	 */
+	int pointFrom(final Position pos) {
+		int cell = pos.getRow() * w + pos.getCol();
+
+		if (cell == goal) {
+			return -1;
+		}
+
+		int k = Arrays.binarySearch(sortedCells, cell);
+		return (k < 0) ? OFF_ROUTE : dirs[stepOf[k]];
+	}
+
+	/**
+	 * Get the distance left to walk from a position of the route.
+	 * 
+	 * @param pos
+	 *            the position
+	 * @return the distance in simulation grid points, or
+	 *         <code>OFF_ROUTE</code> if the route doesn't go through pos
+	 */
+	int distanceFrom(final Position pos) {
+		int cell = pos.getRow() * w + pos.getCol();
+
+		if (cell == goal) {
+			return 0;
+		}
+
+		int k = Arrays.binarySearch(sortedCells, cell);
+		if (k < 0) {
+			return OFF_ROUTE;
+		}
+
+		int distance = 0;
+		for (int step = stepOf[k]; step < dirs.length; step++) {
+			distance += (dirs[step] % 2 == 0) ? STRAIGHT_DISTANCE
+					: DIAGONAL_DISTANCE;
+		}
+		return distance;
+	}
+}
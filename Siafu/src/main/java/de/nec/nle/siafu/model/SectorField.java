@@ -0,0 +1,99 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.io.Serializable;
+
+/**
+ * What the <code>SectorRouter</code> knows about the way to a place: the
+ * walking distance to it from every portal in the map, and from every point
+ * of the sector the place is in. It takes a few bytes per portal, instead of
+ * the few bytes per point in the map a gradient takes, so it can be kept in
+ * the gradient cache for every place of a large map.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public final class SectorField implements Serializable {
+	/** Serializable objects get an ID. */
+	private static final long serialVersionUID = 4725838106620591473L;
+
+	/** The sector the place is in. */
+	private final int sector;
+
+	/** The distance to the place from the points of its sector. */
+	private final char[] local;
+
+	/** The distance to the place from each portal. */
+	private final int[] portalDistance;
+
+	/**
+	 * Create the field.
+	 * 
+	 * @param sector
+	 *            the sector the place is in
+	 * @param local
+	 *            the distance to the place from the points of its sector
+	 * @param portalDistance
+	 *            the distance to the place from each portal
+	 */
+	SectorField(final int sector, final char[] local,
+			final int[] portalDistance) {
+		this.sector = sector;
+		this.local = local;
+		this.portalDistance = portalDistance;
+	}
+
+	/**
+	 * Get the sector the place is in.
+	 * 
+	 * @return the sector number
+	 */
+	int getSector() {
+		return sector;
+	}
+
+	/**
+	 * Get the distance to the place from the points of its sector.
+	 * 
+	 * @return the distances, indexed as the sector tables of the router
+	 */
+	char[] getLocal() {
+		return local;
+	}
+
+	/**
+	 * Get the distance to the place from each portal.
+	 * 
+	 * @return the distances, indexed by portal
+	 */
+	int[] getPortalDistance() {
+		return portalDistance;
+	}
+
+	/**
+	 * Get the amount of memory the field takes.
+	 * 
+	 * @return the approximate size in bytes
+	 */
+	public long getSizeInBytes() {
+		return 2L * local.length + 4L * portalDistance.length;
+	}
+}
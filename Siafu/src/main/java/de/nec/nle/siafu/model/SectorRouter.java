@@ -0,0 +1,574 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A routing alternative to place gradients for very large maps. The walls
+ * map is cut in square sectors, and each stretch of open border between two
+ * sectors gets a pair of portals, one on each side. When the router is
+ * created, it calculates the distance from each portal to every point of its
+ * sector, without leaving it.
+ * 
+ * The way to a place is then a <code>SectorField</code>: the distance from
+ * every portal to the place, found by walking the portal graph, and the
+ * distance from every point in the place's own sector. The distance from any
+ * other point is the best of going to one of the portals of its sector and
+ * following the portal graph from there. Walking downhill on that distance
+ * always gets to the place, although not always by the shortest way, since
+ * sectors are only entered and left through their portals.
+ * 
+ * Points from which no portal leads to the place, which can happen if two
+ * sectors only touch diagonally, have no distance, and the place has to
+ * fall back to its gradient.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class SectorRouter {
+	/** What <code>pointFrom</code> returns if there's no way to the place. */
+	static final int NO_ROUTE = -2;
+
+	/**
+	 * The largest sector side, above which the distances within a sector
+	 * might not fit in a char.
+	 */
+	static final int MAX_SECTOR_SIZE = 80;
+
+	/** Distance between two horizontallly or vertically adjacent points. */
+	private static final int STRAIGHT_DISTANCE = 10;
+
+	/** Distance between two diagonally adjacent points. */
+	private static final int DIAGONAL_DISTANCE = 14;
+
+	/** The distance in the sector tables for points that can't be reached. */
+	private static final char NO_PATH = Character.MAX_VALUE;
+
+	/**
+	 * Stretches of border at least this long get a portal at each end
+	 * instead of one in the middle.
+	 */
+	private static final int LONG_ENTRANCE = 6;
+
+	/** The row and column change of each direction, 0 being North. */
+	private static final int[][] COMPASS = new int[][] { { -1, 0 },
+			{ -1, 1 }, { 0, 1 }, { 1, 1 }, { 1, 0 }, { 1, -1 }, { 0, -1 },
+			{ -1, -1 } };
+
+	/** The world's walls. */
+	private final WallMap walls;
+
+	/** The map height. */
+	private final int h;
+
+	/** The map width. */
+	private final int w;
+
+	/** The side of the sectors. */
+	private final int size;
+
+	/** The amount of sector columns. */
+	private final int sectorCols;
+
+	/**
+	 * The row of each portal. Portals come in pairs, 2n and 2n + 1 being the
+	 * two sides of the same stretch of border.
+	 */
+	private final int[] portalRow;
+
+	/** The column of each portal. */
+	private final int[] portalCol;
+
+	/** The sector of each portal. */
+	private final int[] portalSector;
+
+	/** The portals of each sector. */
+	private final int[][] sectorPortals;
+
+	/** The distance from each portal to every point of its sector. */
+	private final char[][] portalTable;
+
+	/**
+	 * Cut the map in sectors and calculate the distances within them.
+	 * 
+	 * @param walls
+	 *            the world's walls
+	 * @param h
+	 *            the map height
+	 * @param w
+	 *            the map width
+	 * @param size
+	 *            the side of the sectors
+	 */
+	SectorRouter(final WallMap walls, final int h, final int w,
+			final int size) {
+		if (size < 2 || size > MAX_SECTOR_SIZE) {
+			throw new IllegalArgumentException("The sector size must be "
+					+ "between 2 and " + MAX_SECTOR_SIZE + ", not " + size);
+		}
+		this.walls = walls;
+		this.h = h;
+		this.w = w;
+		this.size = size;
+		this.sectorCols = (w + size - 1) / size;
+		int sectors = ((h + size - 1) / size) * sectorCols;
+
+		ArrayList<Integer> rows = new ArrayList<Integer>();
+		ArrayList<Integer> cols = new ArrayList<Integer>();
+
+		// Borders between a sector and the one to its right
+		for (int col = size - 1; col + 1 < w; col += size) {
+			for (int top = 0; top < h; top += size) {
+				int bottom = Math.min(h, top + size);
+				int start = -1;
+				for (int row = top; row <= bottom; row++) {
+					boolean open = row < bottom && !walls.isWall(row, col)
+							&& !walls.isWall(row, col + 1);
+					if (open && start == -1) {
+						start = row;
+					} else if (!open && start != -1) {
+						for (int at : entrance(start, row - 1)) {
+							addPortals(rows, cols, at, col, at, col + 1);
+						}
+						start = -1;
+					}
+				}
+			}
+		}
+
+		// Borders between a sector and the one below
+		for (int row = size - 1; row + 1 < h; row += size) {
+			for (int left = 0; left < w; left += size) {
+				int right = Math.min(w, left + size);
+				int start = -1;
+				for (int col = left; col <= right; col++) {
+					boolean open = col < right && !walls.isWall(row, col)
+							&& !walls.isWall(row + 1, col);
+					if (open && start == -1) {
+						start = col;
+					} else if (!open && start != -1) {
+						for (int at : entrance(start, col - 1)) {
+							addPortals(rows, cols, row, at, row + 1, at);
+						}
+						start = -1;
+					}
+				}
+			}
+		}
+
+		int portals = rows.size();
+		portalRow = new int[portals];
+		portalCol = new int[portals];
+		portalSector = new int[portals];
+		int[] count = new int[sectors];
+		for (int p = 0; p < portals; p++) {
+			portalRow[p] = rows.get(p);
+			portalCol[p] = cols.get(p);
+			portalSector[p] = sectorOf(portalRow[p], portalCol[p]);
+			count[portalSector[p]]++;
+		}
+
+		sectorPortals = new int[sectors][];
+		for (int s = 0; s < sectors; s++) {
+			sectorPortals[s] = new int[count[s]];
+			count[s] = 0;
+		}
+		portalTable = new char[portals][];
+		for (int p = 0; p < portals; p++) {
+			sectorPortals[portalSector[p]][count[portalSector[p]]++] = p;
+			portalTable[p] = flood(portalSector[p], portalRow[p], portalCol[p]);
+		}
+	}
+
+	/**
+	 * Choose where to put the portals of a stretch of open border.
+	 * 
+	 * @param first
+	 *            the first open row or column
+	 * @param last
+	 *            the last open row or column
+	 * @return the rows or columns of the portals
+	 */
+	private static int[] entrance(final int first, final int last) {
+		if (last - first + 1 < LONG_ENTRANCE) {
+			return new int[] { (first + last) / 2 };
+		}
+		return new int[] { first, last };
+	}
+
+	/**
+	 * Add the two portals on each side of a border.
+	 * 
+	 * @param rows
+	 *            the portal rows
+	 * @param cols
+	 *            the portal columns
+	 * @param row1
+	 *            the row of the first portal
+	 * @param col1
+	 *            the column of the first portal
+	 * @param row2
+	 *            the row of the second portal
+	 * @param col2
+	 *            the column of the second portal
+	 */
+	private static void addPortals(final ArrayList<Integer> rows,
+			final ArrayList<Integer> cols, final int row1, final int col1,
+			final int row2, final int col2) {
+		rows.add(row1);
+		cols.add(col1);
+		rows.add(row2);
+		cols.add(col2);
+	}
+
+	/**
+	 * Get the side of the sectors.
+	 * 
+	 * @return the sector size
+	 */
+	int getSectorSize() {
+		return size;
+	}
+
+	/**
+	 * Get the amount of portals in the map.
+	 * 
+	 * @return the amount of portals
+	 */
+	int getPortalCount() {
+		return portalRow.length;
+	}
+
+	/**
+	 * Get the key under which to cache the field that leads to a position.
+	 * 
+	 * @param pos
+	 *            the position the field leads to
+	 * @return the key
+	 */
+	String keyFor(final Position pos) {
+		return "sectors-" + size + "-" + pos;
+	}
+
+	/**
+	 * Calculate the field that leads to a position.
+	 * 
+	 * @param goal
+	 *            the position the field leads to
+	 * @return the field
+	 */
+	SectorField fieldTo(final Position goal) {
+		int sector = sectorOf(goal.getRow(), goal.getCol());
+		char[] local = flood(sector, goal.getRow(), goal.getCol());
+		int[] distance = new int[portalRow.length];
+		Arrays.fill(distance, Gradient.UNREACHABLE);
+		Heap heap = new Heap();
+
+		for (int p : sectorPortals[sector]) {
+			char d = local[localIndex(portalRow[p], portalCol[p])];
+			if (d != NO_PATH) {
+				distance[p] = d;
+				heap.push(d, p);
+			}
+		}
+
+		while (!heap.isEmpty()) {
+			long top = heap.pop();
+			int d = (int) (top >>> 32);
+			int p = (int) top;
+			if (d > distance[p]) {
+				continue;
+			}
+
+			// Across the border
+			int other = p ^ 1;
+			if (d + STRAIGHT_DISTANCE < distance[other]) {
+				distance[other] = d + STRAIGHT_DISTANCE;
+				heap.push(distance[other], other);
+			}
+
+			// Within the sector
+			for (int q : sectorPortals[portalSector[p]]) {
+				char step = portalTable[p][localIndex(portalRow[q],
+					portalCol[q])];
+				if (step != NO_PATH && d + step < distance[q]) {
+					distance[q] = d + step;
+					heap.push(distance[q], q);
+				}
+			}
+		}
+
+		return new SectorField(sector, local, distance);
+	}
+
+	/**
+	 * Get the distance from a position to the place a field leads to.
+	 * 
+	 * @param field
+	 *            the field leading to the place
+	 * @param pos
+	 *            the position
+	 * @return the distance, or <code>Gradient.UNREACHABLE</code> if the field
+	 *         doesn't lead to the place from there
+	 */
+	int distanceFrom(final SectorField field, final Position pos) {
+		return distanceAt(field, pos.getRow(), pos.getCol());
+	}
+
+	/**
+	 * Get the direction to follow from a position to reach the place a field
+	 * leads to.
+	 * 
+	 * @param field
+	 *            the field leading to the place
+	 * @param pos
+	 *            the position
+	 * @param preferredDir
+	 *            the direction to return if it's as good as the best one
+	 * @return the direction, from 0 (North) to 7 (North-West), -1 if pos is
+	 *         the place's position, or <code>NO_ROUTE</code> if the field
+	 *         doesn't lead to the place from there
+	 */
+	int pointFrom(final SectorField field, final Position pos,
+			final int preferredDir) {
+		int row = pos.getRow();
+		int col = pos.getCol();
+		int min = distanceAt(field, row, col);
+
+		if (min == Gradient.UNREACHABLE) {
+			return NO_ROUTE;
+		}
+		if (min == 0) {
+			return -1;
+		}
+
+		int optimalDirs = 0;
+		for (int dir = 0; dir < COMPASS.length; dir++) {
+			int r = row + COMPASS[dir][0];
+			int c = col + COMPASS[dir][1];
+			if (r < 0 || r >= h || c < 0 || c >= w || walls.isWall(r, c)) {
+				continue;
+			}
+			int d = distanceAt(field, r, c);
+			if (d == min) {
+				optimalDirs |= 1 << dir;
+			} else if (d < min) {
+				min = d;
+				optimalDirs = 1 << dir;
+			}
+		}
+
+		if (optimalDirs == 0) {
+			return NO_ROUTE;
+		} else if (preferredDir >= 0 && (optimalDirs & 1 << preferredDir) != 0) {
+			return preferredDir;
+		} else {
+			return Integer.numberOfTrailingZeros(optimalDirs);
+		}
+	}
+
+	/**
+	 * Get the distance from a point to the place a field leads to.
+	 * 
+	 * @param field
+	 *            the field leading to the place
+	 * @param row
+	 *            the point's row
+	 * @param col
+	 *            the point's column
+	 * @return the distance, or <code>Gradient.UNREACHABLE</code>
+	 */
+	private int distanceAt(final SectorField field, final int row,
+			final int col) {
+		int sector = sectorOf(row, col);
+		int index = localIndex(row, col);
+		int best = Gradient.UNREACHABLE;
+
+		if (sector == field.getSector() && field.getLocal()[index] != NO_PATH) {
+			best = field.getLocal()[index];
+		}
+
+		int[] portalDistance = field.getPortalDistance();
+		for (int p : sectorPortals[sector]) {
+			char step = portalTable[p][index];
+			if (step != NO_PATH && portalDistance[p] != Gradient.UNREACHABLE
+					&& step + portalDistance[p] < best) {
+				best = step + portalDistance[p];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Calculate the distance from a point to every point of its sector,
+	 * without leaving the sector.
+	 * 
+	 * @param sector
+	 *            the sector of the point
+	 * @param row
+	 *            the point's row
+	 * @param col
+	 *            the point's column
+	 * @return the distances, indexed with <code>localIndex</code>
+	 */
+	private char[] flood(final int sector, final int row, final int col) {
+		int top = (sector / sectorCols) * size;
+		int left = (sector % sectorCols) * size;
+		int bottom = Math.min(h, top + size);
+		int right = Math.min(w, left + size);
+		int[] distance = new int[size * size];
+		Arrays.fill(distance, Gradient.UNREACHABLE);
+		Heap heap = new Heap();
+
+		distance[localIndex(row, col)] = 0;
+		heap.push(0, row * w + col);
+
+		while (!heap.isEmpty()) {
+			long next = heap.pop();
+			int d = (int) (next >>> 32);
+			int cell = (int) next;
+			int r = cell / w;
+			int c = cell % w;
+			if (d > distance[localIndex(r, c)]) {
+				continue;
+			}
+
+			for (int dir = 0; dir < COMPASS.length; dir++) {
+				int nr = r + COMPASS[dir][0];
+				int nc = c + COMPASS[dir][1];
+				if (nr < top || nr >= bottom || nc < left || nc >= right
+						|| walls.isWall(nr, nc)) {
+					continue;
+				}
+				int nd = d + (dir % 2 == 0 ? STRAIGHT_DISTANCE
+						: DIAGONAL_DISTANCE);
+				int index = localIndex(nr, nc);
+				if (nd < distance[index]) {
+					distance[index] = nd;
+					heap.push(nd, nr * w + nc);
+				}
+			}
+		}
+
+		char[] table = new char[distance.length];
+		for (int i = 0; i < distance.length; i++) {
+			if (distance[i] == Gradient.UNREACHABLE) {
+				table[i] = NO_PATH;
+			} else {
+				table[i] = (char) distance[i];
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Get the sector a point is in.
+	 * 
+	 * @param row
+	 *            the point's row
+	 * @param col
+	 *            the point's column
+	 * @return the sector number, counting row after row
+	 */
+	private int sectorOf(final int row, final int col) {
+		return (row / size) * sectorCols + col / size;
+	}
+
+	/**
+	 * Get the index of a point in the tables of its sector.
+	 * 
+	 * @param row
+	 *            the point's row
+	 * @param col
+	 *            the point's column
+	 * @return the index
+	 */
+	private int localIndex(final int row, final int col) {
+		return (row % size) * size + col % size;
+	}
+
+	/**
+	 * A binary min heap of distances, each with a portal or point attached,
+	 * packed in a long with the distance in the upper half.
+	 */
+	private static final class Heap {
+		/** The heap entries. */
+		private long[] entries = new long[64];
+
+		/** The amount of entries. */
+		private int count;
+
+		/**
+		 * Check whether the heap is empty.
+		 * 
+		 * @return true if there are no entries left
+		 */
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		/**
+		 * Add an entry.
+		 * 
+		 * @param distance
+		 *            the distance, used to order the entries
+		 * @param value
+		 *            the portal or point
+		 */
+		void push(final int distance, final int value) {
+			if (count == entries.length) {
+				entries = Arrays.copyOf(entries, 2 * count);
+			}
+			long entry = ((long) distance << 32) | value;
+			int i = count++;
+			while (i > 0 && entries[(i - 1) / 2] > entry) {
+				entries[i] = entries[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			entries[i] = entry;
+		}
+
+		/**
+		 * Remove the entry with the smallest distance.
+		 * 
+		 * @return the entry, with the distance in the upper 32 bits
+		 */
+		long pop() {
+			long top = entries[0];
+			long last = entries[--count];
+			int i = 0;
+			while (2 * i + 1 < count) {
+				int child = 2 * i + 1;
+				if (child + 1 < count && entries[child + 1] < entries[child]) {
+					child++;
+				}
+				if (entries[child] >= last) {
+					break;
+				}
+				entries[i] = entries[child];
+				i = child;
+			}
+			entries[i] = last;
+			return top;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A uniform grid over the map that buckets trackables by their position, so
+ * that finding those near a position only looks at the buckets around it,
+ * instead of at every trackable in the world.
+ * 
+ * Each trackable keeps the rank it had in the collection the index was
+ * built from, and the results are sorted by it. That way, the index finds
+ * exactly the same trackables, in the same order, as walking the collection
+ * would.
+ * 
+ * Positions are not tracked by the index itself, so whoever moves a
+ * trackable has to call <code>move</code> afterwards. All the methods are
+ * synchronized, since the simulation thread moves the agents while the GUI
+ * and the command listener look for them.
+ * 
+ * @param <T>
+ *            the kind of trackable in the index
+ * @author Miquel Martin
+ * 
+ */
+final class SpatialIndex<T extends Trackable> {
+	/** The side of each bucket, in grid points. */
+	private static final int CELL_SIZE = 16;
+
+	/** Compares entries by their rank. */
+	private static final Comparator<Entry<?>> BY_RANK =
+			new Comparator<Entry<?>>() {
+				public int compare(final Entry<?> e1, final Entry<?> e2) {
+					return e1.rank - e2.rank;
+				}
+			};
+
+	/**
+	 * A trackable in the index.
+	 * 
+	 * @param <T>
+	 *            the kind of trackable
+	 */
+	private static final class Entry<T> {
+		/** The trackable. */
+		private final T item;
+
+		/** The position of the trackable in the original collection. */
+		private final int rank;
+
+		/** The bucket the trackable is in. */
+		private int cell;
+
+		/**
+		 * Create an entry.
+		 * 
+		 * @param item
+		 *            the trackable
+		 * @param rank
+		 *            its position in the original collection
+		 * @param cell
+		 *            the bucket it is in
+		 */
+		private Entry(final T item, final int rank, final int cell) {
+			this.item = item;
+			this.rank = rank;
+			this.cell = cell;
+		}
+	}
+
+	/** The amount of bucket rows. */
+	private final int rows;
+
+	/** The amount of bucket columns. */
+	private final int cols;
+
+	/** The buckets, row after row. */
+	private final List<List<Entry<T>>> cells;
+
+	/** The entry of each trackable, by identity. */
+	private final IdentityHashMap<T, Entry<T>> entries =
+			new IdentityHashMap<T, Entry<T>>();
+
+	/**
+	 * Build an index with the given trackables.
+	 * 
+	 * @param h
+	 *            the map height
+	 * @param w
+	 *            the map width
+	 * @param trackables
+	 *            the trackables to index, whose iteration order is kept in
+	 *            the results
+	 */
+	SpatialIndex(final int h, final int w,
+			final Collection<? extends T> trackables) {
+		this.rows = (h + CELL_SIZE - 1) / CELL_SIZE;
+		this.cols = (w + CELL_SIZE - 1) / CELL_SIZE;
+		this.cells = new ArrayList<List<Entry<T>>>(rows * cols);
+
+		for (int i = 0; i < rows * cols; i++) {
+			cells.add(new ArrayList<Entry<T>>(2));
+		}
+
+		for (T t : trackables) {
+			Entry<T> e = new Entry<T>(t, entries.size(), cellOf(t.getPos()));
+			entries.put(t, e);
+			cells.get(e.cell).add(e);
+		}
+	}
+
+	/**
+	 * Get the amount of trackables in the index.
+	 * 
+	 * @return the amount of trackables
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Move a trackable to the bucket of its current position. Trackables
+	 * which are not in the index are ignored.
+	 * 
+	 * @param t
+	 *            the trackable that moved
+	 */
+	synchronized void move(final T t) {
+		relocate(t);
+	}
+
+	/**
+	 * Move several trackables to the buckets of their current positions,
+	 * taking the lock only once. Trackables which are not in the index are
+	 * ignored.
+	 * 
+	 * @param moved
+	 *            the trackables that might have moved
+	 */
+	synchronized void moveAll(final Collection<? extends T> moved) {
+		for (T t : moved) {
+			relocate(t);
+		}
+	}
+
+	/**
+	 * Move a trackable to the bucket of its current position. Always called
+	 * with the lock held.
+	 * 
+	 * @param t
+	 *            the trackable that moved
+	 */
+	private void relocate(final T t) {
+		Entry<T> e = entries.get(t);
+
+		if (e == null) {
+			return;
+		}
+
+		int cell = cellOf(t.getPos());
+
+		if (cell != e.cell) {
+			cells.get(e.cell).remove(e);
+			e.cell = cell;
+			cells.get(cell).add(e);
+		}
+	}
+
+	/**
+	 * Find the first trackable near pos, in the order of the original
+	 * collection.
+	 * 
+	 * @param pos
+	 *            the position in which to search
+	 * @param distance
+	 *            the distance in grid positions to consider a trackable as
+	 *            being near
+	 * @param visibleOnly
+	 *            set to true to find only visible trackables
+	 * @return the trackable, or null if there is none
+	 */
+	synchronized T findFirst(final Position pos, final int distance,
+			final boolean visibleOnly) {
+		Entry<T> first = null;
+
+		for (Entry<T> e : candidates(pos, distance, visibleOnly)) {
+			if (first == null || e.rank < first.rank) {
+				first = e;
+			}
+		}
+
+		return (first == null) ? null : first.item;
+	}
+
+	/**
+	 * Find all the trackables near pos, in the order of the original
+	 * collection.
+	 * 
+	 * @param pos
+	 *            the position in which to search
+	 * @param distance
+	 *            the distance in grid positions to consider a trackable as
+	 *            being near
+	 * @param visibleOnly
+	 *            set to true to find only visible trackables
+	 * @return the nearby trackables, which might be none
+	 */
+	synchronized ArrayList<Trackable> findAll(final Position pos,
+			final int distance, final boolean visibleOnly) {
+		List<Entry<T>> found = candidates(pos, distance, visibleOnly);
+		Collections.sort(found, BY_RANK);
+
+		ArrayList<Trackable> targets = new ArrayList<Trackable>(found.size());
+		for (Entry<T> e : found) {
+			targets.add(e.item);
+		}
+		return targets;
+	}
+
+	/**
+	 * Collect the entries near pos, looking only at the buckets that
+	 * overlap the square around it.
+	 * 
+	 * @param pos
+	 *            the position in which to search
+	 * @param distance
+	 *            the distance in grid positions to consider a trackable as
+	 *            being near
+	 * @param visibleOnly
+	 *            set to true to find only visible trackables
+	 * @return the nearby entries, in no particular order
+	 */
+	private List<Entry<T>> candidates(final Position pos, final int distance,
+			final boolean visibleOnly) {
+		List<Entry<T>> found = new ArrayList<Entry<T>>();
+		int fromRow = clamp((pos.getRow() - distance) / CELL_SIZE, rows);
+		int toRow = clamp((pos.getRow() + distance) / CELL_SIZE, rows);
+		int fromCol = clamp((pos.getCol() - distance) / CELL_SIZE, cols);
+		int toCol = clamp((pos.getCol() + distance) / CELL_SIZE, cols);
+
+		for (int r = fromRow; r <= toRow; r++) {
+			for (int c = fromCol; c <= toCol; c++) {
+				for (Entry<T> e : cells.get(r * cols + c)) {
+					if ((!visibleOnly || e.item.isVisible())
+							&& e.item.getPos().isNear(pos, distance)) {
+						found.add(e);
+					}
+				}
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Get the bucket of a position.
+	 * 
+	 * @param pos
+	 *            the position
+	 * @return the index of the bucket in cells
+	 */
+	private int cellOf(final Position pos) {
+		return clamp(pos.getRow() / CELL_SIZE, rows) * cols
+				+ clamp(pos.getCol() / CELL_SIZE, cols);
+	}
+
+	/**
+	 * Keep a bucket row or column within the grid.
+	 * 
+	 * @param value
+	 *            the row or column
+	 * @param size
+	 *            the amount of rows or columns
+	 * @return the value, moved into [0, size)
+	 */
+	private static int clamp(final int value, final int size) {
+		return Math.max(0, Math.min(size - 1, value));
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.model;
+
+/**
+ * The walls of the world, one bit per point. The map is surrounded by a
+ * border of walls, so that the neighbours of any point in the map can be
+ * checked without checking the map bounds first.
+ * 
+ * Points are referred to by their cell, <code>(row + 1) * stride + col +
+ * 1</code>, which is also how the <code>GradientCalculator</code> lays out
+ * its arrays.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+final class WallMap {
+	/** What <code>tryMove</code> returns if the move ends on a wall. */
+	static final int BLOCKED = -1;
+
+	/** The width of a row, including the border. */
+	private final int stride;
+
+	/** The amount of cells, including the border. */
+	private final int size;
+
+	/** The walls, one bit per cell. */
+	private final long[] bits;
+
+	/** The cell offset of the neighbour in each direction, 0 being North. */
+	private final int[] offset;
+
+	/**
+	 * Create a map with no walls other than its border.
+	 * 
+	 * @param h
+	 *            the map height
+	 * @param w
+	 *            the map width
+	 */
+	WallMap(final int h, final int w) {
+		this.stride = w + 2;
+		this.size = (h + 2) * stride;
+		this.bits = new long[(size + Long.SIZE - 1) / Long.SIZE];
+		this.offset = new int[] { -stride, -stride + 1, 1, stride + 1,
+				stride, stride - 1, -1, -stride - 1 };
+
+		for (int col = 0; col < stride; col++) {
+			block(col);
+			block(size - stride + col);
+		}
+		for (int row = 1; row <= h; row++) {
+			block(row * stride);
+			block(row * stride + w + 1);
+		}
+	}
+
+	/**
+	 * Put a wall on a point.
+	 * 
+	 * @param row
+	 *            the point's row
+	 * @param col
+	 *            the point's column
+	 */
+	void setWall(final int row, final int col) {
+		block(cellOf(row, col));
+	}
+
+	/**
+	 * Mark a cell as a wall.
+	 * 
+	 * @param cell
+	 *            the cell
+	 */
+	private void block(final int cell) {
+		bits[cell >>> 6] |= 1L << cell;
+	}
+
+	/**
+	 * Find out if there is a wall on a point.
+	 * 
+	 * @param row
+	 *            the point's row
+	 * @param col
+	 *            the point's column
+	 * @return true if there's a wall
+	 */
+	boolean isWall(final int row, final int col) {
+		return isBlocked(cellOf(row, col));
+	}
+
+	/**
+	 * Find out if a cell is a wall, or part of the border.
+	 * 
+	 * @param cell
+	 *            the cell
+	 * @return true if the cell can't be walked on
+	 */
+	boolean isBlocked(final int cell) {
+		return (bits[cell >>> 6] & (1L << cell)) != 0;
+	}
+
+	/**
+	 * Get the cell one step away in a direction, if it can be walked on.
+	 * 
+	 * @param cell
+	 *            the cell to step from, which has to be in the map
+	 * @param dir
+	 *            the direction, from 0 (North) to 7 (North-West)
+	 * @return the cell, or <code>BLOCKED</code> if it's a wall or out of the
+	 *         map
+	 */
+	int tryMove(final int cell, final int dir) {
+		int next = cell + offset[dir];
+
+		if (isBlocked(next)) {
+			return BLOCKED;
+		}
+		return next;
+	}
+
+	/**
+	 * Get the cell of a point.
+	 * 
+	 * @param row
+	 *            the point's row
+	 * @param col
+	 *            the point's column
+	 * @return the cell
+	 */
+	int cellOf(final int row, final int col) {
+		return (row + 1) * stride + col + 1;
+	}
+
+	/**
+	 * Get the row of a cell.
+	 * 
+	 * @param cell
+	 *            the cell
+	 * @return the row
+	 */
+	int rowOf(final int cell) {
+		return cell / stride - 1;
+	}
+
+	/**
+	 * Get the column of a cell.
+	 * 
+	 * @param cell
+	 *            the cell
+	 * @return the column
+	 */
+	int colOf(final int cell) {
+		return cell % stride - 1;
+	}
+
+	/**
+	 * Get the amount of cells, including the border.
+	 * 
+	 * @return the amount of cells
+	 */
+	int size() {
+		return size;
+	}
+}
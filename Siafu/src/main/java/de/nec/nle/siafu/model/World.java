@@ -26,12 +26,20 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.configuration.Configuration;
 import org.eclipse.swt.graphics.ImageData;
@@ -83,6 +91,36 @@ public class World {
 	 */
 	private static int cacheSize;
 
+	/**
+	 * The maximum amount of bytes taken by the gradients in the cache, or 0
+	 * for no limit.
+	 */
+	private static long cacheMaxBytes;
+
+	/**
+	 * The amount of threads used to calculate the missing place gradients
+	 * when the world is created. Zero or less means one per processor.
+	 */
+	private static int gradientThreads;
+
+	/**
+	 * Whether to find the nearest place of a type using a nearest place
+	 * field, instead of the gradient of each place.
+	 */
+	private static boolean nearestPlaceFields = true;
+
+	/**
+	 * The side of the sectors used to route agents to places, or 0 to route
+	 * them with the gradient of each place.
+	 */
+	private static int routingSectorSize;
+
+	/**
+	 * Whether the state of the agents is kept in an agent store, column by
+	 * column, rather than in each agent.
+	 */
+	private static boolean columnarAgents;
+
 	/**
 	 * A random number generator.
 	 */
@@ -116,7 +154,7 @@ public class World {
 	/**
 	 * A collection of the places in the simulation.
 	 */
-	private ArrayList<Place> places;
+	private PlaceList places;
 
 	/**
 	 * The set of place types.
@@ -149,9 +187,55 @@ public class World {
 	private HashMap<String, Agent> people;
 
 	/**
-	 * The matrix of points that defines where an agent can walk or not.
+	 * The agents, bucketed by position, kept up to date as they move.
 	 */
-	private boolean[][] walls;
+	private SpatialIndex<Agent> agentIndex;
+
+	/**
+	 * True while the agents are moved by several threads, during which the
+	 * agent index is left alone, and brought up to date afterwards.
+	 */
+	private volatile boolean agentIndexDeferred;
+
+	/**
+	 * The places, bucketed by position. Places don't move, but the list can
+	 * change, so it's rebuilt when the list has changed since.
+	 */
+	private SpatialIndex<Place> placeIndex;
+
+	/** The changes of the place list when placeIndex was built. */
+	private int placeIndexChanges;
+
+	/**
+	 * The places by name, position and type. It's rebuilt when the place
+	 * list has changed since or a place is renamed.
+	 */
+	private PlaceIndex placeLookup;
+
+	/** The changes of the place list when placeLookup was built. */
+	private int placeLookupChanges;
+
+	/**
+	 * The bit map of points that defines where an agent can walk or not.
+	 */
+	private WallMap walls;
+
+	/**
+	 * The router that leads agents to places, if places don't use their
+	 * gradients.
+	 */
+	private SectorRouter sectorRouter;
+
+	/**
+	 * The store that holds the state of the agents, if agents don't keep it
+	 * themselves.
+	 */
+	private AgentStore agentStore;
+
+	/**
+	 * The engine that calculates the distance gradients over the walls.
+	 */
+	private GradientCalculator gradientCalculator;
 
 	/**
 	 * The simulation object, which starts the simulation thread.
@@ -203,6 +287,116 @@ public class World {
 		World.cacheSize = cacheSize;
 	}
 
+	/**
+	 * Get the maximum amount of bytes the gradients kept in memory can take.
+	 * 
+	 * @return the said amount, or 0 if there is no limit
+	 */
+	public static long getCacheMaxBytes() {
+		return cacheMaxBytes;
+	}
+
+	/**
+	 * Set the maximum amount of bytes the gradients kept in memory can take.
+	 * This limit applies on top of the cache size.
+	 * 
+	 * @param cacheMaxBytes
+	 *            the said amount, or 0 for no limit
+	 */
+	public static void setCacheMaxBytes(final long cacheMaxBytes) {
+		World.cacheMaxBytes = cacheMaxBytes;
+	}
+
+	/**
+	 * Find out if the nearest place of a type is found using nearest place
+	 * fields.
+	 * 
+	 * @return true if nearest place fields are used
+	 */
+	public static boolean shouldUseNearestPlaceFields() {
+		return nearestPlaceFields;
+	}
+
+	/**
+	 * Set whether the nearest place of a type is found using a nearest place
+	 * field per type, which is calculated once and kept in the gradient
+	 * cache, or by checking the gradient of each place of the type.
+	 * 
+	 * @param useFields
+	 *            true to use nearest place fields
+	 */
+	public static void setUseNearestPlaceFields(final boolean useFields) {
+		nearestPlaceFields = useFields;
+	}
+
+	/**
+	 * Get the side of the sectors used to route agents to places.
+	 * 
+	 * @return the sector side, or 0 if places use their gradients
+	 */
+	public static int getRoutingSectorSize() {
+		return routingSectorSize;
+	}
+
+	/**
+	 * Set the side of the sectors used to route agents to places. With
+	 * sectors, the map is cut in squares connected by portals, and places
+	 * keep their distance from each portal rather than from each point of
+	 * the map. This takes far less memory and time to calculate than a
+	 * gradient, but agents might not always take the shortest way. Gradients
+	 * are still calculated for the places whose gradient is asked for, for
+	 * instance to draw it.
+	 * 
+	 * @param sectorSize
+	 *            the sector side, at most 80, or 0 to use gradients
+	 */
+	public static void setRoutingSectorSize(final int sectorSize) {
+		World.routingSectorSize = sectorSize;
+	}
+
+	/**
+	 * Find out if the state of the agents is kept in an agent store.
+	 * 
+	 * @return true if it is
+	 */
+	public static boolean shouldUseColumnarAgents() {
+		return columnarAgents;
+	}
+
+	/**
+	 * Set whether the state of the agents is kept in an agent store, one
+	 * array per field, instead of in each agent. This takes less memory for
+	 * large populations, but agents in the store are only equal to
+	 * themselves. The agents are moved to the store once their info fields
+	 * are locked.
+	 * 
+	 * @param columnar
+	 *            true to use an agent store
+	 */
+	public static void setUseColumnarAgents(final boolean columnar) {
+		World.columnarAgents = columnar;
+	}
+
+	/**
+	 * Get the amount of threads used to calculate the place gradients.
+	 * 
+	 * @return the amount of threads, or zero or less for one per processor
+	 */
+	public static int getGradientThreads() {
+		return gradientThreads;
+	}
+
+	/**
+	 * Set the amount of threads used to calculate the place gradients that
+	 * are not in the cache when the world is created.
+	 * 
+	 * @param gradientThreads
+	 *            the amount of threads, or zero or less for one per processor
+	 */
+	public static void setGradientThreads(final int gradientThreads) {
+		World.gradientThreads = gradientThreads;
+	}
+
 	/**
 	 * Instantiate the world in which the simulation will run.
 	 * 
@@ -241,6 +435,10 @@ public class World {
 	 * Creates a place for each black pixel in the images contained in the
 	 * simulation data. The place type is the name of the image.
 	 * 
+	 * The gradients that are not yet in the cache are calculated in parallel
+	 * before the places are created, unless places are routed to through
+	 * sectors.
+	 * 
 	 * @return a list of places generated from the images in the simulation
 	 *         data.
 	 */
@@ -249,17 +447,22 @@ public class World {
 		ArrayList<Place> placesFromImg = new ArrayList<Place>();
 		Map<String, InputStream> fileList = simData.getPlaceFiles();
 		Iterator<String> listIt = fileList.keySet().iterator();
-
-		//int total = 0;
+		Map<String, ArrayList<Position>> pointsByType =
+				new LinkedHashMap<String, ArrayList<Position>>();
 
 		while (listIt.hasNext()) {
 			String type = (String) listIt.next();
 			ArrayList<Position> placePoints = readPlacePoints(fileList
 					.get(type));
-			Iterator<Position> it = placePoints.iterator();
-			//total += placePoints.size();
 			Controller.getProgress()
 					.reportPlacesFound(type, placePoints.size());
+			pointsByType.put(type, placePoints);
+		}
+
+		Set<String> reported = precalculateGradients(pointsByType);
+
+		for (String type : pointsByType.keySet()) {
+			Iterator<Position> it = pointsByType.get(type).iterator();
 
 			while (it.hasNext()) {
 				Position pos = (Position) it.next();
@@ -270,7 +473,9 @@ public class World {
 					throw new RuntimeException("One of your \"" + type
 							+ "\" places, at " + pos + " is on a wall");
 				}
-				Controller.getProgress().reportPlaceCreated(type);
+				if (!reported.contains(place.getName())) {
+					Controller.getProgress().reportPlaceCreated(type);
+				}
 				placesFromImg.add(place);
 			}
 		}
@@ -278,6 +483,94 @@ public class World {
 		return placesFromImg;
 	}
 
+	/**
+	 * Calculate, using <code>gradientThreads</code> threads, the gradients of
+	 * the given places which are not in the gradient cache yet. The
+	 * calculated gradients are put in the cache as they are finished, and
+	 * each of them is reported to the Progress as a created place. Nothing is
+	 * calculated if places are routed to through sectors.
+	 * 
+	 * @param pointsByType
+	 *            the positions of the places, by place type
+	 * @return the names (type-position) of the places that have already been
+	 *         reported as created
+	 */
+	private Set<String> precalculateGradients(
+			final Map<String, ArrayList<Position>> pointsByType) {
+		Set<String> reported = new HashSet<String>();
+		Set<Position> pending = new HashSet<Position>();
+		ArrayList<String> pendingTypes = new ArrayList<String>();
+		ArrayList<Position> pendingPositions = new ArrayList<Position>();
+
+		if (sectorRouter != null) {
+			return reported;
+		}
+
+		for (String type : pointsByType.keySet()) {
+			for (Position pos : pointsByType.get(type)) {
+				if (!isAWall(pos) && !Place.isGradientCached(pos)
+						&& pending.add(pos)) {
+					pendingTypes.add(type);
+					pendingPositions.add(pos);
+				}
+			}
+		}
+
+		if (pendingPositions.isEmpty()) {
+			return reported;
+		}
+
+		int threads = gradientThreads;
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		CompletionService<Gradient> completion =
+				new ExecutorCompletionService<Gradient>(pool);
+		Map<Future<Gradient>, Integer> submitted =
+				new HashMap<Future<Gradient>, Integer>();
+		// Finished gradients wait in memory until they are persisted, so
+		// don't let the workers get too far ahead.
+		int window = 2 * threads;
+		int next = 0;
+
+		try {
+			while (next < pendingPositions.size() || !submitted.isEmpty()) {
+				while (next < pendingPositions.size()
+						&& submitted.size() < window) {
+					final Position pos = pendingPositions.get(next);
+					submitted.put(completion.submit(new Callable<Gradient>() {
+						public Gradient call() {
+							return new Gradient(pos, World.this);
+						}
+					}), next);
+					next++;
+				}
+
+				Future<Gradient> done = completion.take();
+				int index = submitted.remove(done);
+				Position pos = pendingPositions.get(index);
+				String type = pendingTypes.get(index);
+
+				Place.cacheGradient(pos, done.get());
+				reported.add(type + "-" + pos);
+				Controller.getProgress().reportPlaceCreated(type);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while calculating the "
+					+ "place gradients", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Can't calculate the place gradients",
+					e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return reported;
+	}
+
 	/**
 	 * Find the black pixels in the provided images, and interpret them as
 	 * coordinates for places.
@@ -349,7 +642,43 @@ public class World {
 	 * @return true if the position is on a wall, false otherwise
 	 */
 	public boolean isAWall(final Position pos) {
-		return walls[pos.getRow()][pos.getCol()];
+		return walls.isWall(pos.getRow(), pos.getCol());
+	}
+
+	/**
+	 * Get the world's walls, one bit per point.
+	 * 
+	 * @return the wall map
+	 */
+	WallMap getWallMap() {
+		return walls;
+	}
+
+	/**
+	 * Get the engine that calculates the distance gradients in this world.
+	 * 
+	 * @return the gradient calculator for the world's walls
+	 */
+	GradientCalculator getGradientCalculator() {
+		return gradientCalculator;
+	}
+
+	/**
+	 * Get the router that leads agents to places.
+	 * 
+	 * @return the router, or null if places use their gradients
+	 */
+	SectorRouter getSectorRouter() {
+		return sectorRouter;
+	}
+
+	/**
+	 * Get the store that holds the state of the agents.
+	 * 
+	 * @return the store, or null if agents keep their own state
+	 */
+	AgentStore getAgentStore() {
+		return agentStore;
 	}
 
 	/**
@@ -463,7 +792,7 @@ public class World {
 	 */
 	public Trackable findAgentNear(final Position pos, final boolean visibleOnly)
 			throws NothingNearException {
-		return findNearOutOf(pos, people.values(), NEAR_DISTANCE, visibleOnly);
+		return findNear(agentIndex, pos, NEAR_DISTANCE, visibleOnly);
 	}
 
 	/**
@@ -480,7 +809,7 @@ public class World {
 	 */
 	public Trackable findPlaceNear(final Position pos, final boolean visibleOnly)
 			throws NothingNearException {
-		return findNearOutOf(pos, places, NEAR_DISTANCE, visibleOnly);
+		return findNear(getPlaceIndex(), pos, NEAR_DISTANCE, visibleOnly);
 	}
 
 	/**
@@ -545,7 +874,7 @@ public class World {
 	public ArrayList<Trackable> findAllAgentsNear(final Position pos,
 			final int distance, final boolean visibleOnly)
 			throws NothingNearException {
-		return findAllNearOutOf(pos, people.values(), distance, visibleOnly);
+		return findAllNear(agentIndex, pos, distance, visibleOnly);
 	}
 
 	/**
@@ -565,7 +894,131 @@ public class World {
 	public ArrayList<Trackable> findAllPlacesNear(final Position pos,
 			final int distance, final boolean visibleOnly)
 			throws NothingNearException {
-		return findAllNearOutOf(pos, places, distance, visibleOnly);
+		return findAllNear(getPlaceIndex(), pos, distance, visibleOnly);
+	}
+
+	/**
+	 * Find the first Trackable near the given position using a spatial
+	 * index.
+	 * 
+	 * @param index
+	 *            the index holding the candidates
+	 * @param pos
+	 *            the position in which to search
+	 * @param distance
+	 *            the distance in grid positions to consider a Trackable as
+	 *            being near
+	 * @param visibleOnly
+	 *            set to true to find only visible trackables
+	 * @return the first nearby trackable, in the order of the index
+	 * @throws NothingNearException
+	 *             if nothing is found nearby
+	 */
+	private Trackable findNear(final SpatialIndex<?> index,
+			final Position pos, final int distance, final boolean visibleOnly)
+			throws NothingNearException {
+		Trackable target = index.findFirst(pos, distance, visibleOnly);
+
+		if (target == null) {
+			throw new NothingNearException();
+		} else {
+			return target;
+		}
+	}
+
+	/**
+	 * Find all the Trackables near the given position using a spatial index.
+	 * 
+	 * @param index
+	 *            the index holding the candidates
+	 * @param pos
+	 *            the position in which to search
+	 * @param distance
+	 *            the distance in grid positions to consider a Trackable as
+	 *            being near
+	 * @param visibleOnly
+	 *            set to true to find only visible trackables
+	 * @return the nearby trackables, in the order of the index
+	 * @throws NothingNearException
+	 *             if nothing is found nearby
+	 */
+	private ArrayList<Trackable> findAllNear(final SpatialIndex<?> index,
+			final Position pos, final int distance, final boolean visibleOnly)
+			throws NothingNearException {
+		ArrayList<Trackable> targets =
+				index.findAll(pos, distance, visibleOnly);
+
+		if (targets.isEmpty()) {
+			throw new NothingNearException();
+		} else {
+			return targets;
+		}
+	}
+
+	/**
+	 * Get the spatial index of the places, rebuilding it if places have been
+	 * added, removed or replaced since it was built.
+	 * 
+	 * @return the index of the world's places
+	 */
+	private synchronized SpatialIndex<Place> getPlaceIndex() {
+		if (placeIndex == null || placeIndexChanges != places.changes()) {
+			placeIndex = new SpatialIndex<Place>(height, width, places);
+			placeIndexChanges = places.changes();
+		}
+		return placeIndex;
+	}
+
+	/**
+	 * Get the lookup tables for the places, rebuilding them if places have
+	 * been added, removed, replaced or renamed since they were built.
+	 * 
+	 * @return the name, position and type index of the world's places
+	 */
+	private synchronized PlaceIndex getPlaceLookup() {
+		if (placeLookup == null || placeLookupChanges != places.changes()) {
+			placeLookup = new PlaceIndex(places);
+			placeLookupChanges = places.changes();
+		}
+		return placeLookup;
+	}
+
+	/**
+	 * Drop the place lookup tables after a place has been renamed, so that
+	 * they are rebuilt on the next lookup.
+	 */
+	synchronized void placeRenamed() {
+		placeLookup = null;
+	}
+
+	/**
+	 * Update the spatial index after an agent has changed its position.
+	 * 
+	 * @param agent
+	 *            the agent that moved
+	 */
+	void agentMoved(final Agent agent) {
+		if (agentIndex != null && !agentIndexDeferred) {
+			agentIndex.move(agent);
+		}
+	}
+
+	/**
+	 * Stop updating the agent index as agents move, so that the threads
+	 * moving them don't contend for it, or bring it up to date in a single
+	 * pass and go back to updating it on every move. Until then, searches
+	 * find the agents where they were before.
+	 * <p>
+	 * This must be called by the simulation thread, while no agent moves.
+	 * 
+	 * @param deferred
+	 *            true to stop updating the index, false to update it again
+	 */
+	public void setAgentIndexDeferred(final boolean deferred) {
+		agentIndexDeferred = deferred;
+		if (!deferred && agentIndex != null) {
+			agentIndex.moveAll(people.values());
+		}
 	}
 
 	/**
@@ -621,17 +1074,12 @@ public class World {
 	 */
 	public Place getPlaceByName(final String name)
 			throws PlaceNotFoundException {
-		Iterator<Place> placesIt = places.iterator();
+		Place p = getPlaceLookup().getByName(name);
 
-		while (placesIt.hasNext()) {
-			Place p = placesIt.next();
-
-			if (p.getName().equals(name)) {
-				return p;
-			}
+		if (p == null) {
+			throw new PlaceNotFoundException(name);
 		}
-
-		throw new PlaceNotFoundException(name);
+		return p;
 	}
 
 	/**
@@ -645,17 +1093,12 @@ public class World {
 	 */
 	public Place getPlaceByPosition(final Position pos)
 			throws PlaceNotFoundException {
-		Iterator<Place> placesIt = places.iterator();
-
-		while (placesIt.hasNext()) {
-			Place p = placesIt.next();
+		Place p = getPlaceLookup().getByPosition(pos);
 
-			if (p.getPos().equals(pos)) {
-				return p;
-			}
+		if (p == null) {
+			throw new PlaceNotFoundException("at " + pos.toString());
 		}
-
-		throw new PlaceNotFoundException("at " + pos.toString());
+		return p;
 	}
 
 	/**
@@ -663,7 +1106,7 @@ public class World {
 	 * 
 	 * @param type
 	 *            the chosen type
-	 * @return a Collection with the places of that type
+	 * @return an unmodifiable Collection with the places of that type
 	 * @throws PlaceTypeUndefinedException
 	 *             if the type is not defined
 	 */
@@ -673,18 +1116,7 @@ public class World {
 			throw new PlaceTypeUndefinedException(type);
 		}
 
-		ArrayList<Place> selection = new ArrayList<Place>();
-		Iterator<Place> it = places.iterator();
-
-		while (it.hasNext()) {
-			Place p = (Place) it.next();
-
-			if (p.getType().equals(type)) {
-				selection.add(p);
-			}
-		}
-
-		return selection;
+		return getPlaceLookup().getByType(type);
 	}
 
 	/**
@@ -700,6 +1132,24 @@ public class World {
 	 */
 	public Place getNearestPlaceOfType(final String type, final Position pos)
 			throws PlaceTypeUndefinedException {
+		if (nearestPlaceFields) {
+			if (!placeTypes.contains(type)) {
+				throw new PlaceTypeUndefinedException(type);
+			}
+
+			PlaceIndex lookup = getPlaceLookup();
+			List<Place> typedPlaces = lookup.getByType(type);
+
+			if (typedPlaces.isEmpty()) {
+				return null;
+			}
+
+			int nearest = lookup.getNearestPlaceField(type).nearestFrom(pos);
+
+			// As with the gradients, if none is reachable, take the first
+			return typedPlaces.get(Math.max(nearest, 0));
+		}
+
 		Place nearest = null;
 		double minDistance = -1;
 		Iterator<Place> pIt = getPlacesOfType(type).iterator();
@@ -728,14 +1178,17 @@ public class World {
 	 */
 	public Place getRandomPlaceOfType(final String type)
 			throws PlaceNotFoundException {
-		ArrayList<Place> typedPlaces = new ArrayList<Place>();
-		typedPlaces.addAll(getPlacesOfType(type));
+		if (!placeTypes.contains(type)) {
+			throw new PlaceTypeUndefinedException(type);
+		}
+
+		List<Place> typedPlaces = getPlaceLookup().getByType(type);
 
 		if (typedPlaces.isEmpty()) {
 			throw new PlacesTypeIsEmptyException(type);
 		}
 
-		return (Place) typedPlaces.get(rand.nextInt(typedPlaces.size()));
+		return typedPlaces.get(rand.nextInt(typedPlaces.size()));
 	}
 
 	/**
@@ -864,11 +1317,15 @@ public class World {
 			Agent p = peopleIt.next();
 			people.put(p.getName(), p);
 		}
+
+		agentIndex = new SpatialIndex<Agent>(height, width, people.values());
 	}
 
 	/**
 	 * Keep the simulation from adding any new fields to the info field of
 	 * Agents. The values can still be changed, but no new keys are allowed.
+	 * If agents are kept in an agent store, this is when they're moved to
+	 * it.
 	 * 
 	 */
 	private void freezeInfoFields() {
@@ -886,11 +1343,19 @@ public class World {
 		}
 
 		Agent.lockInfoFields();
+
+		if (columnarAgents) {
+			AgentStore store = new AgentStore(Agent.getInfoKeys());
+			for (Agent p : people.values()) {
+				p.moveToStore(store);
+			}
+			agentStore = store;
+		}
 	}
 
 	/**
-	 * Generate a matrix with the world's walls, out of the image file provided
-	 * in the simulation data.
+	 * Generate a bit map with the world's walls, out of the image file
+	 * provided in the simulation data.
 	 * 
 	 */
 	private void buildWalls() {
@@ -899,16 +1364,25 @@ public class World {
 		height = img.height;
 		width = img.width;
 
-		walls = new boolean[height][width];
+		walls = new WallMap(height, width);
 
 		for (int i = 0; i < height; i++) {
 			int[] colors = new int[width];
 			img.getPixels(0, i, width, colors, 0);
 
 			for (int j = 0; j < width; j++) {
-				walls[i][j] = (colors[j] == COLOR_WHITE);
+				if (colors[j] == COLOR_WHITE) {
+					walls.setWall(i, j);
+				}
 			}
 		}
+
+		gradientCalculator = new GradientCalculator(walls, height, width);
+
+		if (routingSectorSize > 0) {
+			sectorRouter =
+					new SectorRouter(walls, height, width, routingSectorSize);
+		}
 	}
 
 	/**
@@ -925,7 +1399,7 @@ public class World {
 		} catch (Exception e) {
 			throw new RuntimeException("Can't instantiate the world model", e);
 		}
-		places = createPlacesFromImages();
+		places = new PlaceList(createPlacesFromImages());
 		worldModel.createPlaces(places);
 
 	}
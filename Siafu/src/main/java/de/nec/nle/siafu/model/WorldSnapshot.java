@@ -0,0 +1,279 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.model;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import de.nec.nle.siafu.exceptions.UnknownContextException;
+import de.nec.nle.siafu.types.FlatData;
+import de.nec.nle.siafu.types.Publishable;
+import de.nec.nle.siafu.types.Text;
+import de.nec.nle.siafu.types.TypeUtils;
+
+/**
+ * The state of the agents at the end of an iteration. It is taken by the
+ * simulation thread and never changes afterwards, so other threads can read
+ * it while the next iteration changes the agents.
+ * <p>
+ * The agents' positions, destinations and info values are copied, the
+ * info values with <code>TypeUtils.copyOf</code> so that those a model
+ * changes in place keep the value they had; the overlays are not, so their
+ * values are looked up at the copied position.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public final class WorldSnapshot {
+
+	/** The simulation time, in milliseconds. */
+	private final long time;
+
+	/** The world the snapshot was taken of. */
+	private final World world;
+
+	/** The agents, in the order of the columns below. */
+	private final Agent[] agents;
+
+	/** The column of each agent, shared by snapshots of the same agents. */
+	private final Map<Agent, Integer> columnOf;
+
+	/** The column of each info field, shared like the agent columns. */
+	private final Map<String, Integer> fieldOf;
+
+	/** The agent positions. */
+	private final Position[] positions;
+
+	/** Whether each agent was at its destination. */
+	private final boolean[] atDestination;
+
+	/** The agent destinations. */
+	private final Place[] destinations;
+
+	/** The info values, one row of fields per agent. */
+	private final Publishable[] info;
+
+	/**
+	 * Take a snapshot of the world's agents.
+	 * 
+	 * @param world
+	 *            the world
+	 * @param previous
+	 *            the last snapshot taken, whose lookup tables are reused if
+	 *            the agents are the same, or null
+	 */
+	private WorldSnapshot(final World world, final WorldSnapshot previous) {
+		this.world = world;
+		this.time = world.getTime().getTimeInMillis();
+
+		Collection<Agent> people = world.getPeople();
+		agents = people.toArray(new Agent[people.size()]);
+		if (previous != null && previous.world == world
+				&& sameAgents(previous.agents, agents)) {
+			columnOf = previous.columnOf;
+			fieldOf = previous.fieldOf;
+		} else {
+			columnOf = new IdentityHashMap<Agent, Integer>(agents.length);
+			for (int i = 0; i < agents.length; i++) {
+				columnOf.put(agents[i], i);
+			}
+			Set<String> keys = Agent.getInfoKeys();
+			fieldOf = new HashMap<String, Integer>(keys.size());
+			for (String key : keys) {
+				fieldOf.put(key, fieldOf.size());
+			}
+		}
+
+		int fieldCount = fieldOf.size();
+		positions = new Position[agents.length];
+		atDestination = new boolean[agents.length];
+		destinations = new Place[agents.length];
+		info = new Publishable[agents.length * fieldCount];
+		for (int i = 0; i < agents.length; i++) {
+			Agent a = agents[i];
+			positions[i] = a.getPos();
+			atDestination[i] = a.isAtDestination();
+			destinations[i] = a.getDestination();
+			int f = i * fieldCount;
+			a.copyInfoValues(info, f);
+			for (int end = f + fieldCount; f < end; f++) {
+				info[f] = TypeUtils.copyOf(info[f]);
+			}
+		}
+	}
+
+	/**
+	 * Take a snapshot of the world's agents. This must be called by the
+	 * simulation thread, between two iterations.
+	 * 
+	 * @param world
+	 *            the world
+	 * @param previous
+	 *            the last snapshot taken, or null
+	 * @return the snapshot
+	 */
+	public static WorldSnapshot capture(final World world,
+			final WorldSnapshot previous) {
+		return new WorldSnapshot(world, previous);
+	}
+
+	/**
+	 * Check if two arrays hold the same agents in the same order.
+	 * 
+	 * @param a
+	 *            the first array
+	 * @param b
+	 *            the second array
+	 * @return true if they do
+	 */
+	private static boolean sameAgents(final Agent[] a, final Agent[] b) {
+		if (a.length != b.length) {
+			return false;
+		}
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the simulation time of the snapshot.
+	 * 
+	 * @return the time, in milliseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Check whether an agent is in the snapshot, that is, it existed when
+	 * the snapshot was taken.
+	 * 
+	 * @param a
+	 *            the agent
+	 * @return true if it is in the snapshot
+	 */
+	public boolean contains(final Agent a) {
+		return columnOf.containsKey(a);
+	}
+
+	/**
+	 * Find the column of an agent.
+	 * 
+	 * @param a
+	 *            the agent
+	 * @return the column
+	 */
+	private int column(final Agent a) {
+		Integer column = columnOf.get(a);
+		if (column == null) {
+			throw new IllegalArgumentException("Agent " + a.getName()
+					+ " is not in the snapshot");
+		}
+		return column;
+	}
+
+	/**
+	 * Check whether an info field exists.
+	 * 
+	 * @param field
+	 *            the name of the field
+	 * @return true if the agents have it
+	 */
+	public boolean hasInfo(final String field) {
+		return fieldOf.containsKey(field);
+	}
+
+	/**
+	 * Get the value an agent's info field had.
+	 * 
+	 * @param a
+	 *            the agent
+	 * @param field
+	 *            the name of the field
+	 * @return the value, which may be null
+	 * @throws UnknownContextException
+	 *             if there's no such field
+	 */
+	public Publishable getInfo(final Agent a, final String field)
+			throws UnknownContextException {
+		Integer f = fieldOf.get(field);
+		if (f == null) {
+			throw new UnknownContextException(field);
+		}
+		return info[column(a) * fieldOf.size() + f];
+	}
+
+	/**
+	 * Get the position an agent had.
+	 * 
+	 * @param a
+	 *            the agent
+	 * @return the position
+	 */
+	public Position getPos(final Agent a) {
+		return positions[column(a)];
+	}
+
+	/**
+	 * Get an agent's context as it was when the snapshot was taken. This is
+	 * the snapshot's version of <code>Agent.getContext</code>, except that
+	 * info fields set to null are returned as <code>null</code>.
+	 * 
+	 * @param a
+	 *            the agent
+	 * @param ctxName
+	 *            the name of the variable
+	 * @return a FlatData object representing the requested data
+	 * @throws UnknownContextException
+	 *             if the context variable isn't known
+	 */
+	public FlatData getContext(final Agent a, final String ctxName)
+			throws UnknownContextException {
+		int column = column(a);
+		Integer f = fieldOf.get(ctxName);
+		if (f != null) {
+			Publishable value = info[column * fieldOf.size() + f];
+			return value == null ? new FlatData("null") : value.flatten();
+		} else if (world.getOverlays().containsKey(ctxName)) {
+			return world.getOverlays().get(ctxName)
+					.getValue(positions[column]).flatten();
+		} else if (ctxName.equals("Time")) {
+			return new Text("" + time).flatten();
+		} else if (ctxName.equals("Name")) {
+			return new Text(a.getName()).flatten();
+		} else if (ctxName.equals("Position")) {
+			return positions[column].flatten();
+		} else if (ctxName.equals("atDestination")) {
+			return new Text(Boolean.toString(atDestination[column]))
+					.flatten();
+		} else if (ctxName.equals("Destination")) {
+			return destinations[column].flatten();
+		} else {
+			throw new UnknownContextException(ctxName);
+		}
+	}
+}
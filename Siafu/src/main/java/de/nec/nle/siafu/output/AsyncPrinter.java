@@ -0,0 +1,342 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.output;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+
+import de.nec.nle.siafu.model.World;
+
+/**
+ * A printer which hands the writing over to a thread of its own, so that
+ * the simulation doesn't wait for the disk.
+ * <p>
+ * At each printout, the agents are captured into an <code>OutputFrame</code>
+ * taken from a small pool, and the frame is queued for the output thread,
+ * which passes it on to a <code>FrameWriter</code> and returns it to the
+ * pool. The pool holds one frame more than the queue, so that the writer
+ * can work on one while the queue is full.
+ * <p>
+ * When the writer falls behind and the pool runs dry, the
+ * <code>output.async.backpressure</code> setting decides what happens:
+ * <ul>
+ * <li><code>block</code>: the simulation waits for a frame to be written.
+ * No printout is lost.</li>
+ * <li><code>drop</code>: the printout is skipped.</li>
+ * <li><code>coalesce</code>: the newest frame still in the queue is
+ * overwritten with the current state, so the printouts the writer didn't
+ * get to are merged into the latest one.</li>
+ * </ul>
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public class AsyncPrinter implements SimulatorOutputPrinter {
+
+	/**
+	 * What to do when the writer can't keep up with the printouts.
+	 */
+	public enum Backpressure {
+		/**
+		 * Wait for the writer.
+		 */
+		BLOCK,
+		/**
+		 * Skip the printout.
+		 */
+		DROP,
+		/**
+		 * Overwrite the newest queued printout.
+		 */
+		COALESCE
+	}
+
+	/**
+	 * Default amount of printouts that can be waiting for the writer.
+	 */
+	private static final int DEFAULT_QUEUE_SIZE = 4;
+
+	/**
+	 * Conversion factor between seconds and milliseconds.
+	 */
+	private static final int SECOND_TO_MS_FACTOR = 1000;
+
+	/**
+	 * How long, in ms, to wait for the writer before checking whether it
+	 * failed.
+	 */
+	private static final int POLL_MILLIS = 100;
+
+	/**
+	 * The frame queued to tell the output thread to stop.
+	 */
+	private static final OutputFrame END = new OutputFrame();
+
+	/**
+	 * The <code>World</code> we have to print about.
+	 */
+	private World world;
+
+	/**
+	 * The writer the frames are handed to.
+	 */
+	private FrameWriter writer;
+
+	/**
+	 * What to do when the writer can't keep up.
+	 */
+	private Backpressure backpressure;
+
+	/**
+	 * How much simulation time in ms must pass between printouts.
+	 */
+	private int intervalInMillis;
+
+	/**
+	 * The simulation's calendar time of the last printout.
+	 */
+	private long lastPrintoutTime;
+
+	/**
+	 * The frames that are free to capture into.
+	 */
+	private BlockingQueue<OutputFrame> free;
+
+	/**
+	 * The frames waiting for the writer, oldest first.
+	 */
+	private LinkedBlockingDeque<OutputFrame> pending;
+
+	/**
+	 * The thread that runs the writer.
+	 */
+	private Thread outputThread;
+
+	/**
+	 * Whatever the writer threw, if it failed.
+	 */
+	private volatile Throwable failure;
+
+	/**
+	 * The amount of printouts that were skipped.
+	 */
+	private int dropped;
+
+	/**
+	 * The amount of printouts that were merged into a later one.
+	 */
+	private int coalesced;
+
+	/**
+	 * Builds an <code>AsyncPrinter</code> and starts its output thread.
+	 * 
+	 * @param world
+	 *            the world to print about
+	 * @param writer
+	 *            the writer to hand the frames to
+	 * @param intervalInSeconds
+	 *            how much simulation time must pass between printouts
+	 * @param config
+	 *            the simulation configuration file, which holds the queue
+	 *            size and backpressure settings
+	 */
+	public AsyncPrinter(final World world, final FrameWriter writer,
+			final int intervalInSeconds, final Configuration config) {
+		this.world = world;
+		this.writer = writer;
+		this.intervalInMillis = SECOND_TO_MS_FACTOR * intervalInSeconds;
+
+		int queueSize = Math.max(1, config.getInt("output.async.queuesize",
+			DEFAULT_QUEUE_SIZE));
+		String policy = config.getString("output.async.backpressure", "block");
+		try {
+			this.backpressure = Backpressure.valueOf(policy.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new RuntimeException("Unknown output backpressure: "
+					+ policy, e);
+		}
+
+		free = new LinkedBlockingQueue<OutputFrame>();
+		for (int i = 0; i <= queueSize; i++) {
+			free.add(new OutputFrame());
+		}
+		pending = new LinkedBlockingDeque<OutputFrame>(queueSize);
+
+		outputThread = new Thread(new Runnable() {
+			public void run() {
+				writeFrames();
+			}
+		}, "Output thread");
+		outputThread.setDaemon(true);
+		outputThread.start();
+	}
+
+	/**
+	 * Captures the agents and queues them for the writer if
+	 * <code>interval</code> time has passed since the last printout.
+	 */
+	public void notifyIterationConcluded() {
+		checkFailure();
+		long now = world.getTime().getTimeInMillis();
+		if (now - lastPrintoutTime <= intervalInMillis) {
+			return;
+		}
+		lastPrintoutTime = now;
+
+		OutputFrame frame = free.poll();
+		if (frame == null) {
+			if (backpressure == Backpressure.DROP) {
+				dropped++;
+				return;
+			}
+			if (backpressure == Backpressure.COALESCE) {
+				frame = pending.pollLast();
+				if (frame != null) {
+					coalesced++;
+				}
+			}
+			if (frame == null) {
+				frame = takeFree();
+			}
+		}
+
+		frame.capture(world);
+		enqueue(frame);
+	}
+
+	/**
+	 * Wait for a free frame.
+	 * 
+	 * @return the frame
+	 */
+	private OutputFrame takeFree() {
+		try {
+			OutputFrame frame;
+			do {
+				checkFailure();
+				frame = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} while (frame == null);
+			return frame;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the "
+					+ "output writer", e);
+		}
+	}
+
+	/**
+	 * Queue a frame for the writer, waiting for room if needed.
+	 * 
+	 * @param frame
+	 *            the frame to queue
+	 */
+	private void enqueue(final OutputFrame frame) {
+		try {
+			while (!pending.offerLast(frame, POLL_MILLIS,
+				TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the "
+					+ "output writer", e);
+		}
+	}
+
+	/**
+	 * The output thread's loop: write the queued frames until told to stop.
+	 */
+	private void writeFrames() {
+		try {
+			while (true) {
+				OutputFrame frame = pending.takeFirst();
+				if (frame == END) {
+					return;
+				}
+				writer.write(frame);
+				free.add(frame);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Throwable t) {
+			failure = t;
+		}
+	}
+
+	/**
+	 * Throw the writer's failure on the simulation thread, if there was
+	 * one.
+	 */
+	private void checkFailure() {
+		if (failure != null) {
+			throw new RuntimeException("The output writer failed", failure);
+		}
+	}
+
+	/**
+	 * Get the amount of printouts that were skipped because the writer
+	 * couldn't keep up.
+	 * 
+	 * @return the amount of dropped printouts
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Get the amount of printouts that were merged into a later one because
+	 * the writer couldn't keep up.
+	 * 
+	 * @return the amount of coalesced printouts
+	 */
+	public int getCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * Waits for the queued frames to be written, stops the output thread
+	 * and closes the writer.
+	 */
+	public void cleanup() {
+		if (failure == null) {
+			enqueue(END);
+			try {
+				outputThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for "
+						+ "the output writer", e);
+			}
+		}
+		writer.close();
+		checkFailure();
+
+		if (dropped > 0 || coalesced > 0) {
+			System.out.println("Output couldn't keep up: " + dropped
+					+ " printouts dropped, " + coalesced + " coalesced");
+		}
+	}
+
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.output;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+
+import de.nec.nle.siafu.model.Agent;
+import de.nec.nle.siafu.model.Overlay;
+import de.nec.nle.siafu.model.Position;
+import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.types.BooleanType;
+import de.nec.nle.siafu.types.EasyTime;
+import de.nec.nle.siafu.types.FloatNumber;
+import de.nec.nle.siafu.types.IntegerNumber;
+import de.nec.nle.siafu.types.Publishable;
+import de.nec.nle.siafu.types.Text;
+
+/**
+ * Writes frames in the CSV format of the <code>CSVPrinter</code>, byte for
+ * byte, without building a new string per field.
+ * <p>
+ * Rows are appended to a single reusable <code>StringBuilder</code>, and
+ * every few rows the builder is encoded into a reusable byte buffer and
+ * written to the file's channel in UTF-8. The values of the common types
+ * (<code>Text</code>, <code>BooleanType</code>, <code>IntegerNumber</code>,
+ * <code>FloatNumber</code> and <code>EasyTime</code>) are written straight
+ * into the builder, in the same form their <code>flatten()</code> would
+ * produce; any other type falls back to <code>flatten()</code>. The
+ * formatter used for each info field is remembered, so the type lookup
+ * only happens when a column changes type.
+ * <p>
+ * Unlike the <code>CSVPrinter</code>, non-ASCII text is written in full,
+ * rather than cut to its length in characters.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public class CSVFrameWriter implements FrameWriter {
+
+	/**
+	 * The size of the byte buffer we encode into before writing to the file.
+	 */
+	private static final int BUFFER_SIZE = 102400;
+
+	/**
+	 * How many characters we let the row builder accumulate before encoding
+	 * them into the file.
+	 */
+	private static final int FLUSH_THRESHOLD = 32768;
+
+	/**
+	 * The prefix of a flattened <code>Text</code>, used for the time, the
+	 * agent name and the overlay values.
+	 */
+	private static final String TEXT_PREFIX = "Text:";
+
+	/**
+	 * The prefix of a flattened <code>BooleanType</code>.
+	 */
+	private static final String BOOLEAN_PREFIX = "BooleanType:";
+
+	/**
+	 * The prefix of a flattened <code>Position</code>.
+	 */
+	private static final String POSITION_PREFIX = Position.class.getName()
+			+ ":";
+
+	/**
+	 * Appends a value to a row, exactly as its flattened form would read.
+	 */
+	private abstract static class FieldFormatter {
+		/**
+		 * Append the value to the row.
+		 * 
+		 * @param row
+		 *            the row being built
+		 * @param value
+		 *            the value to append
+		 */
+		abstract void append(StringBuilder row, Publishable value);
+	}
+
+	/**
+	 * The formatter for types we don't know about, which uses their
+	 * <code>flatten()</code>.
+	 */
+	private static final FieldFormatter GENERIC = new FieldFormatter() {
+		void append(final StringBuilder row, final Publishable value) {
+			row.append(value.flatten().getData());
+		}
+	};
+
+	/**
+	 * The formatters of the common types, by their exact class.
+	 */
+	private static final Map<Class<?>, FieldFormatter> FORMATTERS =
+			new HashMap<Class<?>, FieldFormatter>();
+
+	static {
+		FORMATTERS.put(Text.class, new FieldFormatter() {
+			void append(final StringBuilder row, final Publishable value) {
+				row.append(TEXT_PREFIX).append(((Text) value).getText());
+			}
+		});
+		FORMATTERS.put(BooleanType.class, new FieldFormatter() {
+			void append(final StringBuilder row, final Publishable value) {
+				row.append(BOOLEAN_PREFIX).append(value.toString());
+			}
+		});
+		FORMATTERS.put(IntegerNumber.class, new FieldFormatter() {
+			void append(final StringBuilder row, final Publishable value) {
+				row.append("IntegerNumber:").append(
+					((IntegerNumber) value).getNumber());
+			}
+		});
+		FORMATTERS.put(FloatNumber.class, new FieldFormatter() {
+			void append(final StringBuilder row, final Publishable value) {
+				row.append("FloatNumber:").append(
+					((FloatNumber) value).getNumber());
+			}
+		});
+		FORMATTERS.put(EasyTime.class, new FieldFormatter() {
+			void append(final StringBuilder row, final Publishable value) {
+				EasyTime time = (EasyTime) value;
+				row.append("EasyTime:").append(time.getHour()).append('#')
+						.append(time.getMinute());
+			}
+		});
+	}
+
+	/**
+	 * The <code>World</code> we have to print about. Only its overlays,
+	 * which don't change, are looked at while writing.
+	 */
+	private World world;
+
+	/**
+	 * A position the agents' positions are rebuilt in, to find their
+	 * coordinates and overlay values.
+	 */
+	private Position scratch;
+
+	/**
+	 * The world's overlays, in header order.
+	 */
+	private Overlay[] overlays;
+
+	/**
+	 * The header to print at the beginning of each output file.
+	 */
+	private String header;
+
+	/**
+	 * The file name where the printout is to be stored.
+	 */
+	private String outputPath;
+
+	/**
+	 * The <code>File</code> in which we store the printed information. This is
+	 * a temporary file if the simulation doesn't keep the history, or
+	 * directly the configured file if history is kept.
+	 */
+	private File outputFile;
+
+	/**
+	 * The stream we opened the output file with.
+	 */
+	private FileOutputStream stream;
+
+	/**
+	 * The channel of the output file.
+	 */
+	private FileChannel channel;
+
+	/**
+	 * If set to true, keep the data from the previous iteration in the
+	 * output file.
+	 */
+	private boolean keepHistory;
+
+	/**
+	 * The builder the rows are written into, reused throughout the
+	 * simulation.
+	 */
+	private final StringBuilder row = new StringBuilder(FLUSH_THRESHOLD * 2);
+
+	/**
+	 * The characters of the builder, copied out for the encoder.
+	 */
+	private char[] chars = new char[0];
+
+	/**
+	 * A view on <code>chars</code>.
+	 */
+	private CharBuffer charBuffer = CharBuffer.wrap(chars);
+
+	/**
+	 * The buffer the characters are encoded into.
+	 */
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * The UTF-8 encoder, which replaces the characters it can't encode like
+	 * <code>String.getBytes()</code> does.
+	 */
+	private final CharsetEncoder encoder = Charset.forName("UTF-8")
+			.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * The class of the last value seen in each info field column.
+	 */
+	private Class<?>[] columnClasses = new Class<?>[0];
+
+	/**
+	 * The formatter for the class in <code>columnClasses</code>.
+	 */
+	private FieldFormatter[] columnFormatters = new FieldFormatter[0];
+
+	/**
+	 * Builds a <code>CSVFrameWriter</code>. If history is to be kept, this
+	 * already initializes the output file.
+	 * 
+	 * @param world
+	 *            the world to print about
+	 * @param config
+	 *            the simulation configuration file
+	 */
+	public CSVFrameWriter(final World world, final Configuration config) {
+		this.world = world;
+		this.outputPath = config.getString("output.csv.path");
+		this.keepHistory = config.getBoolean("output.csv.keephistory");
+		this.overlays = world.getOverlays().values().toArray(new Overlay[0]);
+		this.scratch = new Position(0, 0);
+
+		this.header = createHeader();
+
+		if (keepHistory) {
+			initializeFile(outputPath);
+		}
+	}
+
+	/**
+	 * Create the header line of the CSV file, as the <code>CSVPrinter</code>
+	 * does.
+	 * 
+	 * @return the generated header
+	 */
+	private String createHeader() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("time,entityID,position,atDestination");
+
+		for (String field : Agent.getInfoKeys()) {
+			sb.append(',').append(field);
+		}
+
+		for (String overlay : world.getOverlays().keySet()) {
+			sb.append(',').append(overlay);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Writes a frame to the output file. This will wipe out the old
+	 * information in the file, unless the <code>keepHistory</code> option
+	 * has been enabled in the config file.
+	 * 
+	 * @param frame
+	 *            the frame to write
+	 */
+	public void write(final OutputFrame frame) {
+		if (!keepHistory) {
+			initializeFile(outputPath + ".tmp");
+		}
+
+		for (int i = 0; i < frame.size(); i++) {
+			add(frame, i);
+		}
+		drain();
+
+		if (!keepHistory) {
+			close();
+			outputFile.renameTo(new File(outputPath));
+		}
+	}
+
+	/**
+	 * Creates the file to print to, and adds the header.
+	 * 
+	 * @param filePath
+	 *            the path to the file where we store the printed data
+	 */
+	private void initializeFile(final String filePath) {
+		try {
+			outputFile = new File(filePath);
+			stream = new FileOutputStream(outputFile);
+			channel = stream.getChannel();
+		} catch (Exception e) {
+			throw new RuntimeException("Can't create the output file: "
+					+ filePath, e);
+		}
+
+		row.append(header).append('\n');
+		drain();
+	}
+
+	/**
+	 * Add an agent's info to the printed data.
+	 * 
+	 * @param frame
+	 *            the frame being written
+	 * @param agent
+	 *            the index of the agent to print
+	 */
+	private void add(final OutputFrame frame, final int agent) {
+		scratch.setRow(frame.getRow(agent));
+		scratch.setCol(frame.getCol(agent));
+
+		row.append(TEXT_PREFIX).append(frame.getTime()).append(',');
+		row.append(TEXT_PREFIX).append(frame.getName(agent)).append(',');
+		double[] coords = scratch.getCoordinates();
+		row.append(POSITION_PREFIX).append(coords[0]).append('#').append(
+			coords[1]);
+		row.append(',').append(BOOLEAN_PREFIX).append(
+			frame.isAtDestination(agent));
+
+		int fields = frame.getFieldCount();
+		if (columnClasses.length < fields) {
+			columnClasses = new Class<?>[fields];
+			columnFormatters = new FieldFormatter[fields];
+		}
+		for (int f = 0; f < fields; f++) {
+			Publishable info = frame.getInfo(agent, f);
+			if (info == null) {
+				throw new RuntimeException(
+						"You can't have null values in the Agent's info if you are using a CSVPrinter");
+			}
+			row.append(',');
+			formatterFor(f, info).append(row, info);
+		}
+
+		for (Overlay overlay : overlays) {
+			row.append(',').append(TEXT_PREFIX).append(
+				String.valueOf(overlay.getValue(scratch)));
+		}
+		row.append('\n');
+
+		if (row.length() >= FLUSH_THRESHOLD) {
+			drain();
+		}
+	}
+
+	/**
+	 * Find the formatter for a value of an info field column, reusing the
+	 * one of the previous row if the type didn't change.
+	 * 
+	 * @param column
+	 *            the column the value goes in
+	 * @param value
+	 *            the value to format
+	 * @return the formatter to use
+	 */
+	private FieldFormatter formatterFor(final int column,
+			final Publishable value) {
+		Class<?> type = value.getClass();
+		if (columnClasses[column] != type) {
+			FieldFormatter formatter = FORMATTERS.get(type);
+			columnClasses[column] = type;
+			columnFormatters[column] = formatter != null ? formatter : GENERIC;
+		}
+		return columnFormatters[column];
+	}
+
+	/**
+	 * Encode whatever is in the row builder into the output file, and empty
+	 * the builder.
+	 */
+	private void drain() {
+		int length = row.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+			charBuffer = CharBuffer.wrap(chars);
+		}
+		row.getChars(0, length, chars, 0);
+		row.setLength(0);
+		charBuffer.clear();
+		charBuffer.limit(length);
+
+		encoder.reset();
+		try {
+			CoderResult result;
+			do {
+				result = encoder.encode(charBuffer, bytes, true);
+				writeBytes();
+			} while (result.isOverflow());
+			while (encoder.flush(bytes).isOverflow()) {
+				writeBytes();
+			}
+			writeBytes();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't write the output file", e);
+		}
+	}
+
+	/**
+	 * Write the encoded bytes to the file and clear the byte buffer.
+	 * 
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	private void writeBytes() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+	}
+
+	/**
+	 * Flushes the remaining data, and closes the output file.
+	 */
+	public void close() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			drain();
+			channel.close();
+			stream.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't close the output file", e);
+		}
+	}
+
+}
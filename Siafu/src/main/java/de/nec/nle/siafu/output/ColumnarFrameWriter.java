@@ -0,0 +1,470 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+
+import de.nec.nle.siafu.model.Agent;
+import de.nec.nle.siafu.model.Overlay;
+import de.nec.nle.siafu.model.Position;
+import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.types.BooleanType;
+import de.nec.nle.siafu.types.EasyTime;
+import de.nec.nle.siafu.types.FloatNumber;
+import de.nec.nle.siafu.types.IntegerNumber;
+import de.nec.nle.siafu.types.Publishable;
+import de.nec.nle.siafu.types.Text;
+
+/**
+ * Writes frames into a compact binary file, one row group per printout,
+ * with a typed column per field. The file is meant to be read back with a
+ * <code>ColumnarReader</code>, and looks like this (all numbers are big
+ * endian, as written by a <code>DataOutputStream</code>):
+ * 
+ * <pre>
+ * file    := &quot;SIAFUCOL&quot; version:int
+ *            fields:int string{fields} overlays:int string{overlays}
+ *            group* 'E'
+ * group   := 'G' time:long rows:int words:int string{words}
+ *            name:int{rows} latitude:double{rows} longitude:double{rows}
+ *            atDestination:bits column{fields} column{overlays}
+ * column  := TEXT word:int{rows}
+ *          | BOOLEAN bits
+ *          | INTEGER int{rows}
+ *          | FLOAT double{rows}
+ *          | EASYTIME hour:int{rows} minute:int{rows}
+ *          | FLAT word:int{rows}
+ * bits    := byte{(rows + 7) / 8}, lowest bit first
+ * string  := length:int utf8:byte{length}
+ * </pre>
+ * 
+ * Strings are dictionary encoded: each group starts with the words that
+ * weren't seen in earlier groups, which take the next numbers in the
+ * dictionary, and the name and text columns refer to them by number. A
+ * column is typed after the values it holds in the group; if they aren't
+ * all of the same known type, the column is <code>FLAT</code> and holds
+ * the words of their flattened form, or -1 for null values.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public class ColumnarFrameWriter implements FrameWriter {
+
+	/** The first bytes of every columnar file. */
+	static final String MAGIC = "SIAFUCOL";
+
+	/** The version of the format. */
+	static final int VERSION = 1;
+
+	/** Marks the beginning of a row group. */
+	static final byte GROUP = 'G';
+
+	/** Marks the end of the file. */
+	static final byte END = 'E';
+
+	/** A column of <code>Text</code> words. */
+	static final byte TEXT = 1;
+
+	/** A column of <code>BooleanType</code> bits. */
+	static final byte BOOLEAN = 2;
+
+	/** A column of <code>IntegerNumber</code> values. */
+	static final byte INTEGER = 3;
+
+	/** A column of <code>FloatNumber</code> values. */
+	static final byte FLOAT = 4;
+
+	/** A column of <code>EasyTime</code> hours and minutes. */
+	static final byte EASYTIME = 5;
+
+	/** A column of flattened values of any type. */
+	static final byte FLAT = 6;
+
+	/**
+	 * The word written for null values in a <code>FLAT</code> column.
+	 */
+	static final int NULL_WORD = -1;
+
+	/**
+	 * The size of the buffer used when writing the output file.
+	 */
+	private static final int BUFFER_SIZE = 102400;
+
+	/**
+	 * The kind of column for each of the known types.
+	 */
+	private static final Map<Class<?>, Byte> KINDS =
+			new HashMap<Class<?>, Byte>();
+
+	static {
+		KINDS.put(Text.class, TEXT);
+		KINDS.put(BooleanType.class, BOOLEAN);
+		KINDS.put(IntegerNumber.class, INTEGER);
+		KINDS.put(FloatNumber.class, FLOAT);
+		KINDS.put(EasyTime.class, EASYTIME);
+	}
+
+	/**
+	 * The output file.
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * The buffer each group's columns are written to, before we know which
+	 * words the group adds to the dictionary.
+	 */
+	private ByteArrayOutputStream groupBytes = new ByteArrayOutputStream();
+
+	/**
+	 * The stream over <code>groupBytes</code>.
+	 */
+	private DataOutputStream group = new DataOutputStream(groupBytes);
+
+	/**
+	 * The number of every word written so far.
+	 */
+	private Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+	/**
+	 * The words the current group adds to the dictionary.
+	 */
+	private List<String> newWords = new ArrayList<String>();
+
+	/**
+	 * The world's overlays, in header order.
+	 */
+	private Overlay[] overlays;
+
+	/**
+	 * A position the agents' positions are rebuilt in, to find their
+	 * coordinates and overlay values.
+	 */
+	private Position scratch;
+
+	/**
+	 * The latitude of each agent in the current group.
+	 */
+	private double[] latitudes = new double[0];
+
+	/**
+	 * The longitude of each agent in the current group.
+	 */
+	private double[] longitudes = new double[0];
+
+	/**
+	 * The bits of the boolean column being written.
+	 */
+	private boolean[] bits = new boolean[0];
+
+	/**
+	 * The values of the info field column being written.
+	 */
+	private Publishable[] column = new Publishable[0];
+
+	/**
+	 * The value of each overlay at each agent's position.
+	 */
+	private Publishable[][] overlayValues;
+
+	/**
+	 * Builds a <code>ColumnarFrameWriter</code> and writes the file header.
+	 * 
+	 * @param world
+	 *            the world to print about
+	 * @param config
+	 *            the simulation configuration file
+	 */
+	public ColumnarFrameWriter(final World world,
+			final Configuration config) {
+		String path = config.getString("output.columnar.path", config
+				.getString("output.csv.path")
+				+ ".sfc");
+		this.overlays = world.getOverlays().values().toArray(new Overlay[0]);
+		this.overlayValues = new Publishable[overlays.length][0];
+		this.scratch = new Position(0, 0);
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(path), BUFFER_SIZE));
+		} catch (Exception e) {
+			throw new RuntimeException("Can't create the output file: "
+					+ path, e);
+		}
+
+		try {
+			out.writeBytes(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(Agent.getInfoKeys().size());
+			for (String field : Agent.getInfoKeys()) {
+				writeString(out, field);
+			}
+			out.writeInt(overlays.length);
+			for (String overlay : world.getOverlays().keySet()) {
+				writeString(out, overlay);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Can't write the output file", e);
+		}
+	}
+
+	/**
+	 * Writes a frame as a row group.
+	 * 
+	 * @param frame
+	 *            the frame to write
+	 */
+	public void write(final OutputFrame frame) {
+		int rows = frame.size();
+		ensureCapacity(rows);
+		groupBytes.reset();
+		newWords.clear();
+
+		for (int i = 0; i < rows; i++) {
+			scratch.setRow(frame.getRow(i));
+			scratch.setCol(frame.getCol(i));
+			double[] coords = scratch.getCoordinates();
+			latitudes[i] = coords[0];
+			longitudes[i] = coords[1];
+			for (int o = 0; o < overlays.length; o++) {
+				overlayValues[o][i] = overlays[o].getValue(scratch);
+			}
+		}
+
+		try {
+			for (int i = 0; i < rows; i++) {
+				group.writeInt(wordOf(frame.getName(i)));
+			}
+			for (int i = 0; i < rows; i++) {
+				group.writeDouble(latitudes[i]);
+			}
+			for (int i = 0; i < rows; i++) {
+				group.writeDouble(longitudes[i]);
+			}
+			for (int i = 0; i < rows; i++) {
+				bits[i] = frame.isAtDestination(i);
+			}
+			writeBits(rows);
+
+			for (int f = 0; f < frame.getFieldCount(); f++) {
+				for (int i = 0; i < rows; i++) {
+					column[i] = frame.getInfo(i, f);
+				}
+				writeColumn(column, rows);
+			}
+			for (int o = 0; o < overlays.length; o++) {
+				writeColumn(overlayValues[o], rows);
+			}
+
+			out.writeByte(GROUP);
+			out.writeLong(frame.getTime());
+			out.writeInt(rows);
+			out.writeInt(newWords.size());
+			for (String word : newWords) {
+				writeString(out, word);
+			}
+			groupBytes.writeTo(out);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't write the output file", e);
+		}
+	}
+
+	/**
+	 * Grow the per-row arrays to hold at least the given amount of rows.
+	 * 
+	 * @param rows
+	 *            the amount of rows to make room for
+	 */
+	private void ensureCapacity(final int rows) {
+		if (latitudes.length >= rows) {
+			return;
+		}
+		latitudes = new double[rows];
+		longitudes = new double[rows];
+		bits = new boolean[rows];
+		column = new Publishable[rows];
+		for (int o = 0; o < overlays.length; o++) {
+			overlayValues[o] = new Publishable[rows];
+		}
+	}
+
+	/**
+	 * Find the kind of column that fits all the values.
+	 * 
+	 * @param values
+	 *            the values of the column
+	 * @param rows
+	 *            the amount of values
+	 * @return the kind of column
+	 */
+	private static byte kindOf(final Publishable[] values, final int rows) {
+		if (rows == 0 || values[0] == null) {
+			return FLAT;
+		}
+		Class<?> type = values[0].getClass();
+		Byte kind = KINDS.get(type);
+		if (kind == null) {
+			return FLAT;
+		}
+		for (int i = 0; i < rows; i++) {
+			if (values[i] == null || values[i].getClass() != type) {
+				return FLAT;
+			}
+			if (kind == TEXT && ((Text) values[i]).getText() == null) {
+				return FLAT;
+			}
+		}
+		return kind;
+	}
+
+	/**
+	 * Write a column of values, typed after the values it holds.
+	 * 
+	 * @param values
+	 *            the values of the column
+	 * @param rows
+	 *            the amount of values
+	 * @throws IOException
+	 *             if the column can't be written
+	 */
+	private void writeColumn(final Publishable[] values, final int rows)
+			throws IOException {
+		byte kind = kindOf(values, rows);
+		group.writeByte(kind);
+		switch (kind) {
+		case TEXT:
+			for (int i = 0; i < rows; i++) {
+				group.writeInt(wordOf(((Text) values[i]).getText()));
+			}
+			break;
+		case BOOLEAN:
+			for (int i = 0; i < rows; i++) {
+				bits[i] = ((BooleanType) values[i]).getValue();
+			}
+			writeBits(rows);
+			break;
+		case INTEGER:
+			for (int i = 0; i < rows; i++) {
+				group.writeInt(((IntegerNumber) values[i]).getNumber());
+			}
+			break;
+		case FLOAT:
+			for (int i = 0; i < rows; i++) {
+				group.writeDouble(((FloatNumber) values[i]).getNumber());
+			}
+			break;
+		case EASYTIME:
+			for (int i = 0; i < rows; i++) {
+				group.writeInt(((EasyTime) values[i]).getHour());
+			}
+			for (int i = 0; i < rows; i++) {
+				group.writeInt(((EasyTime) values[i]).getMinute());
+			}
+			break;
+		default:
+			for (int i = 0; i < rows; i++) {
+				if (values[i] == null) {
+					group.writeInt(NULL_WORD);
+				} else {
+					group.writeInt(wordOf(values[i].flatten().getData()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the first <code>rows</code> entries of <code>bits</code>,
+	 * eight to a byte.
+	 * 
+	 * @param rows
+	 *            the amount of bits
+	 * @throws IOException
+	 *             if the bits can't be written
+	 */
+	private void writeBits(final int rows) throws IOException {
+		for (int i = 0; i < rows; i += Byte.SIZE) {
+			int b = 0;
+			for (int k = 0; k < Byte.SIZE && i + k < rows; k++) {
+				if (bits[i + k]) {
+					b |= 1 << k;
+				}
+			}
+			group.writeByte(b);
+		}
+	}
+
+	/**
+	 * Find the number of a word in the dictionary, adding it to it if it's
+	 * new.
+	 * 
+	 * @param word
+	 *            the word
+	 * @return the word's number
+	 */
+	private int wordOf(final String word) {
+		Integer number = dictionary.get(word);
+		if (number == null) {
+			number = dictionary.size();
+			dictionary.put(word, number);
+			newWords.add(word);
+		}
+		return number;
+	}
+
+	/**
+	 * Write a string as its length in bytes followed by its UTF-8 bytes.
+	 * 
+	 * @param stream
+	 *            the stream to write to
+	 * @param s
+	 *            the string
+	 * @throws IOException
+	 *             if the string can't be written
+	 */
+	static void writeString(final DataOutputStream stream, final String s)
+			throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		stream.writeInt(bytes.length);
+		stream.write(bytes);
+	}
+
+	/**
+	 * Marks the end of the file and closes it.
+	 */
+	public void close() {
+		try {
+			out.writeByte(END);
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't close the output file", e);
+		}
+	}
+
+}
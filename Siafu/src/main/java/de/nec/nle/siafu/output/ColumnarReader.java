@@ -0,0 +1,519 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.output;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.nec.nle.siafu.types.BooleanType;
+import de.nec.nle.siafu.types.EasyTime;
+import de.nec.nle.siafu.types.FlatData;
+import de.nec.nle.siafu.types.FloatNumber;
+import de.nec.nle.siafu.types.IntegerNumber;
+import de.nec.nle.siafu.types.Publishable;
+import de.nec.nle.siafu.types.Text;
+
+/**
+ * Reads back the files written by a <code>ColumnarFrameWriter</code>, one
+ * row group at a time. After each successful call to <code>next()</code>,
+ * the getters give access to the rows of that group.
+ * <p>
+ * Run from the command line with a file name, it prints the file as plain
+ * comma separated values.
+ * 
+ * @author Miquel Martin
+ * @see ColumnarFrameWriter
+ */
+public class ColumnarReader {
+
+	/**
+	 * The values of one column of the current group.
+	 */
+	private static final class Column {
+		/** The kind of column, as in <code>ColumnarFrameWriter</code>. */
+		private byte kind;
+
+		/** The words, numbers or hours of the column. */
+		private int[] ints = new int[0];
+
+		/** The minutes of an <code>EASYTIME</code> column. */
+		private int[] minutes = new int[0];
+
+		/** The values of a <code>FLOAT</code> column. */
+		private double[] doubles = new double[0];
+
+		/** The values of a <code>BOOLEAN</code> column. */
+		private boolean[] bits = new boolean[0];
+	}
+
+	/**
+	 * The file being read.
+	 */
+	private DataInputStream in;
+
+	/**
+	 * The names of the agents' info fields.
+	 */
+	private List<String> infoKeys = new ArrayList<String>();
+
+	/**
+	 * The names of the overlays.
+	 */
+	private List<String> overlayNames = new ArrayList<String>();
+
+	/**
+	 * The dictionary of words read so far.
+	 */
+	private List<String> words = new ArrayList<String>();
+
+	/**
+	 * The time of the current group.
+	 */
+	private long time;
+
+	/**
+	 * The amount of rows in the current group.
+	 */
+	private int rows;
+
+	/**
+	 * The word of each agent's name.
+	 */
+	private int[] names = new int[0];
+
+	/**
+	 * The latitude of each agent.
+	 */
+	private double[] latitudes = new double[0];
+
+	/**
+	 * The longitude of each agent.
+	 */
+	private double[] longitudes = new double[0];
+
+	/**
+	 * Whether each agent was at its destination.
+	 */
+	private boolean[] atDestination = new boolean[0];
+
+	/**
+	 * The info field columns, followed by the overlay columns.
+	 */
+	private Column[] columns;
+
+	/**
+	 * Open a columnar file and read its header.
+	 * 
+	 * @param path
+	 *            the path to the file
+	 */
+	public ColumnarReader(final String path) {
+		this(open(path));
+	}
+
+	/**
+	 * Read a columnar file's header from a stream.
+	 * 
+	 * @param stream
+	 *            the stream holding the file
+	 */
+	public ColumnarReader(final InputStream stream) {
+		this.in = new DataInputStream(new BufferedInputStream(stream));
+		try {
+			byte[] magic = new byte[ColumnarFrameWriter.MAGIC.length()];
+			in.readFully(magic);
+			if (!new String(magic, "US-ASCII")
+					.equals(ColumnarFrameWriter.MAGIC)) {
+				throw new RuntimeException("Not a columnar Siafu file");
+			}
+			int version = in.readInt();
+			if (version != ColumnarFrameWriter.VERSION) {
+				throw new RuntimeException("Unsupported columnar version: "
+						+ version);
+			}
+			int fields = in.readInt();
+			for (int f = 0; f < fields; f++) {
+				infoKeys.add(readString());
+			}
+			int overlays = in.readInt();
+			for (int o = 0; o < overlays; o++) {
+				overlayNames.add(readString());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Can't read the columnar file", e);
+		}
+
+		columns = new Column[infoKeys.size() + overlayNames.size()];
+		for (int c = 0; c < columns.length; c++) {
+			columns[c] = new Column();
+		}
+	}
+
+	/**
+	 * Open a file for reading.
+	 * 
+	 * @param path
+	 *            the path to the file
+	 * @return the stream
+	 */
+	private static InputStream open(final String path) {
+		try {
+			return new FileInputStream(path);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't open the columnar file: "
+					+ path, e);
+		}
+	}
+
+	/**
+	 * Read the next row group.
+	 * 
+	 * @return true if there was one, false at the end of the file
+	 */
+	public boolean next() {
+		try {
+			int marker;
+			try {
+				marker = in.readByte();
+			} catch (EOFException e) {
+				// The simulation didn't get to close the file
+				return false;
+			}
+			if (marker == ColumnarFrameWriter.END) {
+				return false;
+			} else if (marker != ColumnarFrameWriter.GROUP) {
+				throw new RuntimeException("Corrupt columnar file");
+			}
+
+			time = in.readLong();
+			rows = in.readInt();
+			int newWords = in.readInt();
+			for (int w = 0; w < newWords; w++) {
+				words.add(readString());
+			}
+			ensureCapacity(rows);
+
+			for (int i = 0; i < rows; i++) {
+				names[i] = in.readInt();
+			}
+			for (int i = 0; i < rows; i++) {
+				latitudes[i] = in.readDouble();
+			}
+			for (int i = 0; i < rows; i++) {
+				longitudes[i] = in.readDouble();
+			}
+			readBits(atDestination);
+			for (Column column : columns) {
+				readColumn(column);
+			}
+			return true;
+		} catch (IOException e) {
+			throw new RuntimeException("Can't read the columnar file", e);
+		}
+	}
+
+	/**
+	 * Grow the per-row arrays to hold at least the given amount of rows.
+	 * 
+	 * @param size
+	 *            the amount of rows to make room for
+	 */
+	private void ensureCapacity(final int size) {
+		if (names.length >= size) {
+			return;
+		}
+		names = new int[size];
+		latitudes = new double[size];
+		longitudes = new double[size];
+		atDestination = new boolean[size];
+		for (Column column : columns) {
+			column.ints = new int[size];
+			column.minutes = new int[size];
+			column.doubles = new double[size];
+			column.bits = new boolean[size];
+		}
+	}
+
+	/**
+	 * Read a column of the current group.
+	 * 
+	 * @param column
+	 *            the column to read into
+	 * @throws IOException
+	 *             if the column can't be read
+	 */
+	private void readColumn(final Column column) throws IOException {
+		column.kind = in.readByte();
+		switch (column.kind) {
+		case ColumnarFrameWriter.BOOLEAN:
+			readBits(column.bits);
+			break;
+		case ColumnarFrameWriter.FLOAT:
+			for (int i = 0; i < rows; i++) {
+				column.doubles[i] = in.readDouble();
+			}
+			break;
+		case ColumnarFrameWriter.EASYTIME:
+			for (int i = 0; i < rows; i++) {
+				column.ints[i] = in.readInt();
+			}
+			for (int i = 0; i < rows; i++) {
+				column.minutes[i] = in.readInt();
+			}
+			break;
+		case ColumnarFrameWriter.TEXT:
+		case ColumnarFrameWriter.INTEGER:
+		case ColumnarFrameWriter.FLAT:
+			for (int i = 0; i < rows; i++) {
+				column.ints[i] = in.readInt();
+			}
+			break;
+		default:
+			throw new RuntimeException("Unknown column kind: " + column.kind);
+		}
+	}
+
+	/**
+	 * Read <code>rows</code> bits, eight to a byte.
+	 * 
+	 * @param bits
+	 *            the array to read into
+	 * @throws IOException
+	 *             if the bits can't be read
+	 */
+	private void readBits(final boolean[] bits) throws IOException {
+		for (int i = 0; i < rows; i += Byte.SIZE) {
+			int b = in.readUnsignedByte();
+			for (int k = 0; k < Byte.SIZE && i + k < rows; k++) {
+				bits[i + k] = (b & (1 << k)) != 0;
+			}
+		}
+	}
+
+	/**
+	 * Read a string written by <code>ColumnarFrameWriter</code>.
+	 * 
+	 * @return the string
+	 * @throws IOException
+	 *             if the string can't be read
+	 */
+	private String readString() throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Get the names of the agents' info fields, in column order.
+	 * 
+	 * @return the info field names
+	 */
+	public List<String> getInfoKeys() {
+		return Collections.unmodifiableList(infoKeys);
+	}
+
+	/**
+	 * Get the names of the overlays, in column order.
+	 * 
+	 * @return the overlay names
+	 */
+	public List<String> getOverlayNames() {
+		return Collections.unmodifiableList(overlayNames);
+	}
+
+	/**
+	 * Get the simulation time of the current group.
+	 * 
+	 * @return the time, in ms
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Get the amount of rows in the current group.
+	 * 
+	 * @return the amount of rows
+	 */
+	public int size() {
+		return rows;
+	}
+
+	/**
+	 * Get the name of the agent in a row.
+	 * 
+	 * @param row
+	 *            the row
+	 * @return the agent's name
+	 */
+	public String getName(final int row) {
+		return words.get(names[row]);
+	}
+
+	/**
+	 * Get the latitude of the agent in a row.
+	 * 
+	 * @param row
+	 *            the row
+	 * @return the latitude
+	 */
+	public double getLatitude(final int row) {
+		return latitudes[row];
+	}
+
+	/**
+	 * Get the longitude of the agent in a row.
+	 * 
+	 * @param row
+	 *            the row
+	 * @return the longitude
+	 */
+	public double getLongitude(final int row) {
+		return longitudes[row];
+	}
+
+	/**
+	 * Find out if the agent in a row was at its destination.
+	 * 
+	 * @param row
+	 *            the row
+	 * @return true if the agent was at its destination
+	 */
+	public boolean isAtDestination(final int row) {
+		return atDestination[row];
+	}
+
+	/**
+	 * Get the value of an info field of the agent in a row.
+	 * 
+	 * @param row
+	 *            the row
+	 * @param field
+	 *            the field's index in <code>getInfoKeys()</code>
+	 * @return the value, which may be null
+	 */
+	public Publishable getInfo(final int row, final int field) {
+		return valueOf(columns[field], row);
+	}
+
+	/**
+	 * Get the value of an overlay at the position of the agent in a row.
+	 * 
+	 * @param row
+	 *            the row
+	 * @param overlay
+	 *            the overlay's index in <code>getOverlayNames()</code>
+	 * @return the value
+	 */
+	public Publishable getOverlay(final int row, final int overlay) {
+		return valueOf(columns[infoKeys.size() + overlay], row);
+	}
+
+	/**
+	 * Rebuild a value of a column.
+	 * 
+	 * @param column
+	 *            the column
+	 * @param row
+	 *            the row
+	 * @return the value
+	 */
+	private Publishable valueOf(final Column column, final int row) {
+		switch (column.kind) {
+		case ColumnarFrameWriter.TEXT:
+			return new Text(words.get(column.ints[row]));
+		case ColumnarFrameWriter.BOOLEAN:
+			return new BooleanType(column.bits[row]);
+		case ColumnarFrameWriter.INTEGER:
+			return new IntegerNumber(column.ints[row]);
+		case ColumnarFrameWriter.FLOAT:
+			return new FloatNumber(column.doubles[row]);
+		case ColumnarFrameWriter.EASYTIME:
+			return new EasyTime(column.ints[row], column.minutes[row]);
+		default:
+			if (column.ints[row] == ColumnarFrameWriter.NULL_WORD) {
+				return null;
+			}
+			return new FlatData(words.get(column.ints[row])).rebuild();
+		}
+	}
+
+	/**
+	 * Close the file.
+	 */
+	public void close() {
+		try {
+			in.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't close the columnar file", e);
+		}
+	}
+
+	/**
+	 * Print a columnar file as comma separated values.
+	 * 
+	 * @param args
+	 *            the path to the file
+	 */
+	public static void main(final String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: ColumnarReader <file>");
+			System.exit(1);
+		}
+		ColumnarReader reader = new ColumnarReader(args[0]);
+
+		StringBuilder line = new StringBuilder(
+				"time,entityID,latitude,longitude,atDestination");
+		for (String field : reader.getInfoKeys()) {
+			line.append(',').append(field);
+		}
+		for (String overlay : reader.getOverlayNames()) {
+			line.append(',').append(overlay);
+		}
+		System.out.println(line);
+
+		while (reader.next()) {
+			for (int i = 0; i < reader.size(); i++) {
+				line.setLength(0);
+				line.append(reader.getTime()).append(',');
+				line.append(reader.getName(i)).append(',');
+				line.append(reader.getLatitude(i)).append(',');
+				line.append(reader.getLongitude(i)).append(',');
+				line.append(reader.isAtDestination(i));
+				for (int f = 0; f < reader.getInfoKeys().size(); f++) {
+					line.append(',').append(reader.getInfo(i, f));
+				}
+				for (int o = 0; o < reader.getOverlayNames().size(); o++) {
+					line.append(',').append(reader.getOverlay(i, o));
+				}
+				System.out.println(line);
+			}
+		}
+		reader.close();
+	}
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+
+import de.nec.nle.siafu.model.Agent;
+import de.nec.nle.siafu.model.Overlay;
+import de.nec.nle.siafu.model.Position;
+import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.types.Publishable;
+import de.nec.nle.siafu.types.TypeUtils;
+
+/**
+ * Writes frames as the changes since the previous printout, with a full
+ * keyframe every few printouts. Most agents don't change from one
+ * printout to the next, so this is a lot smaller than writing every row
+ * every time. A <code>DeltaReader</code> rebuilds the full state at any
+ * printout.
+ * <p>
+ * The file is a header followed by records, each of them either a
+ * keyframe, holding every agent, or a delta, holding only the agents that
+ * changed, and only the values that changed for them. Each record carries
+ * the words it uses, so a reader can start at any keyframe without
+ * reading what comes before it:
+ * 
+ * <pre>
+ * file    := &quot;SIAFUDLT&quot; version:int
+ *            fields:int string{fields} overlays:int string{overlays}
+ *            record* 'E'
+ * record  := ('K' | 'D') time:long length:int
+ *            words:int string{words} agents:int agent{agents}
+ * agent   := id:int name:int mask:bits value{set bits in mask}
+ * value   := latitude:double longitude:double   (position)
+ *          | byte                               (atDestination)
+ *          | word:int                           (info fields, overlays)
+ * </pre>
+ * 
+ * The bits of the mask follow the order position, atDestination, info
+ * fields, overlays. Agents are numbered in the order they first appear;
+ * their name is only given, as a word, in keyframes and when they first
+ * appear, and is -1 otherwise. Values are the words of their flattened
+ * form, or -1 for null. Numbers and strings are written as in the
+ * <code>ColumnarFrameWriter</code>.
+ * 
+ * @author Miquel Martin
+ * @see DeltaReader
+ */
+public class DeltaFrameWriter implements FrameWriter {
+
+	/** The first bytes of every delta file. */
+	static final String MAGIC = "SIAFUDLT";
+
+	/** The version of the format. */
+	static final int VERSION = 1;
+
+	/** Marks a keyframe record. */
+	static final byte KEYFRAME = 'K';
+
+	/** Marks a delta record. */
+	static final byte DELTA = 'D';
+
+	/** Marks the end of the file. */
+	static final byte END = 'E';
+
+	/** The word for null values and names that are already known. */
+	static final int NO_WORD = -1;
+
+	/** The mask bit of the position. */
+	static final int POSITION_BIT = 0;
+
+	/** The mask bit of atDestination. */
+	static final int DESTINATION_BIT = 1;
+
+	/** The mask bit of the first info field. */
+	static final int FIRST_FIELD_BIT = 2;
+
+	/**
+	 * Default amount of printouts from one keyframe to the next.
+	 */
+	private static final int DEFAULT_KEYFRAME_INTERVAL = 12;
+
+	/**
+	 * The size of the buffer used when writing the output file.
+	 */
+	private static final int BUFFER_SIZE = 102400;
+
+	/**
+	 * The output file.
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * The buffer the agents of a record are written to, before we know
+	 * which words the record uses.
+	 */
+	private ByteArrayOutputStream agentBytes = new ByteArrayOutputStream();
+
+	/**
+	 * The stream over <code>agentBytes</code>.
+	 */
+	private DataOutputStream agentOut = new DataOutputStream(agentBytes);
+
+	/**
+	 * The buffer the words of a record are written to.
+	 */
+	private ByteArrayOutputStream wordBytes = new ByteArrayOutputStream();
+
+	/**
+	 * The stream over <code>wordBytes</code>.
+	 */
+	private DataOutputStream wordOut = new DataOutputStream(wordBytes);
+
+	/**
+	 * The number of each word in the current record.
+	 */
+	private Map<String, Integer> words = new HashMap<String, Integer>();
+
+	/**
+	 * The number given to each agent, by name.
+	 */
+	private Map<String, Integer> agentIds = new HashMap<String, Integer>();
+
+	/**
+	 * The amount of printouts from one keyframe to the next.
+	 */
+	private int keyframeInterval;
+
+	/**
+	 * The amount of frames written so far.
+	 */
+	private int frames;
+
+	/**
+	 * The amount of info fields.
+	 */
+	private int fieldCount;
+
+	/**
+	 * The world's overlays, in header order.
+	 */
+	private Overlay[] overlays;
+
+	/**
+	 * A position the agents' positions are rebuilt in, to find their
+	 * coordinates and overlay values.
+	 */
+	private Position scratch;
+
+	/**
+	 * The bits of the mask of the agent being written.
+	 */
+	private boolean[] mask;
+
+	/**
+	 * The last row written for each agent.
+	 */
+	private int[] rows = new int[0];
+
+	/**
+	 * The last column written for each agent.
+	 */
+	private int[] cols = new int[0];
+
+	/**
+	 * The last atDestination written for each agent.
+	 */
+	private boolean[] atDestination = new boolean[0];
+
+	/**
+	 * Copies of the last info values written for each agent, one agent
+	 * after the other.
+	 */
+	private Publishable[] info = new Publishable[0];
+
+	/**
+	 * Copies of the last overlay values written for each agent, one agent
+	 * after the other.
+	 */
+	private Publishable[] overlayValues = new Publishable[0];
+
+	/**
+	 * Builds a <code>DeltaFrameWriter</code> and writes the file header.
+	 * 
+	 * @param world
+	 *            the world to print about
+	 * @param config
+	 *            the simulation configuration file
+	 */
+	public DeltaFrameWriter(final World world, final Configuration config) {
+		String path = config.getString("output.delta.path", config
+				.getString("output.csv.path")
+				+ ".sfd");
+		this.keyframeInterval = Math.max(1, config.getInt(
+			"output.delta.keyframes", DEFAULT_KEYFRAME_INTERVAL));
+		this.fieldCount = Agent.getInfoKeys().size();
+		this.overlays = world.getOverlays().values().toArray(new Overlay[0]);
+		this.mask = new boolean[FIRST_FIELD_BIT + fieldCount + overlays.length];
+		this.scratch = new Position(0, 0);
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(path), BUFFER_SIZE));
+		} catch (Exception e) {
+			throw new RuntimeException("Can't create the output file: "
+					+ path, e);
+		}
+
+		try {
+			out.writeBytes(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(fieldCount);
+			for (String field : Agent.getInfoKeys()) {
+				ColumnarFrameWriter.writeString(out, field);
+			}
+			out.writeInt(overlays.length);
+			for (String overlay : world.getOverlays().keySet()) {
+				ColumnarFrameWriter.writeString(out, overlay);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Can't write the output file", e);
+		}
+	}
+
+	/**
+	 * Writes a frame as a keyframe or as the changes since the last one.
+	 * 
+	 * @param frame
+	 *            the frame to write
+	 */
+	public void write(final OutputFrame frame) {
+		boolean keyframe = frames++ % keyframeInterval == 0;
+		agentBytes.reset();
+		wordBytes.reset();
+		words.clear();
+		int changed = 0;
+
+		try {
+			for (int i = 0; i < frame.size(); i++) {
+				if (writeAgent(frame, i, keyframe)) {
+					changed++;
+				}
+			}
+
+			out.writeByte(keyframe ? KEYFRAME : DELTA);
+			out.writeLong(frame.getTime());
+			out.writeInt(2 * (Integer.SIZE / Byte.SIZE) + wordBytes.size()
+					+ agentBytes.size());
+			out.writeInt(words.size());
+			wordBytes.writeTo(out);
+			out.writeInt(changed);
+			agentBytes.writeTo(out);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't write the output file", e);
+		}
+	}
+
+	/**
+	 * Write an agent's changes, or all its values if this is a keyframe or
+	 * the agent is new.
+	 * 
+	 * @param frame
+	 *            the frame being written
+	 * @param agent
+	 *            the agent's index in the frame
+	 * @param keyframe
+	 *            whether the record is a keyframe
+	 * @return true if the agent was written
+	 * @throws IOException
+	 *             if the agent can't be written
+	 */
+	private boolean writeAgent(final OutputFrame frame, final int agent,
+			final boolean keyframe) throws IOException {
+		String name = frame.getName(agent);
+		Integer number = agentIds.get(name);
+		boolean isNew = number == null;
+		if (isNew) {
+			number = agentIds.size();
+			agentIds.put(name, number);
+			ensureCapacity(agentIds.size());
+		}
+		int id = number;
+		boolean all = keyframe || isNew;
+
+		boolean moved = isNew || rows[id] != frame.getRow(agent)
+				|| cols[id] != frame.getCol(agent);
+		if (moved) {
+			rows[id] = frame.getRow(agent);
+			cols[id] = frame.getCol(agent);
+			scratch.setRow(rows[id]);
+			scratch.setCol(cols[id]);
+		}
+		mask[POSITION_BIT] = all || moved;
+
+		boolean arrived = frame.isAtDestination(agent);
+		mask[DESTINATION_BIT] = all || atDestination[id] != arrived;
+		atDestination[id] = arrived;
+
+		boolean any = mask[POSITION_BIT] || mask[DESTINATION_BIT];
+		for (int f = 0; f < fieldCount; f++) {
+			Publishable value = frame.getInfo(agent, f);
+			int slot = id * fieldCount + f;
+			boolean changed = !same(info[slot], value);
+			mask[FIRST_FIELD_BIT + f] = all || changed;
+			if (changed) {
+				info[slot] = TypeUtils.copyOf(value);
+			}
+			any |= mask[FIRST_FIELD_BIT + f];
+		}
+		for (int o = 0; o < overlays.length; o++) {
+			int bit = FIRST_FIELD_BIT + fieldCount + o;
+			int slot = id * overlays.length + o;
+			mask[bit] = all;
+			if (moved) {
+				Publishable value = overlays[o].getValue(scratch);
+				if (!same(overlayValues[slot], value)) {
+					mask[bit] = true;
+					overlayValues[slot] = TypeUtils.copyOf(value);
+				}
+			}
+			any |= mask[bit];
+		}
+
+		if (!any) {
+			return false;
+		}
+
+		agentOut.writeInt(id);
+		agentOut.writeInt(all ? wordOf(name) : NO_WORD);
+		writeMask();
+		if (mask[POSITION_BIT]) {
+			scratch.setRow(rows[id]);
+			scratch.setCol(cols[id]);
+			double[] coords = scratch.getCoordinates();
+			agentOut.writeDouble(coords[0]);
+			agentOut.writeDouble(coords[1]);
+		}
+		if (mask[DESTINATION_BIT]) {
+			agentOut.writeByte(arrived ? 1 : 0);
+		}
+		for (int f = 0; f < fieldCount; f++) {
+			if (mask[FIRST_FIELD_BIT + f]) {
+				agentOut.writeInt(wordOf(info[id * fieldCount + f]));
+			}
+		}
+		for (int o = 0; o < overlays.length; o++) {
+			if (mask[FIRST_FIELD_BIT + fieldCount + o]) {
+				agentOut.writeInt(wordOf(overlayValues[id * overlays.length
+						+ o]));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find out if a value is the same as the one last written. The last
+	 * value is a copy, so a value a model changed in place is not taken for
+	 * the one written before the change.
+	 * 
+	 * @param last
+	 *            the copy of the value last written
+	 * @param value
+	 *            the current value
+	 * @return true if there is no need to write the value again
+	 */
+	private static boolean same(final Publishable last,
+			final Publishable value) {
+		return last == value || (value != null && value.equals(last));
+	}
+
+	/**
+	 * Grow the per-agent arrays to hold at least the given amount of
+	 * agents.
+	 * 
+	 * @param agents
+	 *            the amount of agents to make room for
+	 */
+	private void ensureCapacity(final int agents) {
+		if (rows.length >= agents) {
+			return;
+		}
+		int size = Math.max(agents, rows.length * 2);
+		int[] newRows = new int[size];
+		int[] newCols = new int[size];
+		boolean[] newAtDestination = new boolean[size];
+		Publishable[] newInfo = new Publishable[size * fieldCount];
+		Publishable[] newOverlayValues =
+				new Publishable[size * overlays.length];
+		System.arraycopy(rows, 0, newRows, 0, rows.length);
+		System.arraycopy(cols, 0, newCols, 0, cols.length);
+		System.arraycopy(atDestination, 0, newAtDestination, 0,
+			atDestination.length);
+		System.arraycopy(info, 0, newInfo, 0, info.length);
+		System.arraycopy(overlayValues, 0, newOverlayValues, 0,
+			overlayValues.length);
+		rows = newRows;
+		cols = newCols;
+		atDestination = newAtDestination;
+		info = newInfo;
+		overlayValues = newOverlayValues;
+	}
+
+	/**
+	 * Write the mask bits, eight to a byte.
+	 * 
+	 * @throws IOException
+	 *             if the mask can't be written
+	 */
+	private void writeMask() throws IOException {
+		for (int i = 0; i < mask.length; i += Byte.SIZE) {
+			int b = 0;
+			for (int k = 0; k < Byte.SIZE && i + k < mask.length; k++) {
+				if (mask[i + k]) {
+					b |= 1 << k;
+				}
+			}
+			agentOut.writeByte(b);
+		}
+	}
+
+	/**
+	 * Find the number of a value's flattened form among the words of the
+	 * current record, adding it if it's not there yet.
+	 * 
+	 * @param value
+	 *            the value, which may be null
+	 * @return the word's number, or <code>NO_WORD</code> for null
+	 * @throws IOException
+	 *             if the word can't be written
+	 */
+	private int wordOf(final Publishable value) throws IOException {
+		if (value == null) {
+			return NO_WORD;
+		}
+		return wordOf(value.flatten().getData());
+	}
+
+	/**
+	 * Find the number of a word in the current record, adding it if it's
+	 * not there yet.
+	 * 
+	 * @param word
+	 *            the word
+	 * @return the word's number
+	 * @throws IOException
+	 *             if the word can't be written
+	 */
+	private int wordOf(final String word) throws IOException {
+		Integer number = words.get(word);
+		if (number == null) {
+			number = words.size();
+			words.put(word, number);
+			ColumnarFrameWriter.writeString(wordOut, word);
+		}
+		return number;
+	}
+
+	/**
+	 * Marks the end of the file and closes it.
+	 */
+	public void close() {
+		try {
+			out.writeByte(END);
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't close the output file", e);
+		}
+	}
+
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.output;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.nec.nle.siafu.types.FlatData;
+import de.nec.nle.siafu.types.Publishable;
+
+/**
+ * Rebuilds the full state of the agents from a file written by a
+ * <code>DeltaFrameWriter</code>. The reader indexes the records when it
+ * opens the file, so that <code>seek</code> can jump to the keyframe
+ * before the requested time and apply only the deltas after it. After
+ * each call to <code>next()</code> or <code>seek()</code>, the getters
+ * give access to the state of every agent at that printout.
+ * <p>
+ * Run from the command line with a file name, it prints the state at
+ * every printout as plain comma separated values, or only the state at
+ * the given time, in ms, if there is a second argument.
+ * 
+ * @author Miquel Martin
+ * @see DeltaFrameWriter
+ */
+public class DeltaReader {
+
+	/**
+	 * The file being read.
+	 */
+	private RandomAccessFile file;
+
+	/**
+	 * The names of the agents' info fields.
+	 */
+	private List<String> infoKeys = new ArrayList<String>();
+
+	/**
+	 * The names of the overlays.
+	 */
+	private List<String> overlayNames = new ArrayList<String>();
+
+	/**
+	 * The time of each record.
+	 */
+	private long[] times = new long[0];
+
+	/**
+	 * Where each record starts, right after its time.
+	 */
+	private long[] offsets = new long[0];
+
+	/**
+	 * Whether each record is a keyframe.
+	 */
+	private boolean[] keyframes = new boolean[0];
+
+	/**
+	 * The amount of records in the file.
+	 */
+	private int records;
+
+	/**
+	 * The index of the record the state is at, or -1 before the first.
+	 */
+	private int current = -1;
+
+	/**
+	 * The amount of agents in the state.
+	 */
+	private int agents;
+
+	/**
+	 * The name of each agent.
+	 */
+	private String[] names = new String[0];
+
+	/**
+	 * The latitude of each agent.
+	 */
+	private double[] latitudes = new double[0];
+
+	/**
+	 * The longitude of each agent.
+	 */
+	private double[] longitudes = new double[0];
+
+	/**
+	 * Whether each agent is at its destination.
+	 */
+	private boolean[] atDestination = new boolean[0];
+
+	/**
+	 * The flattened info and overlay values of each agent, one agent after
+	 * the other.
+	 */
+	private String[] values = new String[0];
+
+	/**
+	 * The mask bits of the agent being read.
+	 */
+	private boolean[] mask;
+
+	/**
+	 * Open a delta file, read its header and index its records.
+	 * 
+	 * @param path
+	 *            the path to the file
+	 */
+	public DeltaReader(final String path) {
+		try {
+			file = new RandomAccessFile(path, "r");
+			byte[] magic = new byte[DeltaFrameWriter.MAGIC.length()];
+			file.readFully(magic);
+			if (!new String(magic, "US-ASCII").equals(DeltaFrameWriter.MAGIC)) {
+				throw new RuntimeException("Not a delta Siafu file: " + path);
+			}
+			int version = file.readInt();
+			if (version != DeltaFrameWriter.VERSION) {
+				throw new RuntimeException("Unsupported delta version: "
+						+ version);
+			}
+			int fields = file.readInt();
+			for (int f = 0; f < fields; f++) {
+				infoKeys.add(readString(file));
+			}
+			int overlays = file.readInt();
+			for (int o = 0; o < overlays; o++) {
+				overlayNames.add(readString(file));
+			}
+			mask = new boolean[DeltaFrameWriter.FIRST_FIELD_BIT + fields
+					+ overlays];
+			index();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't read the delta file: " + path,
+					e);
+		}
+	}
+
+	/**
+	 * Find where each record starts, skipping over their contents.
+	 * 
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	private void index() throws IOException {
+		long length = file.length();
+		while (file.getFilePointer() < length) {
+			byte kind = file.readByte();
+			if (kind == DeltaFrameWriter.END) {
+				break;
+			} else if (kind != DeltaFrameWriter.KEYFRAME
+					&& kind != DeltaFrameWriter.DELTA) {
+				throw new RuntimeException("Corrupt delta file");
+			}
+			if (file.getFilePointer() + (Long.SIZE + Integer.SIZE)
+					/ Byte.SIZE > length) {
+				// The simulation didn't get to finish the record
+				break;
+			}
+			long time = file.readLong();
+			long offset = file.getFilePointer();
+			int size = file.readInt();
+			if (offset + size > length) {
+				break;
+			}
+			if (records == times.length) {
+				int capacity = Math.max(16, records * 2);
+				times = Arrays.copyOf(times, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				keyframes = Arrays.copyOf(keyframes, capacity);
+			}
+			times[records] = time;
+			offsets[records] = offset;
+			keyframes[records] = kind == DeltaFrameWriter.KEYFRAME;
+			records++;
+			file.seek(offset + (Integer.SIZE / Byte.SIZE) + size);
+		}
+	}
+
+	/**
+	 * Move the state on to the next printout.
+	 * 
+	 * @return true if there was one, false at the end of the file
+	 */
+	public boolean next() {
+		if (current + 1 >= records) {
+			return false;
+		}
+		apply(++current);
+		return true;
+	}
+
+	/**
+	 * Rebuild the state as it was at a given time, that is, at the last
+	 * printout no later than it.
+	 * 
+	 * @param time
+	 *            the simulation time, in ms
+	 * @return false if there were no printouts by then
+	 */
+	public boolean seek(final long time) {
+		int target = -1;
+		while (target + 1 < records && times[target + 1] <= time) {
+			target++;
+		}
+		if (target < 0) {
+			return false;
+		}
+
+		int start = target;
+		while (!keyframes[start] && start > 0) {
+			start--;
+		}
+		if (current >= start && current <= target) {
+			// We are already past the keyframe, no need to go back to it
+			start = current + 1;
+		}
+		for (int r = start; r <= target; r++) {
+			apply(r);
+		}
+		current = target;
+		return true;
+	}
+
+	/**
+	 * Apply a record to the state.
+	 * 
+	 * @param record
+	 *            the index of the record
+	 */
+	private void apply(final int record) {
+		byte[] bytes;
+		try {
+			file.seek(offsets[record]);
+			bytes = new byte[file.readInt()];
+			file.readFully(bytes);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't read the delta file", e);
+		}
+
+		DataInputStream in =
+				new DataInputStream(new ByteArrayInputStream(bytes));
+		try {
+			String[] words = new String[in.readInt()];
+			for (int w = 0; w < words.length; w++) {
+				words[w] = readString(in);
+			}
+			if (keyframes[record]) {
+				agents = 0;
+			}
+			int count = in.readInt();
+			for (int a = 0; a < count; a++) {
+				readAgent(in, words);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Corrupt delta file", e);
+		}
+	}
+
+	/**
+	 * Read an agent from a record into the state.
+	 * 
+	 * @param in
+	 *            the record's contents
+	 * @param words
+	 *            the record's words
+	 * @throws IOException
+	 *             if the agent can't be read
+	 */
+	private void readAgent(final DataInputStream in, final String[] words)
+			throws IOException {
+		int id = in.readInt();
+		int name = in.readInt();
+		ensureCapacity(id + 1);
+		agents = Math.max(agents, id + 1);
+		if (name != DeltaFrameWriter.NO_WORD) {
+			names[id] = words[name];
+		}
+
+		for (int i = 0; i < mask.length; i += Byte.SIZE) {
+			int b = in.readUnsignedByte();
+			for (int k = 0; k < Byte.SIZE && i + k < mask.length; k++) {
+				mask[i + k] = (b & (1 << k)) != 0;
+			}
+		}
+		if (mask[DeltaFrameWriter.POSITION_BIT]) {
+			latitudes[id] = in.readDouble();
+			longitudes[id] = in.readDouble();
+		}
+		if (mask[DeltaFrameWriter.DESTINATION_BIT]) {
+			atDestination[id] = in.readByte() != 0;
+		}
+		int columns = mask.length - DeltaFrameWriter.FIRST_FIELD_BIT;
+		for (int c = 0; c < columns; c++) {
+			if (mask[DeltaFrameWriter.FIRST_FIELD_BIT + c]) {
+				int word = in.readInt();
+				values[id * columns + c] =
+						word == DeltaFrameWriter.NO_WORD ? null : words[word];
+			}
+		}
+	}
+
+	/**
+	 * Grow the per-agent arrays to hold at least the given amount of
+	 * agents.
+	 * 
+	 * @param size
+	 *            the amount of agents to make room for
+	 */
+	private void ensureCapacity(final int size) {
+		if (names.length >= size) {
+			return;
+		}
+		int capacity = Math.max(size, names.length * 2);
+		int columns = mask.length - DeltaFrameWriter.FIRST_FIELD_BIT;
+		names = Arrays.copyOf(names, capacity);
+		latitudes = Arrays.copyOf(latitudes, capacity);
+		longitudes = Arrays.copyOf(longitudes, capacity);
+		atDestination = Arrays.copyOf(atDestination, capacity);
+		values = Arrays.copyOf(values, capacity * columns);
+	}
+
+	/**
+	 * Read a string written by <code>ColumnarFrameWriter.writeString</code>.
+	 * 
+	 * @param in
+	 *            the input to read from
+	 * @return the string
+	 * @throws IOException
+	 *             if the string can't be read
+	 */
+	private static String readString(final DataInput in)
+			throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Get the names of the agents' info fields.
+	 * 
+	 * @return the info field names
+	 */
+	public List<String> getInfoKeys() {
+		return Collections.unmodifiableList(infoKeys);
+	}
+
+	/**
+	 * Get the names of the overlays.
+	 * 
+	 * @return the overlay names
+	 */
+	public List<String> getOverlayNames() {
+		return Collections.unmodifiableList(overlayNames);
+	}
+
+	/**
+	 * Get the amount of printouts in the file.
+	 * 
+	 * @return the amount of printouts
+	 */
+	public int getPrintouts() {
+		return records;
+	}
+
+	/**
+	 * Get the simulation time of the current printout.
+	 * 
+	 * @return the time, in ms
+	 */
+	public long getTime() {
+		return times[current];
+	}
+
+	/**
+	 * Get the amount of agents in the state.
+	 * 
+	 * @return the amount of agents
+	 */
+	public int size() {
+		return agents;
+	}
+
+	/**
+	 * Get the name of an agent.
+	 * 
+	 * @param agent
+	 *            the agent's number
+	 * @return the agent's name
+	 */
+	public String getName(final int agent) {
+		return names[agent];
+	}
+
+	/**
+	 * Get the latitude of an agent.
+	 * 
+	 * @param agent
+	 *            the agent's number
+	 * @return the latitude
+	 */
+	public double getLatitude(final int agent) {
+		return latitudes[agent];
+	}
+
+	/**
+	 * Get the longitude of an agent.
+	 * 
+	 * @param agent
+	 *            the agent's number
+	 * @return the longitude
+	 */
+	public double getLongitude(final int agent) {
+		return longitudes[agent];
+	}
+
+	/**
+	 * Find out if an agent is at its destination.
+	 * 
+	 * @param agent
+	 *            the agent's number
+	 * @return true if the agent is at its destination
+	 */
+	public boolean isAtDestination(final int agent) {
+		return atDestination[agent];
+	}
+
+	/**
+	 * Get the value of one of an agent's info fields.
+	 * 
+	 * @param agent
+	 *            the agent's number
+	 * @param field
+	 *            the field's index in <code>getInfoKeys()</code>
+	 * @return the value, which may be null
+	 */
+	public Publishable getInfo(final int agent, final int field) {
+		return rebuild(agent, field);
+	}
+
+	/**
+	 * Get the value of an overlay at an agent's position.
+	 * 
+	 * @param agent
+	 *            the agent's number
+	 * @param overlay
+	 *            the overlay's index in <code>getOverlayNames()</code>
+	 * @return the value
+	 */
+	public Publishable getOverlay(final int agent, final int overlay) {
+		return rebuild(agent, infoKeys.size() + overlay);
+	}
+
+	/**
+	 * Rebuild one of an agent's values from its flattened form.
+	 * 
+	 * @param agent
+	 *            the agent's number
+	 * @param column
+	 *            the info field, or the overlay after the info fields
+	 * @return the value, or null
+	 */
+	private Publishable rebuild(final int agent, final int column) {
+		int columns = mask.length - DeltaFrameWriter.FIRST_FIELD_BIT;
+		String flat = values[agent * columns + column];
+		if (flat == null) {
+			return null;
+		}
+		return new FlatData(flat).rebuild();
+	}
+
+	/**
+	 * Close the file.
+	 */
+	public void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't close the delta file", e);
+		}
+	}
+
+	/**
+	 * Print the state at every printout of a delta file, or at a given
+	 * time, as comma separated values.
+	 * 
+	 * @param args
+	 *            the path to the file, and optionally the time in ms
+	 */
+	public static void main(final String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: DeltaReader <file> [time]");
+			System.exit(1);
+		}
+		DeltaReader reader = new DeltaReader(args[0]);
+
+		StringBuilder line = new StringBuilder(
+				"time,entityID,latitude,longitude,atDestination");
+		for (String field : reader.getInfoKeys()) {
+			line.append(',').append(field);
+		}
+		for (String overlay : reader.getOverlayNames()) {
+			line.append(',').append(overlay);
+		}
+		System.out.println(line);
+
+		if (args.length == 2) {
+			if (reader.seek(Long.parseLong(args[1]))) {
+				print(reader, line);
+			}
+		} else {
+			while (reader.next()) {
+				print(reader, line);
+			}
+		}
+		reader.close();
+	}
+
+	/**
+	 * Print the current state as comma separated values.
+	 * 
+	 * @param reader
+	 *            the reader holding the state
+	 * @param line
+	 *            a builder to reuse for each line
+	 */
+	private static void print(final DeltaReader reader,
+			final StringBuilder line) {
+		for (int i = 0; i < reader.size(); i++) {
+			line.setLength(0);
+			line.append(reader.getTime()).append(',');
+			line.append(reader.getName(i)).append(',');
+			line.append(reader.getLatitude(i)).append(',');
+			line.append(reader.getLongitude(i)).append(',');
+			line.append(reader.isAtDestination(i));
+			for (int f = 0; f < reader.getInfoKeys().size(); f++) {
+				line.append(',').append(reader.getInfo(i, f));
+			}
+			for (int o = 0; o < reader.getOverlayNames().size(); o++) {
+				line.append(',').append(reader.getOverlay(i, o));
+			}
+			System.out.println(line);
+		}
+	}
+}
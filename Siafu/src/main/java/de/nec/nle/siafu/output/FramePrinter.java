@@ -0,0 +1,102 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.output;
+
+import de.nec.nle.siafu.model.World;
+
+/**
+ * A printer which captures the agents into a reused
+ * <code>OutputFrame</code> at every printout and has a
+ * <code>FrameWriter</code> write it on the simulation thread.
+ * 
+ * @author Miquel Martin
+ * @see AsyncPrinter
+ */
+public class FramePrinter implements SimulatorOutputPrinter {
+
+	/**
+	 * Conversion factor between seconds and milliseconds.
+	 */
+	private static final int SECOND_TO_MS_FACTOR = 1000;
+
+	/**
+	 * The <code>World</code> we have to print about.
+	 */
+	private World world;
+
+	/**
+	 * The writer the frames are handed to.
+	 */
+	private FrameWriter writer;
+
+	/**
+	 * How much simulation time in ms must pass between printouts.
+	 */
+	private int intervalInMillis;
+
+	/**
+	 * The simulation's calendar time of the last printout.
+	 */
+	private long lastPrintoutTime;
+
+	/**
+	 * The frame the agents are captured into at each printout.
+	 */
+	private final OutputFrame frame = new OutputFrame();
+
+	/**
+	 * Builds a <code>FramePrinter</code>.
+	 * 
+	 * @param world
+	 *            the world to print about
+	 * @param writer
+	 *            the writer to hand the frames to
+	 * @param intervalInSeconds
+	 *            how much simulation time must pass between printouts
+	 */
+	public FramePrinter(final World world, final FrameWriter writer,
+			final int intervalInSeconds) {
+		this.world = world;
+		this.writer = writer;
+		this.intervalInMillis = SECOND_TO_MS_FACTOR * intervalInSeconds;
+	}
+
+	/**
+	 * Captures the agents and writes them if <code>interval</code> time has
+	 * passed since the last printout.
+	 */
+	public void notifyIterationConcluded() {
+		long now = world.getTime().getTimeInMillis();
+		if (now - lastPrintoutTime > intervalInMillis) {
+			lastPrintoutTime = now;
+			frame.capture(world);
+			writer.write(frame);
+		}
+	}
+
+	/**
+	 * Flushes the remaining data, and closes the writer.
+	 */
+	public void cleanup() {
+		writer.close();
+	}
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.output;
+
+/**
+ * Writes the frames captured by a printer somewhere. A
+ * <code>FrameWriter</code> is only ever used by one thread at a time, but
+ * that need not be the simulation thread, so it must not look at the
+ * agents, only at the frame it's given.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public interface FrameWriter {
+	/**
+	 * Write a frame. The frame may be reused as soon as this method
+	 * returns.
+	 * 
+	 * @param frame
+	 *            the frame to write
+	 */
+	void write(OutputFrame frame);
+
+	/**
+	 * Flush whatever is left and close the output.
+	 */
+	void close();
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.output;
+
+import de.nec.nle.siafu.model.Agent;
+import de.nec.nle.siafu.model.Position;
+import de.nec.nle.siafu.model.World;
+import de.nec.nle.siafu.types.Publishable;
+import de.nec.nle.siafu.types.TypeUtils;
+
+/**
+ * A copy of the state of the agents at the end of an iteration, as needed
+ * by the output printers. Frames are meant to be reused: capturing the
+ * world again overwrites the previous contents, and the arrays only grow
+ * when there are more agents than ever before.
+ * <p>
+ * The positions are copied as numbers, and the names are kept by reference.
+ * Info values of the immutable types are kept by reference too, but those
+ * that can be changed in place, like an <code>EasyTime</code> a model
+ * shifts, are copied with <code>TypeUtils.copyOf</code>, so that a writer
+ * on another thread sees them as they were when the frame was captured.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public final class OutputFrame {
+
+	/**
+	 * The simulation time, in ms, the frame was captured at.
+	 */
+	private long time;
+
+	/**
+	 * The amount of agents in the frame.
+	 */
+	private int size;
+
+	/**
+	 * The amount of info fields each agent has.
+	 */
+	private int fieldCount;
+
+	/**
+	 * The name of each agent.
+	 */
+	private String[] names = new String[0];
+
+	/**
+	 * The row of each agent's position.
+	 */
+	private int[] rows = new int[0];
+
+	/**
+	 * The column of each agent's position.
+	 */
+	private int[] cols = new int[0];
+
+	/**
+	 * Whether each agent is at its destination.
+	 */
+	private boolean[] atDestination = new boolean[0];
+
+	/**
+	 * The info values of all the agents, one after the other, each in the
+	 * order of <code>Agent.getInfoKeys()</code>.
+	 */
+	private Publishable[] info = new Publishable[0];
+
+	/**
+	 * Copy the state of the world's agents into this frame.
+	 * 
+	 * @param world
+	 *            the world to capture
+	 */
+	public void capture(final World world) {
+		int agents = world.getPeople().size();
+		fieldCount = Agent.getInfoKeyCount();
+		time = world.getTime().getTimeInMillis();
+		ensureCapacity(agents);
+
+		int n = 0;
+		for (Agent agent : world.getPeople()) {
+			Position pos = agent.getPos();
+			names[n] = agent.getName();
+			rows[n] = pos.getRow();
+			cols[n] = pos.getCol();
+			atDestination[n] = agent.isAtDestination();
+
+			int f = n * fieldCount;
+			agent.copyInfoValues(info, f);
+			for (int end = f + fieldCount; f < end; f++) {
+				info[f] = TypeUtils.copyOf(info[f]);
+			}
+			n++;
+		}
+		size = n;
+	}
+
+	/**
+	 * Grow the arrays to hold at least the given amount of agents.
+	 * 
+	 * @param agents
+	 *            the amount of agents to make room for
+	 */
+	private void ensureCapacity(final int agents) {
+		if (names.length < agents) {
+			names = new String[agents];
+			rows = new int[agents];
+			cols = new int[agents];
+			atDestination = new boolean[agents];
+		}
+		if (info.length < agents * fieldCount) {
+			info = new Publishable[agents * fieldCount];
+		}
+	}
+
+	/**
+	 * Get the simulation time the frame was captured at.
+	 * 
+	 * @return the time, in ms
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Get the amount of agents in the frame.
+	 * 
+	 * @return the amount of agents
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the amount of info fields each agent has.
+	 * 
+	 * @return the amount of info fields
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * Get the name of an agent.
+	 * 
+	 * @param agent
+	 *            the agent's index in the frame
+	 * @return the agent's name
+	 */
+	public String getName(final int agent) {
+		return names[agent];
+	}
+
+	/**
+	 * Get the row of an agent's position.
+	 * 
+	 * @param agent
+	 *            the agent's index in the frame
+	 * @return the row
+	 */
+	public int getRow(final int agent) {
+		return rows[agent];
+	}
+
+	/**
+	 * Get the column of an agent's position.
+	 * 
+	 * @param agent
+	 *            the agent's index in the frame
+	 * @return the column
+	 */
+	public int getCol(final int agent) {
+		return cols[agent];
+	}
+
+	/**
+	 * Find out if an agent was at its destination.
+	 * 
+	 * @param agent
+	 *            the agent's index in the frame
+	 * @return true if the agent was at its destination
+	 */
+	public boolean isAtDestination(final int agent) {
+		return atDestination[agent];
+	}
+
+	/**
+	 * Get the value of one of an agent's info fields.
+	 * 
+	 * @param agent
+	 *            the agent's index in the frame
+	 * @param field
+	 *            the field's index in <code>Agent.getInfoKeys()</code>
+	 * @return the value, which may be null
+	 */
+	public Publishable getInfo(final int agent, final int field) {
+		return info[agent * fieldCount + field];
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.nec.nle.siafu.output;
+
+import org.apache.commons.configuration.Configuration;
+
+import de.nec.nle.siafu.model.World;
+
+/**
+ * A drop-in replacement for the <code>CSVPrinter</code> which produces the
+ * same file, byte for byte, without building a new string per field. Each
+ * printout captures the agents into a reused <code>OutputFrame</code>, and
+ * a <code>CSVFrameWriter</code> writes it on the simulation thread.
+ * 
+ * @author Miquel Martin
+ * @see CSVFrameWriter
+ */
+public class StreamingCSVPrinter extends FramePrinter {
+
+	/**
+	 * Builds a <code>StreamingCSVPrinter</code>. If history is to be kept,
+	 * this already initializes the output file.
+	 * 
+	 * @param world
+	 *            the world to print about
+	 * @param config
+	 *            the simulation configuration file
+	 */
+	public StreamingCSVPrinter(final World world, final Configuration config) {
+		super(world, new CSVFrameWriter(world, config), config
+				.getInt("output.csv.interval"));
+	}
+
+}
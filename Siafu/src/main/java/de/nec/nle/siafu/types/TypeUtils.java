@@ -19,6 +19,8 @@
 
 package de.nec.nle.siafu.types;
 
+import java.util.ArrayList;
+
 /**
  * Collection of utilities to assist in flattening, checking and perform other
  * operations with the Siafu data types.
@@ -55,4 +57,96 @@ public final class TypeUtils {
 					+ " out of " + type);
 		}
 	}
+
+	/**
+	 * Get a copy of a value that keeps its current contents even if the
+	 * original is changed afterwards, for instance by
+	 * <code>EasyTime.shift</code>. Values of the immutable types, and enum
+	 * constants, are returned as they are. Values of types this class doesn't
+	 * know how to copy are replaced by one that holds their flattened form.
+	 * 
+	 * @param value the value to copy, or null
+	 * @return the copy, or null if the value was null
+	 */
+	public static Publishable copyOf(final Publishable value) {
+		if (value == null) {
+			return null;
+		}
+
+		Class<?> type = value.getClass();
+
+		if (type == IntegerNumber.class || type == FloatNumber.class
+				|| type == BooleanType.class || type == Text.class
+				|| value instanceof Enum) {
+			return value;
+		} else if (type == EasyTime.class) {
+			return new EasyTime((EasyTime) value);
+		} else if (type == TimePeriod.class) {
+			TimePeriod tp = (TimePeriod) value;
+			return new TimePeriod(new EasyTime(tp.getStart()), new EasyTime(
+					tp.getEnd()));
+		} else if (type == TextList.class) {
+			return new TextList(new ArrayList<String>(((TextList) value)
+					.getList()));
+		} else {
+			return new Flattened(value.flatten());
+		}
+	}
+
+	/**
+	 * A value of any type, kept in its flattened form.
+	 */
+	private static final class Flattened implements Publishable {
+		/** The flattened value. */
+		private final FlatData flatData;
+
+		/**
+		 * Keep a flattened value.
+		 * 
+		 * @param flatData the flattened value
+		 */
+		private Flattened(final FlatData flatData) {
+			this.flatData = flatData;
+		}
+
+		/**
+		 * Get the flattened value.
+		 * 
+		 * @return the flattened value
+		 */
+		public FlatData flatten() {
+			return flatData;
+		}
+
+		/**
+		 * Returns the flattened value as a string.
+		 * 
+		 * @return the flattened value
+		 */
+		public String toString() {
+			return flatData.getData();
+		}
+
+		/**
+		 * Compare the flattened forms of two kept values.
+		 * 
+		 * @param o the object to compare with
+		 * @return true if the object is a kept value with the same
+		 *         flattened form
+		 */
+		public boolean equals(final Object o) {
+			return o instanceof Flattened
+					&& flatData.getData().equals(
+						((Flattened) o).flatData.getData());
+		}
+
+		/**
+		 * Get a hash code from the flattened form.
+		 * 
+		 * @return the hash code
+		 */
+		public int hashCode() {
+			return flatData.getData().hashCode();
+		}
+	}
 }
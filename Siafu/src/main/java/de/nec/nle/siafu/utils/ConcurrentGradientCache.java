@@ -0,0 +1,511 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.utils;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>SiafuGradientCache</code> that can be shared by the simulation
+ * thread, the GUI and the command listener.
+ * 
+ * New gradients are not persisted by the thread that puts them. Instead,
+ * they wait in a pending map, from where they are served, while a
+ * background writer thread stores them in the gradient file. Once stored,
+ * the mapped copy replaces them in the cache, so that creating a Place never
+ * blocks on disk I/O.
+ * 
+ * The gradients in the cache are also kept in a concurrent map, from where
+ * any amount of threads can read them at the same time without taking a
+ * lock. Such reads only mark the gradient as used and queue its key; the
+ * least recently used order of the cache is brought up to date with the
+ * queued keys the next time the lock is taken, that is, on a miss, so the
+ * order is approximate. The
+ * persisted storage and the cache order are guarded by this object's lock,
+ * which is only taken to map a gradient that is not in the cache.
+ * Calculating a gradient, which is the expensive part, happens outside the
+ * lock through <code>getOrCompute</code>, which makes sure that threads
+ * asking for the same missing gradient wait for a single calculation
+ * instead of repeating it.
+ * 
+ * Gets served without the lock are counted as cache hits on a counter of
+ * their own.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public class ConcurrentGradientCache extends SiafuGradientCache {
+	/** Gradients waiting to be persisted by the writer thread. */
+	private final ConcurrentMap<String, Object> pending =
+			new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * The values in the cache, readable without the lock. It holds the same
+	 * keys as the cache, and is only changed under the lock.
+	 */
+	private final ConcurrentMap<String, Cached> cached =
+			new ConcurrentHashMap<String, Cached>();
+
+	/** The keys of the values marked as used since the last sync. */
+	private final Queue<String> used = new ConcurrentLinkedQueue<String>();
+
+	/** The gets served from <code>cached</code>, without the lock. */
+	private final AtomicLong lockFreeHits = new AtomicLong();
+
+	/** Calculations in progress, by key. */
+	private final ConcurrentMap<String, FutureTask<Object>> inFlight =
+			new ConcurrentHashMap<String, FutureTask<Object>>();
+
+	/** The thread that persists the new gradients. */
+	private final ExecutorService writer =
+			Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					Thread t = new Thread(r, "Gradient writer thread");
+					// An unfinished record is dropped on the next start
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Creates a thread safe PersistentCachedMap for the distance Gradients.
+	 * 
+	 * @param basePath the directory that contains all of the persisted maps
+	 * @param name the name of the map.
+	 * @param cacheSize the amount of maps to keep in memory at any time
+	 * @param fillCache whether you would like to read the first cacheSize
+	 *            elements from the hard drive and put them in the cache.
+	 * @param height the height of the world map
+	 * @param width the width of the world map
+	 * @see SiafuGradientCache
+	 */
+	public ConcurrentGradientCache(final String basePath, final String name,
+			final int cacheSize, final boolean fillCache, final int height,
+			final int width) {
+		// The pending map doesn't exist until the super constructor is done
+		super(basePath, name, cacheSize, false, height, width);
+
+		if (fillCache) {
+			fillCache(cacheSize);
+		}
+	}
+
+	/**
+	 * Get the value mapped to the key, either from the gradients waiting to
+	 * be persisted, or from the cache and the persisted storage.
+	 * 
+	 * @param key the key
+	 * @return the mapped value, or null if there is none
+	 */
+	public Object get(final String key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+
+		Object value = pending.get(key);
+
+		if (value != null) {
+			return value;
+		}
+
+		Cached c = cached.get(key);
+
+		if (c != null) {
+			if (!c.used) {
+				c.used = true;
+				used.add(key);
+			}
+			lockFreeHits.incrementAndGet();
+			return c.value;
+		}
+
+		synchronized (this) {
+			// A put may have made it pending after we looked
+			value = pending.get(key);
+
+			if (value != null) {
+				return value;
+			}
+			return super.get(key);
+		}
+	}
+
+	/**
+	 * Put a value in the cache, after moving the values read without the
+	 * lock since the last time to the most recently used end, so that they
+	 * are not the first to be evicted. Always called with the lock held.
+	 * 
+	 * @param key the key to put
+	 * @param value the value to put
+	 */
+	protected void putInCache(final String key, final Object value) {
+		syncCached();
+		super.putInCache(key, value);
+		if (cache.containsKey(key) && !cached.containsKey(key)) {
+			cached.put(key, new Cached(value));
+		}
+	}
+
+	/**
+	 * Stop serving an evicted value without the lock. Always called with the
+	 * lock held.
+	 * 
+	 * @param key the key of the evicted value
+	 */
+	protected void evicted(final String key) {
+		cached.remove(key);
+	}
+
+	/**
+	 * Move the values read without the lock since the last time to the most
+	 * recently used end of the cache. Always called with the lock held.
+	 */
+	private void syncCached() {
+		String key;
+
+		while ((key = used.poll()) != null) {
+			Cached c = cached.get(key);
+
+			if (c != null && c.used) {
+				c.used = false;
+				cache.get(key); // Refreshes it
+			}
+		}
+	}
+
+	/**
+	 * Put a new mapping, which becomes readable right away, and is persisted
+	 * later on by the writer thread. As in <code>PersistentCachedMap</code>,
+	 * keys that are already mapped are left untouched.
+	 * 
+	 * @param key the key to put
+	 * @param value the value for that key
+	 * @return Always null
+	 */
+	public Object put(final Object key, final Object value) {
+		if ((key == null) || (value == null)) {
+			throw new NullPointerException();
+		}
+
+		if (key.toString().length() > MAX_KEY_LENGTH) {
+			throw new IllegalArgumentException(
+					"You tried to add a key whose toString method "
+							+ "yielded a string over 250 chars");
+		}
+
+		final String k = key.toString();
+
+		synchronized (this) {
+			if (toc.contains(k)) {
+				return null;
+			}
+			toc.add(k);
+			// Readable before the lock is released
+			pending.put(k, value);
+		}
+
+		writer.execute(new Runnable() {
+			public void run() {
+				persist(k, value);
+			}
+		});
+
+		return null;
+	}
+
+	/**
+	 * Persist a pending value and put the persisted copy in the cache. Runs
+	 * on the writer thread.
+	 * 
+	 * @param key the key for the mapping
+	 * @param value the value for the mapping
+	 */
+	private void persist(final String key, final Object value) {
+		try {
+			Object cachedValue = persistObject(key, value);
+
+			synchronized (this) {
+				if (toc.contains(key)) {
+					putInCache(key, cachedValue);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.out.println("Can't persist the gradient " + key
+					+ ", it will be calculated again");
+			e.printStackTrace();
+
+			synchronized (this) {
+				toc.remove(key);
+			}
+		} finally {
+			pending.remove(key);
+		}
+	}
+
+	/**
+	 * Get the value mapped to the key or, if there is none, calculate it and
+	 * put it in the map. If several threads ask for the same missing key at
+	 * the same time, only one of them runs the calculation, and the others
+	 * wait for its result.
+	 * 
+	 * @param key the key
+	 * @param calculation the calculation of the value, if it's missing
+	 * @return the mapped value
+	 */
+	public Object getOrCompute(final String key,
+			final Callable<? extends Object> calculation) {
+		Object value = get(key);
+
+		if (value != null) {
+			return value;
+		}
+
+		FutureTask<Object> task =
+				new FutureTask<Object>(new Callable<Object>() {
+					public Object call() throws Exception {
+						// Someone else might have finished meanwhile
+						Object existing = get(key);
+
+						if (existing != null) {
+							return existing;
+						}
+
+						Object calculated = calculation.call();
+						put(key, calculated);
+						return calculated;
+					}
+				});
+
+		FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for "
+					+ key, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Can't calculate " + key, e
+					.getCause());
+		}
+	}
+
+	/**
+	 * Wait until all the pending gradients have been persisted.
+	 */
+	public void flush() {
+		FutureTask<Object> marker = new FutureTask<Object>(new Runnable() {
+			public void run() {
+			}
+		}, null);
+
+		writer.execute(marker);
+
+		try {
+			marker.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Persist the pending gradients, stop the writer thread and close the
+	 * gradient file. The cache can't be used afterwards.
+	 */
+	public void close() {
+		flush();
+		writer.shutdown();
+
+		synchronized (this) {
+			super.close();
+		}
+	}
+
+	/**
+	 * Remove a mapping, once any pending write has finished.
+	 * 
+	 * @param o the key for the mapping that has to be removed
+	 * @return the old value of the mapping, before it was removed
+	 */
+	public Object remove(final Object o) {
+		flush();
+
+		synchronized (this) {
+			cached.remove(o);
+			return super.remove(o);
+		}
+	}
+
+	/**
+	 * Clear the map, once any pending write has finished.
+	 */
+	public void clear() {
+		flush();
+
+		synchronized (this) {
+			cached.clear();
+			super.clear();
+		}
+	}
+
+	/**
+	 * Load the first desiredCacheSize persisted elements to memory.
+	 * 
+	 * @param desiredCacheSize the number of elements to read
+	 */
+	public synchronized void fillCache(final int desiredCacheSize) {
+		super.fillCache(desiredCacheSize);
+	}
+
+	/**
+	 * Find out if the key is mapped, including the pending gradients.
+	 * 
+	 * @param key the key
+	 * @return true if the key is mapped
+	 */
+	public synchronized boolean containsKey(final Object key) {
+		return super.containsKey(key);
+	}
+
+	/**
+	 * Get amount of elements in the map.
+	 * 
+	 * @return the size of the map
+	 */
+	public synchronized int size() {
+		return super.size();
+	}
+
+	/**
+	 * Find out if the map is empty.
+	 * 
+	 * @return true if it is empty
+	 */
+	public synchronized boolean isEmpty() {
+		return super.isEmpty();
+	}
+
+	/**
+	 * Get an iterator over a copy of the keys in the map.
+	 * 
+	 * @return the Iterator
+	 */
+	public Iterator<String> idIterator() {
+		return keySet().iterator();
+	}
+
+	/**
+	 * Get a copy of the keys in the map, which is not updated when the map
+	 * changes.
+	 * 
+	 * @return the key set
+	 */
+	public synchronized Set<String> keySet() {
+		return new HashSet<String>(toc);
+	}
+
+	/**
+	 * Put all the objects from the argument map into this map.
+	 * 
+	 * @param arg0 the map to add
+	 */
+	public void putAll(final Map<String, Object> arg0) {
+		for (Map.Entry<String, Object> e : arg0.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Set the size of the cache.
+	 * 
+	 * @param cacheSize the size of the cache
+	 */
+	public synchronized void setCacheSize(final int cacheSize) {
+		syncCached();
+		super.setCacheSize(cacheSize);
+	}
+
+	/**
+	 * Set the maximum amount of bytes that the objects in the cache can take.
+	 * 
+	 * @param maxCacheBytes the maximum amount of bytes, or 0 for no limit
+	 */
+	public synchronized void setMaxCacheBytes(final long maxCacheBytes) {
+		syncCached();
+		super.setMaxCacheBytes(maxCacheBytes);
+	}
+
+	/**
+	 * Get the amount of gets that were served from the cache, with or
+	 * without the lock.
+	 * 
+	 * @return the amount of cache hits
+	 */
+	public synchronized long getHits() {
+		return super.getHits() + lockFreeHits.get();
+	}
+
+	/**
+	 * A value in the cache, with a mark for the reads done without the lock.
+	 */
+	private static final class Cached {
+		/** The cached value. */
+		private final Object value;
+
+		/** True if the value was read since the cache order was updated. */
+		private volatile boolean used;
+
+		/**
+		 * Wrap a cached value.
+		 * 
+		 * @param value the value
+		 */
+		Cached(final Object value) {
+			this.value = value;
+		}
+	}
+}
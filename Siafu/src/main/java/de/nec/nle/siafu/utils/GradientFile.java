@@ -0,0 +1,354 @@
+/*
+ * Copyright NEC Europe Ltd. 2006-2007
+ * 
+ * This file is part of the context simulator called Siafu.
+ * 
+ * Siafu is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * Siafu is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.nec.nle.siafu.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import de.nec.nle.siafu.model.Gradient;
+import de.nec.nle.siafu.model.Position;
+
+/**
+ * A single file holding all the gradients of a world, which are read back
+ * by memory mapping them, so that the distances are never copied into the
+ * heap.
+ * 
+ * All values are little endian. The file starts with a header:
+ * <ul>
+ * <li>the magic number <code>0x44524753</code> ("SGRD")
+ * <li>the format version
+ * <li>the map height
+ * <li>the map width
+ * </ul>
+ * followed by one record per gradient, each of them made of:
+ * <ul>
+ * <li>the row and column of the gradient center
+ * <li>the bytes per distance, 2 if every reachable distance is under
+ * <code>0xFFFF</code>, or 4 otherwise
+ * <li>a flag that is 1 if the record has been erased, and 0 otherwise
+ * <li>the distances, row after row
+ * </ul>
+ * The table of contents, from the center position to the record offset, is
+ * rebuilt from the record headers when the file is opened. A trailing record
+ * that was not completely written is dropped.
+ * 
+ * @author Miquel Martin
+ * 
+ */
+public class GradientFile {
+	/** The magic number at the beginning of the file. */
+	private static final int MAGIC = 0x44524753;
+
+	/** The version of the file format. */
+	private static final int VERSION = 1;
+
+	/** Size in bytes of the file header. */
+	private static final int HEADER_SIZE = 16;
+
+	/** Size in bytes of each record header. */
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	/** Position of the erased flag in the record header. */
+	private static final int ERASED_FLAG_OFFSET = 12;
+
+	/** Distance used for unreachable positions in 2 byte records. */
+	private static final int SHORT_UNREACHABLE = 0xFFFF;
+
+	/** The file, kept open while the map is in use. */
+	private final RandomAccessFile file;
+
+	/** The channel used to write and map the records. */
+	private final FileChannel channel;
+
+	/** The map height. */
+	private final int h;
+
+	/** The map width. */
+	private final int w;
+
+	/** Offset of each record in the file, by gradient center. */
+	private final Map<String, Long> toc = new HashMap<String, Long>();
+
+	/**
+	 * Open the gradient file at the given path, creating it if needed. If the
+	 * existing file was created for a map of a different size, or is not a
+	 * gradient file, it is discarded.
+	 * 
+	 * @param path the path to the file
+	 * @param h the map height
+	 * @param w the map width
+	 */
+	public GradientFile(final String path, final int h, final int w) {
+		this.h = h;
+		this.w = w;
+
+		try {
+			file = new RandomAccessFile(new File(path), "rw");
+			channel = file.getChannel();
+
+			if (!readHeader()) {
+				writeHeader();
+			}
+			readToc();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't open the gradient file "
+					+ path, e);
+		}
+	}
+
+	/**
+	 * Check the file header against the map size.
+	 * 
+	 * @return true if the file holds gradients for this map
+	 * @throws IOException if the file can't be read
+	 */
+	private boolean readHeader() throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			return false;
+		}
+
+		ByteBuffer header = littleEndian(HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+
+		if (header.getInt() == MAGIC && header.getInt() == VERSION
+				&& header.getInt() == h && header.getInt() == w) {
+			return true;
+		}
+
+		System.out.println("Discarding the gradient file, "
+				+ "it was created for another map");
+		return false;
+	}
+
+	/**
+	 * Empty the file and write the header.
+	 * 
+	 * @throws IOException if the file can't be written
+	 */
+	private void writeHeader() throws IOException {
+		channel.truncate(0);
+		ByteBuffer header = littleEndian(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(h).putInt(w);
+		header.flip();
+		channel.write(header, 0);
+	}
+
+	/**
+	 * Build the table of contents by walking the record headers.
+	 * 
+	 * @throws IOException if the file can't be read
+	 */
+	private void readToc() throws IOException {
+		long size = channel.size();
+		long offset = HEADER_SIZE;
+		ByteBuffer record = littleEndian(RECORD_HEADER_SIZE);
+
+		while (offset + RECORD_HEADER_SIZE <= size) {
+			record.clear();
+			channel.read(record, offset);
+			record.flip();
+			int row = record.getInt();
+			int col = record.getInt();
+			int cellBytes = record.getInt();
+			int erased = record.getInt();
+			long end = offset + RECORD_HEADER_SIZE + (long) h * w * cellBytes;
+
+			if ((cellBytes != 2 && cellBytes != 4) || end > size) {
+				break;
+			}
+
+			if (erased == 0) {
+				toc.put(row + "." + col, offset);
+			}
+			offset = end;
+		}
+
+		if (offset < size) {
+			System.out.println("Dropping an incomplete gradient "
+					+ "at the end of the gradient file");
+			channel.truncate(offset);
+		}
+	}
+
+	/**
+	 * Get the centers of the gradients in the file, as "row.col" strings.
+	 * 
+	 * @return the keys of the stored gradients
+	 */
+	public synchronized Set<String> keySet() {
+		return new HashSet<String>(toc.keySet());
+	}
+
+	/**
+	 * Find out if there is a gradient for the given key.
+	 * 
+	 * @param key the gradient's center, as "row.col"
+	 * @return true if the file holds that gradient
+	 */
+	public synchronized boolean contains(final String key) {
+		return toc.containsKey(key);
+	}
+
+	/**
+	 * Append a gradient at the end of the file. If all the reachable
+	 * distances fit in 2 bytes, that's the size used for each of them.
+	 * 
+	 * @param key the gradient's center, as "row.col"
+	 * @param gradient the gradient to store
+	 */
+	public synchronized void append(final String key, final Gradient gradient) {
+		int[][] distances = gradient.getDistances();
+		int cellBytes = 2;
+
+		for (int i = 0; i < h && cellBytes == 2; i++) {
+			for (int j = 0; j < w; j++) {
+				int d = distances[i][j];
+				if (d != Gradient.UNREACHABLE && d >= SHORT_UNREACHABLE) {
+					cellBytes = 4;
+					break;
+				}
+			}
+		}
+
+		try {
+			long offset = channel.size();
+			ByteBuffer record = littleEndian(RECORD_HEADER_SIZE);
+			record.putInt(gradient.getCenter().getRow());
+			record.putInt(gradient.getCenter().getCol());
+			record.putInt(cellBytes).putInt(0);
+			record.flip();
+			channel.write(record, offset);
+
+			long rowOffset = offset + RECORD_HEADER_SIZE;
+			ByteBuffer row = littleEndian(w * cellBytes);
+
+			for (int i = 0; i < h; i++) {
+				row.clear();
+				for (int j = 0; j < w; j++) {
+					int d = distances[i][j];
+					if (cellBytes == 4) {
+						row.putInt(d);
+					} else if (d == Gradient.UNREACHABLE) {
+						row.putShort((short) SHORT_UNREACHABLE);
+					} else {
+						row.putShort((short) d);
+					}
+				}
+				row.flip();
+				while (row.hasRemaining()) {
+					rowOffset += channel.write(row, rowOffset);
+				}
+			}
+
+			toc.put(key, offset);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't write the gradient " + key, e);
+		}
+	}
+
+	/**
+	 * Get a gradient whose distances are read straight from the mapped
+	 * file.
+	 * 
+	 * @param key the gradient's center, as "row.col"
+	 * @return the gradient, or null if it's not in the file
+	 */
+	public synchronized Gradient get(final String key) {
+		Long offset = toc.get(key);
+
+		if (offset == null) {
+			return null;
+		}
+
+		try {
+			ByteBuffer record = littleEndian(RECORD_HEADER_SIZE);
+			channel.read(record, offset);
+			record.flip();
+			int row = record.getInt();
+			int col = record.getInt();
+			int cellBytes = record.getInt();
+
+			ByteBuffer cells =
+					channel.map(FileChannel.MapMode.READ_ONLY, offset
+							+ RECORD_HEADER_SIZE, (long) h * w * cellBytes);
+			cells.order(ByteOrder.LITTLE_ENDIAN);
+
+			return new Gradient(new Position(row, col), h, w, cells,
+					cellBytes);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't read the gradient " + key, e);
+		}
+	}
+
+	/**
+	 * Mark the gradient as erased. The space it takes is not reclaimed.
+	 * 
+	 * @param key the gradient's center, as "row.col"
+	 */
+	public synchronized void erase(final String key) {
+		Long offset = toc.remove(key);
+
+		if (offset == null) {
+			return;
+		}
+
+		try {
+			ByteBuffer flag = littleEndian(4);
+			flag.putInt(1);
+			flag.flip();
+			channel.write(flag, offset + ERASED_FLAG_OFFSET);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't erase the gradient " + key, e);
+		}
+	}
+
+	/**
+	 * Close the file. Gradients already read from it stay readable, since
+	 * their mappings outlive the channel, but no more can be read or
+	 * written.
+	 */
+	public synchronized void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			System.err.println("Error closing the gradient file: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Create a little endian heap buffer.
+	 * 
+	 * @param size the buffer capacity
+	 * @return the buffer
+	 */
+	private static ByteBuffer littleEndian(final int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
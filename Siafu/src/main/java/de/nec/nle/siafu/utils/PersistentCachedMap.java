@@ -25,11 +25,10 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
@@ -43,7 +42,10 @@ import java.util.zip.GZIPOutputStream;
  * 
  * This implementation does not support null keys or values, nor duplicate
  * keys. The cacheSize parameter defines how many elements the map will keep
- * in cached memory.
+ * in cached memory. Optionally, the cache can also be limited by the amount
+ * of bytes its elements take, as given by <code>sizeOf</code>. When either
+ * limit is exceeded, the least recently accessed elements are dropped from
+ * the cache.
  * 
  * @author Miquel Martin
  * 
@@ -62,12 +64,28 @@ public class PersistentCachedMap {
 	protected String path;
 
 	/**
-	 * Cache of objects being held in memory.
+	 * The maximum amount of bytes taken by the objects in the cache, or 0 for
+	 * no limit.
 	 */
-	protected HashMap<String, Object> cache;
+	protected long maxCacheBytes;
 
-	/** List of the elements that have been accessed, sorted by access time. */
-	protected ArrayList<String> recent;
+	/**
+	 * Cache of objects being held in memory, sorted by access time, from the
+	 * least to the most recently accessed.
+	 */
+	protected LinkedHashMap<String, Object> cache;
+
+	/** The amount of bytes taken by the objects in the cache. */
+	private long cachedBytes;
+
+	/** The amount of gets served from the cache. */
+	private long hits;
+
+	/** The amount of gets that had to read the persisted storage. */
+	private long misses;
+
+	/** The amount of objects dropped from the cache. */
+	private long evictions;
 
 	/**
 	 * TOC of the available persisted elements.
@@ -111,9 +129,8 @@ public class PersistentCachedMap {
 	public PersistentCachedMap(final String basePath, final String name,
 			final int cacheSize, final boolean fillCache) {
 		this.cacheSize = cacheSize;
-		this.recent = new ArrayList<String>(cacheSize);
 		this.path = basePath + name + File.separator;
-		this.cache = new HashMap<String, Object>();
+		this.cache = new LinkedHashMap<String, Object>(16, 0.75f, true);
 
 		File dir = new File(path);
 
@@ -173,29 +190,61 @@ public class PersistentCachedMap {
 
 	/**
 	 * Put an element in the cache, that is, read it from the persisted
-	 * storage, and put it in memory. If the cache is full, the last accessed
-	 * element in the cache.
+	 * storage, and put it in memory. If the cache is full, the least recently
+	 * accessed elements are removed from it.
 	 * 
 	 * @param key the key to put
 	 * @param value the value to put
 	 */
-	private void putInCache(final String key, final Object value) {
-		int repeated = recent.indexOf(key);
-
-		if (repeated != -1) { // It's already there
-			recent.remove(repeated);
-		} else {
+	protected void putInCache(final String key, final Object value) {
+		if (cache.get(key) == null) { // The get refreshes it otherwise
 			cache.put(key, value);
+			cachedBytes += sizeOf(value);
 		}
 
-		recent.add(key); // Refresh recent list
+		evict();
+	}
 
-		if (cache.size() > cacheSize) { // Remove old element
-			cache.remove(recent.remove(0));
-			// System.out.println("Dropped element form cache");
+	/**
+	 * Drop the least recently accessed elements from the cache until it
+	 * holds no more than cacheSize elements and, if there is a limit, no
+	 * more than maxCacheBytes bytes.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Object>> it = cache.entrySet().iterator();
+
+		while (it.hasNext()
+				&& (cache.size() > cacheSize || (maxCacheBytes > 0
+						&& cachedBytes > maxCacheBytes))) {
+			Map.Entry<String, Object> e = it.next();
+			cachedBytes -= sizeOf(e.getValue());
+			it.remove();
+			evictions++;
+			evicted(e.getKey());
 		}
 	}
 
+	/**
+	 * Called after an element was dropped from the cache to make room. It
+	 * does nothing by default.
+	 * 
+	 * @param key the key of the dropped element
+	 */
+	protected void evicted(final String key) {
+	}
+
+	/**
+	 * Get the amount of memory an object takes when it's in the cache. This
+	 * is used to limit the cache by bytes, and by default it returns 0, so
+	 * subclasses that want to do so need to override it.
+	 * 
+	 * @param value an object in the cache
+	 * @return the amount of bytes taken by value
+	 */
+	protected long sizeOf(final Object value) {
+		return 0;
+	}
+
 	/**
 	 * Put a new mapping into the PersistendCachedMap.
 	 * 
@@ -221,9 +270,9 @@ public class PersistentCachedMap {
 
 		if (!toc.contains(key.toString())) {
 			// oldValue = get(key);
-			persistObject(key, value);
+			Object cachedValue = persistObject(key, value);
 			toc.add(key.toString());
-			putInCache(key.toString(), value);
+			putInCache(key.toString(), cachedValue);
 		}
 
 		return null;
@@ -243,11 +292,12 @@ public class PersistentCachedMap {
 		if (!toc.contains(key.toString())) {
 			return null;
 		} else {
-			Object value;
+			Object value = cache.get(key);
 
-			if (recent.contains(key)) {
-				value = cache.get(key);
+			if (value != null) {
+				hits++;
 			} else {
+				misses++;
 				value = recoverObject(key);
 				putInCache(key, value);
 			}
@@ -288,8 +338,11 @@ public class PersistentCachedMap {
 	 * 
 	 * @param key the key for the mapping
 	 * @param value the value for the mapping
+	 * @return the value to keep in the cache, which is value itself, unless
+	 *         a subclass can offer a cheaper copy backed by the persisted
+	 *         storage
 	 */
-	protected void persistObject(final Object key, final Object value) {
+	protected Object persistObject(final Object key, final Object value) {
 		try {
 			FileOutputStream fOut =
 					new FileOutputStream(path + key + ".data");
@@ -300,6 +353,7 @@ public class PersistentCachedMap {
 			gzFOut.finish();
 			gzFOut.close();
 			objOut.close();
+			return value;
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException("Can't write " + path + value
@@ -429,8 +483,8 @@ public class PersistentCachedMap {
 			eraseObject(key);
 		}
 
-		this.recent = new ArrayList<String>(cacheSize);
-		this.cache = new HashMap<String, Object>();
+		this.cache = new LinkedHashMap<String, Object>(16, 0.75f, true);
+		this.cachedBytes = 0;
 	}
 
 	/**
@@ -450,5 +504,63 @@ public class PersistentCachedMap {
 	 */
 	public void setCacheSize(final int cacheSize) {
 		this.cacheSize = cacheSize;
+		evict();
+	}
+
+	/**
+	 * Get the maximum amount of bytes that the objects in the cache can take.
+	 * 
+	 * @return the maximum amount of bytes, or 0 if there is no limit
+	 */
+	public long getMaxCacheBytes() {
+		return maxCacheBytes;
+	}
+
+	/**
+	 * Set the maximum amount of bytes that the objects in the cache can take,
+	 * as given by <code>sizeOf</code>. This applies on top of the cache size.
+	 * 
+	 * @param maxCacheBytes the maximum amount of bytes, or 0 for no limit
+	 */
+	public void setMaxCacheBytes(final long maxCacheBytes) {
+		this.maxCacheBytes = maxCacheBytes;
+		evict();
+	}
+
+	/**
+	 * Get the amount of bytes taken by the objects currently in the cache.
+	 * 
+	 * @return the amount of bytes, as given by <code>sizeOf</code>
+	 */
+	public long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	/**
+	 * Get the amount of gets that were served from the cache.
+	 * 
+	 * @return the amount of cache hits
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the amount of gets that had to read the persisted storage.
+	 * 
+	 * @return the amount of cache misses
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the amount of objects that have been dropped from the cache to keep
+	 * it within its limits.
+	 * 
+	 * @return the amount of evictions
+	 */
+	public long getEvictions() {
+		return evictions;
 	}
 }
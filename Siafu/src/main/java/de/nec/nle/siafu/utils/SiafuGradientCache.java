@@ -22,15 +22,33 @@ package de.nec.nle.siafu.utils;
 import java.util.Iterator;
 
 import de.nec.nle.siafu.control.Controller;
+import de.nec.nle.siafu.model.Gradient;
+import de.nec.nle.siafu.model.NearestPlaceField;
+import de.nec.nle.siafu.model.SectorField;
 
 /**
  * This class is identical to <code>PersitentCachedMaps</code>, except that
- * it prints its messages through a Progress interface.
+ * it prints its messages through a Progress interface, and that gradients
+ * are persisted in a single memory mapped <code>GradientFile</code> per
+ * world, instead of one compressed file each. Gradients persisted one per
+ * file by older versions can still be read, and are moved into the gradient
+ * file the first time they are.
  * 
  * @author Miquel Martin
  * 
  */
 public class SiafuGradientCache extends PersistentCachedMap {
+	/** The name of the gradient file, in the directory of the map. */
+	private static final String GRADIENT_FILE_NAME = "gradients.bin";
+
+	/** The file holding the gradients of this world. */
+	private GradientFile gradientFile;
+
+	/** The map height. */
+	private int height;
+
+	/** The map width. */
+	private int width;
 
 	/**
 	 * Creates a PersistentCachedMap for the distance Gradients.
@@ -43,13 +61,106 @@ public class SiafuGradientCache extends PersistentCachedMap {
 	 *            through hard drive read.
 	 * @param fillCache whether you would like to read the first cacheSize
 	 *            elements from the hard drive and put them in the cache.
+	 * @param height the height of the world map
+	 * @param width the width of the world map
 	 * @see PersistentCachedMap
 	 */
 	public SiafuGradientCache(final String basePath, final String name,
-			final int cacheSize, final boolean fillCache) {
-		super(basePath, name, cacheSize, fillCache);
+			final int cacheSize, final boolean fillCache, final int height,
+			final int width) {
+		super(basePath, name, cacheSize, false);
+		this.height = height;
+		this.width = width;
+		this.gradientFile =
+				new GradientFile(path + GRADIENT_FILE_NAME, height, width);
+		toc.addAll(gradientFile.keySet());
+
+		if (fillCache) {
+			fillCache(cacheSize);
+		}
 	}
 
+	/**
+	 * Append the gradient to the gradient file. Other kinds of objects are
+	 * persisted as in <code>PersistentCachedMap</code>.
+	 * 
+	 * @param key the key for the mapping
+	 * @param value the value for the mapping
+	 * @return the gradient as read from the mapped file
+	 */
+	protected Object persistObject(final Object key, final Object value) {
+		if (!(value instanceof Gradient)) {
+			return super.persistObject(key, value);
+		}
+
+		gradientFile.append(key.toString(), (Gradient) value);
+		return gradientFile.get(key.toString());
+	}
+
+	/**
+	 * Get a gradient from the gradient file, or from its own file if it was
+	 * persisted by an older version, in which case it is moved into the
+	 * gradient file.
+	 * 
+	 * @param key the key for the mapping
+	 * @return the value of the mapping
+	 */
+	protected Object recoverObject(final Object key) {
+		Gradient gradient = gradientFile.get(key.toString());
+
+		if (gradient != null) {
+			return gradient;
+		}
+
+		Object value = super.recoverObject(key);
+
+		if (value instanceof Gradient
+				&& ((Gradient) value).getHeight() == height
+				&& ((Gradient) value).getWidth() == width) {
+			gradientFile.append(key.toString(), (Gradient) value);
+			super.eraseObject(key);
+			return gradientFile.get(key.toString());
+		}
+
+		return value;
+	}
+
+	/**
+	 * Erase the gradient from the gradient file and, if it exists, its own
+	 * file.
+	 * 
+	 * @param key the key to the object
+	 */
+	protected void eraseObject(final Object key) {
+		gradientFile.erase(key.toString());
+		super.eraseObject(key);
+	}
+
+	/**
+	 * Gradients take the size of their distances, whether they are in the
+	 * heap or mapped from the gradient file. Nearest place fields take the
+	 * size of their arrays.
+	 * 
+	 * @param value an object in the cache
+	 * @return the amount of bytes taken by value
+	 */
+	protected long sizeOf(final Object value) {
+		if (value instanceof Gradient) {
+			return ((Gradient) value).getSizeInBytes();
+		} else if (value instanceof NearestPlaceField) {
+			return ((NearestPlaceField) value).getSizeInBytes();
+		} else if (value instanceof SectorField) {
+			return ((SectorField) value).getSizeInBytes();
+		}
+		return 0;
+	}
+
+	/**
+	 * Close the gradient file. The cache can't be used afterwards.
+	 */
+	public void close() {
+		gradientFile.close();
+	}
 
 	/**
 	 * Load the first desiredCacheSize persisted elements to memory for faster
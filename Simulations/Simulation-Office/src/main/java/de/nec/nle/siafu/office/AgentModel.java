@@ -192,14 +192,13 @@ public class AgentModel extends BaseAgentModel {
 			return; // This guy's being managed by the user interface
 		}
 		try {
-			switch ((Activity) a.get(ACTIVITY)) {
+			switch (a.get(ACTIVITY)) {
 			case RESTING:
-				if (now.isAfter((EasyTime) a.get(START_WORK))
-						&& now.isBefore((EasyTime) a.get(END_WORK))) {
+				if (now.isAfter(a.get(START_WORK))
+						&& now.isBefore(a.get(END_WORK))) {
 					goToDesk(a);
-					a.set(NEXT_TOILET_VISIT, new EasyTime(((EasyTime) a
-							.get(START_WORK))).shift((EasyTime) a
-							.get(TOILET_INTERVAL)));
+					a.set(NEXT_TOILET_VISIT, new EasyTime(a.get(START_WORK))
+							.shift((EasyTime) a.get(TOILET_INTERVAL)));
 				}
 				break;
 
@@ -228,9 +227,9 @@ public class AgentModel extends BaseAgentModel {
 				break;
 
 			case AT_DESK:
-				if (now.isAfter((EasyTime) a.get(END_WORK))
+				if (now.isAfter(a.get(END_WORK))
 						|| now.isIn(new TimePeriod(new EasyTime(0, 0),
-								(EasyTime) a.get(START_WORK)))) {
+								a.get(START_WORK)))) {
 					goHome(a);
 				}
 				handleEvent(a);
@@ -391,7 +390,7 @@ public class AgentModel extends BaseAgentModel {
 	 */
 	private boolean isTimeForToilet(final Agent a, final EasyTime now) {
 		EasyTime nextVisit = (EasyTime) a.get(NEXT_TOILET_VISIT);
-		if (nextVisit.isBefore((EasyTime) a.get(START_WORK))) {
+		if (nextVisit.isBefore(a.get(START_WORK))) {
 			nextVisit.shift((EasyTime) a.get(TOILET_INTERVAL));
 			a.set(NEXT_TOILET_VISIT, nextVisit);
 		}
@@ -19,6 +19,7 @@
 
 package de.nec.nle.siafu.office;
 
+import de.nec.nle.siafu.model.InfoField;
 import de.nec.nle.siafu.types.EasyTime;
 import de.nec.nle.siafu.types.FlatData;
 import de.nec.nle.siafu.types.Publishable;
@@ -79,11 +80,13 @@ public class Constants {
 			new EasyTime(3, 0);
 
 	/**
-	 * The names of the fields in each agent object.
+	 * The names of the fields in each agent object. The ones read at every
+	 * iteration are handles, which spare the lookup by name.
 	 */
 	static class Fields {
 		/** The agent's current activity. */
-		public static final String ACTIVITY = "Activity";
+		public static final InfoField<Activity> ACTIVITY =
+				InfoField.named("Activity", Activity.class);
 
 		/** Whether the person's staff or student. */
 		public static final String TYPE = "Type";
@@ -92,10 +95,12 @@ public class Constants {
 		public static final String DESK = "Desk";
 
 		/** The time at which the agent starts to work. */
-		public static final String START_WORK = "StartWork";
+		public static final InfoField<EasyTime> START_WORK =
+				InfoField.named("StartWork", EasyTime.class);
 
 		/** The time at whcih the agent ends working. */
-		public static final String END_WORK = "EndWork";
+		public static final InfoField<EasyTime> END_WORK =
+				InfoField.named("EndWork", EasyTime.class);
 
 		/** How often the agent goes to the toilet. */
 		public static final String TOILET_INTERVAL = "ToiletInterval";